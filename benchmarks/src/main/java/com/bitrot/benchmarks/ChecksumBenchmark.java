@@ -0,0 +1,86 @@
+package com.bitrot.benchmarks;
+
+import com.bitrot.FileUtils;
+import com.bitrot.io.ReadEngine;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Measures {@link FileUtils#computeCRC(Path, ReadEngine)} for every read engine and a range of file sizes, and the
+ * CRC-32 of the same bytes fed in chunks of different sizes.
+ * <p>
+ * The file is read over and over, so it is served from the page cache and this measures everything but the disk.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChecksumBenchmark {
+    @State(Scope.Benchmark)
+    public static class FileState {
+        @Param({"4096", "1048576", "67108864"})
+        public int fileSize;
+
+        @Param({"STREAM", "CHANNEL", "MMAP"})
+        public ReadEngine readEngine;
+
+        public Path file;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            file = Files.createTempFile("checksum-benchmark", ".bin");
+            Files.write(file, randomBytes(fileSize));
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * The read engines read with a fixed buffer, see {@code CRC_BUFFER_SIZE}, so chunk sizes are compared on the
+     * checksum alone.
+     */
+    @State(Scope.Thread)
+    public static class BufferState {
+        private static final int DATA_SIZE = 16 * 1024 * 1024;
+
+        @Param({"4096", "65536", "1048576", "4194304"})
+        public int bufferSize;
+
+        public byte[] data;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            data = randomBytes(DATA_SIZE);
+        }
+    }
+
+    @Benchmark
+    public long computeCrc(final FileState state) throws IOException {
+        return FileUtils.computeCRC(state.file, state.readEngine);
+    }
+
+    @Benchmark
+    public long crcInChunks(final BufferState state) {
+        final CRC32 crc = new CRC32();
+        for (int offset = 0; offset < state.data.length; offset += state.bufferSize) {
+            crc.update(state.data, offset, Math.min(state.bufferSize, state.data.length - offset));
+        }
+        return crc.getValue();
+    }
+
+    private static byte[] randomBytes(final int size) {
+        final byte[] bytes = new byte[size];
+        new Random(42).nextBytes(bytes);
+        return bytes;
+    }
+}
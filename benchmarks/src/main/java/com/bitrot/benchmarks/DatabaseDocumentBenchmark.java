@@ -0,0 +1,68 @@
+package com.bitrot.benchmarks;
+
+import com.bitrot.checksum.BlockManifest;
+import com.bitrot.data.DatabaseDocument;
+import com.mongodb.MongoClientSettings;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.bson.types.Binary;
+import org.bson.types.ObjectId;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+import static com.bitrot.MongoManager.*;
+
+/**
+ * Measures turning a record as it comes from MongoDB into a {@link DatabaseDocument} and reading the fields that
+ * verification looks at, for a plain record and for one with a block manifest.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DatabaseDocumentBenchmark {
+    private static final DocumentCodec CODEC = new DocumentCodec(MongoClientSettings.getDefaultCodecRegistry());
+
+    @Param({"false", "true"})
+    public boolean blockManifest;
+
+    private RawBsonDocument bson;
+
+    @Setup
+    public void setUp() {
+        final Document document = new Document()
+                .append(MONGO_ID_KEY, new ObjectId())
+                .append(FILE_ID_KEY, "9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08")
+                .append(MODIFIED_TIME_SECONDS_KEY, 1_626_280_502L)
+                .append(MODIFIED_TIME_NANOS_KEY, 123_456_789)
+                .append(SIZE_KEY, 5_242_880_000L)
+                .append(CHECKSUM_KEY, 3_735_928_559L)
+                .append(LAST_ACCESSED_KEY, Instant.now());
+        if (blockManifest) {
+            // A 5,000 MB file in blocks of 16 MiB
+            document.append(BLOCK_SIZE_KEY, 16L * 1024 * 1024)
+                    .append(BLOCK_CHECKSUMS_KEY, new Binary(new byte[313 * Integer.BYTES]));
+        }
+        bson = new RawBsonDocument(document, CODEC);
+    }
+
+    @Benchmark
+    public void decode(final Blackhole blackhole) {
+        final DatabaseDocument databaseDocument = new DatabaseDocument(bson.decode(CODEC));
+        blackhole.consume(databaseDocument.objectId());
+        blackhole.consume(databaseDocument.fileId());
+        blackhole.consume(databaseDocument.mTimeSeconds());
+        blackhole.consume(databaseDocument.mTimeNanos());
+        blackhole.consume(databaseDocument.size());
+        blackhole.consume(databaseDocument.checksum(databaseDocument.checksumAlgorithm()));
+        blackhole.consume(databaseDocument.lastAccessed());
+        final BlockManifest manifest = databaseDocument.blockManifest();
+        blackhole.consume(manifest);
+    }
+}
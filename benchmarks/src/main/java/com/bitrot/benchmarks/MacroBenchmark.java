@@ -0,0 +1,305 @@
+package com.bitrot.benchmarks;
+
+import com.bitrot.FileProcessor;
+import com.bitrot.MongoManager;
+import com.bitrot.SkipUtil;
+import com.bitrot.data.Config;
+import com.bitrot.data.Result;
+import com.bitrot.logger.StdoutLoggerUtil;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.mongodb.ConnectionString;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
+import de.flapdoodle.embed.mongo.distribution.Version;
+import de.flapdoodle.embed.mongo.transitions.Mongod;
+import de.flapdoodle.embed.mongo.transitions.RunningMongodProcess;
+import de.flapdoodle.embed.process.io.ProcessOutput;
+import de.flapdoodle.reverse.Transition;
+import de.flapdoodle.reverse.TransitionWalker;
+import de.flapdoodle.reverse.transitions.Start;
+import org.jspecify.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.bitrot.data.Constants.MONGO_DB_NAME;
+
+/**
+ * An end-to-end benchmark of a whole run, from walking the paths to writing to the databases.
+ * <p>
+ * A synthetic tree of the given {@link TreeShape} is verified three times against an embedded MongoDB:
+ * <ol>
+ *     <li>{@code first-ingest}, where every file is new and gets a record</li>
+ *     <li>{@code all-unchanged}, with an empty recent verification database so every file is read and verified</li>
+ *     <li>{@code all-skipped}, with the recent verification database of the run before so every file is skipped</li>
+ * </ol>
+ * For each run we report files per second, MB of the tree per second, MongoDB round trips per file and the peak heap.
+ * The results can be saved as a baseline, and a later run fails if it is slower than the baseline by more than a
+ * threshold.
+ */
+public final class MacroBenchmark {
+    private static final String USAGE = """
+            Usage: java -cp benchmarks.jar com.bitrot.benchmarks.MacroBenchmark <tiny|huge|deep|mixed> [options]
+              --scale <factor>          multiply the number of files by this factor, default 1
+              --dir <directory>         where the tree and the SQLite database are kept, default macro-benchmark
+              --mongo <connection>      use this MongoDB instead of an embedded one. Its bitrot database is dropped!
+              --save-baseline <file>    save the results to this file
+              --baseline <file>         fail if files per second of any run dropped below the results in this file
+              --max-regression <ratio>  how far below the baseline a run may be, default 0.1 for 10%""";
+    private static final double BYTES_IN_A_MB = 1024 * 1024;
+    private static final ObjectMapper MAPPER = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+
+    private final SyntheticTree tree;
+    private final TreeShape shape;
+    private final Path recencyDatabase;
+    private final MongoClient client;
+    // Every command sent to MongoDB, batched writes counting once
+    private final LongAdder roundTrips;
+
+    private MacroBenchmark(final SyntheticTree tree, final TreeShape shape, final Path recencyDatabase, final MongoClient client,
+                           final LongAdder roundTrips) {
+        this.tree = tree;
+        this.shape = shape;
+        this.recencyDatabase = recencyDatabase;
+        this.client = client;
+        this.roundTrips = roundTrips;
+    }
+
+    public static void main(final String[] args) throws Exception {
+        if (args.length < 1) {
+            System.out.println(USAGE);
+            System.exit(2);
+        }
+
+        TreeShape shape = TreeShape.preset(args[0]);
+        Path directory = Path.of("macro-benchmark");
+        String mongoConnectionString = null;
+        Path saveBaseline = null;
+        Path baseline = null;
+        double maxRegression = 0.1;
+        for (int i = 1; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--scale" -> shape = shape.scaled(Double.parseDouble(args[i + 1]));
+                case "--dir" -> directory = Path.of(args[i + 1]);
+                case "--mongo" -> mongoConnectionString = args[i + 1];
+                case "--save-baseline" -> saveBaseline = Path.of(args[i + 1]);
+                case "--baseline" -> baseline = Path.of(args[i + 1]);
+                case "--max-regression" -> maxRegression = Double.parseDouble(args[i + 1]);
+                default -> {
+                    System.out.println("Unknown option " + args[i] + "\n" + USAGE);
+                    System.exit(2);
+                }
+            }
+        }
+
+        final SyntheticTree tree = SyntheticTree.generate(directory.toAbsolutePath(), shape);
+        final Report report = run(tree, shape, directory.toAbsolutePath().resolve("recency.sqlite"), mongoConnectionString);
+
+        System.out.println(MAPPER.writeValueAsString(report));
+        if (saveBaseline != null) {
+            MAPPER.writeValue(saveBaseline.toFile(), report);
+            System.out.println("Saved the results to " + saveBaseline);
+        }
+        if (baseline != null) {
+            final List<String> regressions = compare(MAPPER.readValue(baseline.toFile(), Report.class), report, maxRegression);
+            regressions.forEach(System.out::println);
+            if (!regressions.isEmpty()) {
+                System.exit(1);
+            }
+            System.out.println("No run is more than " + Math.round(maxRegression * 100) + "% slower than " + baseline);
+        }
+    }
+
+    private static Report run(final SyntheticTree tree, final TreeShape shape, final Path recencyDatabase,
+                              @Nullable final String mongoConnectionString) throws IOException, SQLException {
+        TransitionWalker.ReachedState<RunningMongodProcess> runningMongo = null;
+        try {
+            final String connectionString;
+            if (mongoConnectionString == null) {
+                runningMongo = new Mongod() {
+                    @Override
+                    public Transition<ProcessOutput> processOutput() {
+                        return Start.to(ProcessOutput.class)
+                                .initializedWith(ProcessOutput.silent())
+                                .withTransitionLabel("no output");
+                    }
+                }.start(Version.V8_0_3);
+                connectionString = "mongodb://" + runningMongo.current().getServerAddress();
+            } else {
+                connectionString = mongoConnectionString;
+            }
+
+            final LongAdder roundTrips = new LongAdder();
+            final MongoClientSettings settings = MongoClientSettings.builder()
+                    .applyConnectionString(new ConnectionString(connectionString))
+                    .addCommandListener(new CommandListener() {
+                        @Override
+                        public void commandStarted(final CommandStartedEvent event) {
+                            roundTrips.increment();
+                        }
+                    })
+                    .build();
+            try (final MongoClient client = MongoClients.create(settings)) {
+                client.getDatabase(MONGO_DB_NAME).drop();
+                final MacroBenchmark benchmark = new MacroBenchmark(tree, shape, recencyDatabase, client, roundTrips);
+
+                final List<PhaseResult> phases = new ArrayList<>();
+                phases.add(benchmark.runPhase("first-ingest", true));
+                phases.add(benchmark.runPhase("all-unchanged", true));
+                phases.add(benchmark.runPhase("all-skipped", false));
+                return new Report(shape.toString(), phases);
+            }
+        } finally {
+            if (runningMongo != null) {
+                runningMongo.close();
+            }
+        }
+    }
+
+    /**
+     * Runs a whole verification of the tree, the way {@code Main} does.
+     *
+     * @param name          the name of the run
+     * @param freshRecency  whether to start from an empty recent verification database
+     */
+    private PhaseResult runPhase(final String name, final boolean freshRecency) throws IOException, SQLException {
+        if (freshRecency) {
+            for (final String suffix : List.of("", "-wal", "-shm")) {
+                Files.deleteIfExists(Path.of(recencyDatabase + suffix));
+            }
+        }
+
+        final PrintStream out = System.out;
+        // Logging every file would measure the terminal more than anything else
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            final SkipUtil skipUtil = new SkipUtil(DriverManager.getConnection("jdbc:sqlite:" + recencyDatabase));
+            final MongoManager store = new MongoManager(client, Config.defaults());
+            final FileProcessor processor = new FileProcessor(skipUtil, store, new StdoutLoggerUtil());
+
+            System.gc();
+            roundTrips.reset();
+            final long start = System.nanoTime();
+            final long peakHeapBytes;
+            try (final HeapSampler heapSampler = new HeapSampler()) {
+                processor.processPaths(tree.getMutablePaths(), tree.getImmutablePaths());
+                store.close();
+                skipUtil.close();
+                peakHeapBytes = heapSampler.getPeakBytes();
+            }
+
+            final double seconds = (System.nanoTime() - start) / (double) TimeUnit.SECONDS.toNanos(1);
+            final Map<Result, Integer> totals = processor.getRunTotals();
+            final long files = totals.values().stream().mapToLong(Integer::longValue).sum();
+            if (totals.getOrDefault(Result.FAIL, 0) > 0) {
+                throw new IllegalStateException(name + " had failures: " + totals);
+            }
+
+            final PhaseResult result = new PhaseResult(name, totals.getOrDefault(Result.PASS, 0), totals.getOrDefault(Result.SKIP, 0),
+                    seconds, files / seconds, shape.totalBytes() / BYTES_IN_A_MB / seconds,
+                    files == 0 ? 0 : roundTrips.sum() / (double) files, peakHeapBytes);
+            out.printf("%-14s %,d passed, %,d skipped in %.1f s: %,.0f files/s, %,.1f MB/s, %.3f round trips per file, peak heap %,d MB%n",
+                    name, result.passed(), result.skipped(), seconds, result.filesPerSecond(), result.megabytesPerSecond(),
+                    result.roundTripsPerFile(), peakHeapBytes / (1024 * 1024));
+            return result;
+        } finally {
+            System.setOut(out);
+        }
+    }
+
+    /**
+     * Returns a message for every run that is slower than the same run of the baseline by more than the threshold.
+     */
+    static List<String> compare(final Report baseline, final Report report, final double maxRegression) {
+        if (!baseline.shape().equals(report.shape())) {
+            return List.of("The baseline is for " + baseline.shape() + " and cannot be compared with " + report.shape());
+        }
+
+        final List<String> regressions = new ArrayList<>();
+        for (final PhaseResult phase : report.phases()) {
+            for (final PhaseResult baselinePhase : baseline.phases()) {
+                if (baselinePhase.name().equals(phase.name())
+                        && phase.filesPerSecond() < baselinePhase.filesPerSecond() * (1 - maxRegression)) {
+                    regressions.add(String.format("%s regressed: %,.0f files/s against %,.0f files/s in the baseline",
+                            phase.name(), phase.filesPerSecond(), baselinePhase.filesPerSecond()));
+                }
+            }
+        }
+        return regressions;
+    }
+
+    /**
+     * Samples the total heap usage every few milliseconds and keeps the highest.
+     * <p>
+     * The peak usage of each memory pool is exact, but the pools peak at different times, so their sum overstates the
+     * real peak. Sampling the total instead can miss a spike between two samples, so it understates it a little.
+     */
+    private static final class HeapSampler implements AutoCloseable {
+        private static final long SAMPLE_INTERVAL_MILLIS = 10;
+
+        private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        private final ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "heap-sampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Guarded by this
+        private long peakBytes;
+
+        HeapSampler() {
+            sample();
+            sampler.scheduleAtFixedRate(this::sample, SAMPLE_INTERVAL_MILLIS, SAMPLE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        private synchronized void sample() {
+            peakBytes = Math.max(peakBytes, memory.getHeapMemoryUsage().getUsed());
+        }
+
+        synchronized long getPeakBytes() {
+            sample();
+            return peakBytes;
+        }
+
+        @Override
+        public void close() {
+            sampler.shutdownNow();
+        }
+    }
+
+    /**
+     * @param shape  the shape of the tree
+     * @param phases the results of every run
+     */
+    record Report(String shape, List<PhaseResult> phases) {}
+
+    /**
+     * @param name               the name of the run
+     * @param passed             the files that passed verification
+     * @param skipped            the files that were skipped
+     * @param seconds            how long the run took
+     * @param filesPerSecond     the files processed per second, whatever their result
+     * @param megabytesPerSecond the size of the whole tree in MB divided by the time the run took
+     * @param roundTripsPerFile  the commands sent to MongoDB per file
+     * @param peakHeapBytes      the highest total heap usage sampled during the run
+     */
+    record PhaseResult(String name, long passed, long skipped, double seconds, double filesPerSecond, double megabytesPerSecond,
+                       double roundTripsPerFile, long peakHeapBytes) {}
+}
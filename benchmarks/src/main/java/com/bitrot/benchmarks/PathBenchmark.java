@@ -0,0 +1,40 @@
+package com.bitrot.benchmarks;
+
+import com.bitrot.FileUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the work done on the path of every file before it is looked up: making it relative to its configured
+ * prefix and hashing it into the file ID.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PathBenchmark {
+    private Path configPrefix;
+    private Path absoluteFilePath;
+    private String filePath;
+
+    @Setup
+    public void setUp() {
+        configPrefix = Path.of("/mnt", "storage", "photos").toAbsolutePath();
+        absoluteFilePath = configPrefix.resolve(Path.of("2021", "Summer holiday", "Day 3", "IMG_20210714_181502.jpg"));
+        filePath = FileUtils.getFilePathFromAbsolutePath(absoluteFilePath, configPrefix);
+    }
+
+    @Benchmark
+    public String calculateFileId() {
+        return FileUtils.calculateFileId(filePath);
+    }
+
+    @Benchmark
+    public String getFilePathFromAbsolutePath() {
+        return FileUtils.getFilePathFromAbsolutePath(absoluteFilePath, configPrefix);
+    }
+}
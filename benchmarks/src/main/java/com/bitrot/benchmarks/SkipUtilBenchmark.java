@@ -0,0 +1,78 @@
+package com.bitrot.benchmarks;
+
+import com.bitrot.SkipUtil;
+import com.bitrot.data.FileRecord;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Measures {@link SkipUtil#shouldSkipFile(FileRecord)} against an in-memory SQLite database, both with queries and
+ * with the whole database loaded into memory. Every other file was verified, so half the lookups find a row.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SkipUtilBenchmark {
+    private static final int FILE_COUNT = 1024;
+    private static final String DATABASE_URL = "jdbc:sqlite:file:skip-benchmark?mode=memory&cache=shared";
+
+    @Param({"false", "true"})
+    public boolean inMemoryIndex;
+
+    private Path directory;
+    private SkipUtil skipUtil;
+    private FileRecord[] fileRecords;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, SQLException {
+        directory = Files.createTempDirectory("skip-benchmark");
+        final List<FileRecord> records = new ArrayList<>();
+        for (int i = 0; i < FILE_COUNT; i++) {
+            final Path file = Files.createFile(Files.createDirectories(directory.resolve("dir" + i % 16)).resolve("file" + i + ".jpg"));
+            records.add(new FileRecord(file, "\\" + directory.relativize(file), Files.readAttributes(file, BasicFileAttributes.class)));
+        }
+        fileRecords = records.toArray(new FileRecord[0]);
+
+        // Half the files are verified through one connection to a shared in-memory database, so that the index of the
+        // second one can be loaded from it
+        final SkipUtil writer = new SkipUtil(DriverManager.getConnection(DATABASE_URL), false);
+        for (int i = 0; i < FILE_COUNT; i += 2) {
+            writer.recordVerification(fileRecords[i]);
+        }
+        writer.flush();
+        skipUtil = new SkipUtil(DriverManager.getConnection(DATABASE_URL), inMemoryIndex);
+        writer.close();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        skipUtil.close();
+        try (final Stream<Path> paths = Files.walk(directory)) {
+            for (final Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Benchmark
+    public boolean shouldSkipFile() {
+        final FileRecord fileRecord = fileRecords[next];
+        next = (next + 1) % FILE_COUNT;
+        return skipUtil.shouldSkipFile(fileRecord);
+    }
+}
@@ -0,0 +1,139 @@
+package com.bitrot.benchmarks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.stream.Stream;
+
+/**
+ * Generates the directory tree of a {@link TreeShape} under a directory, with the same contents every time.
+ * <p>
+ * Generating millions of files takes a while, so the tree is kept and only generated again when the shape changes.
+ */
+public final class SyntheticTree {
+    private static final String SHAPE_FILE_NAME = "shape.txt";
+    private static final Instant IMMUTABLE_CREATION_TIME = Instant.parse("2000-01-01T00:00:00Z");
+    private static final int WRITE_CHUNK_SIZE = 1024 * 1024;
+
+    private final Path mutableRoot;
+    private final Path immutableRoot;
+
+    private SyntheticTree(final Path directory) {
+        mutableRoot = directory.resolve("mutable");
+        immutableRoot = directory.resolve("immutable");
+    }
+
+    /**
+     * Makes sure the directory holds the tree of the given shape, generating it if it does not.
+     *
+     * @param directory the directory for the tree
+     * @param shape     the shape of the tree
+     * @return the tree
+     * @throws IOException if the tree could not be generated
+     */
+    public static SyntheticTree generate(final Path directory, final TreeShape shape) throws IOException {
+        final SyntheticTree tree = new SyntheticTree(directory);
+        final Path shapeFile = directory.resolve(SHAPE_FILE_NAME);
+        if (Files.exists(shapeFile) && Files.readString(shapeFile).equals(shape.toString())) {
+            System.out.println("Reusing the tree in " + directory);
+            return tree;
+        }
+
+        System.out.println("Generating " + shape + " in " + directory);
+        Files.deleteIfExists(shapeFile);
+        delete(tree.mutableRoot);
+        delete(tree.immutableRoot);
+        Files.createDirectories(tree.mutableRoot);
+        Files.createDirectories(tree.immutableRoot);
+
+        final int immutableSmallFiles = (int) Math.round(shape.smallFiles() * shape.immutableFraction());
+        final SplittableRandom random = new SplittableRandom(42);
+        final byte[] contents = new byte[shape.smallFileSize()];
+        for (int i = 0; i < shape.smallFiles(); i++) {
+            final boolean immutable = i < immutableSmallFiles;
+            final Path parent = Files.createDirectories(
+                    directoryFor(immutable ? tree.immutableRoot : tree.mutableRoot, i / shape.filesPerDirectory(), shape));
+            random.nextBytes(contents);
+            writeFile(parent.resolve("file" + i + ".bin"), contents, immutable);
+        }
+
+        final boolean hugeFilesImmutable = shape.immutableFraction() > 0;
+        for (int i = 0; i < shape.hugeFiles(); i++) {
+            final Path file = (hugeFilesImmutable ? tree.immutableRoot : tree.mutableRoot).resolve("huge" + i + ".bin");
+            final Random hugeRandom = new Random(i);
+            final byte[] chunk = new byte[WRITE_CHUNK_SIZE];
+            try (final OutputStream out = Files.newOutputStream(file)) {
+                for (long written = 0; written < shape.hugeFileSize(); written += chunk.length) {
+                    hugeRandom.nextBytes(chunk);
+                    out.write(chunk, 0, (int) Math.min(chunk.length, shape.hugeFileSize() - written));
+                }
+            }
+            backdate(file, hugeFilesImmutable);
+        }
+
+        // Written last, so an interrupted generation is started over
+        Files.writeString(shapeFile, shape.toString(), StandardCharsets.UTF_8);
+        return tree;
+    }
+
+    public List<Path> getMutablePaths() {
+        return List.of(mutableRoot);
+    }
+
+    public List<Path> getImmutablePaths() {
+        return List.of(immutableRoot);
+    }
+
+    /**
+     * Returns the directory of the given number, which spells the number in base {@code fanout} with one directory per
+     * digit, so neighbouring directories share their parents.
+     */
+    private static Path directoryFor(final Path root, final int number, final TreeShape shape) {
+        Path directory = root;
+        int remaining = number;
+        final String[] digits = new String[shape.depth()];
+        for (int level = shape.depth() - 1; level >= 0; level--) {
+            digits[level] = "d" + remaining % shape.fanout();
+            remaining /= shape.fanout();
+        }
+        for (final String digit : digits) {
+            directory = directory.resolve(digit);
+        }
+        return directory;
+    }
+
+    private static void writeFile(final Path file, final byte[] contents, final boolean immutable) throws IOException {
+        Files.write(file, contents);
+        backdate(file, immutable);
+    }
+
+    /**
+     * Immutable files are only recorded once they are a day old, so their creation time is set far in the past. Not
+     * every platform can change the creation time: on Linux the files of the immutable root are skipped on the first
+     * run as too new, just like freshly copied files would be.
+     */
+    private static void backdate(final Path file, final boolean immutable) throws IOException {
+        if (immutable) {
+            Files.setAttribute(file, "basic:creationTime", FileTime.from(IMMUTABLE_CREATION_TIME));
+        }
+    }
+
+    private static void delete(final Path directory) throws IOException {
+        if (!Files.exists(directory)) {
+            return;
+        }
+        try (final Stream<Path> paths = Files.walk(directory)) {
+            for (final Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.bitrot.benchmarks;
+
+import java.util.Map;
+
+/**
+ * The shape of a synthetic directory tree for {@link MacroBenchmark}.
+ *
+ * @param name              the name of the shape, stored with the results so that only runs of the same shape are
+ *                          compared
+ * @param smallFiles        the number of small files
+ * @param smallFileSize     the size of every small file in bytes
+ * @param hugeFiles         the number of huge files
+ * @param hugeFileSize      the size of every huge file in bytes
+ * @param depth             how many directories deep the small files are
+ * @param fanout            the number of subdirectories of every directory
+ * @param filesPerDirectory the number of small files in every directory at the bottom of the tree
+ * @param immutableFraction the fraction of the small files, and all the huge files if above 0, that are put in an
+ *                          immutable root instead of the mutable one
+ */
+public record TreeShape(String name, int smallFiles, int smallFileSize, int hugeFiles, long hugeFileSize, int depth,
+                        int fanout, int filesPerDirectory, double immutableFraction) {
+    private static final long MIB = 1024 * 1024;
+
+    private static final Map<String, TreeShape> PRESETS = Map.of(
+            // Millions of tiny files, where everything but reading the files matters
+            "tiny", new TreeShape("tiny", 1_000_000, 1024, 0, 0, 3, 32, 100, 0),
+            // A few huge files, where reading the files is all that matters
+            "huge", new TreeShape("huge", 0, 0, 4, 2048 * MIB, 1, 1, 1, 0),
+            // Deep nesting, which stresses the walk and long paths
+            "deep", new TreeShape("deep", 100_000, 4096, 0, 0, 24, 2, 10, 0),
+            // Mutable documents next to an immutable archive with a few large videos
+            "mixed", new TreeShape("mixed", 200_000, 16 * 1024, 4, 512 * MIB, 6, 10, 50, 0.5));
+
+    /**
+     * Returns one of the preset shapes: {@code tiny}, {@code huge}, {@code deep} or {@code mixed}.
+     *
+     * @param name the name of the preset
+     * @return the shape
+     * @throws IllegalArgumentException if there is no preset with the name
+     */
+    public static TreeShape preset(final String name) {
+        final TreeShape shape = PRESETS.get(name);
+        if (shape == null) {
+            throw new IllegalArgumentException("Unknown tree shape " + name + ", expected one of " + PRESETS.keySet());
+        }
+        return shape;
+    }
+
+    /**
+     * Returns this shape with the number of files scaled, for a quicker run. The name records the scale so that the
+     * results are not compared with a run at a different scale.
+     *
+     * @param scale the factor to multiply the number of files by
+     * @return the scaled shape
+     */
+    public TreeShape scaled(final double scale) {
+        if (scale == 1) {
+            return this;
+        }
+        return new TreeShape(name + "@" + scale, (int) Math.ceil(smallFiles * scale), smallFileSize,
+                (int) Math.ceil(hugeFiles * scale), hugeFileSize, depth, fanout, filesPerDirectory, immutableFraction);
+    }
+
+    public long totalBytes() {
+        return (long) smallFiles * smallFileSize + hugeFiles * hugeFileSize;
+    }
+}
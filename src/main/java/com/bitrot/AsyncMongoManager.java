@@ -0,0 +1,167 @@
+package com.bitrot;
+
+import com.bitrot.data.Config;
+import com.bitrot.data.DatabaseDocument;
+import com.bitrot.data.DocumentLookup;
+import com.bitrot.data.FileRecord;
+import com.bitrot.data.FileResult;
+import com.bitrot.metrics.Metrics;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.reactivestreams.client.MongoClient;
+import com.mongodb.reactivestreams.client.MongoClients;
+import com.mongodb.reactivestreams.client.MongoCollection;
+import org.bson.Document;
+import org.jspecify.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static com.bitrot.MongoManager.*;
+import static com.bitrot.data.Constants.*;
+
+/**
+ * Verifies file records against MongoDB using the reactive-streams driver.
+ * Queries are sent without blocking a thread while we wait for the answer, so the number of lookups in flight is no
+ * longer limited by the number of threads. Only the parts that may block, hashing the file and queueing writes, run
+ * on our own virtual threads.
+ * <p>
+ * Verification behaves exactly like {@link MongoManager} as both use the same {@link RecordVerifier}.
+ */
+public class AsyncMongoManager implements VerificationStore {
+    private final MongoCollection<Document> collection;
+    private final MongoBulkWriter bulkWriter;
+    private final RecordVerifier verifier;
+    // Hashing and queueing writes may block, which must never happen on the driver's threads
+    private final ExecutorService blockingExecutor = Executors.newVirtualThreadPerTaskExecutor();
+
+    public AsyncMongoManager(final Config config) {
+        this(config, null);
+    }
+
+    /**
+     * @param config  the config
+     * @param journal the journal to save queued writes to, or null
+     */
+    @SuppressWarnings("resource")
+    public AsyncMongoManager(final Config config, @Nullable final RunJournal journal) {
+        this(MongoClients.create(config.getMongoConnectionString()), config, journal);
+    }
+
+    AsyncMongoManager(final MongoClient client, final Config config) {
+        this(client, config, null);
+    }
+
+    AsyncMongoManager(final MongoClient client, final Config config, @Nullable final RunJournal journal) {
+        collection = client.getDatabase(MONGO_DB_NAME).getCollection(MONGO_COLLECTION_NAME);
+        // Bulk writes only happen on our own threads or the writer's background thread, so they can wait
+        bulkWriter = new MongoBulkWriter(writes -> PublisherFutures.await(collection.bulkWrite(writes, new BulkWriteOptions().ordered(false))),
+                BULK_WRITE_BATCH_SIZE, BULK_WRITE_FLUSH_INTERVAL_SECONDS, journal);
+        verifier = new RecordVerifier(config);
+
+        ensureIndexes();
+        MongoManager.replayJournal(bulkWriter);
+    }
+
+    @Override
+    public void flush() {
+        bulkWriter.flush();
+    }
+
+    @Override
+    public void close() {
+        try {
+            bulkWriter.close();
+        } finally {
+            blockingExecutor.shutdown();
+        }
+    }
+
+    private void ensureIndexes() {
+        // The same indexes as MongoManager, see there for why
+        PublisherFutures.await(collection.createIndex(Indexes.ascending(FILE_ID_KEY, MODIFIED_TIME_SECONDS_KEY, MODIFIED_TIME_NANOS_KEY),
+                new IndexOptions().unique(true)));
+        PublisherFutures.await(collection.createIndex(Indexes.ascending(LAST_ACCESSED_KEY),
+                new IndexOptions().expireAfter(SECONDS_IN_A_YEAR, TimeUnit.SECONDS)));
+    }
+
+    private CompletableFuture<@Nullable DatabaseDocument> findOne(final Document query) {
+        final long startedAt = System.nanoTime();
+        return PublisherFutures.first(collection.find(query).first())
+                .whenComplete((document, error) -> Metrics.MONGO_FIND.recordSince(startedAt))
+                .thenApply(document -> document == null ? null : new DatabaseDocument(document));
+    }
+
+    @Override
+    public CompletionStage<DocumentLookup> prefetch(final Collection<FileRecord> fileRecords) {
+        final Set<String> fileIds = RecordVerifier.fileIds(fileRecords);
+        final long startedAt = System.nanoTime();
+        return PublisherFutures.toList(collection.find(RecordVerifier.prefetchQuery(fileIds)))
+                .whenComplete((documents, error) -> Metrics.MONGO_FIND.recordSince(startedAt))
+                .thenApply(documents -> new DocumentLookup(fileIds, documents.stream().map(DatabaseDocument::new).toList()));
+    }
+
+    /**
+     * Finds the exact match for the file, and if there is none, any document with the same file ID.
+     */
+    private CompletableFuture<Matches> findMatches(final FileRecord fileRecord, @Nullable final DocumentLookup lookup) {
+        try {
+            if (lookup != null && lookup.contains(fileRecord.getFileId())) {
+                final DatabaseDocument exactMatch = lookup.findExactMatch(fileRecord);
+                return CompletableFuture.completedFuture(
+                        new Matches(exactMatch, exactMatch == null ? lookup.findAny(fileRecord.getFileId()) : null));
+            }
+
+            return findOne(RecordVerifier.exactMatchQuery(fileRecord)).thenCompose(exactMatch -> exactMatch != null
+                    ? CompletableFuture.completedFuture(new Matches(exactMatch, null))
+                    : findOne(RecordVerifier.anyMatchQuery(fileRecord)).thenApply(anyMatch -> new Matches(null, anyMatch)));
+        } catch (final IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Verifies the file against the database, or records it if we have never seen it before.
+     *
+     * @param fileRecord  the file record
+     * @param isImmutable whether the file is in an immutable path
+     * @param lookup      documents prefetched for the file's batch, or null to query the database for this file
+     * @return the result of the verification, completed once the file has been checked
+     */
+    public CompletionStage<FileResult> processFileRecord(final FileRecord fileRecord, final boolean isImmutable, @Nullable final DocumentLookup lookup) {
+        return processFileRecord(fileRecord, isImmutable, lookup, bulkWriter);
+    }
+
+    private CompletableFuture<FileResult> processFileRecord(final FileRecord fileRecord, final boolean isImmutable, @Nullable final DocumentLookup lookup,
+                                                            final WriteQueue writeQueue) {
+        return findMatches(fileRecord, lookup).thenApplyAsync(matches -> {
+            final DatabaseDocument databaseDocument = verifier.chooseDocument(fileRecord, isImmutable, matches.exactMatch(), matches.anyMatch(), writeQueue);
+            try {
+                return verifier.verify(fileRecord, isImmutable, databaseDocument, writeQueue);
+            } catch (final IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, blockingExecutor);
+    }
+
+    /**
+     * Verifies the file like {@link #processFileRecord(FileRecord, boolean, DocumentLookup)}, but the result only
+     * completes once the file's writes reached the database.
+     */
+    @Override
+    public CompletionStage<FileResult> verify(final FileRecord fileRecord, final boolean isImmutable, @Nullable final DocumentLookup lookup) {
+        final FileWrites writes = new FileWrites(bulkWriter);
+        return processFileRecord(fileRecord, isImmutable, lookup, writes)
+                .thenCompose(result -> writes.whenWritten(fileRecord, result));
+    }
+
+    private record Matches(@Nullable DatabaseDocument exactMatch, @Nullable DatabaseDocument anyMatch) {}
+}
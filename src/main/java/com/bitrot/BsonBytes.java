@@ -0,0 +1,30 @@
+package com.bitrot;
+
+import com.mongodb.MongoClientSettings;
+import org.bson.BsonBinaryWriter;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.bson.codecs.EncoderContext;
+import org.bson.io.BasicOutputBuffer;
+
+/**
+ * Turns documents into BSON bytes and back, for keeping them in SQLite exactly as MongoDB would see them.
+ */
+final class BsonBytes {
+    private static final DocumentCodec CODEC = new DocumentCodec(MongoClientSettings.getDefaultCodecRegistry());
+
+    private BsonBytes() {}
+
+    static byte[] encode(final Document document) {
+        final BasicOutputBuffer buffer = new BasicOutputBuffer();
+        try (final BsonBinaryWriter writer = new BsonBinaryWriter(buffer)) {
+            CODEC.encode(writer, document, EncoderContext.builder().build());
+        }
+        return buffer.toByteArray();
+    }
+
+    static Document decode(final byte[] bytes) {
+        return new RawBsonDocument(bytes).decode(CODEC);
+    }
+}
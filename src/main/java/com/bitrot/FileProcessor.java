@@ -1,89 +1,468 @@
 package com.bitrot;
 
+import com.bitrot.data.DocumentLookup;
 import com.bitrot.data.FileRecord;
 import com.bitrot.data.FileResult;
 import com.bitrot.data.Result;
+import com.bitrot.io.DeviceLane;
+import com.bitrot.io.DirectoryWalker;
+import com.bitrot.io.ExternalSorter;
+import com.bitrot.io.IoScheduler;
+import com.bitrot.io.PhysicalLocator;
 import com.bitrot.logger.LoggerUtil;
+import com.bitrot.metrics.LatencyHistogram;
+import com.bitrot.metrics.Metrics;
 import org.jspecify.annotations.Nullable;
 
 import java.io.IOException;
-import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
-import java.util.stream.Stream;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 
-import static com.bitrot.data.Constants.THREADS;
+import static com.bitrot.data.Constants.BUDGET_SORT_RUN_SIZE;
+import static com.bitrot.data.Constants.MAX_FILES_IN_FLIGHT;
+import static com.bitrot.data.Constants.PHYSICAL_ORDER_SORT_RUN_SIZE;
+import static com.bitrot.data.Constants.PREFETCH_BATCH_SIZE;
+import static com.bitrot.data.Constants.RESULT_WAIT_FLUSH_INTERVAL_MILLIS;
+import static com.bitrot.data.Constants.SKIP_FILES_CHECKED_SINCE;
+import static com.bitrot.data.Constants.WALKER_MAX_OPEN_DIRECTORIES;
 import static com.bitrot.FileUtils.getFilePathFromAbsolutePath;
 
 public class FileProcessor {
+    // Separates the path of a budgeted run's candidate from the index of its root, and never appears in a path
+    private static final char CANDIDATE_ROOT_SEPARATOR = '\0';
+
     private final SkipUtil skipUtil;
-    private final MongoManager mongoManager;
+    private final VerificationStore store;
     private final LoggerUtil loggerUtil;
     private final Map<Result, Integer> runTotals;
+    // Whether files on rotational devices are read in the order they are stored on the disk
+    private final boolean physicalOrder;
+    // Files between the walk and their result over every path, for the metrics
+    private final AtomicInteger filesInFlight = new AtomicInteger();
 
-    private ExecutorService executor;
+    public FileProcessor(final SkipUtil skipUtil, final VerificationStore store, final LoggerUtil loggerUtil) {
+        this(skipUtil, store, loggerUtil, false);
+    }
 
-    public FileProcessor(final SkipUtil skipUtil, final MongoManager mongoManager, final LoggerUtil loggerUtil) {
+    /**
+     * @param physicalOrder whether to read the files of paths on rotational devices in the order they are stored on
+     *                      the disk, see {@link #walkInPhysicalOrder(Path, PathRun)}
+     */
+    public FileProcessor(final SkipUtil skipUtil, final VerificationStore store, final LoggerUtil loggerUtil, final boolean physicalOrder) {
         this.skipUtil = skipUtil;
-        this.mongoManager = mongoManager;
+        this.store = store;
         this.loggerUtil = loggerUtil;
+        this.physicalOrder = physicalOrder;
 
-        runTotals = new HashMap<>();
+        // Roots are processed concurrently, so the totals need to be thread-safe
+        runTotals = new ConcurrentHashMap<>();
+        Metrics.registerQueue("files_in_flight", filesInFlight::get);
+    }
+
+    /**
+     * Processes all the given mutable and immutable paths at the same time.
+     * Reads are still limited per physical device by the {@link IoScheduler}, so roots on different disks are read in
+     * parallel while roots sharing a disk take turns.
+     *
+     * @param mutablePaths   the mutable paths from config
+     * @param immutablePaths the immutable paths from config
+     */
+    public void processPaths(final List<Path> mutablePaths, final List<Path> immutablePaths) {
+        final List<Callable<Map<Result, Integer>>> roots = new ArrayList<>();
+        for (final Path mutablePath : mutablePaths) {
+            roots.add(() -> processFiles(mutablePath, false));
+        }
+        for (final Path immutablePath : immutablePaths) {
+            roots.add(() -> processFiles(immutablePath, true));
+        }
+        if (roots.isEmpty()) {
+            return;
+        }
+
+        final ExecutorService rootExecutor = Executors.newFixedThreadPool(roots.size());
+        try {
+            for (final Future<Map<Result, Integer>> future : rootExecutor.invokeAll(roots)) {
+                try {
+                    future.get();
+                } catch (final ExecutionException e) {
+                    loggerUtil.logException(e);
+                }
+            }
+        } catch (final InterruptedException e) {
+            loggerUtil.logException(e);
+            Thread.currentThread().interrupt();
+        } finally {
+            rootExecutor.shutdown();
+        }
     }
 
     public Map<Result, Integer> processFiles(final Path directoryPath, final boolean isImmutable) {
-        if (isImmutable) {
-            System.out.println("Processing immutable path " + directoryPath);
+        DeviceLane lane = null;
+        try {
+            lane = IoScheduler.getInstance().registerRoot(directoryPath);
+            System.out.println("Processing " + (isImmutable ? "immutable" : "mutable") + " path " + directoryPath + " on device " + lane);
+        } catch (final IOException e) {
+            loggerUtil.logException(e);
+        }
+
+        // Tasks mostly wait on the database, or on a device lane to hash a file, so a virtual thread per task is enough.
+        // Concurrency is bounded by the files in flight below and by the reader threads of each device lane.
+        final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+        // Files flow through the pipeline as walk and stat -> skip -> prefetch -> verify -> record. The walk has to
+        // take a permit for each file and the permit is given back once the file has a result, so the walk waits
+        // whenever too many files are in flight and memory stays flat no matter how big the tree is.
+        final PathRun run = new PathRun(isImmutable, executor, new Semaphore(MAX_FILES_IN_FLIGHT), new ConcurrentHashMap<>(), null);
+
+        if (physicalOrder && lane != null && lane.isRotational()) {
+            walkInPhysicalOrder(directoryPath, run);
         } else {
-            System.out.println("Processing mutable path " + directoryPath);
+            walkInDirectoryOrder(directoryPath, run);
+        }
+
+        try {
+            awaitResults(run.inFlight());
+        } finally {
+            executor.shutdown();
         }
+        // Make sure everything we learned about this path is in the database before we report on it
+        flushStores();
 
-        executor = Executors.newFixedThreadPool(THREADS);
-        final List<Future<FileResult>> futures = new ArrayList<>();
+        // Add the directory totals to the run total for logging at the very end.
+        final Map<Result, Integer> directoryTotals = new HashMap<>();
+        run.totals().forEach((key, value) -> {
+            directoryTotals.put(key, value.intValue());
+            runTotals.merge(key, value.intValue(), Integer::sum);
+        });
+
+        return directoryTotals;
+    }
+
+    /**
+     * Walks the path and submits its files in batches as they are found.
+     */
+    private void walkInDirectoryOrder(final Path directoryPath, final PathRun run) {
+        // Files are found by many walker threads at once, so they are collected into batches under a lock. A full
+        // batch is taken out under the lock but submitted after it, as submitting waits for room in the pipeline and
+        // the other walkers must not wait on that as well. The walkers are virtual threads, which a monitor would pin
+        // to their carriers while they wait for it, leaving no carrier for the tasks that make room in the pipeline.
+        final List<FileRecord> batch = new ArrayList<>(PREFETCH_BATCH_SIZE);
+        final ReentrantLock batchLock = new ReentrantLock();
+
+        try {
+            new DirectoryWalker(WALKER_MAX_OPEN_DIRECTORIES).walk(directoryPath, new SkippingVisitor(directoryPath, run) {
+                @Override
+                void visitIncludedFile(final Path file, final BasicFileAttributes attributes) {
+                    final FileRecord fileRecord = createFileRecord(file, attributes, directoryPath);
+                    if (fileRecord == null) {
+                        return;
+                    }
 
-        try (final Stream<Path> paths = Files.walk(directoryPath)) {
-            paths.filter(Files::isRegularFile)  // Only process regular files
-                    .forEach(path -> {
-                        // Submit the job to an executor so we are not bottlenecked by all the MongoDB network calls.
-                        // The heavy disk work is synchronized so we do not have to worry about thrashing HDDs.
-                        final Future<FileResult> future = processFile(path, directoryPath, isImmutable);
-                        if (future != null) {
-                            futures.add(future);
+                    // Collect files into batches so that their documents can be fetched with a single query
+                    List<FileRecord> fullBatch = null;
+                    batchLock.lock();
+                    try {
+                        batch.add(fileRecord);
+                        if (batch.size() == PREFETCH_BATCH_SIZE) {
+                            fullBatch = List.copyOf(batch);
+                            batch.clear();
                         }
-                    });
+                    } finally {
+                        batchLock.unlock();
+                    }
+                    if (fullBatch != null) {
+                        submitBatch(fullBatch, run);
+                    }
+                }
+            });
         } catch (final Exception e) {
             loggerUtil.logException(e);
-        } finally {
-            // This prevents new tasks from being submitted to the executor, but it still allows in-progress things to finish.
-            executor.shutdown();
         }
+        // Every walker is done, so nothing else uses the batch any more
+        if (!batch.isEmpty()) {
+            submitBatch(List.copyOf(batch), run);
+        }
+    }
 
-        // Process all the Futures and add the results to the directory totals.
-        // We should not need to call executor.awaitTermination() because every Future will have its get() method called,
-        // meaning that every task should be complete at the end of this for loop.
-        final Map<Result, Integer> directoryTotals = new HashMap<>();
-        for (final Future<FileResult> future : futures) {
+    /**
+     * Walks the whole path first, then submits the files that are not skipped in the order they are stored on the
+     * disk, see {@link PhysicalLocator}. A rotational disk then reads them with short seeks instead of jumping between
+     * wherever directory order takes it. Only the paths and their locations are kept, and large trees are sorted on
+     * disk, so memory stays flat.
+     */
+    private void walkInPhysicalOrder(final Path directoryPath, final PathRun run) {
+        final PhysicalLocator locator = new PhysicalLocator();
+        try (final ExternalSorter sorter = new ExternalSorter(PHYSICAL_ORDER_SORT_RUN_SIZE)) {
             try {
-                final FileResult result = future.get();
-                directoryTotals.put(result.result(), directoryTotals.getOrDefault(result.result(), 0) + 1);
-            } catch (final InterruptedException | ExecutionException e) {
+                new DirectoryWalker(WALKER_MAX_OPEN_DIRECTORIES).walk(directoryPath, new SkippingVisitor(directoryPath, run) {
+                    @Override
+                    void visitIncludedFile(final Path file, final BasicFileAttributes attributes) {
+                        final FileRecord fileRecord = createFileRecord(file, attributes, directoryPath);
+                        if (fileRecord == null) {
+                            return;
+                        }
+
+                        try {
+                            // Skip while walking so that files we will not read are not located either
+                            if (skipUtil.shouldSkipFile(fileRecord)) {
+                                System.out.println("Skipping file " + file);
+                                run.totals().computeIfAbsent(Result.SKIP, key -> new LongAdder()).increment();
+                                return;
+                            }
+                            sorter.add(locator.locate(file, attributes), file.toString());
+                        } catch (final IOException | RuntimeException e) {
+                            loggerUtil.logException(e);
+                        }
+                    }
+                });
+            } catch (final Exception e) {
                 loggerUtil.logException(e);
             }
+
+            final List<FileRecord> batch = new ArrayList<>(PREFETCH_BATCH_SIZE);
+            sorter.forEachSorted((location, file) -> {
+                final FileRecord fileRecord = createFileRecord(Path.of(file), directoryPath);
+                if (fileRecord == null) {
+                    return;
+                }
+                batch.add(fileRecord);
+                if (batch.size() == PREFETCH_BATCH_SIZE) {
+                    submitVerifyBatch(List.copyOf(batch), run);
+                    batch.clear();
+                }
+            });
+            if (!batch.isEmpty()) {
+                submitVerifyBatch(List.copyOf(batch), run);
+            }
+        } catch (final IOException e) {
+            loggerUtil.logException(e);
         }
+    }
 
-        // Add the directory totals to the run total for logging at the very end.
-        directoryTotals.forEach((key, value) ->
-                runTotals.merge(key, value, Integer::sum)
-        );
+    /**
+     * Processes all the given paths within a budget, verifying the files that went longest without a verification
+     * first no matter which path they are in.
+     * <p>
+     * Every path is walked before anything is verified so that the files can be put in order. Files that were never
+     * verified, or were modified since, come first, then the rest by the time of their last verification from the
+     * recent verification database. Files are started in that order until the budget is spent, and files that were
+     * queued but not started by the deadline are left for the next run. Splitting a full scrub over many runs this way
+     * gives every file the same coverage, where a normal run that is cut short always favors the first paths.
+     * <p>
+     * Like {@link #walkInPhysicalOrder(Path, PathRun)}, only the paths are kept while walking and large trees are
+     * sorted on disk, so memory stays flat.
+     *
+     * @param mutablePaths   the mutable paths from config
+     * @param immutablePaths the immutable paths from config
+     * @param budget         how much the run may verify
+     * @return the totals of this run
+     */
+    public Map<Result, Integer> processPathsWithBudget(final List<Path> mutablePaths, final List<Path> immutablePaths, final ScanBudget budget) {
+        final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+        // Both runs share the pipeline, they only differ in how files are verified
+        final Semaphore inFlight = new Semaphore(MAX_FILES_IN_FLIGHT);
+        final Map<Result, LongAdder> totals = new ConcurrentHashMap<>();
+        final PathRun mutableRun = new PathRun(false, executor, inFlight, totals, budget);
+        final PathRun immutableRun = new PathRun(true, executor, inFlight, totals, budget);
 
-        return directoryTotals;
+        final List<BudgetRoot> budgetRoots = new ArrayList<>();
+        for (final Path mutablePath : mutablePaths) {
+            budgetRoots.add(new BudgetRoot(mutablePath, mutableRun));
+        }
+        for (final Path immutablePath : immutablePaths) {
+            budgetRoots.add(new BudgetRoot(immutablePath, immutableRun));
+        }
+
+        final List<FileRecord> mutableBatch = new ArrayList<>(PREFETCH_BATCH_SIZE);
+        final List<FileRecord> immutableBatch = new ArrayList<>(PREFETCH_BATCH_SIZE);
+        final LongAdder candidates = new LongAdder();
+        final AtomicInteger started = new AtomicInteger();
+        try (final ExternalSorter sorter = new ExternalSorter(BUDGET_SORT_RUN_SIZE)) {
+            final List<Callable<Void>> roots = new ArrayList<>();
+            for (int i = 0; i < budgetRoots.size(); i++) {
+                final int rootIndex = i;
+                roots.add(() -> collectCandidates(budgetRoots.get(rootIndex), rootIndex, sorter, candidates));
+            }
+            if (!roots.isEmpty()) {
+                final ExecutorService rootExecutor = Executors.newFixedThreadPool(roots.size());
+                try {
+                    for (final Future<Void> future : rootExecutor.invokeAll(roots)) {
+                        try {
+                            future.get();
+                        } catch (final ExecutionException e) {
+                            loggerUtil.logException(e);
+                        }
+                    }
+                } catch (final InterruptedException e) {
+                    loggerUtil.logException(e);
+                    Thread.currentThread().interrupt();
+                } finally {
+                    rootExecutor.shutdown();
+                }
+            }
+            System.out.println(candidates.sum() + " files to verify with a budget of " + budget);
+
+            // Stalest first. Ties are broken by path so that a run picks up where the last one stopped.
+            final AtomicBoolean spent = new AtomicBoolean();
+            sorter.forEachSorted((lastVerifiedMillis, candidate) -> {
+                if (spent.get()) {
+                    return;
+                }
+                final int separator = candidate.lastIndexOf(CANDIDATE_ROOT_SEPARATOR);
+                final BudgetRoot root = budgetRoots.get(Integer.parseInt(candidate.substring(separator + 1)));
+                final FileRecord fileRecord = createFileRecord(Path.of(candidate.substring(0, separator)), root.directoryPath());
+                if (fileRecord == null) {
+                    return;
+                }
+                final long size;
+                try {
+                    size = fileRecord.getSize();
+                } catch (final IOException e) {
+                    loggerUtil.logException(e);
+                    return;
+                }
+                if (!budget.tryCharge(size)) {
+                    spent.set(true);
+                    return;
+                }
+                started.incrementAndGet();
+
+                final List<FileRecord> batch = root.run().isImmutable() ? immutableBatch : mutableBatch;
+                batch.add(fileRecord);
+                if (batch.size() == PREFETCH_BATCH_SIZE) {
+                    submitVerifyBatch(List.copyOf(batch), root.run());
+                    batch.clear();
+                }
+            });
+        } catch (final IOException e) {
+            loggerUtil.logException(e);
+        }
+
+        final int walkSkips = totals.containsKey(Result.SKIP) ? totals.get(Result.SKIP).intValue() : 0;
+        try {
+            if (!mutableBatch.isEmpty()) {
+                submitVerifyBatch(List.copyOf(mutableBatch), mutableRun);
+            }
+            if (!immutableBatch.isEmpty()) {
+                submitVerifyBatch(List.copyOf(immutableBatch), immutableRun);
+            }
+
+            awaitResults(inFlight);
+        } catch (final RuntimeException e) {
+            loggerUtil.logException(e);
+        } finally {
+            executor.shutdown();
+        }
+        flushStores();
+
+        final Map<Result, Integer> budgetTotals = new HashMap<>();
+        totals.forEach((key, value) -> {
+            budgetTotals.put(key, value.intValue());
+            runTotals.merge(key, value.intValue(), Integer::sum);
+        });
+        final int finished = budgetTotals.values().stream().mapToInt(Integer::intValue).sum() - walkSkips;
+        loggerUtil.log("Budget: started " + started.get() + " of " + candidates.sum() + " files (" + budget.getBytesCharged()
+                + " bytes), " + (candidates.sum() - finished) + " left for the next run");
+        return budgetTotals;
+    }
+
+    /**
+     * Walks a path for a budgeted run. Files that can be skipped are counted straight away, the rest are added to
+     * the sorter by when they were last verified, with the index of their root after the path.
+     */
+    private Void collectCandidates(final BudgetRoot root, final int rootIndex, final ExternalSorter sorter, final LongAdder candidates) {
+        final Path directoryPath = root.directoryPath();
+        final PathRun run = root.run();
+        try {
+            final DeviceLane lane = IoScheduler.getInstance().registerRoot(directoryPath);
+            System.out.println("Walking " + (run.isImmutable() ? "immutable" : "mutable") + " path " + directoryPath + " on device " + lane);
+        } catch (final IOException e) {
+            loggerUtil.logException(e);
+        }
+
+        try {
+            new DirectoryWalker(WALKER_MAX_OPEN_DIRECTORIES).walk(directoryPath, new SkippingVisitor(directoryPath, run) {
+                @Override
+                void visitIncludedFile(final Path file, final BasicFileAttributes attributes) {
+                    final FileRecord fileRecord = createFileRecord(file, attributes, directoryPath);
+                    if (fileRecord == null) {
+                        return;
+                    }
+
+                    try {
+                        final long lastVerifiedMillis = skipUtil.isFiltered(file) ? Long.MAX_VALUE : skipUtil.lastVerifiedMillis(fileRecord);
+                        if (lastVerifiedMillis > SKIP_FILES_CHECKED_SINCE.toEpochMilli()) {
+                            System.out.println("Skipping file " + file);
+                            run.totals().computeIfAbsent(Result.SKIP, key -> new LongAdder()).increment();
+                            return;
+                        }
+                        // The separator sorts before any character of a path, so ties are still ordered by path
+                        sorter.add(lastVerifiedMillis, file.toString() + CANDIDATE_ROOT_SEPARATOR + rootIndex);
+                        candidates.increment();
+                    } catch (final IOException | RuntimeException e) {
+                        loggerUtil.logException(e);
+                    }
+                }
+            });
+        } catch (final Exception e) {
+            loggerUtil.logException(e);
+        }
+        return null;
+    }
+
+    /**
+     * Waits until every file has its result, which is once we hold every permit.
+     * A file only has its result once its writes reached the database, and the last writes would otherwise wait for
+     * the store's next background flush, so the store is flushed every so often while we wait.
+     */
+    private void awaitResults(final Semaphore inFlight) {
+        try {
+            while (!inFlight.tryAcquire(MAX_FILES_IN_FLIGHT, RESULT_WAIT_FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS)) {
+                try {
+                    store.flush();
+                } catch (final RuntimeException e) {
+                    // The files of the failed writes report it themselves
+                    loggerUtil.logException(e);
+                }
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            inFlight.acquireUninterruptibly(MAX_FILES_IN_FLIGHT);
+        }
+        inFlight.release(MAX_FILES_IN_FLIGHT);
+    }
+
+    /**
+     * Flushes the store and the recent verifications separately, so that a failed database write does not also lose
+     * the verifications that are already known.
+     */
+    private void flushStores() {
+        try {
+            store.flush();
+        } catch (final RuntimeException e) {
+            loggerUtil.logException(e);
+        }
+        try {
+            skipUtil.flush();
+        } catch (final RuntimeException e) {
+            loggerUtil.logException(e);
+        }
     }
 
     /**
@@ -95,6 +474,11 @@ public class FileProcessor {
         loggerUtil.log("PASS: " + runTotals.getOrDefault(Result.PASS, 0) + " files");
         loggerUtil.log("FAIL: " + runTotals.getOrDefault(Result.FAIL, 0) + " files");
         loggerUtil.log("SKIP: " + runTotals.getOrDefault(Result.SKIP, 0) + " files");
+        loggerUtil.log("--------------------------");
+        loggerUtil.log("Stages:");
+        for (final LatencyHistogram stage : Metrics.stages()) {
+            loggerUtil.log(stage.toString());
+        }
     }
 
     /**
@@ -106,33 +490,166 @@ public class FileProcessor {
         return runTotals.getOrDefault(Result.FAIL, 0) == 0;
     }
 
+    /**
+     * Returns the number of files with each result over every path processed so far.
+     *
+     * @return the totals
+     */
+    public Map<Result, Integer> getRunTotals() {
+        return Map.copyOf(runTotals);
+    }
+
+    /**
+     * Creates a record for a file whose attributes were not kept, reading them again.
+     */
     @Nullable
-    private Future<FileResult> processFile(final Path absoluteFilePath, final Path configPrefix, final boolean isImmutable) {
+    private FileRecord createFileRecord(final Path absoluteFilePath, final Path configPrefix) {
         try {
             final String filePath = getFilePathFromAbsolutePath(absoluteFilePath, configPrefix);
-            // Preload the fields to be nice to the disk
-            final FileRecord fileRecord = new FileRecord(absoluteFilePath, filePath, true);
+            return new FileRecord(absoluteFilePath, filePath, true);
+        } catch (final Exception e) {
+            loggerUtil.logException(e);
+            return null;
+        }
+    }
 
-            return executor.submit(() -> getResult(fileRecord, isImmutable));
+    @Nullable
+    private FileRecord createFileRecord(final Path absoluteFilePath, final BasicFileAttributes attributes, final Path configPrefix) {
+        try {
+            final String filePath = getFilePathFromAbsolutePath(absoluteFilePath, configPrefix);
+            // Use the attributes the walker already read so that we do not stat the file again
+            return new FileRecord(absoluteFilePath, filePath, attributes);
         } catch (final Exception e) {
             loggerUtil.logException(e);
             return null;
         }
     }
 
-    private FileResult getResult(final FileRecord fileRecord, final boolean isImmutable) throws IOException {
-        if (skipUtil.shouldSkipFile(fileRecord)) {
-            final String message = "Skipping file " + fileRecord.getAbsoluteFilePath();
-            System.out.println(message);
-            return new FileResult(Result.SKIP, message);
+    /**
+     * Submits a batch of files to the executor so we are not bottlenecked by all the MongoDB network calls.
+     * The heavy disk work goes through the device's I/O lane so we do not have to worry about thrashing HDDs.
+     * <p>
+     * Blocks until there is room in the pipeline for the whole batch.
+     */
+    private void submitBatch(final List<FileRecord> batch, final PathRun run) {
+        submit(batch, run, handedOff -> processBatch(batch, run, handedOff));
+    }
+
+    /**
+     * Like {@link #submitBatch(List, PathRun)} for files that are already known not to be skipped.
+     */
+    private void submitVerifyBatch(final List<FileRecord> batch, final PathRun run) {
+        submit(batch, run, handedOff -> verifyBatch(batch, run, handedOff));
+    }
+
+    /**
+     * Takes a permit for every file of the batch and runs the batch task on the executor.
+     * <p>
+     * Each file gives its permit back in {@link #complete}, and the task counts the files it got that far. Whatever
+     * the task did not get to, because it threw or was never run, gives its permits back here. Otherwise the wait for
+     * every permit at the end of the path would never return.
+     */
+    private void submit(final List<FileRecord> batch, final PathRun run, final BatchTask task) {
+        run.inFlight().acquireUninterruptibly(batch.size());
+        filesInFlight.addAndGet(batch.size());
+        final AtomicInteger handedOff = new AtomicInteger();
+        final long queuedAt = System.nanoTime();
+        try {
+            run.executor().execute(() -> {
+                final long startedAt = Metrics.PREPARE_BATCH.start(queuedAt);
+                try {
+                    task.run(handedOff);
+                } finally {
+                    releaseUnfinished(run, batch.size() - handedOff.get());
+                    Metrics.PREPARE_BATCH.finish(startedAt);
+                }
+            });
+        } catch (final RuntimeException e) {
+            releaseUnfinished(run, batch.size());
+            throw e;
+        }
+    }
+
+    private void releaseUnfinished(final PathRun run, final int unfinished) {
+        if (unfinished > 0) {
+            loggerUtil.log(unfinished + " files of a batch were left without a result");
+            filesInFlight.addAndGet(-unfinished);
+            run.inFlight().release(unfinished);
+        }
+    }
+
+    /**
+     * Checks which files of a batch can be skipped, then verifies the rest with {@link #verifyBatch}.
+     *
+     * @param handedOff counts the files that are sure to reach {@link #complete}
+     */
+    private void processBatch(final List<FileRecord> batch, final PathRun run, final AtomicInteger handedOff) {
+        final List<FileRecord> toVerify = new ArrayList<>(batch.size());
+        for (final FileRecord fileRecord : batch) {
+            try {
+                // Only reads the attributes if the walker did not already
+                fileRecord.preLoad();
+                if (skipUtil.shouldSkipFile(fileRecord)) {
+                    final String message = "Skipping file " + fileRecord.getAbsoluteFilePath();
+                    System.out.println(message);
+                    handedOff.incrementAndGet();
+                    complete(run, new FileResult(Result.SKIP, message), null);
+                } else {
+                    toVerify.add(fileRecord);
+                }
+            } catch (final IOException | RuntimeException e) {
+                handedOff.incrementAndGet();
+                complete(run, null, e);
+            }
         }
+        verifyBatch(toVerify, run, handedOff);
+    }
+
+    /**
+     * Fetches the documents for a batch of files that were not skipped with a single query, then verifies each file
+     * in its own task using the fetched documents.
+     *
+     * @param handedOff counts the files that are sure to reach {@link #complete}
+     */
+    private void verifyBatch(final List<FileRecord> toVerify, final PathRun run, final AtomicInteger handedOff) {
+        DocumentLookup lookup = null;
+        if (!toVerify.isEmpty()) {
+            try {
+                // Batches run on virtual threads, so waiting here is cheap
+                lookup = store.prefetch(toVerify).toCompletableFuture().join();
+            } catch (final RuntimeException e) {
+                // Each file will query the database on its own instead
+                loggerUtil.logException(e);
+            }
+        }
+
+        final DocumentLookup prefetched = lookup;
+        for (final FileRecord fileRecord : toVerify) {
+            final long queuedAt = System.nanoTime();
+            // Start on our own executor as a blocking store does all its work on the calling thread
+            CompletableFuture.supplyAsync(() -> {
+                        if (run.budget() != null && run.budget().isOutOfTime()) {
+                            // Left for the next run, which will find it among the stalest files
+                            return CompletableFuture.<FileResult>completedFuture(null);
+                        }
+                        final long startedAt = Metrics.VERIFY.start(queuedAt);
+                        return store.verify(fileRecord, run.isImmutable(), prefetched)
+                                .whenComplete((result, error) -> Metrics.VERIFY.finish(startedAt));
+                    }, run.executor())
+                    .thenCompose(verification -> verification)
+                    .thenApply(result -> result == null ? null : handleResult(fileRecord, result))
+                    .whenComplete((result, error) -> complete(run, result, error));
+            handedOff.incrementAndGet();
+        }
+    }
 
-        final FileResult result = mongoManager.processFileRecord(fileRecord, isImmutable);
+    private FileResult handleResult(final FileRecord fileRecord, final FileResult result) {
         final String message = result.result() + ": " + result.message();
 
         if (result.result() == Result.PASS) {
             System.out.println(message);
-            // Only record successful verifications to the skip util
+            // Only record successful verifications to the skip util. The store only passes a file once its writes
+            // reached the database, so a file is never skipped without a document behind it.
             skipUtil.recordVerification(fileRecord);
         } else if (result.result() == Result.FAIL) {
             // Log failures to disk so we can triage them
@@ -142,4 +659,88 @@ public class FileProcessor {
         }
         return result;
     }
+
+    /**
+     * Counts the result of a file, or logs why it has none, and makes room in the pipeline for another file.
+     */
+    private void complete(final PathRun run, @Nullable final FileResult result, @Nullable final Throwable error) {
+        try {
+            if (error != null) {
+                loggerUtil.logException(error instanceof Exception exception ? exception : new RuntimeException(error));
+            } else if (result != null) {
+                run.totals().computeIfAbsent(result.result(), key -> new LongAdder()).increment();
+            }
+        } finally {
+            filesInFlight.decrementAndGet();
+            run.inFlight().release();
+        }
+    }
+
+    /**
+     * A visitor for the walk of a path that leaves out everything the skip rules exclude. Excluded directories are
+     * never listed, so the files under them are not counted at all, while excluded files are counted as skipped.
+     */
+    private abstract class SkippingVisitor implements DirectoryWalker.Visitor {
+        private final Path directoryPath;
+        private final PathRun run;
+
+        SkippingVisitor(final Path directoryPath, final PathRun run) {
+            this.directoryPath = directoryPath;
+            this.run = run;
+        }
+
+        /**
+         * Called for every file that no skip rule excludes.
+         */
+        abstract void visitIncludedFile(Path file, BasicFileAttributes attributes);
+
+        @Override
+        public boolean visitDirectory(final Path directory, final BasicFileAttributes attributes) {
+            if (skipUtil.isExcludedDirectory(directoryPath, directory)) {
+                System.out.println("Skipping directory " + directory);
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public void visitFile(final Path file, final BasicFileAttributes attributes) {
+            if (skipUtil.isExcludedFile(directoryPath, file, attributes)) {
+                System.out.println("Skipping file " + file);
+                run.totals().computeIfAbsent(Result.SKIP, key -> new LongAdder()).increment();
+                return;
+            }
+            visitIncludedFile(file, attributes);
+        }
+
+        @Override
+        public void visitFailed(final Path path, final IOException e) {
+            loggerUtil.logException(e);
+        }
+    }
+
+    /**
+     * The work of a batch, which counts the files it hands off to {@link #complete}.
+     */
+    @FunctionalInterface
+    private interface BatchTask {
+        void run(AtomicInteger handedOff);
+    }
+
+    /**
+     * The state of processing a single path.
+     *
+     * @param inFlight permits for the files between the walk and their result
+     * @param totals   the results counted as files complete
+     * @param budget   the budget of a budgeted run, or null
+     */
+    private record PathRun(boolean isImmutable, ExecutorService executor, Semaphore inFlight, Map<Result, LongAdder> totals,
+                           @Nullable ScanBudget budget) {}
+
+    /**
+     * A path of a budgeted run.
+     *
+     * @param run the run of the path's kind
+     */
+    private record BudgetRoot(Path directoryPath, PathRun run) {}
 }
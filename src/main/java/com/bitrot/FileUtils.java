@@ -1,55 +1,458 @@
 package com.bitrot;
 
+import com.bitrot.checksum.BlockChecksummer;
+import com.bitrot.checksum.BlockMismatchException;
+import com.bitrot.checksum.BuiltInChecksumAlgorithm;
+import com.bitrot.checksum.ChecksumAlgorithm;
+import com.bitrot.io.DeviceLane;
+import com.bitrot.io.IoScheduler;
+import com.bitrot.io.ReadEngine;
+import org.jspecify.annotations.Nullable;
+
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Formatter;
-import java.util.zip.CRC32;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.Checksum;
 
-import static com.bitrot.data.Constants.CRC_BUFFER_SIZE;
+import static com.bitrot.data.Constants.PARALLEL_HASH_MIN_FILE_SIZE;
+import static com.bitrot.data.Constants.PARALLEL_HASH_RANGE_SIZE;
+import static com.bitrot.data.Constants.RUN_JOURNAL_CHECKPOINT_INTERVAL;
 
 public abstract class FileUtils {
+    private static volatile ReadEngine readEngine = ReadEngine.STREAM;
+    @Nullable
+    private static volatile RunJournal runJournal = null;
+    // File IDs are computed on short-lived virtual threads, so the hashers are pooled rather than kept per thread
+    private static final AtomicReferenceArray<FileIdHasher> FILE_ID_HASHERS =
+            new AtomicReferenceArray<>(4 * Runtime.getRuntime().availableProcessors());
+
     /**
      * Compute the CRC checksum for a given file path.
-     * This method is synchronized in order to be kind to the disk.
+     * The read goes through the I/O lane of the device backing the file in order to be kind to the disk.
+     * Files on different devices can be read at the same time.
      *
      * @param filePath the file path
      * @return the CRC as a long value
      * @throws IOException if there was an error reading the file
      */
-    public static synchronized long computeCRC(final Path filePath) throws IOException {
-        try (final InputStream inputStream = Files.newInputStream(filePath)) {
-            final CRC32 crc = new CRC32();
-            final byte[] buffer = new byte[CRC_BUFFER_SIZE];
-            int bytesRead;
-            while ((bytesRead = inputStream.read(buffer)) != -1) {
-                crc.update(buffer, 0, bytesRead);
+    public static long computeCRC(final Path filePath) throws IOException {
+        return computeChecksum(filePath, BuiltInChecksumAlgorithm.CRC32, readEngine);
+    }
+
+    /**
+     * Compute the CRC checksum for a given file path using a specific read engine.
+     *
+     * @param filePath   the file path
+     * @param readEngine the engine used to read the file
+     * @return the CRC as a long value
+     * @throws IOException if there was an error reading the file
+     */
+    public static long computeCRC(final Path filePath, final ReadEngine readEngine) throws IOException {
+        return computeChecksum(filePath, BuiltInChecksumAlgorithm.CRC32, readEngine);
+    }
+
+    /**
+     * Compute the checksum for a given file path with the given algorithm.
+     * The read goes through the I/O lane of the device backing the file, like {@link #computeCRC(Path)}.
+     *
+     * @param filePath  the file path
+     * @param algorithm the checksum algorithm
+     * @return the checksum as a long value
+     * @throws IOException if there was an error reading the file
+     */
+    public static long computeChecksum(final Path filePath, final ChecksumAlgorithm algorithm) throws IOException {
+        return computeChecksum(filePath, algorithm, readEngine);
+    }
+
+    private static long computeChecksum(final Path filePath, final ChecksumAlgorithm algorithm, final ReadEngine readEngine) throws IOException {
+        final DeviceLane lane = IoScheduler.getInstance().laneFor(filePath);
+        final List<ChecksumAlgorithm> algorithms = List.of(algorithm);
+        final long size = sizeForRangeReads(lane, filePath, algorithms);
+        if (size >= 0) {
+            return computeChecksumsInRanges(lane, filePath, algorithms, readEngine, size, PARALLEL_HASH_RANGE_SIZE).get(algorithm);
+        }
+        final RunJournal journal = runJournal;
+        final BasicFileAttributes attributes = attributesForCheckpoints(journal, filePath, algorithms);
+        if (attributes != null) {
+            return lane.read(filePath, () -> computeChecksumsWithCheckpoints(journal, filePath, algorithms, readEngine, lane, attributes,
+                    RUN_JOURNAL_CHECKPOINT_INTERVAL)).get(algorithm);
+        }
+
+        return lane.read(filePath, () -> {
+            final Checksum checksum = algorithm.newChecksum();
+            readEngine.read(filePath, lane.wrap(filePath, 0, checksum::update));
+            return checksum.getValue();
+        });
+    }
+
+    /**
+     * Compute the checksums for a given file path with several algorithms while only reading the file once.
+     * Every chunk that is read is fed to all the algorithms before the next chunk is read.
+     *
+     * @param filePath   the file path
+     * @param algorithms the checksum algorithms
+     * @return the checksum for each algorithm
+     * @throws IOException if there was an error reading the file
+     */
+    public static Map<ChecksumAlgorithm, Long> computeChecksums(final Path filePath, final Collection<ChecksumAlgorithm> algorithms) throws IOException {
+        return computeChecksums(filePath, algorithms, null);
+    }
+
+    /**
+     * Like {@link #computeChecksums(Path, Collection)}, but also feeds every chunk to a {@link BlockChecksummer}.
+     * If the checksummer is checking a manifest, reading stops at the first block that does not match.
+     *
+     * @param filePath   the file path
+     * @param algorithms the checksum algorithms
+     * @param blocks     the block checksummer, or null
+     * @return the checksum for each algorithm
+     * @throws BlockMismatchException if a block does not match the manifest being checked
+     * @throws IOException            if there was an error reading the file
+     */
+    public static Map<ChecksumAlgorithm, Long> computeChecksums(final Path filePath, final Collection<ChecksumAlgorithm> algorithms,
+                                                                @Nullable final BlockChecksummer blocks) throws IOException {
+        final DeviceLane lane = IoScheduler.getInstance().laneFor(filePath);
+        final List<ChecksumAlgorithm> algorithmList = List.copyOf(algorithms);
+        final ReadEngine engine = readEngine;
+        // Block manifests are checked in order so that reading can stop at the first bad block
+        final long size = blocks == null ? sizeForRangeReads(lane, filePath, algorithmList) : -1;
+        if (size >= 0) {
+            return computeChecksumsInRanges(lane, filePath, algorithmList, engine, size, PARALLEL_HASH_RANGE_SIZE);
+        }
+        final RunJournal journal = runJournal;
+        final BasicFileAttributes attributes = blocks == null ? attributesForCheckpoints(journal, filePath, algorithmList) : null;
+        if (attributes != null) {
+            return lane.read(filePath, () -> computeChecksumsWithCheckpoints(journal, filePath, algorithmList, engine, lane, attributes,
+                    RUN_JOURNAL_CHECKPOINT_INTERVAL));
+        }
+
+        return lane.read(filePath, () -> {
+            final Checksum[] checksums = newChecksums(algorithmList);
+            engine.read(filePath, lane.wrap(filePath, 0, chunk -> {
+                final int position = chunk.position();
+                updateAll(checksums, chunk);
+                if (blocks != null) {
+                    chunk.position(position);
+                    blocks.update(chunk);
+                }
+            }));
+            if (blocks != null) {
+                blocks.finish();
+            }
+
+            return values(algorithmList, checksums);
+        });
+    }
+
+    /**
+     * Returns the size of the file if it should be read in several ranges at once, otherwise -1.
+     * That is only worth it for large files on a device that can serve several reads at once, and only possible if
+     * the checksums of the ranges can be combined.
+     */
+    private static long sizeForRangeReads(final DeviceLane lane, final Path filePath, final List<ChecksumAlgorithm> algorithms) throws IOException {
+        if (lane.isRotational() || lane.getMaxReaders() < 2 || !algorithms.stream().allMatch(ChecksumAlgorithm::isCombinable)) {
+            return -1;
+        }
+        final long size = Files.size(filePath);
+        return size >= PARALLEL_HASH_MIN_FILE_SIZE ? size : -1;
+    }
+
+    /**
+     * Computes the checksums of a file by reading ranges of it on all the readers of its lane at the same time.
+     * The checksums of the ranges are then combined, so the result is exactly the same as reading the file in order.
+     *
+     * @param lane       the lane of the device backing the file
+     * @param filePath   the file path
+     * @param algorithms the checksum algorithms, which must all be combinable
+     * @param readEngine the engine used to read the ranges
+     * @param size       the size of the file
+     * @param rangeSize  the size of each range
+     * @return the checksum for each algorithm
+     * @throws IOException if there was an error reading the file, or it changed size while being read
+     */
+    static Map<ChecksumAlgorithm, Long> computeChecksumsInRanges(final DeviceLane lane, final Path filePath, final List<ChecksumAlgorithm> algorithms,
+                                                                 final ReadEngine readEngine, final long size, final long rangeSize) throws IOException {
+        final List<DeviceLane.Read<RangeChecksums>> reads = new ArrayList<>();
+        for (long position = 0; position < size; position += rangeSize) {
+            final long start = position;
+            final long length = Math.min(rangeSize, size - position);
+            reads.add(() -> {
+                final Checksum[] checksums = newChecksums(algorithms);
+                final long read = readEngine.readRange(filePath, start, length, lane.wrap(filePath, start, chunk -> updateAll(checksums, chunk)));
+                if (read != length) {
+                    throw new IOException("File " + filePath + " changed size while being read");
+                }
+                return new RangeChecksums(checksums, read);
+            });
+        }
+
+        final List<RangeChecksums> ranges = lane.readAll(filePath, reads);
+        final Map<ChecksumAlgorithm, Long> values = values(algorithms, newChecksums(algorithms));
+        for (int i = 0; i < algorithms.size(); i++) {
+            final ChecksumAlgorithm algorithm = algorithms.get(i);
+            long combined = values.get(algorithm);
+            for (final RangeChecksums range : ranges) {
+                combined = algorithm.combine(combined, range.checksums()[i].getValue(), range.length());
+            }
+            values.put(algorithm, combined);
+        }
+        return values;
+    }
+
+    /**
+     * Returns the attributes of the file if its progress should be saved to the journal while it is read, otherwise
+     * null. That is only worth it for very large files, and only possible if the checksums can be resumed, which
+     * needs them to be combinable.
+     */
+    @Nullable
+    private static BasicFileAttributes attributesForCheckpoints(@Nullable final RunJournal journal, final Path filePath,
+                                                                final List<ChecksumAlgorithm> algorithms) throws IOException {
+        if (journal == null || !algorithms.stream().allMatch(ChecksumAlgorithm::isCombinable)) {
+            return null;
+        }
+        final BasicFileAttributes attributes = Files.readAttributes(filePath, BasicFileAttributes.class);
+        return attributes.size() >= RUN_JOURNAL_CHECKPOINT_INTERVAL ? attributes : null;
+    }
+
+    /**
+     * Computes the checksums of a file while saving a checkpoint to the journal every {@code checkpointInterval}
+     * bytes. If the journal has a checkpoint for this version of the file, only the rest of the file is read and its
+     * checksums are combined with the ones from the checkpoint.
+     *
+     * @param journal            the run journal
+     * @param filePath           the file path
+     * @param algorithms         the checksum algorithms, which must all be combinable
+     * @param readEngine         the engine used to read the file
+     * @param lane               the lane of the device backing the file, which this must be running on
+     * @param attributes         the attributes of the file, which identify the version of the file
+     * @param checkpointInterval how many bytes to read between checkpoints
+     * @return the checksum for each algorithm
+     * @throws IOException if there was an error reading the file, or it changed size while being read
+     */
+    static Map<ChecksumAlgorithm, Long> computeChecksumsWithCheckpoints(final RunJournal journal, final Path filePath, final List<ChecksumAlgorithm> algorithms,
+                                                                        final ReadEngine readEngine, final DeviceLane lane,
+                                                                        final BasicFileAttributes attributes,
+                                                                        final long checkpointInterval) throws IOException {
+        final Instant modifiedTime = attributes.lastModifiedTime().toInstant();
+        final long size = attributes.size();
+        final RunJournal.Checkpoint checkpoint = journal.findCheckpoint(filePath, modifiedTime, size, algorithms);
+        final long startOffset = checkpoint == null ? 0 : checkpoint.offset();
+        final long[] startChecksums = checkpoint == null ? new long[algorithms.size()] : checkpoint.checksums();
+        if (checkpoint != null) {
+            System.out.println("Resuming " + filePath + " from byte " + startOffset + " of " + size);
+        }
+
+        final Checksum[] checksums = newChecksums(algorithms);
+        final long[] position = {startOffset};
+        final long[] nextCheckpoint = {startOffset + checkpointInterval};
+        final long read = readEngine.readRange(filePath, startOffset, size - startOffset, lane.wrap(filePath, startOffset, chunk -> {
+            position[0] += chunk.remaining();
+            updateAll(checksums, chunk);
+            if (position[0] >= nextCheckpoint[0] && position[0] < size) {
+                journal.saveCheckpoint(filePath, modifiedTime, size, algorithms,
+                        new RunJournal.Checkpoint(position[0], combine(algorithms, startChecksums, checksums, position[0] - startOffset)));
+                nextCheckpoint[0] = position[0] + checkpointInterval;
             }
-            return crc.getValue();
+        }));
+        if (read != size - startOffset) {
+            throw new IOException("File " + filePath + " changed size while being read");
+        }
+
+        final long[] combined = combine(algorithms, startChecksums, checksums, read);
+        journal.removeCheckpoint(filePath);
+        final Map<ChecksumAlgorithm, Long> values = new HashMap<>(combined.length);
+        for (int i = 0; i < combined.length; i++) {
+            values.put(algorithms.get(i), combined[i]);
+        }
+        return values;
+    }
+
+    private static long[] combine(final List<ChecksumAlgorithm> algorithms, final long[] first, final Checksum[] second, final long secondLength) {
+        final long[] combined = new long[first.length];
+        for (int i = 0; i < first.length; i++) {
+            // The checksum of nothing is zero for every combinable algorithm, so this also works without a checkpoint
+            combined[i] = algorithms.get(i).combine(first[i], second[i].getValue(), secondLength);
+        }
+        return combined;
+    }
+
+    private static Checksum[] newChecksums(final List<ChecksumAlgorithm> algorithms) {
+        final Checksum[] checksums = new Checksum[algorithms.size()];
+        for (int i = 0; i < checksums.length; i++) {
+            checksums[i] = algorithms.get(i).newChecksum();
+        }
+        return checksums;
+    }
+
+    private static void updateAll(final Checksum[] checksums, final ByteBuffer chunk) {
+        // Updating a checksum consumes the chunk, so rewind it for each one
+        final int position = chunk.position();
+        for (final Checksum checksum : checksums) {
+            chunk.position(position);
+            checksum.update(chunk);
         }
     }
 
+    private static Map<ChecksumAlgorithm, Long> values(final List<ChecksumAlgorithm> algorithms, final Checksum[] checksums) {
+        final Map<ChecksumAlgorithm, Long> values = new HashMap<>(checksums.length);
+        for (int i = 0; i < checksums.length; i++) {
+            values.put(algorithms.get(i), checksums[i].getValue());
+        }
+        return values;
+    }
+
+    private record RangeChecksums(Checksum[] checksums, long length) {}
+
+    /**
+     * Sets the engine used to read files for the rest of this run.
+     *
+     * @param readEngine the read engine
+     */
+    public static void setReadEngine(final ReadEngine readEngine) {
+        FileUtils.readEngine = readEngine;
+    }
+
+    /**
+     * Sets the journal that very large files save their progress to while they are read, or null to not save it.
+     *
+     * @param runJournal the run journal
+     */
+    public static void setRunJournal(@Nullable final RunJournal runJournal) {
+        FileUtils.runJournal = runJournal;
+    }
+
+    /**
+     * Returns the ID of a file, which is the lowercase hex SHA-256 of its path encoded as UTF-8.
+     * This runs for every file, so each thread reuses its digest and buffers and only the ID itself is allocated.
+     *
+     * @param filePath the path of the file relative to its configured prefix
+     * @return the file ID
+     */
     public static String calculateFileId(final String filePath) {
-        final MessageDigest digest;
-        // We should not have to worry about SHA-256 not being found
+        final FileIdHasher hasher = acquireFileIdHasher();
         try {
-            digest = MessageDigest.getInstance("SHA-256");
-        } catch (final NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);
+            return hasher.hash(filePath);
+        } finally {
+            releaseFileIdHasher(hasher);
+        }
+    }
+
+    /**
+     * Takes a hasher from the pool, starting at a slot picked by the thread so that threads rarely race for the same
+     * one, or creates a new hasher if the pool is empty.
+     */
+    private static FileIdHasher acquireFileIdHasher() {
+        final int slots = FILE_ID_HASHERS.length();
+        final int first = (int) (Thread.currentThread().threadId() % slots);
+        for (int i = 0; i < slots; i++) {
+            final FileIdHasher hasher = FILE_ID_HASHERS.getAndSet((first + i) % slots, null);
+            if (hasher != null) {
+                return hasher;
+            }
+        }
+        return new FileIdHasher();
+    }
+
+    /**
+     * Gives a hasher back to the first free slot. If every slot is taken the hasher is dropped, so the pool never
+     * grows past its slots.
+     */
+    private static void releaseFileIdHasher(final FileIdHasher hasher) {
+        final int slots = FILE_ID_HASHERS.length();
+        final int first = (int) (Thread.currentThread().threadId() % slots);
+        for (int i = 0; i < slots; i++) {
+            if (FILE_ID_HASHERS.compareAndSet((first + i) % slots, null, hasher)) {
+                return;
+            }
         }
-        final byte[] hashBytes = digest.digest(filePath.getBytes());
-        return bytesToHex(hashBytes).toLowerCase();
     }
 
-    private static String bytesToHex(byte[] bytes) {
-        try (Formatter formatter = new Formatter()) {
-            for (byte b : bytes) {
-                formatter.format("%02x", b);
+    /**
+     * A SHA-256 digest with the buffers to encode a path and its hash, used by a single thread at a time.
+     */
+    private static final class FileIdHasher {
+        private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+        private static final int SHA_256_LENGTH = 32;
+
+        private final MessageDigest digest;
+        private final byte[] hash = new byte[SHA_256_LENGTH];
+        private final byte[] hex = new byte[SHA_256_LENGTH * 2];
+        // Grown whenever a longer path comes along
+        private byte[] utf8 = new byte[256];
+
+        private FileIdHasher() {
+            // We should not have to worry about SHA-256 not being found
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (final NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        private String hash(final String filePath) {
+            final int length = encodeUtf8(filePath);
+            digest.update(utf8, 0, length);
+            try {
+                digest.digest(hash, 0, SHA_256_LENGTH);
+            } catch (final DigestException e) {
+                throw new RuntimeException(e);
+            }
+
+            for (int i = 0; i < SHA_256_LENGTH; i++) {
+                hex[2 * i] = HEX_DIGITS[(hash[i] >> 4) & 0xF];
+                hex[2 * i + 1] = HEX_DIGITS[hash[i] & 0xF];
+            }
+            return new String(hex, StandardCharsets.ISO_8859_1);
+        }
+
+        /**
+         * Encodes the path into {@link #utf8} the same way {@link String#getBytes(java.nio.charset.Charset)} would,
+         * including replacing unpaired surrogates with {@code ?}.
+         *
+         * @return the number of bytes
+         */
+        private int encodeUtf8(final String string) {
+            // No character takes more than three bytes, as the four byte ones are two characters
+            if (utf8.length < string.length() * 3) {
+                utf8 = new byte[string.length() * 3];
+            }
+
+            int length = 0;
+            for (int i = 0; i < string.length(); i++) {
+                final char c = string.charAt(i);
+                if (c < 0x80) {
+                    utf8[length++] = (byte) c;
+                } else if (c < 0x800) {
+                    utf8[length++] = (byte) (0xC0 | c >> 6);
+                    utf8[length++] = (byte) (0x80 | c & 0x3F);
+                } else if (!Character.isSurrogate(c)) {
+                    utf8[length++] = (byte) (0xE0 | c >> 12);
+                    utf8[length++] = (byte) (0x80 | c >> 6 & 0x3F);
+                    utf8[length++] = (byte) (0x80 | c & 0x3F);
+                } else if (Character.isHighSurrogate(c) && i + 1 < string.length() && Character.isLowSurrogate(string.charAt(i + 1))) {
+                    final int codePoint = Character.toCodePoint(c, string.charAt(++i));
+                    utf8[length++] = (byte) (0xF0 | codePoint >> 18);
+                    utf8[length++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+                    utf8[length++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+                    utf8[length++] = (byte) (0x80 | codePoint & 0x3F);
+                } else {
+                    utf8[length++] = '?';
+                }
             }
-            return formatter.toString();
+            return length;
         }
     }
 
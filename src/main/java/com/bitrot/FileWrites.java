@@ -0,0 +1,47 @@
+package com.bitrot;
+
+import com.bitrot.data.FileRecord;
+import com.bitrot.data.FileResult;
+import com.mongodb.client.model.WriteModel;
+import org.bson.Document;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * The writes queued while verifying a single file.
+ * A file is only done once its writes are safe. Until then it must not be recorded as verified, or a write that is
+ * lost would leave the file skipped for months without a document behind it.
+ */
+final class FileWrites implements WriteQueue {
+    private final WriteQueue writeQueue;
+    private final List<CompletableFuture<Void>> written = new ArrayList<>();
+
+    FileWrites(final WriteQueue writeQueue) {
+        this.writeQueue = writeQueue;
+    }
+
+    @Override
+    public CompletionStage<Void> add(final WriteModel<Document> write) {
+        final CompletionStage<Void> stage = writeQueue.add(write);
+        written.add(stage.toCompletableFuture());
+        return stage;
+    }
+
+    /**
+     * Returns the file's result once every write queued so far is safe, or fails if any of them could not be written.
+     *
+     * @param fileRecord the file the writes are for
+     * @param result     the result of verifying the file
+     */
+    CompletableFuture<FileResult> whenWritten(final FileRecord fileRecord, final FileResult result) {
+        return CompletableFuture.allOf(written.toArray(new CompletableFuture<?>[0])).handle((ignored, error) -> {
+            if (error != null) {
+                throw new IllegalStateException("Database writes for " + fileRecord.getLogIdentifier() + " failed, it will be verified again on the next run", error);
+            }
+            return result;
+        });
+    }
+}
@@ -20,7 +20,7 @@ public class FixTimestamp {
         final String absoluteFilePath = args[0];
         final String prefix = args[1];
         final Config config = Config.readConfig();
-        final MongoManager mongoManager = new MongoManager(config.getMongoConnectionString());
+        final MongoManager mongoManager = new MongoManager(config);
         
         final String filePath = absoluteFilePath.replace(prefix, "");
         System.out.println(filePath);
@@ -30,6 +30,7 @@ public class FixTimestamp {
         System.out.println(fileRecord);
 
         final DatabaseDocument document = mongoManager.findDocument(fileRecord, true);
+        mongoManager.close();
         if (document == null) {
             System.out.println("DB Document not found");
             System.exit(1);
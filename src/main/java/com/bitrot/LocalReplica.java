@@ -0,0 +1,383 @@
+package com.bitrot;
+
+import com.bitrot.data.DatabaseDocument;
+import com.bitrot.metrics.Metrics;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.jspecify.annotations.Nullable;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import static com.bitrot.MongoManager.*;
+
+/**
+ * A copy of the verification collection in a local SQLite database, plus the writes that still have to be sent to
+ * MongoDB. Documents are stored as BSON so that they come back exactly as MongoDB returned them.
+ * <p>
+ * Writes are applied to the local copy straight away and queued in the same transaction, so a crash never loses a
+ * write that the replica already shows. Every method is guarded by the connection.
+ */
+final class LocalReplica implements AutoCloseable {
+    private final Connection connection;
+
+    LocalReplica(final Connection connection) {
+        this.connection = connection;
+        try (final Statement stmt = connection.createStatement()) {
+            stmt.execute("PRAGMA journal_mode=WAL");
+            stmt.execute("PRAGMA synchronous=NORMAL");
+            stmt.execute("CREATE TABLE IF NOT EXISTS files (" +
+                    "object_id TEXT PRIMARY KEY, " +
+                    "file_id TEXT NOT NULL, " +
+                    "mtime_s INTEGER NOT NULL, " +
+                    "mtime_ns INTEGER NOT NULL, " +
+                    "last_accessed INTEGER NOT NULL, " +
+                    "synced_at INTEGER NOT NULL, " +
+                    "document BLOB NOT NULL)");
+            // Same as the unique index in MongoDB. A document that replaces one with another ID, for example because
+            // another computer created it at the same time as us, then also replaces the old row.
+            stmt.execute("CREATE UNIQUE INDEX IF NOT EXISTS files_key ON files (file_id, mtime_s, mtime_ns)");
+            stmt.execute("CREATE INDEX IF NOT EXISTS files_last_accessed ON files (last_accessed)");
+            stmt.execute("CREATE TABLE IF NOT EXISTS sync_state (name TEXT PRIMARY KEY, value TEXT NOT NULL)");
+            stmt.execute("CREATE TABLE IF NOT EXISTS pending_writes (" +
+                    "seq INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                    "filter BLOB NOT NULL, " +
+                    "update_document BLOB NOT NULL, " +
+                    "upsert INTEGER NOT NULL)");
+        } catch (final SQLException e) {
+            throw new RuntimeException("Failed to initialize local replica", e);
+        }
+    }
+
+    /**
+     * Returns every document with one of the given file IDs.
+     *
+     * @param fileIds the file IDs
+     * @return the documents
+     */
+    List<DatabaseDocument> find(final Collection<String> fileIds) {
+        final List<DatabaseDocument> documents = new ArrayList<>();
+        if (fileIds.isEmpty()) {
+            return documents;
+        }
+
+        final String placeholders = String.join(",", Collections.nCopies(fileIds.size(), "?"));
+        synchronized (connection) {
+            try (final PreparedStatement stmt = connection.prepareStatement(
+                    "SELECT document FROM files WHERE file_id IN (" + placeholders + ")")) {
+                int i = 1;
+                for (final String fileId : fileIds) {
+                    stmt.setString(i++, fileId);
+                }
+                try (final ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        documents.add(new DatabaseDocument(BsonBytes.decode(rs.getBytes(1))));
+                    }
+                }
+            } catch (final SQLException e) {
+                throw new RuntimeException("Failed to read from local replica", e);
+            }
+        }
+        return documents;
+    }
+
+    /**
+     * Stores documents fetched from MongoDB, replacing any older copy.
+     *
+     * @param documents the documents
+     */
+    void store(final List<Document> documents) {
+        synchronized (connection) {
+            inTransaction(() -> {
+                for (final Document document : documents) {
+                    storeRow(document);
+                }
+            });
+        }
+    }
+
+    /**
+     * Deletes every row that was not stored since the given time. Used after a full sync to drop documents that no
+     * longer exist in MongoDB.
+     *
+     * @param syncStart when the full sync started
+     * @return the number of rows deleted
+     */
+    int removeNotSyncedSince(final Instant syncStart) {
+        return update("DELETE FROM files WHERE synced_at < ?", syncStart.toEpochMilli());
+    }
+
+    /**
+     * Deletes every row last accessed before the given time, just like the expiring index in MongoDB does.
+     *
+     * @param cutoff the cutoff time
+     * @return the number of rows deleted
+     */
+    int expire(final Instant cutoff) {
+        return update("DELETE FROM files WHERE last_accessed < ?", cutoff.toEpochMilli());
+    }
+
+    /**
+     * Applies a write to the local copy and queues it to be sent to MongoDB.
+     * Only the {@code $set} and {@code $setOnInsert} operators are supported, which is everything {@link RecordVerifier}
+     * uses. A new document gets its ID here so that MongoDB ends up with the same ID as the replica.
+     *
+     * @param write the write
+     */
+    void apply(final WriteModel<Document> write) {
+        if (!(write instanceof UpdateOneModel<Document> updateOne)
+                || !(updateOne.getFilter() instanceof Document filter)
+                || !(updateOne.getUpdate() instanceof Document originalUpdate)) {
+            throw new IllegalArgumentException("Only single document updates are supported by the local replica: " + write);
+        }
+        Document update = originalUpdate;
+        final boolean upsert = updateOne.getOptions().isUpsert();
+
+        synchronized (connection) {
+            final Document existing = findOne(filter);
+            final Document row;
+            if (existing != null) {
+                applySet(existing, update.get("$set", Document.class));
+                row = existing;
+            } else if (upsert) {
+                final ObjectId objectId = new ObjectId();
+                row = new Document(MONGO_ID_KEY, objectId);
+                row.putAll(filter);
+                applySet(row, update.get("$set", Document.class));
+                applySet(row, update.get("$setOnInsert", Document.class));
+                update = new Document(update).append("$setOnInsert", new Document(MONGO_ID_KEY, objectId));
+            } else {
+                // A write that matches nothing locally is still sent, MongoDB may know the document even if we do not
+                row = null;
+            }
+
+            final Document pendingUpdate = update;
+            inTransaction(() -> {
+                if (row != null) {
+                    storeRow(row);
+                }
+                try (final PreparedStatement stmt = connection.prepareStatement(
+                        "INSERT INTO pending_writes (filter, update_document, upsert) VALUES (?, ?, ?)")) {
+                    stmt.setBytes(1, BsonBytes.encode(filter));
+                    stmt.setBytes(2, BsonBytes.encode(pendingUpdate));
+                    stmt.setInt(3, upsert ? 1 : 0);
+                    stmt.executeUpdate();
+                }
+            });
+        }
+    }
+
+    /**
+     * Returns the oldest writes that have not been sent to MongoDB yet.
+     *
+     * @param limit the maximum number of writes
+     * @return the writes in the order they were made
+     */
+    List<PendingWrite> pendingWrites(final int limit) {
+        final List<PendingWrite> writes = new ArrayList<>();
+        synchronized (connection) {
+            try (final PreparedStatement stmt = connection.prepareStatement(
+                    "SELECT seq, filter, update_document, upsert FROM pending_writes ORDER BY seq LIMIT ?")) {
+                stmt.setInt(1, limit);
+                try (final ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        writes.add(new PendingWrite(rs.getLong(1), new UpdateOneModel<>(
+                                BsonBytes.decode(rs.getBytes(2)), BsonBytes.decode(rs.getBytes(3)), new UpdateOptions().upsert(rs.getInt(4) == 1))));
+                    }
+                }
+            } catch (final SQLException e) {
+                throw new RuntimeException("Failed to read pending writes from local replica", e);
+            }
+        }
+        return writes;
+    }
+
+    /**
+     * Removes every pending write up to and including the given one.
+     *
+     * @param seq the sequence number of the last write to remove
+     */
+    void removePendingWrites(final long seq) {
+        update("DELETE FROM pending_writes WHERE seq <= ?", seq);
+    }
+
+    @Nullable
+    String getState(final String name) {
+        synchronized (connection) {
+            try (final PreparedStatement stmt = connection.prepareStatement("SELECT value FROM sync_state WHERE name = ?")) {
+                stmt.setString(1, name);
+                try (final ResultSet rs = stmt.executeQuery()) {
+                    return rs.next() ? rs.getString(1) : null;
+                }
+            } catch (final SQLException e) {
+                throw new RuntimeException("Failed to read sync state from local replica", e);
+            }
+        }
+    }
+
+    void setState(final String name, final String value) {
+        synchronized (connection) {
+            try (final PreparedStatement stmt = connection.prepareStatement(
+                    "INSERT OR REPLACE INTO sync_state (name, value) VALUES (?, ?)")) {
+                stmt.setString(1, name);
+                stmt.setString(2, value);
+                stmt.executeUpdate();
+            } catch (final SQLException e) {
+                throw new RuntimeException("Failed to write sync state to local replica", e);
+            }
+        }
+    }
+
+    long size() {
+        synchronized (connection) {
+            try (final Statement stmt = connection.createStatement();
+                 final ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM files")) {
+                return rs.getLong(1);
+            } catch (final SQLException e) {
+                throw new RuntimeException("Failed to count rows in local replica", e);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (connection) {
+            try {
+                connection.close();
+            } catch (final SQLException e) {
+                throw new RuntimeException("Failed to close local replica", e);
+            }
+        }
+    }
+
+    @Nullable
+    private Document findOne(final Document filter) {
+        final ObjectId objectId = filter.getObjectId(MONGO_ID_KEY);
+        final String sql = objectId != null
+                ? "SELECT document FROM files WHERE object_id = ?"
+                : "SELECT document FROM files WHERE file_id = ?";
+        try (final PreparedStatement stmt = connection.prepareStatement(sql)) {
+            stmt.setString(1, objectId != null ? objectId.toHexString() : filter.getString(FILE_ID_KEY));
+            try (final ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    final Document document = BsonBytes.decode(rs.getBytes(1));
+                    if (matches(document, filter)) {
+                        return document;
+                    }
+                }
+            }
+        } catch (final SQLException e) {
+            throw new RuntimeException("Failed to read from local replica", e);
+        }
+        return null;
+    }
+
+    private void storeRow(final Document document) throws SQLException {
+        final DatabaseDocument databaseDocument = new DatabaseDocument(document);
+        final Instant lastAccessed = databaseDocument.lastAccessed();
+        try (final PreparedStatement stmt = connection.prepareStatement(
+                "INSERT OR REPLACE INTO files (object_id, file_id, mtime_s, mtime_ns, last_accessed, synced_at, document) " +
+                        "VALUES (?, ?, ?, ?, ?, ?, ?)")) {
+            stmt.setString(1, databaseDocument.objectId().toHexString());
+            stmt.setString(2, databaseDocument.fileId());
+            stmt.setLong(3, databaseDocument.mTimeSeconds());
+            stmt.setInt(4, databaseDocument.mTimeNanos());
+            stmt.setLong(5, lastAccessed == null ? 0L : lastAccessed.toEpochMilli());
+            stmt.setLong(6, System.currentTimeMillis());
+            stmt.setBytes(7, BsonBytes.encode(document));
+            stmt.executeUpdate();
+        }
+    }
+
+    private int update(final String sql, final long value) {
+        synchronized (connection) {
+            try (final PreparedStatement stmt = connection.prepareStatement(sql)) {
+                stmt.setLong(1, value);
+                return stmt.executeUpdate();
+            } catch (final SQLException e) {
+                throw new RuntimeException("Failed to update local replica", e);
+            }
+        }
+    }
+
+    private void inTransaction(final SqlAction action) {
+        final long startedAt = System.nanoTime();
+        try {
+            connection.setAutoCommit(false);
+            try {
+                action.run();
+                connection.commit();
+            } catch (final SQLException | RuntimeException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        } catch (final SQLException e) {
+            throw new RuntimeException("Failed to write to local replica", e);
+        } finally {
+            Metrics.SQLITE_WRITE.recordSince(startedAt);
+        }
+    }
+
+    /**
+     * Returns whether every field of the filter has the same value in the document. Numbers are compared by value
+     * since old documents may store them as a different type.
+     */
+    private static boolean matches(final Document document, final Document filter) {
+        for (final Map.Entry<String, Object> entry : filter.entrySet()) {
+            final Object actual = document.get(entry.getKey());
+            final Object expected = entry.getValue();
+            if (actual instanceof Number a && expected instanceof Number e) {
+                if (a.longValue() != e.longValue()) {
+                    return false;
+                }
+            } else if (expected == null ? actual != null : !expected.equals(actual)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sets the fields of a {@code $set} document, where a dotted key sets a field of an embedded document.
+     */
+    private static void applySet(final Document document, @Nullable final Document set) {
+        if (set == null) {
+            return;
+        }
+        for (final Map.Entry<String, Object> entry : set.entrySet()) {
+            final String[] parts = entry.getKey().split("\\.");
+            Document target = document;
+            for (int i = 0; i < parts.length - 1; i++) {
+                Document child = target.get(parts[i], Document.class);
+                if (child == null) {
+                    child = new Document();
+                    target.put(parts[i], child);
+                }
+                target = child;
+            }
+            // Store times the way they come back from MongoDB
+            final Object value = entry.getValue() instanceof Instant instant ? Date.from(instant) : entry.getValue();
+            target.put(parts[parts.length - 1], value);
+        }
+    }
+
+    @FunctionalInterface
+    private interface SqlAction {
+        void run() throws SQLException;
+    }
+}
@@ -1,17 +1,21 @@
 package com.bitrot;
 
 import com.bitrot.data.Config;
+import com.bitrot.io.IoScheduler;
 import com.bitrot.logger.FileLoggerUtil;
 import com.bitrot.logger.LoggerUtil;
+import com.bitrot.metrics.Metrics;
 
 import java.io.IOException;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.List;
 
 @SuppressWarnings("CallToPrintStackTrace")
 public class Main {
@@ -23,31 +27,88 @@ public class Main {
         loggerUtil = new FileLoggerUtil();
 
         final Instant start = Instant.now();
-
-        final SkipUtil skipUtil = new SkipUtil();
-        final MongoManager mongoManager = new MongoManager(config.getMongoConnectionString());
+        // Created straight away so that the time budget covers the whole run
+        final ScanBudget budget = ScanBudget.fromConfig(config);
+
+        FileUtils.setReadEngine(config.getReadEngine());
+        // Before any root is registered, as only lanes created afterward are throttled
+        IoScheduler.getInstance().configureThrottling(
+                config.getMaxReadMiBPerSecond() > 0 ? config.getMaxReadMiBPerSecond() * 1024.0 * 1024 : Double.POSITIVE_INFINITY,
+                config.isAdaptiveThrottling());
+        IoScheduler.getInstance().configurePageCacheAdvice(config.isPageCacheAdvice());
+        Metrics.start(config.getMetricsTextFile() == null ? null : Paths.get(config.getMetricsTextFile()),
+                config.getMetricsIntervalSeconds());
+        // Not closed by a shutdown hook, as closing the store still writes to it
+        final RunJournal journal = config.isRunJournal() ? new RunJournal() : null;
+        FileUtils.setRunJournal(journal);
+
+        final SkipUtil skipUtil = new SkipUtil(config);
+        final VerificationStore store;
+        if (config.isLocalReplica()) {
+            // The replica keeps its own queue of writes
+            store = new ReplicaMongoManager(config);
+        } else if (config.isReactiveDriver()) {
+            store = new AsyncMongoManager(config, journal);
+        } else {
+            store = new MongoManager(config, journal);
+        }
+        // Database writes are queued, so make sure they are sent even if we are stopped partway through the run
+        Runtime.getRuntime().addShutdownHook(new Thread(store::close));
+        Runtime.getRuntime().addShutdownHook(new Thread(skipUtil::close));
 
         // Clean up the database before we start
         skipUtil.cleanDatabase();
 
-        final FileProcessor processor = new FileProcessor(skipUtil, mongoManager, loggerUtil);
+        final FileProcessor processor = new FileProcessor(skipUtil, store, loggerUtil, config.isPhysicalOrder());
 
         loggerUtil.log("Mutable paths: " + config.getMutablePaths());
         loggerUtil.log("Immutable paths: " + config.getImmutablePaths());
+        loggerUtil.log("Read engine: " + config.getReadEngine());
+        loggerUtil.log("Checksum algorithm for new records: " + config.getChecksumAlgorithm());
+        loggerUtil.log("MongoDB driver: " + (config.isLocalReplica() ? "local replica" : config.isReactiveDriver() ? "reactive streams" : "synchronous"));
+        loggerUtil.log("Read throttling: " + (config.getMaxReadMiBPerSecond() > 0 ? config.getMaxReadMiBPerSecond() + " MiB/s" : "no limit")
+                + (config.isAdaptiveThrottling() ? ", adaptive" : ""));
+        loggerUtil.log("Page cache advice: " + config.isPageCacheAdvice());
+        loggerUtil.log("Physical order on rotational disks: " + config.isPhysicalOrder());
+        loggerUtil.log("Skip rules: " + config.getSkipRules());
+        loggerUtil.log("Metrics: JMX" + (config.getMetricsTextFile() == null ? "" : " and " + config.getMetricsTextFile())
+                + ", every " + config.getMetricsIntervalSeconds() + " second(s)");
+        loggerUtil.log("Budget: " + (budget == null ? "none" : budget));
         loggerUtil.log("--------------------------");
 
-        // Go through the mutable paths first
-        for (final String mutablePath : config.getMutablePaths()) {
-            processor.processFiles(Paths.get(mutablePath), false);
+        final List<Path> mutablePaths = config.getMutablePaths().stream().map(Paths::get).toList();
+        final List<Path> immutablePaths = config.getImmutablePaths().stream().map(Paths::get).toList();
+        if (budget != null) {
+            // Verify the stalest files across all paths until the budget is spent
+            processor.processPathsWithBudget(mutablePaths, immutablePaths, budget);
+        } else {
+            // Go through all the paths at the same time. Reads are limited per physical device, so this is bounded by
+            // the combined throughput of the disks rather than a single one.
+            processor.processPaths(mutablePaths, immutablePaths);
         }
 
-        // Then the immutable paths
-        for (final String immutablePath : config.getImmutablePaths()) {
-            processor.processFiles(Paths.get(immutablePath), true);
+        // Write anything that is still queued for the databases
+        try {
+            store.close();
+        } catch (final RuntimeException e) {
+            loggerUtil.logException(e);
+        }
+        try {
+            skipUtil.close();
+        } catch (final RuntimeException e) {
+            loggerUtil.logException(e);
+        }
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (final RuntimeException e) {
+                loggerUtil.logException(e);
+            }
         }
 
         // Log the totals now that all paths are processed
         processor.logRunTotals();
+        Metrics.stop();
 
         // Log the runtime
         final Instant end = Instant.now();
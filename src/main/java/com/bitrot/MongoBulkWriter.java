@@ -0,0 +1,298 @@
+package com.bitrot;
+
+import com.bitrot.metrics.Metrics;
+import com.mongodb.MongoException;
+import com.mongodb.MongoNodeIsRecoveringException;
+import com.mongodb.MongoNotPrimaryException;
+import com.mongodb.MongoSocketException;
+import com.mongodb.MongoTimeoutException;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.model.WriteModel;
+import org.bson.Document;
+import org.jspecify.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.bitrot.data.Constants.BULK_WRITE_MAX_ATTEMPTS;
+import static com.bitrot.data.Constants.BULK_WRITE_RETRY_BACKOFF_MILLIS;
+
+/**
+ * Queues writes to the database and sends them as unordered bulk writes.
+ * The queue is written once it reaches {@code batchSize} writes or every {@code flushIntervalSeconds}, whichever
+ * comes first. Call {@link #flush()} to make sure every queued write has reached the database.
+ * <p>
+ * Each write's stage completes once its bulk write was sent, or fails with the bulk write's error, so a failed bulk
+ * write is reported against the writes in it and not against whichever caller happened to fill the queue.
+ * <p>
+ * The bulk write itself is passed in so that the same queue works for both the synchronous and the reactive driver.
+ * Writes should be unordered so that one bad write does not stop the rest, and so the server can apply them in
+ * parallel.
+ * <p>
+ * A bulk write that fails with a transient error, such as a lost connection or a primary stepping down, is tried again
+ * with a growing backoff. Every write is an idempotent upsert, so sending writes that were already applied is harmless.
+ * <p>
+ * With a {@link RunJournal}, every write is saved to the journal when it is queued and removed once it reached the
+ * database, and {@link #replayJournal()} sends the writes left over from a run that was killed.
+ */
+public class MongoBulkWriter implements WriteQueue, AutoCloseable {
+    private final BulkWrite bulkWrite;
+    @Nullable
+    private final RunJournal journal;
+    private final int batchSize;
+    private final ScheduledExecutorService flusher;
+    // Only one bulk write at a time so that flush() can wait for writes that are already in flight
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    private List<WriteModel<Document>> pending = new ArrayList<>();
+    // The size of pending, for the metrics thread to read without taking the lock
+    private volatile int pendingCount = 0;
+    // The journal sequence numbers of the pending writes. Writes are saved to the journal before taking the lock, so
+    // other writes may be saved in between and the numbers are not consecutive.
+    private List<Long> pendingSeqs = new ArrayList<>();
+    private List<CompletableFuture<Void>> pendingWritten = new ArrayList<>();
+    // A failure from a background flush or a full queue, reported by the next call to flush()
+    private volatile RuntimeException backgroundFailure = null;
+
+    public MongoBulkWriter(final BulkWrite bulkWrite, final int batchSize, final long flushIntervalSeconds) {
+        this(bulkWrite, batchSize, flushIntervalSeconds, null);
+    }
+
+    public MongoBulkWriter(final BulkWrite bulkWrite, final int batchSize, final long flushIntervalSeconds, @Nullable final RunJournal journal) {
+        this.bulkWrite = bulkWrite;
+        this.journal = journal;
+        this.batchSize = batchSize;
+
+        flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "mongo-bulk-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::backgroundFlush, flushIntervalSeconds, flushIntervalSeconds, TimeUnit.SECONDS);
+        Metrics.registerQueue("mongo_writes", () -> pendingCount);
+    }
+
+    /**
+     * Queues a write. If the queue is full, it is written on the calling thread.
+     *
+     * @param write the write
+     * @return completes once the write reached the database
+     */
+    @Override
+    public CompletionStage<Void> add(final WriteModel<Document> write) {
+        // Save to the journal before taking the queue's lock so that the queue is never held during a disk write
+        final long seq = journal != null ? journal.appendWrite(write) : -1;
+
+        final CompletableFuture<Void> written = new CompletableFuture<>();
+        Batch toWrite = null;
+        synchronized (this) {
+            if (seq != -1) {
+                pendingSeqs.add(seq);
+            }
+            pending.add(write);
+            pendingWritten.add(written);
+            pendingCount = pending.size();
+            if (pending.size() >= batchSize) {
+                toWrite = takePending();
+            }
+        }
+
+        if (toWrite != null) {
+            writeInBackground(toWrite);
+        }
+        return written;
+    }
+
+    /**
+     * Writes every queued write and waits for any write that is already in flight.
+     *
+     * @throws MongoException        if a write failed after its retries, including one from a background flush
+     * @throws IllegalStateException if some updates did not match any document
+     */
+    public void flush() {
+        final Batch toWrite;
+        synchronized (this) {
+            toWrite = takePending();
+        }
+        write(toWrite);
+
+        final RuntimeException failure = backgroundFailure;
+        if (failure != null) {
+            backgroundFailure = null;
+            throw failure;
+        }
+    }
+
+    /**
+     * Stops the background flushes and writes everything that is still queued.
+     */
+    @Override
+    public void close() {
+        flusher.shutdown();
+        flush();
+    }
+
+    /**
+     * Sends every write left in the journal by an earlier run, oldest first.
+     * Writes that still fail after their retries are logged and dropped, as sending them again would fail the same way.
+     *
+     * @return the number of writes sent
+     */
+    public int replayJournal() {
+        if (journal == null) {
+            return 0;
+        }
+
+        int replayed = 0;
+        while (true) {
+            final List<PendingWrite> pendingWrites = journal.pendingWrites(batchSize);
+            if (pendingWrites.isEmpty()) {
+                return replayed;
+            }
+
+            final List<WriteModel<Document>> writes = new ArrayList<>(pendingWrites.size());
+            for (final PendingWrite pendingWrite : pendingWrites) {
+                writes.add(pendingWrite.write());
+            }
+            try {
+                write(new Batch(writes, List.of(), List.of()));
+            } catch (final RuntimeException e) {
+                System.err.println("Replaying writes from the run journal failed: " + e.getMessage());
+            }
+            journal.removeWrites(pendingWrites.getFirst().seq(), pendingWrites.getLast().seq());
+            replayed += writes.size();
+        }
+    }
+
+    private Batch takePending() {
+        final Batch taken = new Batch(pending, pendingSeqs, pendingWritten);
+        pending = new ArrayList<>();
+        pendingCount = 0;
+        pendingSeqs = new ArrayList<>();
+        pendingWritten = new ArrayList<>();
+        return taken;
+    }
+
+    private void backgroundFlush() {
+        final Batch toWrite;
+        synchronized (this) {
+            toWrite = takePending();
+        }
+        writeInBackground(toWrite);
+    }
+
+    /**
+     * Writes the batch for a caller that did not ask for it to be written. A failure already reached the batch's own
+     * writes, so it is only kept for the next call to {@link #flush()}.
+     */
+    private void writeInBackground(final Batch batch) {
+        try {
+            write(batch);
+        } catch (final RuntimeException e) {
+            System.err.println("Background bulk write failed: " + e.getMessage());
+            backgroundFailure = e;
+        }
+    }
+
+    private void write(final Batch batch) {
+        final List<WriteModel<Document>> writes = batch.writes();
+        if (writes.isEmpty()) {
+            return;
+        }
+
+        BulkWriteResult result = null;
+        RuntimeException failure = null;
+        writeLock.lock();
+        try {
+            result = writeWithRetries(writes);
+            // Every write was sent, so none of them need to be replayed even if some did not match
+            if (journal != null && !batch.seqs().isEmpty()) {
+                journal.removeWrites(batch.seqs());
+            }
+        } catch (final RuntimeException e) {
+            failure = e;
+        } finally {
+            writeLock.unlock();
+        }
+
+        // Outside the lock, as completing a write runs whatever was waiting for it
+        for (final CompletableFuture<Void> written : batch.written()) {
+            if (failure == null) {
+                written.complete(null);
+            } else {
+                written.completeExceptionally(failure);
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+
+        // Every write either updates an existing document or upserts a new one. Don't look at modifiedCount as
+        // MongoDB may choose to not update the document if the timestamps are too close together.
+        final int applied = result.getMatchedCount() + result.getUpserts().size();
+        if (applied != writes.size()) {
+            throw new IllegalStateException((writes.size() - applied) + " of " + writes.size() + " database writes did not match a document");
+        }
+    }
+
+    /**
+     * Sends the writes, trying again after a transient error until {@link com.bitrot.data.Constants#BULK_WRITE_MAX_ATTEMPTS}.
+     *
+     * @throws MongoException the last error if the writes could not be sent
+     */
+    private BulkWriteResult writeWithRetries(final List<WriteModel<Document>> writes) {
+        long backoffMillis = BULK_WRITE_RETRY_BACKOFF_MILLIS;
+        for (int attempt = 1; ; attempt++) {
+            final long startedAt = System.nanoTime();
+            try {
+                return bulkWrite.write(writes);
+            } catch (final MongoException e) {
+                if (attempt >= BULK_WRITE_MAX_ATTEMPTS || !isTransient(e)) {
+                    throw e;
+                }
+                System.err.println("Bulk write of " + writes.size() + " writes failed, retrying in " + backoffMillis + " ms: " + e.getMessage());
+                try {
+                    Thread.sleep(backoffMillis);
+                } catch (final InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+                backoffMillis *= 2;
+            } finally {
+                Metrics.MONGO_WRITE.recordSince(startedAt);
+            }
+        }
+    }
+
+    /**
+     * Returns whether sending the same writes again may succeed.
+     */
+    static boolean isTransient(final MongoException e) {
+        return e instanceof MongoSocketException
+                || e instanceof MongoTimeoutException
+                || e instanceof MongoNotPrimaryException
+                || e instanceof MongoNodeIsRecoveringException
+                || e.hasErrorLabel("RetryableWriteError")
+                || e.hasErrorLabel(MongoException.TRANSIENT_TRANSACTION_ERROR_LABEL);
+    }
+
+    /**
+     * Writes taken from the queue, with their journal sequence numbers or none if they are not journaled, and the
+     * stages to complete once they are sent.
+     */
+    private record Batch(List<WriteModel<Document>> writes, List<Long> seqs, List<CompletableFuture<Void>> written) {}
+
+    /**
+     * Sends a list of writes to the database and waits for the result.
+     */
+    @FunctionalInterface
+    public interface BulkWrite {
+        BulkWriteResult write(List<WriteModel<Document>> writes);
+    }
+}
@@ -1,49 +1,109 @@
 package com.bitrot;
 
+import com.bitrot.data.Config;
 import com.bitrot.data.DatabaseDocument;
+import com.bitrot.data.DocumentLookup;
 import com.bitrot.data.FileRecord;
 import com.bitrot.data.FileResult;
-import com.bitrot.data.Result;
+import com.bitrot.metrics.Metrics;
 import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoClients;
 import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
 import com.mongodb.client.model.IndexOptions;
 import com.mongodb.client.model.Indexes;
-import com.mongodb.client.model.UpdateOptions;
-import com.mongodb.client.result.UpdateResult;
 import org.bson.Document;
 import org.jspecify.annotations.Nullable;
 
 import java.io.IOException;
-import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.TimeUnit;
 
-import static com.bitrot.SkipUtil.fileIsTooNewToSaveToDatabase;
 import static com.bitrot.data.Constants.*;
 
-public class MongoManager {
+/**
+ * Verifies file records against MongoDB using the synchronous driver, so every query blocks the calling thread.
+ */
+public class MongoManager implements VerificationStore {
     public static final String MONGO_ID_KEY = "_id";
     public static final String FILE_ID_KEY = "file_id";
     public static final String MODIFIED_TIME_SECONDS_KEY = "mtime_s";
     public static final String MODIFIED_TIME_NANOS_KEY = "mtime_ns";
     public static final String SIZE_KEY = "size";
     public static final String CHECKSUM_KEY = "checksum";
+    public static final String CHECKSUM_ALGORITHM_KEY = "checksum_algorithm";
+    // Checksums added by a migration, keyed by algorithm name
+    public static final String CHECKSUMS_KEY = "checksums";
     public static final String LAST_ACCESSED_KEY = "last_accessed";
+    // The CRC32C of every block of a large file, see BlockManifest
+    public static final String BLOCK_SIZE_KEY = "block_size";
+    public static final String BLOCK_CHECKSUMS_KEY = "block_crc32c";
 
     private final MongoCollection<Document> collection;
+    private final MongoBulkWriter bulkWriter;
+    private final RecordVerifier verifier;
 
-    @SuppressWarnings("resource")
-    public MongoManager(final String connection_string) {
-        final MongoClient client = MongoClients.create(connection_string);
-        collection = client.getDatabase(MONGO_DB_NAME).getCollection(MONGO_COLLECTION_NAME);
+    public MongoManager(final Config config) {
+        this(config, null);
+    }
 
-        ensureIndexes();
+    /**
+     * @param config  the config
+     * @param journal the journal to save queued writes to, or null
+     */
+    @SuppressWarnings("resource")
+    public MongoManager(final Config config, @Nullable final RunJournal journal) {
+        this(MongoClients.create(config.getMongoConnectionString()), config, journal);
     }
 
     MongoManager(final MongoClient client) {
+        this(client, Config.defaults());
+    }
+
+    /**
+     * @param client the client to use, which stays open when this MongoManager is closed
+     * @param config the config
+     */
+    public MongoManager(final MongoClient client, final Config config) {
+        this(client, config, null);
+    }
+
+    MongoManager(final MongoClient client, final Config config, @Nullable final RunJournal journal) {
         collection = client.getDatabase(MONGO_DB_NAME).getCollection(MONGO_COLLECTION_NAME);
+        bulkWriter = new MongoBulkWriter(writes -> collection.bulkWrite(writes, new BulkWriteOptions().ordered(false)),
+                BULK_WRITE_BATCH_SIZE, BULK_WRITE_FLUSH_INTERVAL_SECONDS, journal);
+        verifier = new RecordVerifier(config);
 
         ensureIndexes();
+        replayJournal(bulkWriter);
+    }
+
+    static void replayJournal(final MongoBulkWriter bulkWriter) {
+        final int replayed = bulkWriter.replayJournal();
+        if (replayed > 0) {
+            System.out.println("Sent " + replayed + " database writes left over from an interrupted run");
+        }
+    }
+
+    /**
+     * Makes sure every queued write has reached the database.
+     */
+    @Override
+    public void flush() {
+        bulkWriter.flush();
+    }
+
+    /**
+     * Writes everything that is still queued. Should be called when this MongoManager is no longer needed.
+     */
+    @Override
+    public void close() {
+        bulkWriter.close();
     }
 
     private void ensureIndexes() {
@@ -60,7 +120,13 @@ public class MongoManager {
 
     @Nullable
     private DatabaseDocument findOne(final Document query) {
-        final Document document = collection.find(query).first();
+        final long startedAt = System.nanoTime();
+        final Document document;
+        try {
+            document = collection.find(query).first();
+        } finally {
+            Metrics.MONGO_FIND.recordSince(startedAt);
+        }
         if (document == null) {
             return null;
         }
@@ -68,161 +134,110 @@ public class MongoManager {
         return new DatabaseDocument(document);
     }
 
-    @Nullable
-    private DatabaseDocument findDocumentDifferentMTime(final FileRecord fileRecord, final boolean isImmutable) {
-        final Document query = new Document(FILE_ID_KEY, fileRecord.getFileId());
-        final DatabaseDocument differentMTimeDocument = findOne(query);
-
-        if (differentMTimeDocument == null) {
-            // We have never seen this file before
-            return null;
-        } else {
-            // We have seen this file before, but the modified timestamp is different. This means we need
-            // to check the immutability of this file.
-            if (isImmutable && !fileRecord.getFilePath().endsWith(".par2")) {
-                // We may need to modify par2 files if we add new files to a folder at a later time, so exclude them
-                // from the immutability check even if they are in an immutable folder.
-                System.out.println("Immutable file has been modified: " + fileRecord.getLogIdentifier());
-                return differentMTimeDocument;
-            } else {
-                // The file is mutable, so we should create a new record.
-                System.out.println("File has been seen before but has been modified: " + fileRecord.getLogIdentifier());
-                return null;
+    /**
+     * Fetches every document for the given file records with a single query.
+     *
+     * @param fileRecords the file records
+     * @return a lookup of the fetched documents
+     */
+    public DocumentLookup prefetchDocuments(final Collection<FileRecord> fileRecords) {
+        final Set<String> fileIds = RecordVerifier.fileIds(fileRecords);
+
+        final List<DatabaseDocument> documents = new ArrayList<>();
+        final long startedAt = System.nanoTime();
+        try {
+            for (final Document document : collection.find(RecordVerifier.prefetchQuery(fileIds))) {
+                documents.add(new DatabaseDocument(document));
             }
+        } finally {
+            Metrics.MONGO_FIND.recordSince(startedAt);
+        }
+
+        return new DocumentLookup(fileIds, documents);
+    }
+
+    @Override
+    public CompletionStage<DocumentLookup> prefetch(final Collection<FileRecord> fileRecords) {
+        try {
+            return CompletableFuture.completedFuture(prefetchDocuments(fileRecords));
+        } catch (final RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
         }
     }
 
     /**
-     * Updates the last accessed time for the given document in the database.
+     * Updates the last accessed time for the given document in the database so that it does not expire.
+     * To save writes, documents that were accessed recently enough are left alone, and the update is queued to be
+     * sent with other writes.
      *
      * @param databaseDocument the given document
      */
     public void updateLastAccessed(final DatabaseDocument databaseDocument) {
-        // Update last accessed time to the current moment
-        final Instant currentDatetime = Instant.now();
-        final Document update = new Document("$set", new Document(LAST_ACCESSED_KEY, currentDatetime));
-        // We do NOT want to upsert because the document should already exist
-        final UpdateOptions options = new UpdateOptions().upsert(false);
-
-        final UpdateResult updateResult = collection.updateOne(
-                new Document(MONGO_ID_KEY, databaseDocument.objectId()),
-                update,
-                options
-        );
-
-        // Don't look at modifiedCount as MongoDB may choose to not update the document if the timestamps
-        // are too close together.
-        if (updateResult.getMatchedCount() != 1) {
-            throw new IllegalArgumentException("Could not update last accessed time for " + databaseDocument.fileId());
-        }
+        verifier.updateLastAccessed(databaseDocument, bulkWriter);
     }
 
     @Nullable
     DatabaseDocument findDocument(final FileRecord fileRecord, final boolean isImmutable) throws IOException {
-        // Start off with trying to find an exact match (both ID and mtime)
-        final Document query = new Document(FILE_ID_KEY, fileRecord.getFileId())
-                .append(MODIFIED_TIME_SECONDS_KEY, fileRecord.getMTimeSeconds())
-                .append(MODIFIED_TIME_NANOS_KEY, fileRecord.getMTimeNanos());
-
-        final DatabaseDocument exactMatch = findOne(query);
-
-        if (exactMatch == null) {
-            // No exact matches, so see if there are matches with different mtimes.
-            return findDocumentDifferentMTime(fileRecord, isImmutable);
-        } else {
-            // If the document exists, update its last accessed time so that it is not cleaned up.
-            updateLastAccessed(exactMatch);
-            return exactMatch;
-        }
+        return findDocument(fileRecord, isImmutable, null, bulkWriter);
     }
 
-    private FileResult saveNewRecord(final FileRecord fileRecord) throws IOException {
-        // This file record is not in the database. Time to create a new document.
-        // We still do an update operation because another computer may be creating this document at the same time
-        // as us.
-        final Document filter = new Document()
-                .append(FILE_ID_KEY, fileRecord.getFileId())
-                .append(MODIFIED_TIME_SECONDS_KEY, fileRecord.getMTimeSeconds())
-                .append(MODIFIED_TIME_NANOS_KEY, fileRecord.getMTimeNanos());
-
-        final Document data = new Document()
-                .append(FILE_ID_KEY, fileRecord.getFileId())
-                .append(MODIFIED_TIME_SECONDS_KEY, fileRecord.getMTimeSeconds())
-                .append(MODIFIED_TIME_NANOS_KEY, fileRecord.getMTimeNanos())
-                .append(SIZE_KEY, fileRecord.getSize())
-                .append(CHECKSUM_KEY, fileRecord.getChecksum())
-                .append(LAST_ACCESSED_KEY, Instant.now());
+    @Nullable
+    private DatabaseDocument findDocument(final FileRecord fileRecord, final boolean isImmutable, @Nullable final DocumentLookup lookup,
+                                          final WriteQueue writeQueue) throws IOException {
+        final boolean prefetched = lookup != null && lookup.contains(fileRecord.getFileId());
 
-        final Document update = new Document("$set", data);
+        // Start off with trying to find an exact match (both ID and mtime)
+        final DatabaseDocument exactMatch = prefetched
+                ? lookup.findExactMatch(fileRecord)
+                : findOne(RecordVerifier.exactMatchQuery(fileRecord));
 
-        collection.updateOne(filter, update, new UpdateOptions().upsert(true));
+        // If there are no exact matches, see if there are matches with different mtimes.
+        DatabaseDocument anyMatch = null;
+        if (exactMatch == null) {
+            anyMatch = prefetched
+                    ? lookup.findAny(fileRecord.getFileId())
+                    : findOne(RecordVerifier.anyMatchQuery(fileRecord));
+        }
 
-        return new FileResult(Result.PASS, "New file record saved to database for file " + fileRecord.getFilePath() + ": " + data);
+        return verifier.chooseDocument(fileRecord, isImmutable, exactMatch, anyMatch, writeQueue);
     }
 
     public FileResult processFileRecord(final FileRecord fileRecord, final boolean isImmutable) throws IOException {
-        final DatabaseDocument databaseDocument = findDocument(fileRecord, isImmutable);
-
-        if (databaseDocument == null) {
-            // We need to be confident that a new immutable file is completely done being modified.
-            // Newly created files are riskier to make this assumption since they may still be being written to.
-            // For example, creating par2 files may take quite a long time, and we don't want to save its
-            // initial checksum into the database only for it to change as the creation process completes.
-            if (isImmutable && fileIsTooNewToSaveToDatabase(fileRecord)) {
-                return new FileResult(
-                        Result.SKIP,
-                        "Immutable file " + fileRecord.getLogIdentifier() + " skipped because it was created recently"
-                );
-            }
-
-            // Time to create the new record.
-            return saveNewRecord(fileRecord);
-        } else {
-            // We have seen this record before so now check for any bit rot
-            if (!fileRecord.getFileId().equals(databaseDocument.fileId())) {
-                throw new IllegalStateException("Fatal error! File ID mismatch for record " + fileRecord.getLogIdentifier() +
-                        ": Local=" + fileRecord.getFileId() +
-                        " but Database=" + databaseDocument.fileId());
-            }
-
-            if (fileRecord.getMTimeSeconds() != databaseDocument.mTimeSeconds() || fileRecord.getMTimeNanos() != databaseDocument.mTimeNanos()) {
-                return new FileResult(Result.FAIL, "File modified time mismatch for record " + fileRecord.getLogIdentifier() +
-                        ": Local=" + getMTimeString(fileRecord.getMTimeSeconds(), fileRecord.getMTimeNanos()) +
-                        " but Database=" + getMTimeString(databaseDocument.mTimeSeconds(), databaseDocument.mTimeNanos()));
-            }
-
-            if (fileRecord.getSize() != databaseDocument.size()) {
-                return new FileResult(Result.FAIL, "File size mismatch for record " + fileRecord.getLogIdentifier() +
-                        ": Local=" + fileRecord.getSize() +
-                        " but Database=" + databaseDocument.size());
-            }
-
-            if (fileRecord.getChecksum() != databaseDocument.checksum()) {
-                return new FileResult(Result.FAIL, "File CRC mismatch for record " + fileRecord.getLogIdentifier() +
-                        ": Local=" + fileRecord.getChecksum() +
-                        " but Database=" + databaseDocument.checksum());
-            }
-
-            // The old Python-era documents are missing the mtime_ns field. Add that field if necessary.
-            if (databaseDocument.mTimeNanos() == -1L) {
-                addMtimeNanoFieldIfNecessary(databaseDocument, fileRecord);
-            }
-
-            // If we have reached this point, we passed verification!
-            return new FileResult(Result.PASS, "File " + fileRecord.getLogIdentifier() + " passed verification");
-        }
+        return processFileRecord(fileRecord, isImmutable, null);
     }
 
-    private void addMtimeNanoFieldIfNecessary(final DatabaseDocument databaseDocument, final FileRecord fileRecord) throws IOException {
-        final Document filter = new Document(MONGO_ID_KEY, databaseDocument.objectId());
-        final Document update = new Document("$set", new Document(MODIFIED_TIME_NANOS_KEY, fileRecord.getMTimeNanos()));
-
-        final UpdateResult updateResult = collection.updateOne(filter, update);
+    /**
+     * Verifies the file against the database, or records it if we have never seen it before.
+     *
+     * @param fileRecord  the file record
+     * @param isImmutable whether the file is in an immutable path
+     * @param lookup      documents prefetched for the file's batch, or null to query the database for this file
+     * @return the result of the verification
+     * @throws IOException if there was a problem reading the file
+     */
+    public FileResult processFileRecord(final FileRecord fileRecord, final boolean isImmutable, @Nullable final DocumentLookup lookup) throws IOException {
+        return processFileRecord(fileRecord, isImmutable, lookup, bulkWriter);
+    }
 
-        System.out.println("Found document missing mtime_ns field. Modified document count: " + updateResult.getModifiedCount());
+    private FileResult processFileRecord(final FileRecord fileRecord, final boolean isImmutable, @Nullable final DocumentLookup lookup,
+                                         final WriteQueue writeQueue) throws IOException {
+        final DatabaseDocument databaseDocument = findDocument(fileRecord, isImmutable, lookup, writeQueue);
+        return verifier.verify(fileRecord, isImmutable, databaseDocument, writeQueue);
     }
 
-    private static String getMTimeString(final long mtimeSeconds, final int mtimeNanos) {
-        return "(seconds=" + mtimeSeconds + ", nanos=" + mtimeNanos + ")";
+    /**
+     * Verifies the file like {@link #processFileRecord(FileRecord, boolean, DocumentLookup)}, but the result only
+     * completes once the file's writes reached the database.
+     */
+    @Override
+    public CompletionStage<FileResult> verify(final FileRecord fileRecord, final boolean isImmutable, @Nullable final DocumentLookup lookup) {
+        final FileWrites writes = new FileWrites(bulkWriter);
+        final FileResult result;
+        try {
+            result = processFileRecord(fileRecord, isImmutable, lookup, writes);
+        } catch (final IOException | RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return writes.whenWritten(fileRecord, result);
     }
 }
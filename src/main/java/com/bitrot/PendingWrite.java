@@ -0,0 +1,12 @@
+package com.bitrot;
+
+import com.mongodb.client.model.UpdateOneModel;
+import org.bson.Document;
+
+/**
+ * A write that was saved locally but not yet sent to MongoDB.
+ *
+ * @param seq   the order in which the write was made
+ * @param write the write
+ */
+record PendingWrite(long seq, UpdateOneModel<Document> write) {}
@@ -0,0 +1,113 @@
+package com.bitrot;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * Turns the {@link Publisher}s returned by the reactive-streams driver into {@link CompletableFuture}s, which is all
+ * we need to chain database calls without pulling in a reactive library.
+ * <p>
+ * The futures are completed on the driver's threads, so anything that may block should continue on another executor.
+ */
+final class PublisherFutures {
+    private PublisherFutures() {}
+
+    /**
+     * Collects every item of the publisher.
+     *
+     * @param publisher the publisher
+     * @param <T>       the type of the items
+     * @return a future of all the items in order
+     */
+    static <T> CompletableFuture<List<T>> toList(final Publisher<T> publisher) {
+        final CompletableFuture<List<T>> future = new CompletableFuture<>();
+        publisher.subscribe(new Subscriber<>() {
+            private final List<T> items = new ArrayList<>();
+
+            @Override
+            public void onSubscribe(final Subscription subscription) {
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(final T item) {
+                items.add(item);
+            }
+
+            @Override
+            public void onError(final Throwable throwable) {
+                future.completeExceptionally(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+                future.complete(items);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Takes the first item of the publisher and cancels the rest.
+     *
+     * @param publisher the publisher
+     * @param <T>       the type of the items
+     * @return a future of the first item, or of null if the publisher had none
+     */
+    static <T> CompletableFuture<T> first(final Publisher<T> publisher) {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        publisher.subscribe(new Subscriber<>() {
+            private Subscription subscription;
+
+            @Override
+            public void onSubscribe(final Subscription subscription) {
+                this.subscription = subscription;
+                subscription.request(1);
+            }
+
+            @Override
+            public void onNext(final T item) {
+                if (future.complete(item)) {
+                    subscription.cancel();
+                }
+            }
+
+            @Override
+            public void onError(final Throwable throwable) {
+                future.completeExceptionally(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+                future.complete(null);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Blocks until the first item of the publisher is available. Only for places that are allowed to block, such as
+     * startup or a background flush.
+     *
+     * @param publisher the publisher
+     * @param <T>       the type of the items
+     * @return the first item, or null if the publisher had none
+     * @throws RuntimeException the driver's own exception if the publisher failed
+     */
+    static <T> T await(final Publisher<T> publisher) {
+        try {
+            return first(publisher).join();
+        } catch (final CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw e;
+        }
+    }
+}
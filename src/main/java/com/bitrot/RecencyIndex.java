@@ -0,0 +1,200 @@
+package com.bitrot;
+
+import com.bitrot.checksum.XxHash64;
+import org.jspecify.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * An in-memory copy of the recency database, so that skip decisions do not need a query per file.
+ * <p>
+ * The index is an open-addressing hash table stored off-heap in a direct buffer. Each slot holds three longs: the
+ * 64-bit xxHash of the absolute path, the modified time in epoch seconds and the last verified time in epoch
+ * milliseconds. A key of zero marks an empty slot. Two paths with the same 64-bit hash would share a slot, which is
+ * unlikely enough to ignore here, and at worst means a file is verified sooner or later than it should be.
+ * <p>
+ * Lookups use an optimistic read of a {@link StampedLock}, so they never block each other.
+ */
+class RecencyIndex {
+    private static final int SLOT_BYTES = 3 * Long.BYTES;
+    private static final int MTIME_OFFSET = Long.BYTES;
+    private static final int VERIFIED_OFFSET = 2 * Long.BYTES;
+    private static final double MAX_LOAD_FACTOR = 0.75;
+    private static final long EMPTY = 0;
+    // Marks the verification of a removed path. Its slot stays in use so that probing for other keys still works.
+    private static final long REMOVED = Long.MIN_VALUE;
+
+    private final StampedLock lock = new StampedLock();
+
+    // Guarded by the lock
+    private ByteBuffer table;
+    private int mask;
+    private int size = 0;
+
+    /**
+     * @param expectedEntries how many entries to size the table for
+     */
+    RecencyIndex(final int expectedEntries) {
+        allocate(capacityFor(expectedEntries));
+    }
+
+    /**
+     * Looks up the verification of a path.
+     *
+     * @param absoluteFilePath the absolute path of the file
+     * @return the verification, or null if the path has never been verified
+     */
+    @Nullable
+    Entry get(final String absoluteFilePath) {
+        final long key = hash(absoluteFilePath);
+
+        long stamp = lock.tryOptimisticRead();
+        Entry entry = find(key);
+        if (!lock.validate(stamp)) {
+            // The table was written to while we were reading, so read again while holding the lock
+            stamp = lock.readLock();
+            try {
+                entry = find(key);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Adds or replaces the verification of a path.
+     *
+     * @param absoluteFilePath    the absolute path of the file
+     * @param modifiedTimeSeconds the modified time of the file when it was verified
+     * @param lastVerifiedMillis  when the file was verified in epoch milliseconds
+     */
+    void put(final String absoluteFilePath, final long modifiedTimeSeconds, final long lastVerifiedMillis) {
+        final long key = hash(absoluteFilePath);
+
+        final long stamp = lock.writeLock();
+        try {
+            if (size + 1 > (mask + 1) * MAX_LOAD_FACTOR) {
+                resize();
+            }
+            if (insert(key, modifiedTimeSeconds, lastVerifiedMillis)) {
+                size++;
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Forgets the verification of a path.
+     *
+     * @param absoluteFilePath the absolute path of the file
+     */
+    void remove(final String absoluteFilePath) {
+        put(absoluteFilePath, 0, REMOVED);
+    }
+
+    int size() {
+        final long stamp = lock.readLock();
+        try {
+            return size;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private Entry find(final long key) {
+        // Read the fields into locals so that a concurrent resize can only make this result stale, never inconsistent
+        final ByteBuffer currentTable = table;
+        final int currentMask = mask;
+        if (currentTable.capacity() != (currentMask + 1) * SLOT_BYTES) {
+            return null;
+        }
+
+        int slot = (int) mix(key) & currentMask;
+        for (int probes = 0; probes <= currentMask; probes++) {
+            final int offset = slot * SLOT_BYTES;
+            final long slotKey = currentTable.getLong(offset);
+            if (slotKey == EMPTY) {
+                return null;
+            }
+            if (slotKey == key) {
+                final long lastVerifiedMillis = currentTable.getLong(offset + VERIFIED_OFFSET);
+                return lastVerifiedMillis == REMOVED ? null : new Entry(currentTable.getLong(offset + MTIME_OFFSET), lastVerifiedMillis);
+            }
+            slot = (slot + 1) & currentMask;
+        }
+        return null;
+    }
+
+    /**
+     * @return true if a new slot was used, false if an existing entry was replaced
+     */
+    private boolean insert(final long key, final long modifiedTimeSeconds, final long lastVerifiedMillis) {
+        int slot = (int) mix(key) & mask;
+        while (true) {
+            final int offset = slot * SLOT_BYTES;
+            final long slotKey = table.getLong(offset);
+            if (slotKey == EMPTY || slotKey == key) {
+                // Write the values before the key so that an optimistic reader never sees a key with stale values
+                table.putLong(offset + MTIME_OFFSET, modifiedTimeSeconds);
+                table.putLong(offset + VERIFIED_OFFSET, lastVerifiedMillis);
+                table.putLong(offset, key);
+                return slotKey == EMPTY;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private void resize() {
+        final ByteBuffer oldTable = table;
+        final int oldSlots = mask + 1;
+        allocate(oldSlots * 2);
+        for (int slot = 0; slot < oldSlots; slot++) {
+            final int offset = slot * SLOT_BYTES;
+            final long key = oldTable.getLong(offset);
+            if (key != EMPTY) {
+                insert(key, oldTable.getLong(offset + MTIME_OFFSET), oldTable.getLong(offset + VERIFIED_OFFSET));
+            }
+        }
+    }
+
+    private void allocate(final int slots) {
+        // Direct buffers are zeroed, so every slot starts out empty
+        table = ByteBuffer.allocateDirect(Math.multiplyExact(slots, SLOT_BYTES));
+        mask = slots - 1;
+    }
+
+    private static int capacityFor(final int entries) {
+        final long needed = Math.max(16, (long) Math.ceil(entries / MAX_LOAD_FACTOR));
+        final long slots = Long.highestOneBit(needed - 1) << 1;
+        if (slots * SLOT_BYTES > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many entries for the recency index: " + entries);
+        }
+        return (int) slots;
+    }
+
+    private static long hash(final String absoluteFilePath) {
+        final XxHash64 xxHash = new XxHash64();
+        final byte[] bytes = absoluteFilePath.getBytes(StandardCharsets.UTF_8);
+        xxHash.update(bytes, 0, bytes.length);
+        final long hash = xxHash.getValue();
+        // Zero marks an empty slot
+        return hash == EMPTY ? 1 : hash;
+    }
+
+    /**
+     * Spreads the high bits of the key into the low bits used to pick a slot.
+     */
+    private static long mix(final long key) {
+        return key ^ (key >>> 32);
+    }
+
+    /**
+     * @param modifiedTimeSeconds the modified time of the file when it was verified
+     * @param lastVerifiedMillis  when the file was verified in epoch milliseconds
+     */
+    record Entry(long modifiedTimeSeconds, long lastVerifiedMillis) {}
+}
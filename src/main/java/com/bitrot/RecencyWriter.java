@@ -0,0 +1,181 @@
+package com.bitrot;
+
+import com.bitrot.metrics.Metrics;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Writes verifications to the recency database on a dedicated thread.
+ * Verifications are grouped into a single transaction per batch (group commit), so the cost of a commit is shared by
+ * every verification in the batch instead of paid for each one.
+ * <p>
+ * The writer normally has a connection of its own, so lookups in {@link SkipUtil} read from the WAL while a batch
+ * commits. A connection can also be shared with {@link SkipUtil}, so every use of it holds the lock passed in with it.
+ */
+class RecencyWriter implements AutoCloseable {
+    private final Connection connection;
+    private final ReentrantLock connectionLock;
+    private final PreparedStatement insertStatement;
+    private final int batchSize;
+    private final BlockingQueue<Verification> queue = new LinkedBlockingQueue<>();
+    private final Thread writerThread;
+
+    // Guarded by this
+    private long enqueued = 0;
+    private long written = 0;
+    private Exception failure = null;
+    private boolean closed = false;
+
+    /**
+     * @param connection     the connection to commit on
+     * @param connectionLock the lock that guards every use of the connection
+     * @param tableName      the table to write to
+     * @param batchSize      the most verifications committed in a single transaction
+     */
+    RecencyWriter(final Connection connection, final ReentrantLock connectionLock, final String tableName, final int batchSize) throws SQLException {
+        this.connection = connection;
+        this.connectionLock = connectionLock;
+        this.batchSize = batchSize;
+        this.insertStatement = connection.prepareStatement(
+                "INSERT OR REPLACE INTO " + tableName + " (absolute_file_path, modified_time_s, last_verified) VALUES (?, ?, ?)");
+
+        Metrics.registerQueue("recency_writes", queue::size);
+
+        writerThread = new Thread(this::run, "recency-writer");
+        // Daemon so that a forgotten close() does not keep the program running
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Queues a verification to be written.
+     *
+     * @param absoluteFilePath the absolute path of the verified file
+     * @param modifiedTimeSeconds the modified time of the file when it was verified
+     * @param lastVerified when the file was verified
+     */
+    void add(final String absoluteFilePath, final long modifiedTimeSeconds, final Timestamp lastVerified) {
+        synchronized (this) {
+            enqueued++;
+        }
+        queue.add(new Verification(absoluteFilePath, modifiedTimeSeconds, lastVerified));
+    }
+
+    /**
+     * Waits until every verification queued before this call has been committed.
+     *
+     * @throws RuntimeException if a batch could not be written
+     */
+    synchronized void flush() {
+        final long target = enqueued;
+        while (written < target && failure == null) {
+            try {
+                wait();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while waiting for the recency database", e);
+            }
+        }
+
+        if (failure != null) {
+            final Exception e = failure;
+            failure = null;
+            throw new RuntimeException("Failed to write to the recency database", e);
+        }
+    }
+
+    /**
+     * Waits for the queued verifications and stops the writer. It can be called from both a shutdown hook and the
+     * normal exit, so only the first call does anything.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        try {
+            flush();
+        } finally {
+            writerThread.interrupt();
+            connectionLock.lock();
+            try {
+                insertStatement.close();
+            } catch (final SQLException e) {
+                System.err.println("Error closing recency insert statement: " + e.getMessage());
+            } finally {
+                connectionLock.unlock();
+            }
+        }
+    }
+
+    private void run() {
+        final List<Verification> batch = new ArrayList<>(batchSize);
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (final InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch, batchSize - 1);
+
+            Exception batchFailure = null;
+            try {
+                writeBatch(batch);
+            } catch (final SQLException | RuntimeException e) {
+                System.err.println("Error writing " + batch.size() + " verifications to the recency database: " + e.getMessage());
+                batchFailure = e;
+            }
+
+            synchronized (this) {
+                // Count failed verifications as written too, otherwise flush() would wait forever. For the same reason
+                // nothing may be thrown out of this loop.
+                written += batch.size();
+                if (batchFailure != null) {
+                    failure = batchFailure;
+                }
+                notifyAll();
+            }
+            batch.clear();
+        }
+    }
+
+    private void writeBatch(final List<Verification> batch) throws SQLException {
+        connectionLock.lock();
+        try {
+            final long startedAt = System.nanoTime();
+            connection.setAutoCommit(false);
+            try {
+                for (final Verification verification : batch) {
+                    insertStatement.setString(1, verification.absoluteFilePath());
+                    insertStatement.setLong(2, verification.modifiedTimeSeconds());
+                    insertStatement.setTimestamp(3, verification.lastVerified());
+                    insertStatement.addBatch();
+                }
+                insertStatement.executeBatch();
+                connection.commit();
+            } catch (final SQLException | RuntimeException e) {
+                insertStatement.clearBatch();
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+                Metrics.SQLITE_WRITE.recordSince(startedAt);
+            }
+        } finally {
+            connectionLock.unlock();
+        }
+    }
+
+    private record Verification(String absoluteFilePath, long modifiedTimeSeconds, Timestamp lastVerified) {}
+}
@@ -0,0 +1,338 @@
+package com.bitrot;
+
+import com.bitrot.checksum.BlockChecksummer;
+import com.bitrot.checksum.BlockManifest;
+import com.bitrot.checksum.BlockMismatchException;
+import com.bitrot.checksum.BuiltInChecksumAlgorithm;
+import com.bitrot.checksum.ChecksumAlgorithm;
+import com.bitrot.checksum.ChecksumAlgorithms;
+import com.bitrot.data.Config;
+import com.bitrot.data.DatabaseDocument;
+import com.bitrot.data.FileRecord;
+import com.bitrot.data.FileResult;
+import com.bitrot.data.Result;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.jspecify.annotations.Nullable;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static com.bitrot.MongoManager.*;
+import static com.bitrot.SkipUtil.fileIsTooNewToSaveToDatabase;
+import static com.bitrot.data.Constants.SECONDS_IN_A_YEAR;
+
+/**
+ * Verifies a file against the documents found for it in the database.
+ * This holds everything that does not depend on how the database is queried, so that the blocking
+ * {@link MongoManager} and the asynchronous {@link AsyncMongoManager} behave exactly the same.
+ * Any writes are queued on the {@link WriteQueue} passed in, which callers use to wait for a file's own writes.
+ */
+final class RecordVerifier {
+    // The algorithm used for new records. Existing records are verified with whatever algorithm they were written with.
+    private final ChecksumAlgorithm checksumAlgorithm;
+    // Whether to add the configured algorithm's checksum to existing documents that do not have it yet
+    private final boolean migrateChecksums;
+    // Documents last accessed more recently than this many seconds ago are not touched again
+    private final long lastAccessedRefreshSeconds;
+    // The block size of new block manifests, or 0 if they are disabled
+    private final long blockManifestSize;
+
+    RecordVerifier(final Config config) {
+        this.checksumAlgorithm = ChecksumAlgorithms.forName(config.getChecksumAlgorithm());
+        this.migrateChecksums = config.isMigrateChecksums();
+        this.lastAccessedRefreshSeconds = (long) (SECONDS_IN_A_YEAR * config.getLastAccessedRefreshFraction());
+        this.blockManifestSize = config.getBlockManifestSizeMiB() * 1024L * 1024L;
+    }
+
+    static Document exactMatchQuery(final FileRecord fileRecord) throws IOException {
+        return new Document(FILE_ID_KEY, fileRecord.getFileId())
+                .append(MODIFIED_TIME_SECONDS_KEY, fileRecord.getMTimeSeconds())
+                .append(MODIFIED_TIME_NANOS_KEY, fileRecord.getMTimeNanos());
+    }
+
+    static Document anyMatchQuery(final FileRecord fileRecord) {
+        return new Document(FILE_ID_KEY, fileRecord.getFileId());
+    }
+
+    static Set<String> fileIds(final Collection<FileRecord> fileRecords) {
+        final Set<String> fileIds = new HashSet<>();
+        for (final FileRecord fileRecord : fileRecords) {
+            fileIds.add(fileRecord.getFileId());
+        }
+        return fileIds;
+    }
+
+    static Document prefetchQuery(final Set<String> fileIds) {
+        return new Document(FILE_ID_KEY, new Document("$in", fileIds));
+    }
+
+    /**
+     * Picks the document to verify the file against.
+     *
+     * @param fileRecord  the file record
+     * @param isImmutable whether the file is in an immutable path
+     * @param exactMatch  the document with the same file ID and modified time, if there is one
+     * @param anyMatch    any document with the same file ID, only needed if there is no exact match
+     * @param writeQueue  where to queue writes
+     * @return the document to verify against, or null if the file should be saved as a new record
+     */
+    @Nullable
+    DatabaseDocument chooseDocument(final FileRecord fileRecord, final boolean isImmutable,
+                                    @Nullable final DatabaseDocument exactMatch, @Nullable final DatabaseDocument anyMatch,
+                                    final WriteQueue writeQueue) {
+        if (exactMatch != null) {
+            // If the document exists, update its last accessed time so that it is not cleaned up.
+            updateLastAccessed(exactMatch, writeQueue);
+            return exactMatch;
+        }
+
+        if (anyMatch == null) {
+            // We have never seen this file before
+            return null;
+        } else {
+            // We have seen this file before, but the modified timestamp is different. This means we need
+            // to check the immutability of this file.
+            if (isImmutable && !fileRecord.getFilePath().endsWith(".par2")) {
+                // We may need to modify par2 files if we add new files to a folder at a later time, so exclude them
+                // from the immutability check even if they are in an immutable folder.
+                System.out.println("Immutable file has been modified: " + fileRecord.getLogIdentifier());
+                return anyMatch;
+            } else {
+                // The file is mutable, so we should create a new record.
+                System.out.println("File has been seen before but has been modified: " + fileRecord.getLogIdentifier());
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Updates the last accessed time for the given document in the database so that it does not expire.
+     * To save writes, documents that were accessed recently enough are left alone, and the update is queued to be
+     * sent with other writes.
+     *
+     * @param databaseDocument the given document
+     * @param writeQueue       where to queue the update
+     */
+    void updateLastAccessed(final DatabaseDocument databaseDocument, final WriteQueue writeQueue) {
+        // Update last accessed time to the current moment
+        final Instant currentDatetime = Instant.now();
+        final Instant lastAccessed = databaseDocument.lastAccessed();
+        if (lastAccessed != null && lastAccessed.isAfter(currentDatetime.minusSeconds(lastAccessedRefreshSeconds))) {
+            return;
+        }
+
+        final Document update = new Document("$set", new Document(LAST_ACCESSED_KEY, currentDatetime));
+        // We do NOT want to upsert because the document should already exist
+        writeQueue.add(new UpdateOneModel<>(
+                new Document(MONGO_ID_KEY, databaseDocument.objectId()),
+                update,
+                new UpdateOptions().upsert(false)
+        ));
+    }
+
+    /**
+     * Verifies the file against the document, or records it if we have never seen it before.
+     *
+     * @param fileRecord       the file record
+     * @param isImmutable      whether the file is in an immutable path
+     * @param databaseDocument the document from {@link #chooseDocument}
+     * @param writeQueue       where to queue writes
+     * @return the result of the verification
+     * @throws IOException if there was a problem reading the file
+     */
+    FileResult verify(final FileRecord fileRecord, final boolean isImmutable, @Nullable final DatabaseDocument databaseDocument,
+                      final WriteQueue writeQueue) throws IOException {
+        if (databaseDocument == null) {
+            // We need to be confident that a new immutable file is completely done being modified.
+            // Newly created files are riskier to make this assumption since they may still be being written to.
+            // For example, creating par2 files may take quite a long time, and we don't want to save its
+            // initial checksum into the database only for it to change as the creation process completes.
+            if (isImmutable && fileIsTooNewToSaveToDatabase(fileRecord)) {
+                return new FileResult(
+                        Result.SKIP,
+                        "Immutable file " + fileRecord.getLogIdentifier() + " skipped because it was created recently"
+                );
+            }
+
+            // Time to create the new record.
+            return saveNewRecord(fileRecord, writeQueue);
+        } else {
+            // We have seen this record before so now check for any bit rot
+            if (!fileRecord.getFileId().equals(databaseDocument.fileId())) {
+                throw new IllegalStateException("Fatal error! File ID mismatch for record " + fileRecord.getLogIdentifier() +
+                        ": Local=" + fileRecord.getFileId() +
+                        " but Database=" + databaseDocument.fileId());
+            }
+
+            if (fileRecord.getMTimeSeconds() != databaseDocument.mTimeSeconds() || fileRecord.getMTimeNanos() != databaseDocument.mTimeNanos()) {
+                return new FileResult(Result.FAIL, "File modified time mismatch for record " + fileRecord.getLogIdentifier() +
+                        ": Local=" + getMTimeString(fileRecord.getMTimeSeconds(), fileRecord.getMTimeNanos()) +
+                        " but Database=" + getMTimeString(databaseDocument.mTimeSeconds(), databaseDocument.mTimeNanos()));
+            }
+
+            if (fileRecord.getSize() != databaseDocument.size()) {
+                return new FileResult(Result.FAIL, "File size mismatch for record " + fileRecord.getLogIdentifier() +
+                        ": Local=" + fileRecord.getSize() +
+                        " but Database=" + databaseDocument.size());
+            }
+
+            final FileResult checksumResult = verifyChecksum(fileRecord, databaseDocument, writeQueue);
+            if (checksumResult != null) {
+                return checksumResult;
+            }
+
+            // The old Python-era documents are missing the mtime_ns field. Add that field if necessary.
+            if (databaseDocument.mTimeNanos() == -1L) {
+                addMtimeNanoFieldIfNecessary(databaseDocument, fileRecord, writeQueue);
+            }
+
+            // If we have reached this point, we passed verification!
+            return new FileResult(Result.PASS, "File " + fileRecord.getLogIdentifier() + " passed verification");
+        }
+    }
+
+    private FileResult saveNewRecord(final FileRecord fileRecord, final WriteQueue writeQueue) throws IOException {
+        // This file record is not in the database. Time to create a new document.
+        // We still do an update operation because another computer may be creating this document at the same time
+        // as us.
+        final Document filter = exactMatchQuery(fileRecord);
+
+        BlockManifest manifest = null;
+        if (wantsBlockManifest(fileRecord)) {
+            // Build the manifest in the same read as the checksum
+            final BlockChecksummer blocks = BlockChecksummer.recording(blockManifestSize);
+            fileRecord.computeChecksums(List.of(checksumAlgorithm), blocks);
+            manifest = blocks.toManifest();
+        }
+
+        final Document data = new Document()
+                .append(FILE_ID_KEY, fileRecord.getFileId())
+                .append(MODIFIED_TIME_SECONDS_KEY, fileRecord.getMTimeSeconds())
+                .append(MODIFIED_TIME_NANOS_KEY, fileRecord.getMTimeNanos())
+                .append(SIZE_KEY, fileRecord.getSize())
+                .append(CHECKSUM_KEY, fileRecord.getChecksum(checksumAlgorithm))
+                .append(LAST_ACCESSED_KEY, Instant.now());
+        // Documents without an algorithm are CRC32, so only record the algorithm when it is something else.
+        // This keeps new CRC32 documents identical to the ones written before algorithms were configurable.
+        if (checksumAlgorithm != BuiltInChecksumAlgorithm.CRC32) {
+            data.append(CHECKSUM_ALGORITHM_KEY, checksumAlgorithm.getName());
+        }
+        if (manifest != null) {
+            data.append(BLOCK_SIZE_KEY, manifest.getBlockSize())
+                    .append(BLOCK_CHECKSUMS_KEY, new Binary(manifest.toBytes()));
+        }
+
+        final Document update = new Document("$set", data);
+
+        writeQueue.add(new UpdateOneModel<>(filter, update, new UpdateOptions().upsert(true)));
+
+        return new FileResult(Result.PASS, "New file record saved to database for file " + fileRecord.getFilePath() + ": " + data);
+    }
+
+    /**
+     * Verifies the checksum of the file against the document.
+     * If the document already has a checksum for the configured algorithm we use that one. Otherwise, we use the
+     * algorithm the document was written with, and when migrating we compute the configured algorithm's checksum in
+     * the same read and add it to the document once the file passes.
+     *
+     * @return a FAIL result if the checksum does not match, otherwise null
+     */
+    @Nullable
+    private FileResult verifyChecksum(final FileRecord fileRecord, final DatabaseDocument databaseDocument, final WriteQueue writeQueue) throws IOException {
+        final Long configuredChecksum = databaseDocument.checksum(checksumAlgorithm);
+        final ChecksumAlgorithm verifyAlgorithm = configuredChecksum != null ? checksumAlgorithm : databaseDocument.checksumAlgorithm();
+        final long expectedChecksum = configuredChecksum != null ? configuredChecksum : databaseDocument.checksum();
+        final boolean migrate = migrateChecksums && configuredChecksum == null;
+        // Read the file once for both the old and the new algorithm
+        final List<ChecksumAlgorithm> algorithms = migrate ? List.of(verifyAlgorithm, checksumAlgorithm) : List.of(verifyAlgorithm);
+
+        final BlockManifest manifest = databaseDocument.blockManifest();
+        final BlockChecksummer blocks;
+        if (manifest != null && manifest.covers(fileRecord.getSize())) {
+            blocks = BlockChecksummer.verifying(manifest);
+        } else if (manifest == null && wantsBlockManifest(fileRecord)) {
+            // Large files recorded before manifests were enabled get one once they pass
+            blocks = BlockChecksummer.recording(blockManifestSize);
+        } else {
+            blocks = null;
+        }
+
+        if (blocks != null) {
+            try {
+                fileRecord.computeChecksums(algorithms, blocks);
+            } catch (final BlockMismatchException e) {
+                return new FileResult(Result.FAIL, "File block mismatch for record " + fileRecord.getLogIdentifier() +
+                        ": bytes " + e.getStartOffset() + " to " + e.getEndOffset() +
+                        " (block " + e.getBlock() + " of " + manifest.getBlockCount() + ") are corrupted." +
+                        " Stopped reading at the first corrupted block.");
+            }
+        } else if (migrate) {
+            fileRecord.computeChecksums(algorithms);
+        }
+
+        final long checksum = fileRecord.getChecksum(verifyAlgorithm);
+        if (checksum != expectedChecksum) {
+            return new FileResult(Result.FAIL, "File " + verifyAlgorithm.getName() + " mismatch for record " + fileRecord.getLogIdentifier() +
+                    ": Local=" + checksum +
+                    " but Database=" + expectedChecksum);
+        }
+
+        if (migrate) {
+            // Only ever store a new checksum for contents that passed verification
+            addChecksum(databaseDocument, checksumAlgorithm, fileRecord.getChecksum(checksumAlgorithm), writeQueue);
+        }
+        if (manifest == null && blocks != null) {
+            addBlockManifest(databaseDocument, blocks.toManifest(), writeQueue);
+        }
+        return null;
+    }
+
+    private boolean wantsBlockManifest(final FileRecord fileRecord) throws IOException {
+        // A file that fits in a single block gains nothing from a manifest
+        return blockManifestSize > 0 && fileRecord.getSize() > blockManifestSize;
+    }
+
+    private void addBlockManifest(final DatabaseDocument databaseDocument, final BlockManifest manifest, final WriteQueue writeQueue) {
+        setFields(databaseDocument, new Document(BLOCK_SIZE_KEY, manifest.getBlockSize())
+                .append(BLOCK_CHECKSUMS_KEY, new Binary(manifest.toBytes())), writeQueue);
+    }
+
+    private void addChecksum(final DatabaseDocument databaseDocument, final ChecksumAlgorithm algorithm, final long checksum,
+                             final WriteQueue writeQueue) {
+        setFields(databaseDocument, new Document(CHECKSUMS_KEY + "." + algorithm.getName(), checksum), writeQueue);
+    }
+
+    private void addMtimeNanoFieldIfNecessary(final DatabaseDocument databaseDocument, final FileRecord fileRecord,
+                                              final WriteQueue writeQueue) throws IOException {
+        setFields(databaseDocument, new Document(MODIFIED_TIME_NANOS_KEY, fileRecord.getMTimeNanos()), writeQueue);
+
+        System.out.println("Found document missing mtime_ns field. Queued update for " + fileRecord.getLogIdentifier());
+    }
+
+    /**
+     * Queues an update that sets the given fields of an existing document.
+     * The last accessed time is set too: a local replica's delta sync finds changed documents by their last accessed
+     * time, so without it the change would only reach other computers' replicas on their next full sync.
+     *
+     * @param databaseDocument the document to update
+     * @param fields           the fields to set
+     * @param writeQueue       where to queue the update
+     */
+    private static void setFields(final DatabaseDocument databaseDocument, final Document fields, final WriteQueue writeQueue) {
+        final Document filter = new Document(MONGO_ID_KEY, databaseDocument.objectId());
+        final Document update = new Document("$set", fields.append(LAST_ACCESSED_KEY, Instant.now()));
+
+        writeQueue.add(new UpdateOneModel<>(filter, update));
+    }
+
+    private static String getMTimeString(final long mtimeSeconds, final int mtimeNanos) {
+        return "(seconds=" + mtimeSeconds + ", nanos=" + mtimeNanos + ")";
+    }
+}
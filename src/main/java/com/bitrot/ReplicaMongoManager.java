@@ -0,0 +1,280 @@
+package com.bitrot;
+
+import com.bitrot.data.Config;
+import com.bitrot.data.DatabaseDocument;
+import com.bitrot.data.DocumentLookup;
+import com.bitrot.data.FileRecord;
+import com.bitrot.data.FileResult;
+import com.bitrot.metrics.Metrics;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.WriteModel;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.jspecify.annotations.Nullable;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.bitrot.MongoManager.*;
+import static com.bitrot.data.Constants.*;
+
+/**
+ * Verifies file records against a local replica of the MongoDB collection, so that lookups never leave the machine.
+ * <p>
+ * At startup the replica catches up with MongoDB: a delta sync fetches every document that was created or accessed
+ * since the last sync, and every so often a full sync rebuilds the replica to drop documents that were deleted. Every
+ * write also updates last_accessed, so a delta sync sees every change made by another computer.
+ * <p>
+ * Writes are applied to the replica straight away and sent to MongoDB in bulk on {@link #flush()}. If MongoDB cannot
+ * be reached, we verify against the replica as of the last sync and the writes are sent on a later run.
+ */
+public class ReplicaMongoManager implements VerificationStore {
+    private static final String LAST_OBJECT_ID_STATE = "last_object_id";
+    private static final String LAST_ACCESSED_STATE = "last_accessed";
+    private static final String LAST_FULL_SYNC_STATE = "last_full_sync";
+
+    private final MongoCollection<Document> collection;
+    private final LocalReplica replica;
+    private final RecordVerifier verifier;
+    private final WriteQueue writeQueue;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+
+    @SuppressWarnings("resource")
+    public ReplicaMongoManager(final Config config) {
+        this(MongoClients.create(config.getMongoConnectionString()), openReplicaFile(), config);
+    }
+
+    ReplicaMongoManager(final MongoClient client, final Connection connection, final Config config) {
+        collection = client.getDatabase(MONGO_DB_NAME).getCollection(MONGO_COLLECTION_NAME);
+        replica = new LocalReplica(connection);
+        verifier = new RecordVerifier(config);
+        // A write is safe once it is in the replica, which sends it to MongoDB on this or a later run
+        writeQueue = write -> {
+            replica.apply(write);
+            return CompletableFuture.completedFuture(null);
+        };
+
+        try {
+            ensureIndexes();
+            // Send writes left over from a run that could not reach MongoDB before syncing, so the sync sees them
+            pushPendingWrites();
+            sync();
+        } catch (final MongoException e) {
+            System.err.println("Could not sync the local replica with MongoDB, verifying against the last sync: " + e.getMessage());
+        }
+
+        final int expired = replica.expire(Instant.now().minusSeconds(SECONDS_IN_A_YEAR));
+        System.out.println(replica.size() + " documents in the local replica (" + expired + " expired)");
+    }
+
+    private static Connection openReplicaFile() {
+        try {
+            return DriverManager.getConnection("jdbc:sqlite:" + REPLICA_FILE_NAME);
+        } catch (final SQLException e) {
+            throw new RuntimeException("Failed to open local replica", e);
+        }
+    }
+
+    private void ensureIndexes() {
+        // The same indexes as MongoManager, see there for why
+        collection.createIndex(Indexes.ascending(FILE_ID_KEY, MODIFIED_TIME_SECONDS_KEY, MODIFIED_TIME_NANOS_KEY),
+                new IndexOptions().unique(true));
+        collection.createIndex(Indexes.ascending(LAST_ACCESSED_KEY),
+                new IndexOptions().expireAfter(SECONDS_IN_A_YEAR, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Brings the replica up to date with MongoDB.
+     * Documents are found by two watermarks: newer ObjectIds catch documents created since the last sync, and a
+     * newer last_accessed catches documents that were changed. The last_accessed watermark overlaps a little with
+     * the previous sync as the clocks of the computers writing to the database may disagree.
+     */
+    private void sync() {
+        final Instant syncStart = Instant.now();
+        final String lastObjectId = replica.getState(LAST_OBJECT_ID_STATE);
+        final String lastAccessed = replica.getState(LAST_ACCESSED_STATE);
+        final String lastFullSync = replica.getState(LAST_FULL_SYNC_STATE);
+        final boolean fullSync = lastObjectId == null || lastAccessed == null || lastFullSync == null
+                || Instant.ofEpochMilli(Long.parseLong(lastFullSync)).isBefore(syncStart.minusSeconds(REPLICA_FULL_SYNC_INTERVAL_SECONDS));
+
+        final Document query = fullSync
+                ? new Document()
+                : new Document("$or", List.of(
+                        new Document(MONGO_ID_KEY, new Document("$gt", new ObjectId(lastObjectId))),
+                        new Document(LAST_ACCESSED_KEY, new Document("$gte",
+                                Date.from(Instant.ofEpochMilli(Long.parseLong(lastAccessed)).minusSeconds(REPLICA_SYNC_OVERLAP_SECONDS))))));
+
+        ObjectId maxObjectId = lastObjectId == null ? null : new ObjectId(lastObjectId);
+        long maxLastAccessed = lastAccessed == null ? 0L : Long.parseLong(lastAccessed);
+        long synced = 0;
+        final List<Document> batch = new ArrayList<>(BULK_WRITE_BATCH_SIZE);
+        for (final Document document : collection.find(query).batchSize(BULK_WRITE_BATCH_SIZE)) {
+            final DatabaseDocument databaseDocument = new DatabaseDocument(document);
+            if (maxObjectId == null || databaseDocument.objectId().compareTo(maxObjectId) > 0) {
+                maxObjectId = databaseDocument.objectId();
+            }
+            final Instant documentLastAccessed = databaseDocument.lastAccessed();
+            if (documentLastAccessed != null) {
+                maxLastAccessed = Math.max(maxLastAccessed, documentLastAccessed.toEpochMilli());
+            }
+
+            batch.add(document);
+            if (batch.size() >= BULK_WRITE_BATCH_SIZE) {
+                replica.store(batch);
+                synced += batch.size();
+                batch.clear();
+            }
+        }
+        replica.store(batch);
+        synced += batch.size();
+
+        if (fullSync) {
+            // Only now that every document has been stored again is it safe to drop the ones that were not
+            final int removed = replica.removeNotSyncedSince(syncStart);
+            replica.setState(LAST_FULL_SYNC_STATE, Long.toString(syncStart.toEpochMilli()));
+            System.out.println("Full sync of the local replica fetched " + synced + " documents and removed " + removed);
+        } else {
+            System.out.println("Delta sync of the local replica fetched " + synced + " documents");
+        }
+        if (maxObjectId != null) {
+            replica.setState(LAST_OBJECT_ID_STATE, maxObjectId.toHexString());
+        }
+        replica.setState(LAST_ACCESSED_STATE, Long.toString(maxLastAccessed));
+    }
+
+    /**
+     * Sends the writes made to the replica to MongoDB, oldest first.
+     * A write that MongoDB rejects is logged and dropped, as retrying it would fail the same way. Writes that do not
+     * match a document, for example because it expired from MongoDB since our last sync, are only logged. Writes
+     * that MongoDB did not acknowledge stay in the replica and are sent again by a later flush.
+     */
+    private void pushPendingWrites() {
+        while (true) {
+            final List<PendingWrite> pending = replica.pendingWrites(BULK_WRITE_BATCH_SIZE);
+            if (pending.isEmpty()) {
+                return;
+            }
+
+            final List<WriteModel<Document>> writes = new ArrayList<>(pending.size());
+            for (final PendingWrite pendingWrite : pending) {
+                writes.add(pendingWrite.write());
+            }
+
+            try {
+                // Ordered, as a later write may depend on a document upserted by an earlier one
+                final long startedAt = System.nanoTime();
+                final BulkWriteResult result;
+                try {
+                    result = collection.bulkWrite(writes, new BulkWriteOptions().ordered(true));
+                } finally {
+                    Metrics.MONGO_WRITE.recordSince(startedAt);
+                }
+                final int applied = result.getMatchedCount() + result.getUpserts().size();
+                if (applied != writes.size()) {
+                    System.err.println((writes.size() - applied) + " of " + writes.size() + " writes from the local replica did not match a document");
+                }
+                replica.removePendingWrites(pending.getLast().seq());
+            } catch (final MongoBulkWriteException e) {
+                if (e.getWriteErrors().isEmpty()) {
+                    // Only the write concern failed, for example on a wtimeout, so we cannot tell which writes were
+                    // applied. Keep them all for a later flush, sending them again is harmless.
+                    System.err.println("Writes from the local replica were not acknowledged, they will be sent again later: " + e.getWriteConcernError());
+                    return;
+                }
+                // Everything before the failed write was applied, and nothing after it
+                final BulkWriteError error = e.getWriteErrors().getFirst();
+                System.err.println("Write from the local replica was rejected: " + writes.get(error.getIndex()) + ": " + error.getMessage());
+                replica.removePendingWrites(pending.get(error.getIndex()).seq());
+            }
+        }
+    }
+
+    /**
+     * Sends every write made to the replica to MongoDB.
+     * If MongoDB cannot be reached, the writes stay in the replica and are sent on a later run.
+     */
+    @Override
+    public void flush() {
+        try {
+            pushPendingWrites();
+        } catch (final MongoException e) {
+            System.err.println("Could not send writes from the local replica to MongoDB, they will be sent on the next run: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            flush();
+        } finally {
+            replica.close();
+        }
+    }
+
+    private DocumentLookup lookup(final Collection<FileRecord> fileRecords) {
+        final Set<String> fileIds = RecordVerifier.fileIds(fileRecords);
+        return new DocumentLookup(fileIds, replica.find(fileIds));
+    }
+
+    @Override
+    public CompletionStage<DocumentLookup> prefetch(final Collection<FileRecord> fileRecords) {
+        try {
+            return CompletableFuture.completedFuture(lookup(fileRecords));
+        } catch (final RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Verifies the file against the replica, or records it if we have never seen it before.
+     *
+     * @param fileRecord  the file record
+     * @param isImmutable whether the file is in an immutable path
+     * @param lookup      documents prefetched for the file's batch, or null to look up this file on its own
+     * @return the result of the verification
+     * @throws IOException if there was a problem reading the file
+     */
+    public FileResult processFileRecord(final FileRecord fileRecord, final boolean isImmutable, @Nullable final DocumentLookup lookup) throws IOException {
+        final DocumentLookup documents = lookup != null && lookup.contains(fileRecord.getFileId())
+                ? lookup
+                : lookup(List.of(fileRecord));
+
+        final DatabaseDocument exactMatch = documents.findExactMatch(fileRecord);
+        final DatabaseDocument anyMatch = exactMatch == null ? documents.findAny(fileRecord.getFileId()) : null;
+        final DatabaseDocument databaseDocument = verifier.chooseDocument(fileRecord, isImmutable, exactMatch, anyMatch, writeQueue);
+        return verifier.verify(fileRecord, isImmutable, databaseDocument, writeQueue);
+    }
+
+    @Override
+    public CompletionStage<FileResult> verify(final FileRecord fileRecord, final boolean isImmutable, @Nullable final DocumentLookup lookup) {
+        try {
+            return CompletableFuture.completedFuture(processFileRecord(fileRecord, isImmutable, lookup));
+        } catch (final IOException | RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+}
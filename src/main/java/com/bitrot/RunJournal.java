@@ -0,0 +1,309 @@
+package com.bitrot;
+
+import com.bitrot.checksum.ChecksumAlgorithm;
+import com.bitrot.metrics.Metrics;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+import org.bson.Document;
+import org.jspecify.annotations.Nullable;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
+
+import static com.bitrot.data.Constants.RUN_JOURNAL_FILE_NAME;
+
+/**
+ * A write-ahead journal that lets a run that was killed pick up where it stopped.
+ * <p>
+ * It keeps two things. Database writes are saved here when they are queued and removed once MongoDB has them, so
+ * they survive a crash in between. Files that are already in the recent verification database were recorded after
+ * their write was saved here, so together nothing is lost. For very large files, the partial checksums are saved
+ * every so often while the file is read, so a restarted run only reads the rest of the file.
+ * <p>
+ * Every method is guarded by a lock. Writes are journaled from virtual threads, which a monitor would pin to their
+ * carriers while they wait for another thread's disk write.
+ */
+public class RunJournal implements AutoCloseable {
+    private final Connection connection;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    public RunJournal() {
+        this(open());
+    }
+
+    public RunJournal(final Connection connection) {
+        this.connection = connection;
+        try (final Statement stmt = connection.createStatement()) {
+            stmt.execute("PRAGMA journal_mode=WAL");
+            stmt.execute("PRAGMA synchronous=NORMAL");
+            stmt.execute("CREATE TABLE IF NOT EXISTS pending_writes (" +
+                    "seq INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                    "filter BLOB NOT NULL, " +
+                    "update_document BLOB NOT NULL, " +
+                    "upsert INTEGER NOT NULL)");
+            stmt.execute("CREATE TABLE IF NOT EXISTS checkpoints (" +
+                    "absolute_file_path TEXT PRIMARY KEY, " +
+                    "modified_time_ns INTEGER NOT NULL, " +
+                    "size INTEGER NOT NULL, " +
+                    "algorithms TEXT NOT NULL, " +
+                    "file_offset INTEGER NOT NULL, " +
+                    "checksums TEXT NOT NULL)");
+        } catch (final SQLException e) {
+            throw new RuntimeException("Failed to initialize run journal", e);
+        }
+    }
+
+    private static Connection open() {
+        try {
+            return DriverManager.getConnection("jdbc:sqlite:" + RUN_JOURNAL_FILE_NAME);
+        } catch (final SQLException e) {
+            throw new RuntimeException("Failed to open run journal", e);
+        }
+    }
+
+    /**
+     * Saves a database write that has been queued but not sent yet.
+     *
+     * @param write the write
+     * @return the sequence number of the write, which increases with every write
+     */
+    long appendWrite(final WriteModel<Document> write) {
+        if (!(write instanceof UpdateOneModel<Document> updateOne)
+                || !(updateOne.getFilter() instanceof Document filter)
+                || !(updateOne.getUpdate() instanceof Document update)) {
+            throw new IllegalArgumentException("Only single document updates can be journaled: " + write);
+        }
+
+        lock.lock();
+        try {
+            final long startedAt = System.nanoTime();
+            try (final PreparedStatement stmt = connection.prepareStatement(
+                    "INSERT INTO pending_writes (filter, update_document, upsert) VALUES (?, ?, ?)",
+                    Statement.RETURN_GENERATED_KEYS)) {
+                stmt.setBytes(1, BsonBytes.encode(filter));
+                stmt.setBytes(2, BsonBytes.encode(update));
+                stmt.setInt(3, updateOne.getOptions().isUpsert() ? 1 : 0);
+                stmt.executeUpdate();
+                try (final ResultSet keys = stmt.getGeneratedKeys()) {
+                    keys.next();
+                    return keys.getLong(1);
+                }
+            } catch (final SQLException e) {
+                throw new RuntimeException("Failed to save write to run journal", e);
+            } finally {
+                Metrics.SQLITE_WRITE.recordSince(startedAt);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the oldest writes that were saved but never sent.
+     *
+     * @param limit the maximum number of writes
+     * @return the writes in the order they were made
+     */
+    List<PendingWrite> pendingWrites(final int limit) {
+        final List<PendingWrite> writes = new ArrayList<>();
+        lock.lock();
+        try {
+            try (final PreparedStatement stmt = connection.prepareStatement(
+                    "SELECT seq, filter, update_document, upsert FROM pending_writes ORDER BY seq LIMIT ?")) {
+                stmt.setInt(1, limit);
+                try (final ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        writes.add(new PendingWrite(rs.getLong(1), new UpdateOneModel<>(
+                                BsonBytes.decode(rs.getBytes(2)), BsonBytes.decode(rs.getBytes(3)), new UpdateOptions().upsert(rs.getInt(4) == 1))));
+                    }
+                }
+            } catch (final SQLException e) {
+                throw new RuntimeException("Failed to read pending writes from run journal", e);
+            }
+        } finally {
+            lock.unlock();
+        }
+        return writes;
+    }
+
+    /**
+     * Removes the writes with sequence numbers in the given range, once they have reached the database.
+     *
+     * @param firstSeq the first sequence number to remove
+     * @param lastSeq  the last sequence number to remove
+     */
+    void removeWrites(final long firstSeq, final long lastSeq) {
+        lock.lock();
+        try {
+            try (final PreparedStatement stmt = connection.prepareStatement("DELETE FROM pending_writes WHERE seq BETWEEN ? AND ?")) {
+                stmt.setLong(1, firstSeq);
+                stmt.setLong(2, lastSeq);
+                stmt.executeUpdate();
+            } catch (final SQLException e) {
+                throw new RuntimeException("Failed to remove writes from run journal", e);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the writes with the given sequence numbers in a single transaction, once they have reached the database.
+     *
+     * @param seqs the sequence numbers to remove
+     */
+    void removeWrites(final List<Long> seqs) {
+        lock.lock();
+        try {
+            try (final PreparedStatement stmt = connection.prepareStatement("DELETE FROM pending_writes WHERE seq = ?")) {
+                connection.setAutoCommit(false);
+                try {
+                    for (final long seq : seqs) {
+                        stmt.setLong(1, seq);
+                        stmt.addBatch();
+                    }
+                    stmt.executeBatch();
+                    connection.commit();
+                } catch (final SQLException e) {
+                    connection.rollback();
+                    throw e;
+                } finally {
+                    connection.setAutoCommit(true);
+                }
+            } catch (final SQLException e) {
+                throw new RuntimeException("Failed to remove writes from run journal", e);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the checkpoint saved for the file, if it was saved for the same version of the file and the same
+     * algorithms.
+     *
+     * @param absoluteFilePath the file
+     * @param modifiedTime     the modified time of the file
+     * @param size             the size of the file
+     * @param algorithms       the algorithms being computed
+     * @return the checkpoint or null
+     */
+    @Nullable
+    Checkpoint findCheckpoint(final Path absoluteFilePath, final Instant modifiedTime, final long size, final List<ChecksumAlgorithm> algorithms) {
+        lock.lock();
+        try {
+            try (final PreparedStatement stmt = connection.prepareStatement(
+                    "SELECT file_offset, checksums FROM checkpoints " +
+                            "WHERE absolute_file_path = ? AND modified_time_ns = ? AND size = ? AND algorithms = ?")) {
+                stmt.setString(1, absoluteFilePath.toString());
+                stmt.setLong(2, epochNanos(modifiedTime));
+                stmt.setLong(3, size);
+                stmt.setString(4, algorithmNames(algorithms));
+                try (final ResultSet rs = stmt.executeQuery()) {
+                    if (!rs.next()) {
+                        return null;
+                    }
+                    final long[] checksums = Arrays.stream(rs.getString(2).split(",")).mapToLong(Long::parseLong).toArray();
+                    return new Checkpoint(rs.getLong(1), checksums);
+                }
+            } catch (final SQLException e) {
+                throw new RuntimeException("Failed to read checkpoint from run journal", e);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Saves how far the file has been read and the checksums of everything up to there, replacing any older
+     * checkpoint for the file.
+     *
+     * @param absoluteFilePath the file
+     * @param modifiedTime     the modified time of the file
+     * @param size             the size of the file
+     * @param algorithms       the algorithms being computed
+     * @param checkpoint       the offset and the checksums of the bytes before it, in the order of the algorithms
+     */
+    void saveCheckpoint(final Path absoluteFilePath, final Instant modifiedTime, final long size,
+                        final List<ChecksumAlgorithm> algorithms, final Checkpoint checkpoint) {
+        lock.lock();
+        try {
+            try (final PreparedStatement stmt = connection.prepareStatement(
+                    "INSERT OR REPLACE INTO checkpoints (absolute_file_path, modified_time_ns, size, algorithms, file_offset, checksums) " +
+                            "VALUES (?, ?, ?, ?, ?, ?)")) {
+                stmt.setString(1, absoluteFilePath.toString());
+                stmt.setLong(2, epochNanos(modifiedTime));
+                stmt.setLong(3, size);
+                stmt.setString(4, algorithmNames(algorithms));
+                stmt.setLong(5, checkpoint.offset());
+                stmt.setString(6, Arrays.stream(checkpoint.checksums()).mapToObj(Long::toString).collect(Collectors.joining(",")));
+                stmt.executeUpdate();
+            } catch (final SQLException e) {
+                throw new RuntimeException("Failed to save checkpoint to run journal", e);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the checkpoint of a file once it has been read to the end.
+     *
+     * @param absoluteFilePath the file
+     */
+    void removeCheckpoint(final Path absoluteFilePath) {
+        lock.lock();
+        try {
+            try (final PreparedStatement stmt = connection.prepareStatement("DELETE FROM checkpoints WHERE absolute_file_path = ?")) {
+                stmt.setString(1, absoluteFilePath.toString());
+                stmt.executeUpdate();
+            } catch (final SQLException e) {
+                throw new RuntimeException("Failed to remove checkpoint from run journal", e);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            try {
+                connection.close();
+            } catch (final SQLException e) {
+                throw new RuntimeException("Failed to close run journal", e);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static long epochNanos(final Instant instant) {
+        return instant.getEpochSecond() * 1_000_000_000L + instant.getNano();
+    }
+
+    private static String algorithmNames(final List<ChecksumAlgorithm> algorithms) {
+        return algorithms.stream().map(ChecksumAlgorithm::getName).collect(Collectors.joining(","));
+    }
+
+    /**
+     * How far a file was read.
+     *
+     * @param offset    the number of bytes read from the start of the file
+     * @param checksums the checksum of those bytes for each algorithm
+     */
+    record Checkpoint(long offset, long[] checksums) {}
+}
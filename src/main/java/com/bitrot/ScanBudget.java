@@ -0,0 +1,101 @@
+package com.bitrot;
+
+import com.bitrot.data.Config;
+import org.jspecify.annotations.Nullable;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * How much a single run may verify: a number of bytes to read, a wall-clock deadline, or both.
+ * <p>
+ * The clock starts when the budget is created, so the walk that orders the files counts against it too. A file may
+ * start while the budget is not spent yet, so a run can go over the byte budget by at most the last file it started.
+ */
+public final class ScanBudget {
+    private static final long BYTES_IN_A_GIB = 1024L * 1024 * 1024;
+    private static final Duration MAX_DURATION = Duration.ofNanos(Long.MAX_VALUE / 2);
+
+    private final long maxBytes;
+    private final boolean hasDeadline;
+    private final long deadlineNanos;
+    private final AtomicLong bytesCharged = new AtomicLong();
+
+    /**
+     * @param maxBytes    the number of bytes the run may read, or {@link Long#MAX_VALUE} for no limit
+     * @param maxDuration how long the run may take, or null for no limit
+     */
+    public ScanBudget(final long maxBytes, @Nullable final Duration maxDuration) {
+        this.maxBytes = maxBytes;
+        hasDeadline = maxDuration != null;
+        // Capped so that the deadline can still be compared with nanoTime() without overflowing. The duration is
+        // capped before toNanos(), which throws for anything longer than about 292 years.
+        deadlineNanos = hasDeadline ? System.nanoTime() + (maxDuration.compareTo(MAX_DURATION) > 0 ? MAX_DURATION : maxDuration).toNanos() : 0;
+    }
+
+    /**
+     * Returns the budget set in the config.
+     *
+     * @param config the config
+     * @return the budget, or null if the config does not limit the run
+     */
+    @Nullable
+    public static ScanBudget fromConfig(final Config config) {
+        if (config.getBudgetGiB() <= 0 && config.getBudgetMinutes() <= 0) {
+            return null;
+        }
+        // Budgets too large to count in bytes or minutes cannot be reached anyway, so they are clamped instead of overflowing
+        return new ScanBudget(
+                config.getBudgetGiB() > 0 ? clampedMultiply(config.getBudgetGiB(), BYTES_IN_A_GIB) : Long.MAX_VALUE,
+                config.getBudgetMinutes() > 0 ? Duration.ofSeconds(clampedMultiply(config.getBudgetMinutes(), 60)) : null);
+    }
+
+    private static long clampedMultiply(final long a, final long b) {
+        try {
+            return Math.multiplyExact(a, b);
+        } catch (final ArithmeticException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+
+    /**
+     * Takes the size of a file from the budget if there is any budget left.
+     *
+     * @param bytes the size of the file
+     * @return true if the file may be verified, false if the budget is spent
+     */
+    public boolean tryCharge(final long bytes) {
+        if (isOutOfTime()) {
+            return false;
+        }
+        while (true) {
+            final long charged = bytesCharged.get();
+            if (charged >= maxBytes) {
+                return false;
+            }
+            if (bytesCharged.compareAndSet(charged, charged + bytes)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Returns whether the deadline has passed. Files that were charged but not started yet should be left for the
+     * next run once it has.
+     *
+     * @return true if the run should stop
+     */
+    public boolean isOutOfTime() {
+        return hasDeadline && System.nanoTime() - deadlineNanos >= 0;
+    }
+
+    public long getBytesCharged() {
+        return bytesCharged.get();
+    }
+
+    @Override
+    public String toString() {
+        return (maxBytes == Long.MAX_VALUE ? "no byte limit" : maxBytes + " bytes")
+                + ", " + (!hasDeadline ? "no time limit" : "deadline in " + Duration.ofNanos(deadlineNanos - System.nanoTime()));
+    }
+}
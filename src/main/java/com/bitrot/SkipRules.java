@@ -0,0 +1,445 @@
+package com.bitrot;
+
+import com.bitrot.data.SkipRule;
+import org.jspecify.annotations.Nullable;
+
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * The {@link SkipRule}s from the config compiled into a single matcher, so that a name is checked against all of them
+ * in one pass.
+ * <p>
+ * Rules on names alone are merged: all prefixes go into one trie, all suffixes into a trie of the reversed suffixes,
+ * and all globs into one regular expression for names and one for paths. A glob without a {@code /} is matched
+ * against the name of every file and directory, a glob with one against the path relative to the root being walked,
+ * always with {@code /} between directories. Those rules also exclude directories, which are then never walked.
+ * Rules with a size or age are kept apart and only checked against files that nothing else excluded.
+ * <p>
+ * Prefixes and suffixes are matched without allocating anything, as they are checked for every file.
+ */
+public final class SkipRules {
+    private static final long BYTES_IN_A_MIB = 1024 * 1024;
+
+    private final NameMatcher names;
+    private final List<FileRule> fileRules;
+
+    private SkipRules(final NameMatcher names, final List<FileRule> fileRules) {
+        this.names = names;
+        this.fileRules = fileRules;
+    }
+
+    /**
+     * Compiles the given rules.
+     *
+     * @param rules the rules from the config
+     * @return the compiled rules
+     * @throws IllegalArgumentException if a rule is invalid
+     */
+    public static SkipRules compile(final List<SkipRule> rules) {
+        final List<SkipRule> nameRules = new ArrayList<>();
+        final List<FileRule> fileRules = new ArrayList<>();
+        final Instant now = Instant.now();
+        for (final SkipRule rule : rules) {
+            validate(rule);
+            if (rule.hasFileConditions()) {
+                fileRules.add(new FileRule(NameMatcher.of(List.of(rule)), rule, now));
+            } else {
+                nameRules.add(rule);
+            }
+        }
+        return new SkipRules(NameMatcher.of(nameRules), List.copyOf(fileRules));
+    }
+
+    /**
+     * Returns the rules used when the config has none, see {@link SkipRule#defaults()}.
+     *
+     * @return the default rules
+     */
+    public static SkipRules defaults() {
+        return compile(SkipRule.defaults());
+    }
+
+    private static void validate(final SkipRule rule) {
+        final List<String> patterns = Stream.of(rule.getPrefix(), rule.getSuffix(), rule.getGlob())
+                .filter(Objects::nonNull)
+                .toList();
+        if (patterns.size() > 1) {
+            throw new IllegalArgumentException("Skip rule " + rule + " may only have one of prefix, suffix and glob");
+        }
+        if (patterns.isEmpty() && !rule.hasFileConditions()) {
+            throw new IllegalArgumentException("Skip rule " + rule + " would skip every file");
+        }
+        if (patterns.contains("")) {
+            throw new IllegalArgumentException("Skip rule " + rule + " has an empty pattern");
+        }
+    }
+
+    /**
+     * Returns whether a directory and everything under it should not be walked.
+     *
+     * @param root      the root being walked
+     * @param directory the directory under the root
+     * @return true if the directory is excluded
+     */
+    public boolean excludesDirectory(final Path root, final Path directory) {
+        return names.matches(root, directory);
+    }
+
+    /**
+     * Returns whether a file should not be verified because of its name, its path or its attributes.
+     *
+     * @param root       the root being walked
+     * @param file       the file under the root
+     * @param attributes the attributes of the file
+     * @return true if the file is excluded
+     */
+    public boolean excludesFile(final Path root, final Path file, final BasicFileAttributes attributes) {
+        if (names.matches(root, file)) {
+            return true;
+        }
+        for (int i = 0; i < fileRules.size(); i++) {
+            if (fileRules.get(i).matches(root, file, attributes)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns whether any part of the path, from its root down, has a name that one of the prefix, suffix or name glob
+     * rules excludes. Globs on paths and rules with a size or age are not checked, as they need the root and the
+     * attributes.
+     *
+     * @param path the absolute path
+     * @return true if a part of the path is excluded
+     */
+    public boolean excludesAnyPart(final Path path) {
+        final String string = path.toString();
+        final String separator = path.getFileSystem().getSeparator();
+        // Scanning for separators rather than splitting the path, so that no strings are created
+        int start = 0;
+        while (start <= string.length()) {
+            int end = string.indexOf(separator, start);
+            if (end < 0) {
+                end = string.length();
+            }
+            if (names.matchesName(string, start, end)) {
+                return true;
+            }
+            start = end + separator.length();
+        }
+        return false;
+    }
+
+    /**
+     * Converts a glob into a regular expression. {@code *} and {@code ?} do not match {@code /}, {@code **} does, and
+     * {@code **}{@code /} also matches nothing so that {@code **}{@code /cache} matches {@code cache} at the root.
+     * {@code [abc]}, {@code [!abc]} and {@code {a,b}} work like in {@link java.nio.file.FileSystem#getPathMatcher}.
+     *
+     * @param glob the glob
+     * @return the regular expression
+     */
+    static String globToRegex(final String glob) {
+        final StringBuilder regex = new StringBuilder();
+        boolean inBraces = false;
+        for (int i = 0; i < glob.length(); i++) {
+            final char c = glob.charAt(i);
+            switch (c) {
+                case '*' -> {
+                    if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                        i++;
+                        if (i + 1 < glob.length() && glob.charAt(i + 1) == '/') {
+                            i++;
+                            regex.append("(?:.*/)?");
+                        } else {
+                            regex.append(".*");
+                        }
+                    } else {
+                        regex.append("[^/]*");
+                    }
+                }
+                case '?' -> regex.append("[^/]");
+                case '[' -> {
+                    final int close = glob.indexOf(']', i + 1);
+                    if (close < 0) {
+                        throw new IllegalArgumentException("Missing ] in glob " + glob);
+                    }
+                    appendCharacterClass(regex, glob, i + 1, close);
+                    i = close;
+                }
+                case '{' -> {
+                    if (inBraces) {
+                        throw new IllegalArgumentException("Nested { in glob " + glob);
+                    }
+                    inBraces = true;
+                    regex.append("(?:");
+                }
+                case '}' -> {
+                    if (!inBraces) {
+                        throw new IllegalArgumentException("Unmatched } in glob " + glob);
+                    }
+                    inBraces = false;
+                    regex.append(')');
+                }
+                case ',' -> regex.append(inBraces ? "|" : ",");
+                case '\\' -> {
+                    if (i + 1 < glob.length()) {
+                        regex.append(Pattern.quote(String.valueOf(glob.charAt(++i))));
+                    }
+                }
+                default -> {
+                    if ("().+|^$".indexOf(c) >= 0) {
+                        regex.append('\\');
+                    }
+                    regex.append(c);
+                }
+            }
+        }
+        if (inBraces) {
+            throw new IllegalArgumentException("Missing } in glob " + glob);
+        }
+        return regex.toString();
+    }
+
+    /**
+     * Appends the character class between {@code start} and {@code end} of the glob, without its brackets. Like
+     * {@code sun.nio.fs.Globs}, a leading {@code !} negates the class, a {@code -} between two characters is a range
+     * and anywhere else stands for itself, and {@code ^}, {@code &} and {@code [} have no special meaning.
+     */
+    private static void appendCharacterClass(final StringBuilder regex, final String glob, final int start, final int end) {
+        final boolean negated = start < end && glob.charAt(start) == '!';
+        final int first = negated ? start + 1 : start;
+        if (first == end && !negated) {
+            throw new IllegalArgumentException("Empty [] in glob " + glob);
+        }
+
+        // A negated class must not match the separator either
+        regex.append(negated ? "[^/" : "[");
+        boolean hasRangeStart = false;
+        char last = 0;
+        for (int i = first; i < end; i++) {
+            final char c = glob.charAt(i);
+            if (c == '/') {
+                throw new IllegalArgumentException("A character class cannot match / in glob " + glob);
+            }
+            if (c == '-' && hasRangeStart && i + 1 < end) {
+                final char rangeEnd = glob.charAt(++i);
+                if (rangeEnd < last || rangeEnd == '/') {
+                    throw new IllegalArgumentException("Invalid range " + last + "-" + rangeEnd + " in glob " + glob);
+                }
+                regex.append('-');
+                appendClassCharacter(regex, rangeEnd);
+                hasRangeStart = false;
+            } else {
+                appendClassCharacter(regex, c);
+                hasRangeStart = true;
+                last = c;
+            }
+        }
+        regex.append(']');
+    }
+
+    private static void appendClassCharacter(final StringBuilder regex, final char c) {
+        // Characters that mean something inside a regex class: negation, intersection, ranges, nesting and escapes
+        if ("^&-[]\\".indexOf(c) >= 0) {
+            regex.append('\\');
+        }
+        regex.append(c);
+    }
+
+    /**
+     * The prefixes, suffixes and globs of a set of rules.
+     */
+    private static final class NameMatcher {
+        private final CharTrie prefixes;
+        // The suffixes spelled backwards
+        private final CharTrie suffixes;
+        private final @Nullable Pattern nameGlobs;
+        private final @Nullable Pattern pathGlobs;
+
+        private NameMatcher(final CharTrie prefixes, final CharTrie suffixes, @Nullable final Pattern nameGlobs,
+                            @Nullable final Pattern pathGlobs) {
+            this.prefixes = prefixes;
+            this.suffixes = suffixes;
+            this.nameGlobs = nameGlobs;
+            this.pathGlobs = pathGlobs;
+        }
+
+        static NameMatcher of(final List<SkipRule> rules) {
+            final CharTrie prefixes = new CharTrie();
+            final CharTrie suffixes = new CharTrie();
+            final List<String> nameGlobs = new ArrayList<>();
+            final List<String> pathGlobs = new ArrayList<>();
+            for (final SkipRule rule : rules) {
+                if (rule.getPrefix() != null) {
+                    prefixes.add(rule.getPrefix());
+                } else if (rule.getSuffix() != null) {
+                    suffixes.add(new StringBuilder(rule.getSuffix()).reverse().toString());
+                } else if (rule.getGlob() != null) {
+                    (rule.getGlob().indexOf('/') < 0 ? nameGlobs : pathGlobs).add("(?:" + globToRegex(rule.getGlob()) + ")");
+                }
+            }
+            return new NameMatcher(prefixes, suffixes, alternatives(nameGlobs), alternatives(pathGlobs));
+        }
+
+        @Nullable
+        private static Pattern alternatives(final List<String> regexes) {
+            return regexes.isEmpty() ? null : Pattern.compile(String.join("|", regexes));
+        }
+
+        boolean isEmpty() {
+            return prefixes.isEmpty() && suffixes.isEmpty() && nameGlobs == null && pathGlobs == null;
+        }
+
+        /**
+         * Returns whether the name of the path, or the path relative to the root, matches.
+         */
+        boolean matches(final Path root, final Path path) {
+            final String string = path.toString();
+            final String separator = path.getFileSystem().getSeparator();
+            final int lastSeparator = string.lastIndexOf(separator);
+            final int nameStart = lastSeparator < 0 ? 0 : lastSeparator + separator.length();
+            if (matchesName(string, nameStart, string.length())) {
+                return true;
+            }
+            if (pathGlobs == null) {
+                return false;
+            }
+            String relativePath = root.relativize(path).toString();
+            if (!separator.equals("/")) {
+                relativePath = relativePath.replace(separator, "/");
+            }
+            return pathGlobs.matcher(relativePath).matches();
+        }
+
+        /**
+         * Returns whether the name between start and end of the string matches a prefix, suffix or name glob.
+         */
+        boolean matchesName(final String string, final int start, final int end) {
+            return start < end && (prefixes.startsWithAny(string, start, end)
+                    || suffixes.endsWithAny(string, start, end)
+                    || nameGlobs != null && nameGlobs.matcher(string).region(start, end).matches());
+        }
+    }
+
+    /**
+     * A rule with a size or age, and optionally a name or path.
+     */
+    private static final class FileRule {
+        private final NameMatcher names;
+        private final long minSizeExclusive;
+        private final long maxSizeExclusive;
+        private final long modifiedBeforeMillis;
+        private final long modifiedAfterMillis;
+
+        FileRule(final NameMatcher names, final SkipRule rule, final Instant now) {
+            this.names = names;
+            minSizeExclusive = rule.getLargerThanMiB() > 0 ? rule.getLargerThanMiB() * BYTES_IN_A_MIB : Long.MIN_VALUE;
+            maxSizeExclusive = rule.getSmallerThanMiB() > 0 ? rule.getSmallerThanMiB() * BYTES_IN_A_MIB : Long.MAX_VALUE;
+            modifiedBeforeMillis = rule.getOlderThanDays() > 0 ? now.minus(rule.getOlderThanDays(), ChronoUnit.DAYS).toEpochMilli() : Long.MAX_VALUE;
+            modifiedAfterMillis = rule.getNewerThanDays() > 0 ? now.minus(rule.getNewerThanDays(), ChronoUnit.DAYS).toEpochMilli() : Long.MIN_VALUE;
+        }
+
+        boolean matches(final Path root, final Path file, final BasicFileAttributes attributes) {
+            final long size = attributes.size();
+            if (size <= minSizeExclusive || size >= maxSizeExclusive) {
+                return false;
+            }
+            final long modifiedMillis = attributes.lastModifiedTime().toMillis();
+            if (modifiedMillis >= modifiedBeforeMillis || modifiedMillis <= modifiedAfterMillis) {
+                return false;
+            }
+            return names.isEmpty() || names.matches(root, file);
+        }
+    }
+
+    /**
+     * A trie of strings that tells whether any of them starts, or ends, a part of another string.
+     */
+    private static final class CharTrie {
+        private static final CharTrie[] NO_CHILDREN = new CharTrie[0];
+
+        // The children are few, so they are found by scanning these arrays
+        private char[] labels = new char[0];
+        private CharTrie[] children = NO_CHILDREN;
+        private boolean terminal;
+
+        void add(final String key) {
+            CharTrie node = this;
+            for (int i = 0; i < key.length(); i++) {
+                node = node.childOrAdd(key.charAt(i));
+            }
+            node.terminal = true;
+        }
+
+        boolean isEmpty() {
+            return labels.length == 0 && !terminal;
+        }
+
+        /**
+         * Returns whether a key of this trie is a prefix of the string between start and end.
+         */
+        boolean startsWithAny(final String string, final int start, final int end) {
+            CharTrie node = this;
+            for (int i = start; i < end; i++) {
+                node = node.child(string.charAt(i));
+                if (node == null) {
+                    return false;
+                }
+                if (node.terminal) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Returns whether a key of this trie, spelled backwards, is a suffix of the string between start and end.
+         */
+        boolean endsWithAny(final String string, final int start, final int end) {
+            CharTrie node = this;
+            for (int i = end - 1; i >= start; i--) {
+                node = node.child(string.charAt(i));
+                if (node == null) {
+                    return false;
+                }
+                if (node.terminal) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Nullable
+        private CharTrie child(final char label) {
+            for (int i = 0; i < labels.length; i++) {
+                if (labels[i] == label) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        private CharTrie childOrAdd(final char label) {
+            final CharTrie existing = child(label);
+            if (existing != null) {
+                return existing;
+            }
+            final CharTrie child = new CharTrie();
+            labels = Arrays.copyOf(labels, labels.length + 1);
+            children = Arrays.copyOf(children, children.length + 1);
+            labels[labels.length - 1] = label;
+            children[children.length - 1] = child;
+            return child;
+        }
+    }
+}
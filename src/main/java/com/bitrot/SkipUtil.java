@@ -1,14 +1,20 @@
 package com.bitrot;
 
+import com.bitrot.data.Config;
 import com.bitrot.data.FileRecord;
+import com.bitrot.metrics.Metrics;
 import org.jspecify.annotations.Nullable;
 
 import java.io.IOException;
-import java.nio.file.FileSystems;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.sql.*;
 import java.time.Instant;
-import java.util.regex.Pattern;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.locks.ReentrantLock;
 
 import static com.bitrot.data.Constants.*;
 
@@ -18,33 +24,99 @@ import static com.bitrot.data.Constants.*;
 public class SkipUtil {
     private static final String TABLE_NAME = "file_verification";
     private static final String FILE_NAME = TABLE_NAME + ".sqlite";
-    private static final String PATH_SEPARATOR = FileSystems.getDefault().getSeparator();
 
     private final Connection connection;
+    // Guards the connection. Lookups run on virtual threads, which a monitor would pin to their carriers while they wait.
+    private final ReentrantLock connectionLock = new ReentrantLock();
+    // The connection the writer commits on. Its own connection to the database file unless one was passed in.
+    private final Connection writerConnection;
+    // Connections of their own for lookups, which read from the WAL at the same time. Empty if a connection was passed
+    // in, then lookups use that connection under its lock.
+    private final List<Connection> lookupConnections = new ArrayList<>();
+    // A lookup statement for each lookup connection, or a single one on the connection. Taken for each lookup.
+    private final BlockingQueue<PreparedStatement> selectStatements;
+    private final RecencyWriter writer;
+    // Null unless the whole table was loaded into memory
+    private final @Nullable RecencyIndex index;
+    private final SkipRules skipRules;
 
     public SkipUtil() {
-        this(null);
+        this(null, false);
+    }
+
+    public SkipUtil(final Config config) {
+        this(null, config.isInMemoryRecencyIndex(), SkipRules.compile(config.getSkipRules()));
     }
 
     public SkipUtil(@Nullable final Connection connection) {
+        this(connection, false);
+    }
+
+    public SkipUtil(@Nullable final Connection connection, final boolean inMemoryIndex) {
+        this(connection, inMemoryIndex, SkipRules.defaults());
+    }
+
+    /**
+     * @param connection    the connection to the recency database, or null to open the default database file. A
+     *                      connection that is passed in is shared by lookups and the writer, so lookups take turns.
+     * @param inMemoryIndex whether to load the whole database into memory so that skip decisions need no query
+     * @param skipRules     the rules for files and directories that are never verified
+     */
+    public SkipUtil(@Nullable final Connection connection, final boolean inMemoryIndex, final SkipRules skipRules) {
+        this.skipRules = skipRules;
         try {
             if (connection == null) {
                 this.connection = DriverManager.getConnection("jdbc:sqlite:" + FILE_NAME);
+                initializeTable();
+                // Opened after the table is in WAL mode, so lookups read while the writer commits
+                writerConnection = DriverManager.getConnection("jdbc:sqlite:" + FILE_NAME);
+                for (int i = 0; i < RECENCY_LOOKUP_CONNECTIONS; i++) {
+                    lookupConnections.add(DriverManager.getConnection("jdbc:sqlite:" + FILE_NAME));
+                }
+                writer = new RecencyWriter(writerConnection, new ReentrantLock(), TABLE_NAME, RECENCY_WRITE_BATCH_SIZE);
             } else {
                 this.connection = connection;
+                initializeTable();
+                writerConnection = connection;
+                writer = new RecencyWriter(writerConnection, connectionLock, TABLE_NAME, RECENCY_WRITE_BATCH_SIZE);
             }
 
-            initializeTable();
+            final List<Connection> selectConnections = lookupConnections.isEmpty() ? List.of(this.connection) : lookupConnections;
+            selectStatements = new ArrayBlockingQueue<>(selectConnections.size());
+            for (final Connection selectConnection : selectConnections) {
+                selectStatements.add(selectConnection.prepareStatement(
+                        "SELECT last_verified, modified_time_s FROM " + TABLE_NAME + " WHERE absolute_file_path = ?"));
+            }
+            index = inMemoryIndex ? loadIndex() : null;
         } catch (final SQLException e) {
             throw new RuntimeException("Failed to initialize file verification database", e);
         }
 
-        System.out.println(numRows() + " existing rows in the recent verification database");
+        if (index != null) {
+            System.out.println(index.size() + " existing rows in the recent verification database loaded into memory");
+        } else {
+            System.out.println(numRows() + " existing rows in the recent verification database");
+        }
+    }
+
+    private RecencyIndex loadIndex() throws SQLException {
+        final RecencyIndex loadedIndex = new RecencyIndex(numRows());
+        connectionLock.lock();
+        try (final Statement stmt = connection.createStatement();
+             final ResultSet rs = stmt.executeQuery("SELECT absolute_file_path, modified_time_s, last_verified FROM " + TABLE_NAME)) {
+            while (rs.next()) {
+                loadedIndex.put(rs.getString(1), rs.getLong(2), rs.getTimestamp(3).getTime());
+            }
+        } finally {
+            connectionLock.unlock();
+        }
+        return loadedIndex;
     }
 
     private int numRows() {
         final String query = "SELECT COUNT(*) AS total FROM " + TABLE_NAME;
 
+        connectionLock.lock();
         try (final PreparedStatement statement = connection.prepareStatement(query);
              final ResultSet resultSet = statement.executeQuery()) {
 
@@ -55,6 +127,8 @@ public class SkipUtil {
         } catch (final Exception e) {
             //noinspection CallToPrintStackTrace
             e.printStackTrace();
+        } finally {
+            connectionLock.unlock();
         }
 
         return -1;
@@ -66,6 +140,11 @@ public class SkipUtil {
      * {@code absolute_file_path} is the primary key and is the string path to the file<br>
      * {@code modified_time_s} is a long representing the modified time in epoch seconds of the file on disk<br>
      * {@code last_verified} is the timestamp when we last verified this file
+     * <p>
+     * The database runs in WAL mode so that lookups, which have their own connections, are not blocked while the
+     * writer commits on its connection. With WAL,
+     * {@code synchronous=NORMAL} only risks losing the last few commits on power loss, which just means those files
+     * get verified again. The index on {@code last_verified} lets {@link #cleanDatabase()} avoid a full table scan.
      *
      * @throws SQLException if there was an SQL error
      */
@@ -76,6 +155,9 @@ public class SkipUtil {
                     "modified_time_s INTEGER, " +
                     "last_verified TIMESTAMP)";
             stmt.execute(createTable);
+            stmt.execute("CREATE INDEX IF NOT EXISTS " + TABLE_NAME + "_last_verified ON " + TABLE_NAME + " (last_verified)");
+            stmt.execute("PRAGMA journal_mode=WAL");
+            stmt.execute("PRAGMA synchronous=NORMAL");
         }
     }
 
@@ -84,6 +166,7 @@ public class SkipUtil {
      */
     public void cleanDatabase() {
         final String deleteOldRecordsSQL = "DELETE FROM " + TABLE_NAME + " WHERE last_verified < ?";
+        connectionLock.lock();
         try (final PreparedStatement stmt = connection.prepareStatement(deleteOldRecordsSQL)) {
             stmt.setTimestamp(1, Timestamp.from(DELETE_RECENCY_ENTRIES_OLDER_THAN));
             final int rowsDeleted = stmt.executeUpdate();
@@ -91,6 +174,8 @@ public class SkipUtil {
         } catch (final SQLException e) {
             System.err.println("Error during database cleanup");
             throw new RuntimeException(e);
+        } finally {
+            connectionLock.unlock();
         }
     }
 
@@ -101,63 +186,148 @@ public class SkipUtil {
      * @return True if the file path should be skipped, False otherwise
      */
     public boolean shouldSkipFile(final FileRecord fileRecord) {
-        // Check each part of the path for the filters
-        for (final String part : fileRecord.getAbsoluteFilePath().toString().split(Pattern.quote(PATH_SEPARATOR))) {
-            for (String prefix : SKIP_PREFIXES) {
-                if (part.startsWith(prefix)) {
-                    return true;
-                }
-            }
+        return isFiltered(fileRecord.getAbsoluteFilePath())
+                || lastVerifiedMillis(fileRecord) > SKIP_FILES_CHECKED_SINCE.toEpochMilli();
+    }
 
-            for (String suffix : SKIP_SUFFIXES) {
-                if (part.endsWith(suffix)) {
-                    return true;
-                }
-            }
-        }
+    /**
+     * Returns whether any part of the path matches one of the skip rules on names.
+     *
+     * @param absoluteFilePath the absolute path of the file
+     * @return True if the path should never be verified
+     */
+    public boolean isFiltered(final Path absoluteFilePath) {
+        return skipRules.excludesAnyPart(absoluteFilePath);
+    }
 
-        // Now check the SQLite database for whether we should skip this file or not
-        try (final PreparedStatement stmt = connection.prepareStatement("SELECT last_verified, modified_time_s FROM " + TABLE_NAME + " WHERE absolute_file_path = ?")) {
-            stmt.setString(1, String.valueOf(fileRecord.getAbsoluteFilePath()));
-            final ResultSet rs = stmt.executeQuery();
-            if (rs.next()) {
-                // If the file has been modified since we last verified it, we should check it regardless of time elapsed.
-                final long modifiedTimestampAtLastVerification = rs.getLong("modified_time_s");
-                if (modifiedTimestampAtLastVerification != fileRecord.getMTimeSeconds()) {
-                    System.out.println("File " + fileRecord.getLogIdentifier() + " has been modified so will be checked.");
-                    return false;
-                }
+    /**
+     * Returns whether a directory found while walking a root should not be walked, because a skip rule excludes it and
+     * so everything under it.
+     *
+     * @param root      the root being walked
+     * @param directory the directory
+     * @return True if the directory should not be walked
+     */
+    public boolean isExcludedDirectory(final Path root, final Path directory) {
+        return skipRules.excludesDirectory(root, directory);
+    }
+
+    /**
+     * Returns whether a file found while walking a root matches one of the skip rules, which unlike
+     * {@link #shouldSkipFile(FileRecord)} needs nothing but what the walk already read.
+     *
+     * @param root       the root being walked
+     * @param file       the file
+     * @param attributes the attributes of the file
+     * @return True if the file should never be verified
+     */
+    public boolean isExcludedFile(final Path root, final Path file, final BasicFileAttributes attributes) {
+        return skipRules.excludesFile(root, file, attributes);
+    }
 
-                // Skip files that were verified recently.
-                final Instant lastVerified = rs.getTimestamp("last_verified").toInstant();
-                return lastVerified.isAfter(SKIP_FILES_CHECKED_SINCE);
+    /**
+     * Returns when the file was last verified, according to the SQLite database (or our copy of it).
+     *
+     * @param fileRecord the file record
+     * @return the epoch millis of the last verification, or {@link Long#MIN_VALUE} if the file was never verified or
+     * has been modified since
+     */
+    public long lastVerifiedMillis(final FileRecord fileRecord) {
+        final long startedAt = System.nanoTime();
+        try {
+            final long modifiedTimestampAtLastVerification;
+            final long lastVerified;
+            if (index != null) {
+                final RecencyIndex.Entry entry = index.get(String.valueOf(fileRecord.getAbsoluteFilePath()));
+                if (entry == null) {
+                    return Long.MIN_VALUE;
+                }
+                modifiedTimestampAtLastVerification = entry.modifiedTimeSeconds();
+                lastVerified = entry.lastVerifiedMillis();
             } else {
-                return false;
+                final PreparedStatement selectStatement = takeSelectStatement();
+                // A statement on a lookup connection is ours alone, one on the shared connection is not
+                final boolean shared = lookupConnections.isEmpty();
+                if (shared) {
+                    connectionLock.lock();
+                }
+                try {
+                    selectStatement.setString(1, String.valueOf(fileRecord.getAbsoluteFilePath()));
+                    try (final ResultSet rs = selectStatement.executeQuery()) {
+                        if (!rs.next()) {
+                            return Long.MIN_VALUE;
+                        }
+                        modifiedTimestampAtLastVerification = rs.getLong("modified_time_s");
+                        lastVerified = rs.getTimestamp("last_verified").getTime();
+                    }
+                } finally {
+                    if (shared) {
+                        connectionLock.unlock();
+                    }
+                    selectStatements.add(selectStatement);
+                }
+            }
+
+            // If the file has been modified since we last verified it, we should check it regardless of time elapsed.
+            if (modifiedTimestampAtLastVerification != fileRecord.getMTimeSeconds()) {
+                System.out.println("File " + fileRecord.getLogIdentifier() + " has been modified so will be checked.");
+                return Long.MIN_VALUE;
             }
+
+            return lastVerified;
         } catch (final SQLException | IOException e) {
             System.err.println("Error getting last_verified, modified_time_s for file with absolute path " + fileRecord.getAbsoluteFilePath());
             throw new RuntimeException(e);
+        } finally {
+            Metrics.SKIP_LOOKUP.recordSince(startedAt);
+        }
+    }
+
+    private PreparedStatement takeSelectStatement() {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return selectStatements.take();
+                } catch (final InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
         }
     }
 
     /**
      * Record that we have verified the file represented by the given record so that we do not check the same path again until the threshold.
+     * The verification is committed in the background, call {@link #flush()} to wait for it.
      *
      * @param fileRecord the record
      */
     public void recordVerification(final FileRecord fileRecord) {
-        try (final PreparedStatement stmt = connection.prepareStatement(
-                "INSERT OR REPLACE INTO " + TABLE_NAME + " (absolute_file_path, modified_time_s, last_verified) VALUES (?, ?, ?)")) {
-            stmt.setString(1, String.valueOf(fileRecord.getAbsoluteFilePath()));
-            stmt.setLong(2, fileRecord.getMTimeSeconds());
-            stmt.setTimestamp(3, Timestamp.from(Instant.now()));
-            stmt.executeUpdate();
-        } catch (final SQLException | IOException e) {
+        try {
+            final String absoluteFilePath = String.valueOf(fileRecord.getAbsoluteFilePath());
+            final long modifiedTimeSeconds = fileRecord.getMTimeSeconds();
+            final Timestamp lastVerified = Timestamp.from(Instant.now());
+            if (index != null) {
+                index.put(absoluteFilePath, modifiedTimeSeconds, lastVerified.getTime());
+            }
+            writer.add(absoluteFilePath, modifiedTimeSeconds, lastVerified);
+        } catch (final IOException e) {
             System.err.println("Error getting last_verified for file with absolute path " + fileRecord.getAbsoluteFilePath());
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Waits until every verification recorded so far has been committed to the database.
+     */
+    public void flush() {
+        writer.flush();
+    }
+
     /**
      * Returns whether the file record is too new to save to the database or not.
      *
@@ -182,23 +352,48 @@ public class SkipUtil {
      * @throws SQLException if there is an error executing the SQL query
      */
     public int removeFileFromDatabase(final Path absolutePath) throws SQLException {
+        if (index != null) {
+            index.remove(absolutePath.toString());
+        }
         final String deleteSQL = "DELETE FROM " + TABLE_NAME + " WHERE absolute_file_path = ?";
+        connectionLock.lock();
         try (final PreparedStatement stmt = connection.prepareStatement(deleteSQL)) {
             stmt.setString(1, absolutePath.toString());
             return stmt.executeUpdate();
+        } finally {
+            connectionLock.unlock();
         }
     }
     
     /**
      * Closes the database connection and releases any other resources.
-     * Should be called when this SkipUtil is no longer needed.
+     * Should be called when this SkipUtil is no longer needed. Closing it again does nothing.
      */
     public void close() {
-        if (connection != null) {
+        try {
+            writer.close();
+        } finally {
+            connectionLock.lock();
             try {
+                for (final PreparedStatement selectStatement : selectStatements) {
+                    selectStatement.close();
+                }
                 connection.close();
             } catch (SQLException e) {
                 System.err.println("Error closing database connection: " + e.getMessage());
+            } finally {
+                connectionLock.unlock();
+            }
+            final List<Connection> ownConnections = new ArrayList<>(lookupConnections);
+            if (writerConnection != connection) {
+                ownConnections.add(writerConnection);
+            }
+            for (final Connection ownConnection : ownConnections) {
+                try {
+                    ownConnection.close();
+                } catch (SQLException e) {
+                    System.err.println("Error closing database connection: " + e.getMessage());
+                }
             }
         }
     }
@@ -0,0 +1,44 @@
+package com.bitrot;
+
+import com.bitrot.data.DocumentLookup;
+import com.bitrot.data.FileRecord;
+import com.bitrot.data.FileResult;
+import org.jspecify.annotations.Nullable;
+
+import java.util.Collection;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Where file records are verified and stored.
+ * {@link MongoManager} blocks the calling thread on every database call, while {@link AsyncMongoManager} returns as
+ * soon as the calls are sent, so callers should be prepared for both.
+ */
+public interface VerificationStore {
+    /**
+     * Fetches every document for the given file records with a single query.
+     *
+     * @param fileRecords the file records
+     * @return a lookup of the fetched documents
+     */
+    CompletionStage<DocumentLookup> prefetch(Collection<FileRecord> fileRecords);
+
+    /**
+     * Verifies the file against the database, or records it if we have never seen it before.
+     *
+     * @param fileRecord  the file record
+     * @param isImmutable whether the file is in an immutable path
+     * @param lookup      documents prefetched for the file's batch, or null to query the database for this file
+     * @return the result of the verification, which only completes once the file's writes are safe
+     */
+    CompletionStage<FileResult> verify(FileRecord fileRecord, boolean isImmutable, @Nullable DocumentLookup lookup);
+
+    /**
+     * Makes sure every queued write has reached the database.
+     */
+    void flush();
+
+    /**
+     * Writes everything that is still queued. Should be called when the store is no longer needed.
+     */
+    void close();
+}
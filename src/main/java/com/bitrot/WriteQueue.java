@@ -0,0 +1,20 @@
+package com.bitrot;
+
+import com.mongodb.client.model.WriteModel;
+import org.bson.Document;
+
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Somewhere to queue writes to the verification collection until they can be sent in bulk.
+ */
+@FunctionalInterface
+public interface WriteQueue {
+    /**
+     * Queues a write.
+     *
+     * @param write the write
+     * @return completes once the write is safe, or fails if it could not be written
+     */
+    CompletionStage<Void> add(WriteModel<Document> write);
+}
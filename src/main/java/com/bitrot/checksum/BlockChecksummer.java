@@ -0,0 +1,106 @@
+package com.bitrot.checksum;
+
+import org.jspecify.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+/**
+ * Computes the CRC32C of every block of a file as it is read, either to build a new {@link BlockManifest} or to
+ * check the file against an existing one. Chunks can be any size and do not need to line up with the blocks.
+ * <p>
+ * When checking, {@link #update(ByteBuffer)} throws as soon as a block does not match so that the caller can stop
+ * reading. Not thread-safe, like {@link java.util.zip.Checksum}.
+ */
+public final class BlockChecksummer {
+    private final long blockSize;
+    @Nullable
+    private final BlockManifest expected;
+    private final CRC32C crc = new CRC32C();
+
+    private int[] checksums = new int[16];
+    private int block = 0;
+    private long blockRemaining;
+
+    private BlockChecksummer(final long blockSize, @Nullable final BlockManifest expected) {
+        this.blockSize = blockSize;
+        this.expected = expected;
+        this.blockRemaining = blockSize;
+    }
+
+    /**
+     * @param blockSize the block size of the new manifest
+     * @return a checksummer that builds a new manifest, see {@link #toManifest()}
+     */
+    public static BlockChecksummer recording(final long blockSize) {
+        return new BlockChecksummer(blockSize, null);
+    }
+
+    /**
+     * @param expected the manifest to check against
+     * @return a checksummer that throws {@link BlockMismatchException} at the first block that does not match
+     */
+    public static BlockChecksummer verifying(final BlockManifest expected) {
+        return new BlockChecksummer(expected.getBlockSize(), expected);
+    }
+
+    /**
+     * Adds the remaining bytes of the chunk. Like {@link java.util.zip.Checksum#update(ByteBuffer)}, this consumes
+     * the chunk.
+     *
+     * @param chunk the next bytes of the file
+     * @throws BlockMismatchException if a block that was completed by this chunk does not match
+     */
+    public void update(final ByteBuffer chunk) throws BlockMismatchException {
+        final int limit = chunk.limit();
+        while (chunk.hasRemaining()) {
+            final int length = (int) Math.min(chunk.remaining(), blockRemaining);
+            chunk.limit(chunk.position() + length);
+            crc.update(chunk);
+            chunk.limit(limit);
+
+            blockRemaining -= length;
+            if (blockRemaining == 0) {
+                completeBlock(blockSize);
+            }
+        }
+    }
+
+    /**
+     * Completes the last block. Must be called once the whole file was read.
+     *
+     * @throws BlockMismatchException if the last block does not match, or the file has fewer blocks than the manifest,
+     *                                in which case the first missing block is reported up to the end of the manifest
+     */
+    public void finish() throws BlockMismatchException {
+        if (blockRemaining < blockSize) {
+            completeBlock(blockSize - blockRemaining);
+        }
+        if (expected != null && block != expected.getBlockCount()) {
+            throw new BlockMismatchException(block, block * blockSize, expected.getBlockCount() * blockSize);
+        }
+    }
+
+    /**
+     * @return the manifest of everything read so far, call {@link #finish()} first
+     */
+    public BlockManifest toManifest() {
+        return new BlockManifest(blockSize, Arrays.copyOf(checksums, block));
+    }
+
+    private void completeBlock(final long length) throws BlockMismatchException {
+        final int checksum = (int) crc.getValue();
+        if (expected != null && (block >= expected.getBlockCount() || expected.checksum(block) != checksum)) {
+            final long start = block * blockSize;
+            throw new BlockMismatchException(block, start, start + length);
+        }
+
+        if (block == checksums.length) {
+            checksums = Arrays.copyOf(checksums, checksums.length * 2);
+        }
+        checksums[block++] = checksum;
+        crc.reset();
+        blockRemaining = blockSize;
+    }
+}
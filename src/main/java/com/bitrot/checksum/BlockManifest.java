@@ -0,0 +1,83 @@
+package com.bitrot.checksum;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The CRC32C of every fixed-size block of a file, in order. The last block may be shorter than the others.
+ * <p>
+ * With a manifest a mismatch can be pinned down to a byte range, and verification can stop at the first bad block
+ * instead of reading the rest of a large file only to report that it failed.
+ * The manifest is stored as packed 4-byte big-endian values so that even a very large file only needs a small field.
+ */
+public final class BlockManifest {
+    private final long blockSize;
+    private final int[] checksums;
+
+    BlockManifest(final long blockSize, final int[] checksums) {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("Block size must be positive but was " + blockSize);
+        }
+        this.blockSize = blockSize;
+        this.checksums = checksums;
+    }
+
+    /**
+     * Reads a manifest as it is stored in the database.
+     *
+     * @param blockSize the block size
+     * @param bytes     the packed checksums from {@link #toBytes()}
+     * @return the manifest
+     */
+    public static BlockManifest fromBytes(final long blockSize, final byte[] bytes) {
+        if (bytes.length % Integer.BYTES != 0) {
+            throw new IllegalArgumentException("Block manifest length " + bytes.length + " is not a multiple of " + Integer.BYTES);
+        }
+        final int[] checksums = new int[bytes.length / Integer.BYTES];
+        ByteBuffer.wrap(bytes).asIntBuffer().get(checksums);
+        return new BlockManifest(blockSize, checksums);
+    }
+
+    /**
+     * Returns the manifest packed for storage in the database.
+     *
+     * @return the packed checksums
+     */
+    public byte[] toBytes() {
+        final ByteBuffer buffer = ByteBuffer.allocate(checksums.length * Integer.BYTES);
+        buffer.asIntBuffer().put(checksums);
+        return buffer.array();
+    }
+
+    public long getBlockSize() {
+        return blockSize;
+    }
+
+    public int getBlockCount() {
+        return checksums.length;
+    }
+
+    /**
+     * Returns whether this manifest can describe a file of the given size.
+     *
+     * @param fileSize the size of the file
+     * @return true if the manifest has exactly one checksum per block of the file
+     */
+    public boolean covers(final long fileSize) {
+        return blockCount(fileSize, blockSize) == checksums.length;
+    }
+
+    int checksum(final int block) {
+        return checksums[block];
+    }
+
+    /**
+     * Returns the number of blocks a file is split into.
+     *
+     * @param fileSize  the size of the file
+     * @param blockSize the block size
+     * @return the number of blocks
+     */
+    public static long blockCount(final long fileSize, final long blockSize) {
+        return (fileSize + blockSize - 1) / blockSize;
+    }
+}
@@ -0,0 +1,40 @@
+package com.bitrot.checksum;
+
+import java.io.IOException;
+
+/**
+ * Thrown while reading a file when one of its blocks does not match the {@link BlockManifest}.
+ * Reading stops right away, so this only knows about the first bad block.
+ */
+public class BlockMismatchException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final int block;
+    private final long startOffset;
+    private final long endOffset;
+
+    public BlockMismatchException(final int block, final long startOffset, final long endOffset) {
+        super("Block " + block + " (bytes " + startOffset + " to " + endOffset + ") does not match its checksum");
+        this.block = block;
+        this.startOffset = startOffset;
+        this.endOffset = endOffset;
+    }
+
+    public int getBlock() {
+        return block;
+    }
+
+    /**
+     * @return the offset of the first byte of the bad block
+     */
+    public long getStartOffset() {
+        return startOffset;
+    }
+
+    /**
+     * @return the offset just past the last byte of the bad block
+     */
+    public long getEndOffset() {
+        return endOffset;
+    }
+}
@@ -0,0 +1,59 @@
+package com.bitrot.checksum;
+
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+
+/**
+ * The checksum algorithms that ship with this program.
+ */
+public enum BuiltInChecksumAlgorithm implements ChecksumAlgorithm {
+    /**
+     * The original algorithm. Every record without an algorithm in the database was computed with this.
+     */
+    CRC32(CRC32::new, CrcCombine.CRC32_POLYNOMIAL),
+
+    /**
+     * CRC-32C (Castagnoli). The JDK compiles this to the SSE4.2 / ARMv8 CRC instructions, so it is much faster per core
+     * than {@link #CRC32} on modern hardware.
+     */
+    CRC32C(CRC32C::new, CrcCombine.CRC32C_POLYNOMIAL),
+
+    /**
+     * 64-bit xxHash. Fast on any hardware, and a 64-bit value makes collisions a non-issue at our file counts.
+     */
+    XXHASH64(XxHash64::new, 0);
+
+    private final Supplier<Checksum> checksumSupplier;
+    // The reflected CRC polynomial, or 0 if this is not a CRC
+    private final int crcPolynomial;
+
+    BuiltInChecksumAlgorithm(final Supplier<Checksum> checksumSupplier, final int crcPolynomial) {
+        this.checksumSupplier = checksumSupplier;
+        this.crcPolynomial = crcPolynomial;
+    }
+
+    @Override
+    public String getName() {
+        return name();
+    }
+
+    @Override
+    public Checksum newChecksum() {
+        return checksumSupplier.get();
+    }
+
+    @Override
+    public boolean isCombinable() {
+        return crcPolynomial != 0;
+    }
+
+    @Override
+    public long combine(final long first, final long second, final long secondLength) {
+        if (!isCombinable()) {
+            return ChecksumAlgorithm.super.combine(first, second, secondLength);
+        }
+        return CrcCombine.combine(crcPolynomial, first, second, secondLength);
+    }
+}
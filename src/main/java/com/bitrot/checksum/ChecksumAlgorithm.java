@@ -0,0 +1,50 @@
+package com.bitrot.checksum;
+
+import java.util.zip.Checksum;
+
+/**
+ * An algorithm used to compute the checksum of a file's contents.
+ * <p>
+ * The name of the algorithm is stored alongside the checksum in the database, so it must never change once records
+ * have been written with it. Additional algorithms can be plugged in through {@link java.util.ServiceLoader} by
+ * listing the implementation in {@code META-INF/services/com.bitrot.checksum.ChecksumAlgorithm}.
+ */
+public interface ChecksumAlgorithm {
+    /**
+     * Returns the name of this algorithm as it is stored in the database.
+     *
+     * @return the name
+     */
+    String getName();
+
+    /**
+     * Returns a new, empty checksum for this algorithm.
+     * The returned checksum is not thread-safe.
+     *
+     * @return the new checksum
+     */
+    Checksum newChecksum();
+
+    /**
+     * Returns whether checksums of consecutive pieces of a file can be combined with {@link #combine}.
+     * Only then can a file be hashed in several ranges at once.
+     *
+     * @return true if this algorithm supports combining
+     */
+    default boolean isCombinable() {
+        return false;
+    }
+
+    /**
+     * Returns the checksum of the first piece followed by the second piece.
+     *
+     * @param first        the checksum of the first piece
+     * @param second       the checksum of the second piece
+     * @param secondLength the length of the second piece in bytes
+     * @return the checksum of both pieces
+     * @throws UnsupportedOperationException if {@link #isCombinable()} is false
+     */
+    default long combine(final long first, final long second, final long secondLength) {
+        throw new UnsupportedOperationException(getName() + " checksums cannot be combined");
+    }
+}
@@ -0,0 +1,41 @@
+package com.bitrot.checksum;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.ServiceLoader;
+
+/**
+ * Looks up checksum algorithms by the name stored in the database.
+ */
+public abstract class ChecksumAlgorithms {
+    private static final Map<String, ChecksumAlgorithm> ALGORITHMS = loadAlgorithms();
+
+    private static Map<String, ChecksumAlgorithm> loadAlgorithms() {
+        final Map<String, ChecksumAlgorithm> algorithms = new LinkedHashMap<>();
+        for (final ChecksumAlgorithm algorithm : BuiltInChecksumAlgorithm.values()) {
+            algorithms.put(algorithm.getName(), algorithm);
+        }
+        for (final ChecksumAlgorithm algorithm : ServiceLoader.load(ChecksumAlgorithm.class)) {
+            if (algorithms.putIfAbsent(algorithm.getName(), algorithm) != null) {
+                throw new IllegalStateException("Duplicate checksum algorithm name: " + algorithm.getName());
+            }
+        }
+        return Collections.unmodifiableMap(algorithms);
+    }
+
+    /**
+     * Returns the algorithm with the given name.
+     *
+     * @param name the name of the algorithm
+     * @return the algorithm
+     * @throws IllegalArgumentException if there is no algorithm with that name
+     */
+    public static ChecksumAlgorithm forName(final String name) {
+        final ChecksumAlgorithm algorithm = ALGORITHMS.get(name);
+        if (algorithm == null) {
+            throw new IllegalArgumentException("Unknown checksum algorithm " + name + ". Known algorithms: " + ALGORITHMS.keySet());
+        }
+        return algorithm;
+    }
+}
@@ -0,0 +1,82 @@
+package com.bitrot.checksum;
+
+/**
+ * Combines the CRCs of two consecutive pieces of data into the CRC of the whole, without reading the data again.
+ * This is the GF(2) matrix method from zlib's {@code crc32_combine}: appending {@code n} bytes to a message is a linear
+ * operator on its CRC, and that operator is built by repeated squaring in {@code O(log n)} steps.
+ * <p>
+ * Works for any reflected 32-bit CRC with an initial value and final XOR of all ones, such as CRC32 and CRC32C.
+ */
+public final class CrcCombine {
+    // The reflected polynomials of the JDK's CRC implementations
+    static final int CRC32_POLYNOMIAL = 0xEDB88320;
+    static final int CRC32C_POLYNOMIAL = 0x82F63B78;
+
+    private CrcCombine() {}
+
+    /**
+     * Returns the CRC of the first piece followed by the second piece.
+     *
+     * @param polynomial   the reflected polynomial of the CRC
+     * @param firstCrc     the CRC of the first piece
+     * @param secondCrc    the CRC of the second piece
+     * @param secondLength the length of the second piece in bytes
+     * @return the CRC of both pieces, as an unsigned 32-bit value
+     */
+    static long combine(final int polynomial, final long firstCrc, final long secondCrc, final long secondLength) {
+        if (secondLength <= 0) {
+            return firstCrc;
+        }
+
+        // The operator for one zero bit
+        final int[] odd = new int[32];
+        odd[0] = polynomial;
+        int row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        final int[] even = new int[32];
+        // Two zero bits, then four
+        square(even, odd);
+        square(odd, even);
+
+        // Apply the operator for each set bit of the length, starting with one zero byte
+        int crc = (int) firstCrc;
+        long length = secondLength;
+        do {
+            square(even, odd);
+            if ((length & 1) != 0) {
+                crc = times(even, crc);
+            }
+            length >>>= 1;
+            if (length == 0) {
+                break;
+            }
+
+            square(odd, even);
+            if ((length & 1) != 0) {
+                crc = times(odd, crc);
+            }
+            length >>>= 1;
+        } while (length != 0);
+
+        return Integer.toUnsignedLong(crc ^ (int) secondCrc);
+    }
+
+    private static int times(final int[] matrix, int vector) {
+        int sum = 0;
+        for (int i = 0; vector != 0; i++, vector >>>= 1) {
+            if ((vector & 1) != 0) {
+                sum ^= matrix[i];
+            }
+        }
+        return sum;
+    }
+
+    private static void square(final int[] square, final int[] matrix) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = times(matrix, matrix[n]);
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package com.bitrot.checksum;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Objects;
+import java.util.zip.Checksum;
+
+/**
+ * A streaming implementation of the 64-bit xxHash algorithm with a seed of zero.
+ * See <a href="https://github.com/Cyan4973/xxHash/blob/dev/doc/xxhash_spec.md">the specification</a>.
+ * <p>
+ * Unlike the CRC classes in the JDK, the whole 64-bit value is returned by {@link #getValue()}, so it can be negative.
+ */
+public final class XxHash64 implements Checksum {
+    private static final long PRIME_1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME_2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME_3 = 0x165667B19E3779F9L;
+    private static final long PRIME_4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME_5 = 0x27D4EB2F165667C5L;
+
+    private static final int STRIPE_LENGTH = 32;
+
+    private static final VarHandle ARRAY_LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle ARRAY_INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle BUFFER_LONG = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    // Bytes that did not fill a whole stripe yet
+    private final byte[] pending = new byte[STRIPE_LENGTH];
+    private int pendingLength;
+    private long totalLength;
+
+    private long acc1;
+    private long acc2;
+    private long acc3;
+    private long acc4;
+
+    public XxHash64() {
+        reset();
+    }
+
+    @Override
+    public void update(final int b) {
+        pending[pendingLength++] = (byte) b;
+        totalLength++;
+        if (pendingLength == STRIPE_LENGTH) {
+            processStripe(pending, 0);
+            pendingLength = 0;
+        }
+    }
+
+    @Override
+    public void update(final byte[] b, int off, int len) {
+        Objects.checkFromIndexSize(off, len, b.length);
+        totalLength += len;
+
+        if (pendingLength > 0) {
+            final int fill = Math.min(STRIPE_LENGTH - pendingLength, len);
+            System.arraycopy(b, off, pending, pendingLength, fill);
+            pendingLength += fill;
+            off += fill;
+            len -= fill;
+            if (pendingLength < STRIPE_LENGTH) {
+                return;
+            }
+            processStripe(pending, 0);
+            pendingLength = 0;
+        }
+
+        while (len >= STRIPE_LENGTH) {
+            processStripe(b, off);
+            off += STRIPE_LENGTH;
+            len -= STRIPE_LENGTH;
+        }
+
+        System.arraycopy(b, off, pending, 0, len);
+        pendingLength = len;
+    }
+
+    /**
+     * Reads direct and mapped buffers in place instead of copying them into a temporary array like the default
+     * implementation does.
+     */
+    @Override
+    public void update(final ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            buffer.position(buffer.limit());
+            return;
+        }
+
+        int position = buffer.position();
+        final int limit = buffer.limit();
+        totalLength += limit - position;
+
+        if (pendingLength > 0) {
+            final int fill = Math.min(STRIPE_LENGTH - pendingLength, limit - position);
+            buffer.get(position, pending, pendingLength, fill);
+            pendingLength += fill;
+            position += fill;
+            if (pendingLength < STRIPE_LENGTH) {
+                buffer.position(limit);
+                return;
+            }
+            processStripe(pending, 0);
+            pendingLength = 0;
+        }
+
+        while (limit - position >= STRIPE_LENGTH) {
+            acc1 = round(acc1, (long) BUFFER_LONG.get(buffer, position));
+            acc2 = round(acc2, (long) BUFFER_LONG.get(buffer, position + 8));
+            acc3 = round(acc3, (long) BUFFER_LONG.get(buffer, position + 16));
+            acc4 = round(acc4, (long) BUFFER_LONG.get(buffer, position + 24));
+            position += STRIPE_LENGTH;
+        }
+
+        pendingLength = limit - position;
+        buffer.get(position, pending, 0, pendingLength);
+        buffer.position(limit);
+    }
+
+    @Override
+    public long getValue() {
+        long hash;
+        if (totalLength >= STRIPE_LENGTH) {
+            hash = Long.rotateLeft(acc1, 1) + Long.rotateLeft(acc2, 7) + Long.rotateLeft(acc3, 12) + Long.rotateLeft(acc4, 18);
+            hash = mergeRound(hash, acc1);
+            hash = mergeRound(hash, acc2);
+            hash = mergeRound(hash, acc3);
+            hash = mergeRound(hash, acc4);
+        } else {
+            hash = acc3 + PRIME_5;
+        }
+        hash += totalLength;
+
+        int offset = 0;
+        while (pendingLength - offset >= 8) {
+            hash ^= round(0, (long) ARRAY_LONG.get(pending, offset));
+            hash = Long.rotateLeft(hash, 27) * PRIME_1 + PRIME_4;
+            offset += 8;
+        }
+        if (pendingLength - offset >= 4) {
+            hash ^= Integer.toUnsignedLong((int) ARRAY_INT.get(pending, offset)) * PRIME_1;
+            hash = Long.rotateLeft(hash, 23) * PRIME_2 + PRIME_3;
+            offset += 4;
+        }
+        while (offset < pendingLength) {
+            hash ^= (pending[offset] & 0xFFL) * PRIME_5;
+            hash = Long.rotateLeft(hash, 11) * PRIME_1;
+            offset++;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= PRIME_2;
+        hash ^= hash >>> 29;
+        hash *= PRIME_3;
+        hash ^= hash >>> 32;
+        return hash;
+    }
+
+    @Override
+    public void reset() {
+        // The seed is always zero
+        acc1 = PRIME_1 + PRIME_2;
+        acc2 = PRIME_2;
+        acc3 = 0;
+        acc4 = -PRIME_1;
+        pendingLength = 0;
+        totalLength = 0;
+    }
+
+    private void processStripe(final byte[] b, final int off) {
+        acc1 = round(acc1, (long) ARRAY_LONG.get(b, off));
+        acc2 = round(acc2, (long) ARRAY_LONG.get(b, off + 8));
+        acc3 = round(acc3, (long) ARRAY_LONG.get(b, off + 16));
+        acc4 = round(acc4, (long) ARRAY_LONG.get(b, off + 24));
+    }
+
+    private static long round(long acc, final long input) {
+        acc += input * PRIME_2;
+        acc = Long.rotateLeft(acc, 31);
+        return acc * PRIME_1;
+    }
+
+    private static long mergeRound(long acc, final long value) {
+        acc ^= round(0, value);
+        return acc * PRIME_1 + PRIME_4;
+    }
+}
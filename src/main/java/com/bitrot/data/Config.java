@@ -1,6 +1,9 @@
 package com.bitrot.data;
 
+import com.bitrot.checksum.BuiltInChecksumAlgorithm;
+import com.bitrot.io.ReadEngine;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import org.jspecify.annotations.Nullable;
 
 import java.io.File;
 import java.io.IOException;
@@ -14,9 +17,37 @@ public class Config {
     private List<String> mutablePaths;
     private List<String> immutablePaths;
     private String healthCheckUrl;
+    private ReadEngine readEngine = ReadEngine.STREAM;
+    private String checksumAlgorithm = BuiltInChecksumAlgorithm.CRC32.getName();
+    private boolean migrateChecksums = false;
+    private double lastAccessedRefreshFraction = 0.1;
+    private boolean inMemoryRecencyIndex = false;
+    private boolean reactiveDriver = false;
+    private boolean localReplica = false;
+    private int blockManifestSizeMiB = 0;
+    private boolean runJournal = false;
+    private long budgetGiB = 0;
+    private long budgetMinutes = 0;
+    private int maxReadMiBPerSecond = 0;
+    private boolean adaptiveThrottling = false;
+    private boolean pageCacheAdvice = false;
+    private boolean physicalOrder = false;
+    private List<SkipRule> skipRules = SkipRule.defaults();
+    private @Nullable String metricsTextFile = null;
+    private int metricsIntervalSeconds = 30;
 
     private Config() {}
 
+    /**
+     * Returns a config with every optional setting at its default value.
+     * This is useful for tools and tests that do not read the config file.
+     *
+     * @return the default config
+     */
+    public static Config defaults() {
+        return new Config();
+    }
+
     public static Config readConfig() throws IOException {
         final File configFile = new File(CONFIG_FILE_NAME);
         if (!configFile.exists()) {
@@ -57,4 +88,171 @@ public class Config {
     public void setHealthCheckUrl(final String healthCheckUrl) {
         this.healthCheckUrl = healthCheckUrl;
     }
+
+    public ReadEngine getReadEngine() {
+        return readEngine;
+    }
+
+    public void setReadEngine(final ReadEngine readEngine) {
+        this.readEngine = readEngine;
+    }
+
+    public String getChecksumAlgorithm() {
+        return checksumAlgorithm;
+    }
+
+    public void setChecksumAlgorithm(final String checksumAlgorithm) {
+        this.checksumAlgorithm = checksumAlgorithm;
+    }
+
+    public boolean isMigrateChecksums() {
+        return migrateChecksums;
+    }
+
+    public void setMigrateChecksums(final boolean migrateChecksums) {
+        this.migrateChecksums = migrateChecksums;
+    }
+
+    public double getLastAccessedRefreshFraction() {
+        return lastAccessedRefreshFraction;
+    }
+
+    public void setLastAccessedRefreshFraction(final double lastAccessedRefreshFraction) {
+        // At 1 or more, documents that are still in use would expire from the database before we touch them again
+        if (!(lastAccessedRefreshFraction > 0 && lastAccessedRefreshFraction < 1)) {
+            throw new IllegalArgumentException("lastAccessedRefreshFraction must be above 0 and below 1, but was " + lastAccessedRefreshFraction);
+        }
+        this.lastAccessedRefreshFraction = lastAccessedRefreshFraction;
+    }
+
+    public boolean isInMemoryRecencyIndex() {
+        return inMemoryRecencyIndex;
+    }
+
+    public void setInMemoryRecencyIndex(final boolean inMemoryRecencyIndex) {
+        this.inMemoryRecencyIndex = inMemoryRecencyIndex;
+    }
+
+    public boolean isReactiveDriver() {
+        return reactiveDriver;
+    }
+
+    public void setReactiveDriver(final boolean reactiveDriver) {
+        this.reactiveDriver = reactiveDriver;
+    }
+
+    public boolean isLocalReplica() {
+        return localReplica;
+    }
+
+    public void setLocalReplica(final boolean localReplica) {
+        this.localReplica = localReplica;
+    }
+
+    public int getBlockManifestSizeMiB() {
+        return blockManifestSizeMiB;
+    }
+
+    public void setBlockManifestSizeMiB(final int blockManifestSizeMiB) {
+        if (blockManifestSizeMiB < 0) {
+            throw new IllegalArgumentException("blockManifestSizeMiB must be at least 0, but was " + blockManifestSizeMiB);
+        }
+        this.blockManifestSizeMiB = blockManifestSizeMiB;
+    }
+
+    public boolean isRunJournal() {
+        return runJournal;
+    }
+
+    public void setRunJournal(final boolean runJournal) {
+        this.runJournal = runJournal;
+    }
+
+    public long getBudgetGiB() {
+        return budgetGiB;
+    }
+
+    public void setBudgetGiB(final long budgetGiB) {
+        if (budgetGiB < 0) {
+            throw new IllegalArgumentException("budgetGiB must be at least 0, but was " + budgetGiB);
+        }
+        this.budgetGiB = budgetGiB;
+    }
+
+    public long getBudgetMinutes() {
+        return budgetMinutes;
+    }
+
+    public void setBudgetMinutes(final long budgetMinutes) {
+        if (budgetMinutes < 0) {
+            throw new IllegalArgumentException("budgetMinutes must be at least 0, but was " + budgetMinutes);
+        }
+        this.budgetMinutes = budgetMinutes;
+    }
+
+    public int getMaxReadMiBPerSecond() {
+        return maxReadMiBPerSecond;
+    }
+
+    public void setMaxReadMiBPerSecond(final int maxReadMiBPerSecond) {
+        if (maxReadMiBPerSecond < 0) {
+            throw new IllegalArgumentException("maxReadMiBPerSecond must be at least 0, but was " + maxReadMiBPerSecond);
+        }
+        this.maxReadMiBPerSecond = maxReadMiBPerSecond;
+    }
+
+    public boolean isAdaptiveThrottling() {
+        return adaptiveThrottling;
+    }
+
+    public void setAdaptiveThrottling(final boolean adaptiveThrottling) {
+        this.adaptiveThrottling = adaptiveThrottling;
+    }
+
+    public boolean isPageCacheAdvice() {
+        return pageCacheAdvice;
+    }
+
+    public void setPageCacheAdvice(final boolean pageCacheAdvice) {
+        this.pageCacheAdvice = pageCacheAdvice;
+    }
+
+    public boolean isPhysicalOrder() {
+        return physicalOrder;
+    }
+
+    public void setPhysicalOrder(final boolean physicalOrder) {
+        this.physicalOrder = physicalOrder;
+    }
+
+    public List<SkipRule> getSkipRules() {
+        return skipRules;
+    }
+
+    public void setSkipRules(final List<SkipRule> skipRules) {
+        if (skipRules == null || skipRules.contains(null)) {
+            throw new IllegalArgumentException("skipRules cannot be null. Leave it out to use the default rules, or use [] to skip nothing.");
+        }
+        this.skipRules = skipRules;
+    }
+
+    @Nullable
+    public String getMetricsTextFile() {
+        return metricsTextFile;
+    }
+
+    public void setMetricsTextFile(@Nullable final String metricsTextFile) {
+        this.metricsTextFile = metricsTextFile;
+    }
+
+    public int getMetricsIntervalSeconds() {
+        return metricsIntervalSeconds;
+    }
+
+    public void setMetricsIntervalSeconds(final int metricsIntervalSeconds) {
+        if (metricsIntervalSeconds <= 0) {
+            throw new IllegalArgumentException("metricsIntervalSeconds must be at least 1, but was " + metricsIntervalSeconds);
+        }
+        this.metricsIntervalSeconds = metricsIntervalSeconds;
+    }
 }
@@ -7,19 +7,55 @@ import java.util.List;
 public interface Constants {
     String CONFIG_FILE_NAME = "config.json";
 
-    int THREADS = 16;
+    // How many directories can be listed at the same time while walking a path
+    int WALKER_MAX_OPEN_DIRECTORIES = 16;
+    // How many files have their database documents fetched with a single query
+    int PREFETCH_BATCH_SIZE = 500;
+    // How many files of a single path can be between the walk and their result at once. The walk waits when full.
+    int MAX_FILES_IN_FLIGHT = 8 * PREFETCH_BATCH_SIZE;
+    // While waiting for the last files of a path, queued database writes are flushed this often as the files wait on them
+    long RESULT_WAIT_FLUSH_INTERVAL_MILLIS = 500;
     int CRC_BUFFER_SIZE = 4096 * 1024;
+    // Size of each window when memory-mapping a file with the MMAP read engine
+    long MMAP_WINDOW_SIZE = 64L * 1024 * 1024;
 
+    // How many files can be read at the same time from a single physical device
+    int ROTATIONAL_READERS_PER_DEVICE = 1;
+    int SOLID_STATE_READERS_PER_DEVICE = 4;
+    // Files at least this large on a solid state device are read in ranges of this size by all of its readers at once
+    long PARALLEL_HASH_MIN_FILE_SIZE = 256L * 1024 * 1024;
+    long PARALLEL_HASH_RANGE_SIZE = 64L * 1024 * 1024;
+    // With page cache advice, files are read ahead and dropped from the page cache in windows of this size
+    long PAGE_CACHE_ADVICE_WINDOW_SIZE = 16L * 1024 * 1024;
+    // Adaptive throttling, see DiskLoadMonitor. A device is busy when its requests take longer than this on average
+    // while other programs move more than the minimum through it. The rate is then halved, and otherwise grows by the
+    // increase every sample, but never drops below the minimum.
+    long THROTTLE_SAMPLE_INTERVAL_MILLIS = 1000;
+    long ROTATIONAL_BUSY_AWAIT_MILLIS = 20;
+    long SOLID_STATE_BUSY_AWAIT_MILLIS = 2;
+    long THROTTLE_FOREGROUND_MIN_BYTES_PER_SECOND = 1024 * 1024;
+    double THROTTLE_MIN_BYTES_PER_SECOND = 1024 * 1024;
+    double THROTTLE_INCREASE_BYTES_PER_SECOND = 4 * 1024 * 1024;
+
+    // When reading in physical order, how many files are sorted in memory before a sorted run is written to disk
+    int PHYSICAL_ORDER_SORT_RUN_SIZE = 100_000;
+    // When ordering the files of a budgeted run by their last verification, how many are sorted in memory at once
+    int BUDGET_SORT_RUN_SIZE = 100_000;
+
+    // Maximum number of verifications committed to the recency database in a single transaction
+    int RECENCY_WRITE_BATCH_SIZE = 1000;
+    // How many connections look up recent verifications at the same time
+    int RECENCY_LOOKUP_CONNECTIONS = 4;
     Instant DELETE_RECENCY_ENTRIES_OLDER_THAN = Instant.now().minus(365, ChronoUnit.DAYS);
     Instant SKIP_FILES_CHECKED_SINCE = Instant.now().minus(90, ChronoUnit.DAYS);
     Instant DO_NOT_SAVE_FILES_NEWER_THAN = Instant.now().minus(1, ChronoUnit.DAYS);
 
-    // Prefix strings to skip when processing files.
+    // Prefix strings to skip when processing files, unless the config has its own skipRules.
     // Each prefix is evaluated for every part of the path.
     // For example [".st"] means that C:\Program Files\MyProgram\.stver\test.txt would be skipped
     List<String> SKIP_PREFIXES = List.of(".st");
 
-    // Suffix strings to skip when processing files.
+    // Suffix strings to skip when processing files, unless the config has its own skipRules.
     // Each suffix is evaluated for every part of the path.
     // For example [".tmp"] means that C:\Program Files\MyProgram\.stver\test.txt.tmp would be skipped
     List<String> SKIP_SUFFIXES = List.of(".tmp");
@@ -27,4 +63,19 @@ public interface Constants {
     String MONGO_DB_NAME = "bitrot";
     String MONGO_COLLECTION_NAME = "files";
     long SECONDS_IN_A_YEAR = 60 * 60 * 24 * 366;
+    // Database writes are queued and sent in bulk once there are this many, or after this many seconds
+    int BULK_WRITE_BATCH_SIZE = 1000;
+    long BULK_WRITE_FLUSH_INTERVAL_SECONDS = 10;
+    // A bulk write that fails with a transient error is tried this many times in all, waiting twice as long each time
+    int BULK_WRITE_MAX_ATTEMPTS = 5;
+    long BULK_WRITE_RETRY_BACKOFF_MILLIS = 1000;
+    // The local replica of the verification collection, see ReplicaMongoManager
+    String REPLICA_FILE_NAME = "files_replica.sqlite";
+    // Delta syncs also fetch documents accessed this long before the last sync, in case clocks disagree
+    long REPLICA_SYNC_OVERLAP_SECONDS = 60 * 60;
+    // The replica is rebuilt from scratch this often so that documents deleted from the database disappear from it
+    long REPLICA_FULL_SYNC_INTERVAL_SECONDS = 60 * 60 * 24 * 30;
+    // The run journal, see RunJournal. Files at least as large as the interval save a checkpoint every interval.
+    String RUN_JOURNAL_FILE_NAME = "run_journal.sqlite";
+    long RUN_JOURNAL_CHECKPOINT_INTERVAL = 1024L * 1024 * 1024;
 }
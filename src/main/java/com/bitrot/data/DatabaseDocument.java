@@ -1,7 +1,16 @@
 package com.bitrot.data;
 
+import com.bitrot.checksum.BlockManifest;
+import com.bitrot.checksum.BuiltInChecksumAlgorithm;
+import com.bitrot.checksum.ChecksumAlgorithm;
+import com.bitrot.checksum.ChecksumAlgorithms;
 import org.bson.Document;
+import org.bson.types.Binary;
 import org.bson.types.ObjectId;
+import org.jspecify.annotations.Nullable;
+
+import java.time.Instant;
+import java.util.Date;
 
 import static com.bitrot.MongoManager.*;
 
@@ -47,4 +56,66 @@ public class DatabaseDocument {
         }
         return ((Number) val).longValue();
     }
+
+    /**
+     * Returns when this document was last accessed, or null if the document does not have the field.
+     *
+     * @return the last accessed time
+     */
+    @Nullable
+    public Instant lastAccessed() {
+        final Date val = document.getDate(LAST_ACCESSED_KEY);
+        return val == null ? null : val.toInstant();
+    }
+
+    /**
+     * Returns the algorithm that produced {@link #checksum()}.
+     * Documents without an algorithm were written before we supported anything but CRC32.
+     *
+     * @return the checksum algorithm
+     */
+    public ChecksumAlgorithm checksumAlgorithm() {
+        final String name = document.getString(CHECKSUM_ALGORITHM_KEY);
+        if (name == null) {
+            return BuiltInChecksumAlgorithm.CRC32;
+        }
+        return ChecksumAlgorithms.forName(name);
+    }
+
+    /**
+     * Returns the checksum computed with the given algorithm, or null if the document does not have one.
+     * This looks at both the main {@link #checksum()} and the checksums added by a migration.
+     *
+     * @param algorithm the checksum algorithm
+     * @return the checksum or null
+     */
+    @Nullable
+    public Long checksum(final ChecksumAlgorithm algorithm) {
+        if (algorithm.equals(checksumAlgorithm())) {
+            final Object val = document.get(CHECKSUM_KEY);
+            return val == null ? null : ((Number) val).longValue();
+        }
+
+        final Document checksums = document.get(CHECKSUMS_KEY, Document.class);
+        if (checksums == null) {
+            return null;
+        }
+        final Object val = checksums.get(algorithm.getName());
+        return val == null ? null : ((Number) val).longValue();
+    }
+
+    /**
+     * Returns the checksums of the blocks of the file, or null if the document does not have them.
+     *
+     * @return the block manifest or null
+     */
+    @Nullable
+    public BlockManifest blockManifest() {
+        final Object blockSize = document.get(BLOCK_SIZE_KEY);
+        final Binary checksums = document.get(BLOCK_CHECKSUMS_KEY, Binary.class);
+        if (blockSize == null || checksums == null) {
+            return null;
+        }
+        return BlockManifest.fromBytes(((Number) blockSize).longValue(), checksums.getData());
+    }
 }
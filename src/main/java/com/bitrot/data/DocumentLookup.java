@@ -0,0 +1,72 @@
+package com.bitrot.data;
+
+import org.jspecify.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A short-lived lookup of the database documents for a batch of files, fetched with a single query.
+ * This lets us verify a whole batch of files with one round trip to the database instead of one or two per file.
+ * <p>
+ * The lookup knows which file IDs were fetched, so it can tell "not in the database" apart from "not fetched".
+ */
+public class DocumentLookup {
+    private final Set<String> fetchedFileIds;
+    private final Map<String, List<DatabaseDocument>> documentsByFileId = new HashMap<>();
+
+    /**
+     * @param fetchedFileIds the file IDs that were queried
+     * @param documents      every document that matched one of the file IDs
+     */
+    public DocumentLookup(final Set<String> fetchedFileIds, final List<DatabaseDocument> documents) {
+        this.fetchedFileIds = fetchedFileIds;
+        for (final DatabaseDocument document : documents) {
+            documentsByFileId.computeIfAbsent(document.fileId(), fileId -> new ArrayList<>(1)).add(document);
+        }
+    }
+
+    /**
+     * Returns whether the documents for the given file ID were fetched.
+     * If not, the caller needs to query the database itself.
+     *
+     * @param fileId the file ID
+     * @return true if this lookup has the answer for the file ID
+     */
+    public boolean contains(final String fileId) {
+        return fetchedFileIds.contains(fileId);
+    }
+
+    /**
+     * Returns the document with the same file ID and modified time as the given record, if there is one.
+     *
+     * @param fileRecord the file record
+     * @return the matching document or null
+     * @throws IOException if there was a problem getting the modified time of the file
+     */
+    @Nullable
+    public DatabaseDocument findExactMatch(final FileRecord fileRecord) throws IOException {
+        for (final DatabaseDocument document : documentsByFileId.getOrDefault(fileRecord.getFileId(), List.of())) {
+            if (document.mTimeSeconds() == fileRecord.getMTimeSeconds() && document.mTimeNanos() == fileRecord.getMTimeNanos()) {
+                return document;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns any document with the given file ID, regardless of its modified time.
+     *
+     * @param fileId the file ID
+     * @return a document or null
+     */
+    @Nullable
+    public DatabaseDocument findAny(final String fileId) {
+        final List<DatabaseDocument> documents = documentsByFileId.get(fileId);
+        return documents == null ? null : documents.getFirst();
+    }
+}
@@ -1,26 +1,42 @@
 package com.bitrot.data;
 
+import com.bitrot.FileUtils;
+import com.bitrot.checksum.BlockChecksummer;
+import com.bitrot.checksum.BlockMismatchException;
+import com.bitrot.checksum.BuiltInChecksumAlgorithm;
+import com.bitrot.checksum.ChecksumAlgorithm;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
 import java.time.Instant;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import static com.bitrot.FileUtils.calculateFileId;
-import static com.bitrot.FileUtils.computeCRC;
+import static com.bitrot.FileUtils.computeChecksum;
 
 public final class FileRecord {
+    private static final long NANOS_IN_A_SECOND = TimeUnit.SECONDS.toNanos(1);
+
     private final String filePath;
     private final Path absoluteFilePath;
 
-    // Lazy fields that are low-cost on the disk
-    private Instant modifiedTime = null;
-    private Instant createdTime = null;
-    private Long crc = null;
+    // Lazy fields that are low-cost on the disk, all read with a single read of the attributes. They are kept as
+    // primitives because a record is created for every file.
+    private boolean attributesLoaded = false;
+    private long modifiedSeconds;
+    private int modifiedNanos;
+    private long createdSeconds;
+    private int createdNanos;
+    private long size;
+    private Map<ChecksumAlgorithm, Long> checksums = null;
 
     // Lazy fields we don't want to preload
-    private Long size = null;
     private String fileId = null;
 
     /**
@@ -43,15 +59,73 @@ public final class FileRecord {
 
         if (preLoad) {
             try {
-                getModifiedInstant();
-                getFileCreationTime();
-                getSize();
+                preLoad();
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
         }
     }
 
+    /**
+     * Creates a record with the modified time, creation time and size taken from attributes that were already read,
+     * for example while walking the directory.
+     *
+     * @param absoluteFilePath the absolute path of the file
+     * @param filePath         the relative path of the file ignoring the prefix
+     * @param attributes       the attributes of the file
+     */
+    public FileRecord(final Path absoluteFilePath, final String filePath, final BasicFileAttributes attributes) {
+        this.filePath = filePath;
+        this.absoluteFilePath = absoluteFilePath;
+        loadAttributes(attributes);
+    }
+
+    /**
+     * Loads the modified time, creation time and size of the file with a single read of its attributes.
+     * Does nothing if they were already loaded.
+     *
+     * @throws IOException if there was a problem reading the attributes
+     */
+    public void preLoad() throws IOException {
+        if (!attributesLoaded) {
+            loadAttributes(Files.readAttributes(absoluteFilePath, BasicFileAttributes.class));
+        }
+    }
+
+    private void loadAttributes(final BasicFileAttributes attributes) {
+        final FileTime modifiedTime = attributes.lastModifiedTime();
+        modifiedSeconds = epochSeconds(modifiedTime);
+        modifiedNanos = nanosOfSecond(modifiedTime);
+        final FileTime createdTime = attributes.creationTime();
+        createdSeconds = epochSeconds(createdTime);
+        createdNanos = nanosOfSecond(createdTime);
+        size = attributes.size();
+        attributesLoaded = true;
+    }
+
+    /**
+     * Returns the seconds of the time like {@link Instant#getEpochSecond()}, without creating an Instant unless the
+     * time is too far from the epoch to count in nanoseconds.
+     */
+    private static long epochSeconds(final FileTime time) {
+        final long nanos = time.to(TimeUnit.NANOSECONDS);
+        if (nanos == Long.MIN_VALUE || nanos == Long.MAX_VALUE) {
+            return time.toInstant().getEpochSecond();
+        }
+        return Math.floorDiv(nanos, NANOS_IN_A_SECOND);
+    }
+
+    /**
+     * Returns the nanoseconds of the time like {@link Instant#getNano()}.
+     */
+    private static int nanosOfSecond(final FileTime time) {
+        final long nanos = time.to(TimeUnit.NANOSECONDS);
+        if (nanos == Long.MIN_VALUE || nanos == Long.MAX_VALUE) {
+            return time.toInstant().getNano();
+        }
+        return (int) Math.floorMod(nanos, NANOS_IN_A_SECOND);
+    }
+
     /**
      * Returns the path of the file. This is NOT the absolute path to the file on disk!
      *
@@ -95,11 +169,64 @@ public final class FileRecord {
      * @return the CRC as a string
      * @throws IOException if there was a problem calculating the CRC
      */
-    public Long getChecksum() throws IOException {
-        if (crc == null) {
-            crc = computeCRC(absoluteFilePath);
+    public long getChecksum() throws IOException {
+        return getChecksum(BuiltInChecksumAlgorithm.CRC32);
+    }
+
+    /**
+     * Returns the checksum of the file computed with the given algorithm.
+     * Like {@link #getChecksum()} this is calculated lazily and only once per algorithm.
+     *
+     * @param algorithm the checksum algorithm
+     * @return the checksum
+     * @throws IOException if there was a problem calculating the checksum
+     */
+    public long getChecksum(final ChecksumAlgorithm algorithm) throws IOException {
+        if (checksums == null) {
+            checksums = new HashMap<>(2);
+        }
+
+        Long checksum = checksums.get(algorithm);
+        if (checksum == null) {
+            checksum = computeChecksum(absoluteFilePath, algorithm);
+            checksums.put(algorithm, checksum);
+        }
+        return checksum;
+    }
+
+    /**
+     * Makes sure the checksums for all the given algorithms are calculated, reading the file at most once.
+     * Afterward {@link #getChecksum(ChecksumAlgorithm)} returns immediately for each of these algorithms.
+     *
+     * @param algorithms the checksum algorithms
+     * @throws IOException if there was a problem calculating the checksums
+     */
+    public void computeChecksums(final Collection<ChecksumAlgorithm> algorithms) throws IOException {
+        if (checksums == null) {
+            checksums = new HashMap<>(2);
+        }
+
+        final List<ChecksumAlgorithm> missing = algorithms.stream().filter(algorithm -> !checksums.containsKey(algorithm)).toList();
+        if (!missing.isEmpty()) {
+            checksums.putAll(FileUtils.computeChecksums(absoluteFilePath, missing));
         }
-        return crc;
+    }
+
+    /**
+     * Like {@link #computeChecksums(Collection)}, but also feeds the file to the given {@link BlockChecksummer}.
+     * As the block checksums are not kept by this record, the file is always read.
+     *
+     * @param algorithms the checksum algorithms
+     * @param blocks     the block checksummer
+     * @throws BlockMismatchException if a block does not match the manifest being checked
+     * @throws IOException            if there was a problem calculating the checksums
+     */
+    public void computeChecksums(final Collection<ChecksumAlgorithm> algorithms, final BlockChecksummer blocks) throws IOException {
+        if (checksums == null) {
+            checksums = new HashMap<>(2);
+        }
+
+        checksums.putAll(FileUtils.computeChecksums(absoluteFilePath, algorithms, blocks));
     }
 
     /**
@@ -110,11 +237,7 @@ public final class FileRecord {
      * @throws IOException if there was a problem getting the timestamp
      */
     public Instant getModifiedInstant() throws IOException {
-        if (modifiedTime == null) {
-            final FileTime modifiedFileTime = Files.getLastModifiedTime(absoluteFilePath);
-            modifiedTime = modifiedFileTime.toInstant();
-        }
-        return modifiedTime;
+        return Instant.ofEpochSecond(getMTimeSeconds(), getMTimeNanos());
     }
 
     /**
@@ -123,13 +246,13 @@ public final class FileRecord {
      * Use second resolution as this is good enough and should work everywhere.
      * <p>
      * This is used when talking to the database.
-     * This calls {@link #getModifiedInstant()} under the hood.
      *
      * @return the modified time as a long
      * @throws IOException if there was a problem getting the timestamp
      */
     public long getMTimeSeconds() throws IOException {
-        return getModifiedInstant().getEpochSecond();
+        preLoad();
+        return modifiedSeconds;
     }
 
     /**
@@ -137,13 +260,13 @@ public final class FileRecord {
      * This method goes hand-in-hand with {@link #getMTimeSeconds()}.
      * <p>
      * This is used when talking to the database.
-     * This calls {@link #getModifiedInstant()} under the hood.
      *
      * @return the modified time as a long
      * @throws IOException if there was a problem getting the timestamp
      */
     public int getMTimeNanos() throws IOException {
-        return getModifiedInstant().getNano();
+        preLoad();
+        return modifiedNanos;
     }
 
     /**
@@ -154,11 +277,8 @@ public final class FileRecord {
      * @throws IOException if there was a problem getting the timestamp
      */
     public Instant getFileCreationTime() throws IOException {
-        if (createdTime == null) {
-            final FileTime fileCreatedTime = Files.readAttributes(absoluteFilePath, BasicFileAttributes.class).creationTime();
-            createdTime = fileCreatedTime.toInstant();
-        }
-        return createdTime;
+        preLoad();
+        return Instant.ofEpochSecond(createdSeconds, createdNanos);
     }
 
     /**
@@ -169,9 +289,7 @@ public final class FileRecord {
      * @throws IOException if there was a problem getting the size
      */
     public long getSize() throws IOException {
-        if (size == null) {
-            size = Files.size(absoluteFilePath);
-        }
+        preLoad();
         return size;
     }
 }
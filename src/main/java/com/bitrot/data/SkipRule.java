@@ -0,0 +1,143 @@
+package com.bitrot.data;
+
+import org.jspecify.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.bitrot.data.Constants.SKIP_PREFIXES;
+import static com.bitrot.data.Constants.SKIP_SUFFIXES;
+
+/**
+ * A rule from the config for files and directories that are never verified.
+ * <p>
+ * A rule matches on at most one of a name prefix, a name suffix or a glob, and optionally on the size and age of a
+ * file. Everything that is set has to match. Rules that only look at names or paths also exclude directories, which
+ * are then not walked at all. Rules with a size or age only exclude files.
+ */
+@SuppressWarnings("unused")  // We need the getters and setters for the ObjectMapper
+public class SkipRule {
+    private @Nullable String prefix;
+    private @Nullable String suffix;
+    private @Nullable String glob;
+    private long largerThanMiB = 0;
+    private long smallerThanMiB = 0;
+    private long olderThanDays = 0;
+    private long newerThanDays = 0;
+
+    /**
+     * Returns the rules used when the config has none: every name starting with one of {@link Constants#SKIP_PREFIXES}
+     * or ending with one of {@link Constants#SKIP_SUFFIXES}.
+     *
+     * @return the default rules
+     */
+    public static List<SkipRule> defaults() {
+        final List<SkipRule> rules = new ArrayList<>();
+        for (final String prefix : SKIP_PREFIXES) {
+            final SkipRule rule = new SkipRule();
+            rule.setPrefix(prefix);
+            rules.add(rule);
+        }
+        for (final String suffix : SKIP_SUFFIXES) {
+            final SkipRule rule = new SkipRule();
+            rule.setSuffix(suffix);
+            rules.add(rule);
+        }
+        return rules;
+    }
+
+    /**
+     * Returns whether this rule looks at more than names and paths, so it can only exclude files.
+     *
+     * @return true if the rule has a size or age
+     */
+    public boolean hasFileConditions() {
+        return largerThanMiB > 0 || smallerThanMiB > 0 || olderThanDays > 0 || newerThanDays > 0;
+    }
+
+    @Nullable
+    public String getPrefix() {
+        return prefix;
+    }
+
+    public void setPrefix(@Nullable final String prefix) {
+        this.prefix = prefix;
+    }
+
+    @Nullable
+    public String getSuffix() {
+        return suffix;
+    }
+
+    public void setSuffix(@Nullable final String suffix) {
+        this.suffix = suffix;
+    }
+
+    @Nullable
+    public String getGlob() {
+        return glob;
+    }
+
+    public void setGlob(@Nullable final String glob) {
+        this.glob = glob;
+    }
+
+    public long getLargerThanMiB() {
+        return largerThanMiB;
+    }
+
+    public void setLargerThanMiB(final long largerThanMiB) {
+        this.largerThanMiB = largerThanMiB;
+    }
+
+    public long getSmallerThanMiB() {
+        return smallerThanMiB;
+    }
+
+    public void setSmallerThanMiB(final long smallerThanMiB) {
+        this.smallerThanMiB = smallerThanMiB;
+    }
+
+    public long getOlderThanDays() {
+        return olderThanDays;
+    }
+
+    public void setOlderThanDays(final long olderThanDays) {
+        this.olderThanDays = olderThanDays;
+    }
+
+    public long getNewerThanDays() {
+        return newerThanDays;
+    }
+
+    public void setNewerThanDays(final long newerThanDays) {
+        this.newerThanDays = newerThanDays;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder();
+        if (prefix != null) {
+            builder.append("prefix ").append(prefix);
+        } else if (suffix != null) {
+            builder.append("suffix ").append(suffix);
+        } else if (glob != null) {
+            builder.append("glob ").append(glob);
+        } else {
+            builder.append("any file");
+        }
+        if (largerThanMiB > 0) {
+            builder.append(", larger than ").append(largerThanMiB).append(" MiB");
+        }
+        if (smallerThanMiB > 0) {
+            builder.append(", smaller than ").append(smallerThanMiB).append(" MiB");
+        }
+        if (olderThanDays > 0) {
+            builder.append(", older than ").append(olderThanDays).append(" days");
+        }
+        if (newerThanDays > 0) {
+            builder.append(", newer than ").append(newerThanDays).append(" days");
+        }
+        return builder.toString();
+    }
+}
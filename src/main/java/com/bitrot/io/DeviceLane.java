@@ -0,0 +1,253 @@
+package com.bitrot.io;
+
+import com.bitrot.metrics.Metrics;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.bitrot.data.Constants.PAGE_CACHE_ADVICE_WINDOW_SIZE;
+
+/**
+ * A read lane for a single physical device.
+ * Every file read from the same device runs on the lane's own pool of reader threads, which limits how many files are
+ * read at once. Rotational disks get a single reader so that we do not thrash the heads, while solid state devices get
+ * several.
+ * <p>
+ * Because reads never run on the caller's thread, callers can be virtual threads that spend most of their time
+ * waiting on the database without tying up the threads that keep the disk busy.
+ */
+public final class DeviceLane {
+    private final String name;
+    private final boolean rotational;
+    private final int maxReaders;
+    // A FIFO queue, so a file queued on a busy HDD is not starved by newer submissions
+    private final ThreadPoolExecutor readers;
+    // Shared by all the readers, so the rate is per device
+    private final ReadThrottle throttle;
+    // Whether reads drop the pages they are done with and hint the next file, see PageCacheAdvice
+    private final boolean pageCacheAdvice;
+    // Files waiting for a reader, in the order they will be read, so the first one can be hinted to the kernel
+    private final Deque<Path> queuedPaths = new ConcurrentLinkedDeque<>();
+    // Every byte handed to the hashes, for the metrics
+    private final LongAdder bytesRead = new LongAdder();
+
+    DeviceLane(final String name, final boolean rotational, final int maxReaders) {
+        this(name, rotational, maxReaders, ReadThrottle.UNLIMITED, false);
+    }
+
+    DeviceLane(final String name, final boolean rotational, final int maxReaders, final ReadThrottle throttle,
+               final boolean pageCacheAdvice) {
+        this.name = name;
+        this.rotational = rotational;
+        this.maxReaders = maxReaders;
+        this.throttle = throttle;
+        this.pageCacheAdvice = pageCacheAdvice && NativeIo.isAvailable();
+
+        final AtomicInteger threadNumber = new AtomicInteger();
+        this.readers = new ThreadPoolExecutor(maxReaders, maxReaders, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            final Thread thread = new Thread(runnable, "reader-" + name + "-" + threadNumber.incrementAndGet());
+            // The lanes live as long as the program, so don't keep it running
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Runs the given read on one of this lane's reader threads and waits for it.
+     *
+     * @param read the read to perform
+     * @param <T>  the type returned by the read
+     * @return the result of the read
+     * @throws IOException if the read failed
+     */
+    public <T> T read(final Read<T> read) throws IOException {
+        return await(submit(read));
+    }
+
+    /**
+     * Like {@link #read(Read)} for a read of the whole file at the given path.
+     * With page cache advice, the kernel is told to start reading the file once it is next in line, and to drop its
+     * pages once it has been read.
+     *
+     * @param path the file the read is for
+     * @param read the read to perform
+     * @param <T>  the type returned by the read
+     * @return the result of the read
+     * @throws IOException if the read failed
+     */
+    public <T> T read(final Path path, final Read<T> read) throws IOException {
+        if (!pageCacheAdvice) {
+            return read(read);
+        }
+
+        queuedPaths.add(path);
+        final Future<T> future = submit(adviseAround(path, read));
+        try {
+            return await(future);
+        } finally {
+            if (future.isCancelled()) {
+                queuedPaths.remove(path);
+            }
+        }
+    }
+
+    private <T> Read<T> adviseAround(final Path path, final Read<T> read) {
+        return () -> {
+            queuedPaths.remove(path);
+            // Readahead for the next file overlaps with hashing this one
+            final Path next = queuedPaths.peek();
+            if (next != null) {
+                NativeIo.willNeed(next, 0, PAGE_CACHE_ADVICE_WINDOW_SIZE);
+            }
+            try {
+                return read.call();
+            } finally {
+                NativeIo.dontNeed(path, 0, 0);
+            }
+        };
+    }
+
+    /**
+     * Runs all the given reads of the file at the given path on this lane's reader threads, as many at once as there
+     * are readers, and waits for all of them. This is how a single large file is read in several ranges at the same
+     * time. Must not be called from one of this lane's reader threads, as it could end up waiting for itself.
+     *
+     * @param path  the file the reads are for
+     * @param reads the reads to perform
+     * @param <T>   the type returned by the reads
+     * @return the result of each read, in the same order
+     * @throws IOException if any read failed, in which case the reads that did not start yet are cancelled
+     */
+    public <T> List<T> readAll(final Path path, final List<Read<T>> reads) throws IOException {
+        final List<Future<T>> futures = new ArrayList<>(reads.size());
+        for (final Read<T> read : reads) {
+            futures.add(submit(read));
+        }
+
+        final List<T> results = new ArrayList<>(reads.size());
+        try {
+            for (final Future<T> future : futures) {
+                results.add(await(future));
+            }
+        } finally {
+            if (results.size() < futures.size()) {
+                futures.forEach(future -> future.cancel(true));
+            }
+            if (pageCacheAdvice) {
+                NativeIo.dontNeed(path, 0, 0);
+            }
+        }
+        return results;
+    }
+
+    private <T> Future<T> submit(final Read<T> read) {
+        final long queuedAt = System.nanoTime();
+        return readers.submit(() -> {
+            final long startedAt = Metrics.HASH.start(queuedAt);
+            try {
+                return read.call();
+            } finally {
+                Metrics.HASH.finish(startedAt);
+            }
+        });
+    }
+
+    private <T> T await(final Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (final InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting to read from " + name, e);
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException ioException) {
+                throw ioException;
+            }
+            if (cause instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            if (cause instanceof Error error) {
+                throw error;
+            }
+            throw new IllegalStateException("Unexpected failure reading from " + name, cause);
+        }
+    }
+
+    /**
+     * Returns a consumer that passes every chunk of a read from this lane through its throttle and, with page cache
+     * advice, hints the kernel to read ahead of the cursor and drop the pages behind it.
+     *
+     * @param path     the file being read
+     * @param offset   the offset of the first chunk in the file
+     * @param consumer the consumer of the chunks
+     * @return the consumer to read into
+     */
+    public ReadEngine.ChunkConsumer wrap(final Path path, final long offset, final ReadEngine.ChunkConsumer consumer) {
+        final ReadEngine.ChunkConsumer counted = chunk -> {
+            bytesRead.add(chunk.remaining());
+            consumer.accept(chunk);
+        };
+        return throttle.wrap(pageCacheAdvice ? new PageCacheAdvice(path, offset, counted) : counted);
+    }
+
+    public ReadThrottle getThrottle() {
+        return throttle;
+    }
+
+    /**
+     * Returns the number of reads running on this lane's reader threads.
+     *
+     * @return the active reads
+     */
+    public int getActiveReads() {
+        return readers.getActiveCount();
+    }
+
+    /**
+     * Returns the number of reads waiting for a reader thread.
+     *
+     * @return the queued reads
+     */
+    public int getQueuedReads() {
+        return readers.getQueue().size();
+    }
+
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isRotational() {
+        return rotational;
+    }
+
+    public int getMaxReaders() {
+        return maxReaders;
+    }
+
+    @Override
+    public String toString() {
+        return name + (rotational ? " (rotational, " : " (solid state, ") + maxReaders + " reader(s), " + throttle
+                + (pageCacheAdvice ? ", page cache advice)" : ")");
+    }
+
+    @FunctionalInterface
+    public interface Read<T> {
+        T call() throws IOException;
+    }
+}
@@ -0,0 +1,37 @@
+package com.bitrot.io;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A pool of direct buffers that are reused between file reads.
+ * Direct buffers are expensive to allocate and are only freed by the GC, so allocating one per file would be worse
+ * than the heap arrays they replace. The pool only ever grows to the number of concurrent readers.
+ */
+public final class DirectBufferPool {
+    private final int bufferSize;
+    private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+
+    public DirectBufferPool(final int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Takes a cleared buffer from the pool, allocating a new one if the pool is empty.
+     * The buffer must be given back with {@link #release(ByteBuffer)}.
+     *
+     * @return a cleared direct buffer
+     */
+    public ByteBuffer acquire() {
+        final ByteBuffer buffer = buffers.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        return buffer.clear();
+    }
+
+    public void release(final ByteBuffer buffer) {
+        buffers.offer(buffer);
+    }
+}
@@ -0,0 +1,186 @@
+package com.bitrot.io;
+
+import com.bitrot.metrics.Metrics;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Walks a directory tree with a virtual thread per directory, so that listing a slow (for example network) file system
+ * is not limited to one directory at a time.
+ * <p>
+ * The attributes of each file are read once while listing its directory and handed to the visitor, so the caller does
+ * not need to stat the file again. Like {@link Files#walk}, symbolic links to directories are not followed, but
+ * symbolic links to regular files are visited. The visitor can leave out directories, which are then never listed.
+ */
+public final class DirectoryWalker {
+    private final int maxOpenDirectories;
+
+    /**
+     * @param maxOpenDirectories how many directories can be listed at the same time
+     */
+    public DirectoryWalker(final int maxOpenDirectories) {
+        this.maxOpenDirectories = maxOpenDirectories;
+    }
+
+    /**
+     * Calls the visitor for every regular file under the given root and waits until the whole tree is walked.
+     * The visitor is called from many threads at once.
+     *
+     * @param root    the root of the tree, which may also be a single file
+     * @param visitor the visitor
+     * @throws IOException if the root could not be read
+     */
+    public void walk(final Path root, final Visitor visitor) throws IOException {
+        final BasicFileAttributes rootAttributes = Files.readAttributes(root, BasicFileAttributes.class);
+        if (rootAttributes.isRegularFile()) {
+            visitor.visitFile(root, rootAttributes);
+            return;
+        }
+        if (!rootAttributes.isDirectory()) {
+            return;
+        }
+
+        final Semaphore openDirectories = new Semaphore(maxOpenDirectories);
+        // Only listing is limited, so a wide tree can queue any number of directories. They are counted instead of
+        // registered with a Phaser, which would run out of parties.
+        final PendingDirectories pending = new PendingDirectories();
+        try (final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            submitDirectory(root, executor, openDirectories, pending, visitor);
+            pending.awaitNone();
+        }
+    }
+
+    private void submitDirectory(final Path directory, final ExecutorService executor, final Semaphore openDirectories,
+                                 final PendingDirectories pending, final Visitor visitor) {
+        // Counted before it is submitted, so the count cannot reach zero while its parent is still being listed
+        pending.add();
+        try {
+            executor.execute(() -> {
+                try {
+                    listDirectory(directory, executor, openDirectories, pending, visitor);
+                } finally {
+                    pending.done();
+                }
+            });
+        } catch (final RuntimeException e) {
+            pending.done();
+            throw e;
+        }
+    }
+
+    private void listDirectory(final Path directory, final ExecutorService executor, final Semaphore openDirectories,
+                               final PendingDirectories pending, final Visitor visitor) {
+        openDirectories.acquireUninterruptibly();
+        final long startedAt = System.nanoTime();
+        // The visitor may wait for room in the pipeline, which is not part of walking
+        long visitorNanos = 0;
+        try (final DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            for (final Path entry : entries) {
+                final BasicFileAttributes attributes;
+                try {
+                    final long statStartedAt = System.nanoTime();
+                    // Windows already has these attributes from listing the directory, so this is not another call
+                    final BasicFileAttributes linkAttributes = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    attributes = linkAttributes.isSymbolicLink()
+                            ? Files.readAttributes(entry, BasicFileAttributes.class)
+                            : linkAttributes;
+                    Metrics.STAT.recordSince(statStartedAt);
+                    if (attributes.isDirectory() && !linkAttributes.isSymbolicLink() && visitor.visitDirectory(entry, attributes)) {
+                        submitDirectory(entry, executor, openDirectories, pending, visitor);
+                    }
+                } catch (final IOException e) {
+                    visitor.visitFailed(entry, e);
+                    continue;
+                }
+
+                if (attributes.isRegularFile()) {
+                    final long visitStartedAt = System.nanoTime();
+                    visitor.visitFile(entry, attributes);
+                    visitorNanos += System.nanoTime() - visitStartedAt;
+                }
+            }
+        } catch (final IOException e) {
+            visitor.visitFailed(directory, e);
+        } catch (final RuntimeException e) {
+            visitor.visitFailed(directory, new IOException("Failed to walk directory " + directory, e));
+        } finally {
+            Metrics.WALK.record(System.nanoTime() - startedAt - visitorNanos);
+            openDirectories.release();
+        }
+    }
+
+    /**
+     * The directories that were submitted but are not listed yet.
+     */
+    private static final class PendingDirectories {
+        private final AtomicLong count = new AtomicLong();
+        private final CountDownLatch none = new CountDownLatch(1);
+
+        void add() {
+            count.incrementAndGet();
+        }
+
+        void done() {
+            if (count.decrementAndGet() == 0) {
+                none.countDown();
+            }
+        }
+
+        void awaitNone() {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    none.await();
+                    break;
+                } catch (final InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Receives the files found by the walker.
+     */
+    public interface Visitor {
+        /**
+         * Called for every directory under the root before it is listed.
+         *
+         * @param directory  the path of the directory
+         * @param attributes the attributes of the directory
+         * @return false to leave out the directory and everything under it
+         */
+        default boolean visitDirectory(final Path directory, final BasicFileAttributes attributes) {
+            return true;
+        }
+
+        /**
+         * Called for every regular file.
+         *
+         * @param file       the path of the file
+         * @param attributes the attributes of the file read while listing its directory
+         */
+        void visitFile(Path file, BasicFileAttributes attributes);
+
+        /**
+         * Called when a file or directory could not be read. The rest of the tree is still walked.
+         *
+         * @param path the path that could not be read
+         * @param e    the error
+         */
+        void visitFailed(Path path, IOException e);
+    }
+}
@@ -0,0 +1,165 @@
+package com.bitrot.io;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static com.bitrot.data.Constants.ROTATIONAL_BUSY_AWAIT_MILLIS;
+import static com.bitrot.data.Constants.SOLID_STATE_BUSY_AWAIT_MILLIS;
+import static com.bitrot.data.Constants.THROTTLE_FOREGROUND_MIN_BYTES_PER_SECOND;
+
+/**
+ * Samples {@code /proc/diskstats} every so often and adapts the {@link ReadThrottle} of each lane to the load that
+ * other programs put on its device.
+ * <p>
+ * A device counts as busy when requests take longer than usual to complete and it moved noticeably more bytes than we
+ * read through the throttle, so our own reads alone never make us back off. Reads we make that are served from the
+ * page cache never reach the device, so the other programs' share is an estimate, which is enough to back off.
+ * Lanes whose device is not in {@code /proc/diskstats}, for example on other operating systems, keep their ceiling.
+ */
+public final class DiskLoadMonitor {
+    private static final Path PROC_DISKSTATS = Paths.get("/proc/diskstats");
+    private static final long SECTOR_SIZE = 512;
+
+    private final Path diskstats;
+    private final Supplier<Collection<DeviceLane>> lanes;
+    private final Map<String, Sample> lastSamples = new HashMap<>();
+    private long lastSampleNanos;
+
+    public DiskLoadMonitor(final Supplier<Collection<DeviceLane>> lanes) {
+        this(PROC_DISKSTATS, lanes);
+    }
+
+    DiskLoadMonitor(final Path diskstats, final Supplier<Collection<DeviceLane>> lanes) {
+        this.diskstats = diskstats;
+        this.lanes = lanes;
+    }
+
+    /**
+     * Samples the devices on a daemon thread at the given interval for as long as the program runs.
+     * Does nothing where {@code /proc/diskstats} cannot be read, such as on Windows.
+     *
+     * @param intervalMillis the time between samples
+     * @return whether the monitor was started
+     */
+    public boolean start(final long intervalMillis) {
+        if (!Files.isReadable(diskstats)) {
+            System.out.println("Adaptive throttling is not available because " + diskstats + " cannot be read");
+            return false;
+        }
+
+        final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "disk-load-monitor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                sample();
+            } catch (final IOException | RuntimeException e) {
+                // Nothing to adapt to, so the throttles keep their current rate
+                System.err.println("Could not sample disk load: " + e.getMessage());
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    /**
+     * Reads the counters of every device once and adapts the throttles of the lanes whose counters were read before.
+     *
+     * @throws IOException if {@code /proc/diskstats} could not be read
+     */
+    synchronized void sample() throws IOException {
+        final long now = System.nanoTime();
+        final double seconds = (now - lastSampleNanos) / (double) TimeUnit.SECONDS.toNanos(1);
+        lastSampleNanos = now;
+
+        final Map<String, Sample> samples = readDiskstats(Files.readAllLines(diskstats));
+        for (final DeviceLane lane : lanes.get()) {
+            final ReadThrottle throttle = lane.getThrottle();
+            if (throttle == ReadThrottle.UNLIMITED) {
+                continue;
+            }
+            final Sample current = samples.get(lane.getName());
+            final Sample previous = current == null ? null : lastSamples.put(lane.getName(), current);
+            final long ourBytes = throttle.takeBytesRead();
+            if (previous == null || seconds <= 0) {
+                continue;
+            }
+
+            final boolean busy = isForegroundBusy(previous, current, ourBytes, seconds,
+                    lane.isRotational() ? ROTATIONAL_BUSY_AWAIT_MILLIS : SOLID_STATE_BUSY_AWAIT_MILLIS);
+            final String before = throttle.toString();
+            throttle.adapt(busy, ourBytes / seconds);
+            if (busy) {
+                System.out.println("Device " + lane.getName() + " is busy, throttling reads from " + before + " to " + throttle);
+            }
+        }
+    }
+
+    /**
+     * Returns whether other programs were waiting on the device between two samples.
+     *
+     * @param previous        the earlier sample
+     * @param current         the later sample
+     * @param ourBytes        the bytes we read from the device in between
+     * @param seconds         the time in between
+     * @param busyAwaitMillis the average time per request above which the device counts as busy
+     * @return true if we should back off
+     */
+    static boolean isForegroundBusy(final Sample previous, final Sample current, final long ourBytes, final double seconds,
+                                    final long busyAwaitMillis) {
+        final long requests = current.requests() - previous.requests();
+        if (requests <= 0) {
+            return false;
+        }
+        final double awaitMillis = (current.requestMillis() - previous.requestMillis()) / (double) requests;
+        final long foregroundBytes = (current.sectors() - previous.sectors()) * SECTOR_SIZE - ourBytes;
+        return awaitMillis > busyAwaitMillis && foregroundBytes / seconds > THROTTLE_FOREGROUND_MIN_BYTES_PER_SECOND;
+    }
+
+    /**
+     * Parses the lines of {@code /proc/diskstats}. Each line starts with the major and minor number and the name of the
+     * device, followed by the reads completed, reads merged, sectors read, milliseconds reading, writes completed,
+     * writes merged, sectors written and milliseconds writing.
+     *
+     * @param lines the lines
+     * @return the counters of each device by name
+     */
+    static Map<String, Sample> readDiskstats(final List<String> lines) {
+        final Map<String, Sample> samples = new HashMap<>();
+        for (final String line : lines) {
+            final String[] fields = line.trim().split("\\s+");
+            if (fields.length < 11) {
+                continue;
+            }
+            try {
+                samples.put(fields[2], new Sample(
+                        Long.parseLong(fields[3]) + Long.parseLong(fields[7]),
+                        Long.parseLong(fields[5]) + Long.parseLong(fields[9]),
+                        Long.parseLong(fields[6]) + Long.parseLong(fields[10])));
+            } catch (final NumberFormatException e) {
+                // Not a device line
+            }
+        }
+        return samples;
+    }
+
+    /**
+     * The counters of a device, summed over reads and writes.
+     *
+     * @param requests      the requests completed
+     * @param sectors       the sectors moved
+     * @param requestMillis the total time requests took to complete, including waiting in the queue
+     */
+    record Sample(long requests, long sectors, long requestMillis) {}
+}
@@ -0,0 +1,257 @@
+package com.bitrot.io;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Sorts entries of a key and a string by key, even if there are too many to hold in memory.
+ * <p>
+ * Entries are kept in memory up to a limit. Every time the limit is reached they are sorted and written to a temporary
+ * file as a sorted run, and reading merges all the runs, so memory stays flat however many entries there are.
+ * Entries with the same key are sorted by their string.
+ */
+public final class ExternalSorter implements AutoCloseable {
+    private static final Comparator<Entry> ORDER = Comparator.comparingLong(Entry::key).thenComparing(Entry::value);
+
+    private final int maxEntriesInMemory;
+    // Entries are added from virtual threads, which a monitor would pin to their carriers while they wait
+    private final ReentrantLock lock = new ReentrantLock();
+    // Guarded by the lock
+    private List<Entry> entries = new ArrayList<>();
+    private final List<Run> runs = new ArrayList<>();
+
+    /**
+     * @param maxEntriesInMemory how many entries to hold in memory before writing them to a temporary file
+     */
+    public ExternalSorter(final int maxEntriesInMemory) {
+        this.maxEntriesInMemory = maxEntriesInMemory;
+    }
+
+    /**
+     * Adds an entry. Can be called from many threads at once.
+     * <p>
+     * A full buffer is taken out under the lock but sorted and written after it, so the other threads keep adding
+     * entries in the meantime.
+     *
+     * @param key   the key to sort by
+     * @param value the value
+     * @throws IOException if the entries could not be written to a temporary file
+     */
+    public void add(final long key, final String value) throws IOException {
+        final List<Entry> full;
+        lock.lock();
+        try {
+            entries.add(new Entry(key, value));
+            if (entries.size() < maxEntriesInMemory) {
+                return;
+            }
+            full = entries;
+            entries = new ArrayList<>();
+        } finally {
+            lock.unlock();
+        }
+        spill(full);
+    }
+
+    private void spill(final List<Entry> full) throws IOException {
+        full.sort(ORDER);
+        Path file = null;
+        try {
+            file = Files.createTempFile("bitrot-sort-", ".run");
+            try (final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)))) {
+                for (final Entry entry : full) {
+                    final byte[] value = entry.value().getBytes(StandardCharsets.UTF_8);
+                    output.writeLong(entry.key());
+                    output.writeInt(value.length);
+                    output.write(value);
+                }
+            }
+        } catch (final IOException | RuntimeException e) {
+            // Keep the entries in memory rather than losing them, and never read a run that was cut short
+            if (file != null) {
+                Files.deleteIfExists(file);
+            }
+            lock.lock();
+            try {
+                entries.addAll(full);
+            } finally {
+                lock.unlock();
+            }
+            throw e;
+        }
+
+        // Only a run that was written completely is read back
+        lock.lock();
+        try {
+            runs.add(new Run(file, full.size()));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Passes every entry added so far to the consumer, in order. Must only be called once every call to
+     * {@link #add(long, String)} has returned.
+     *
+     * @param consumer the consumer
+     * @throws IOException if a temporary file could not be read
+     */
+    public void forEachSorted(final EntryConsumer consumer) throws IOException {
+        lock.lock();
+        try {
+            forEachSortedLocked(consumer);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void forEachSortedLocked(final EntryConsumer consumer) throws IOException {
+        entries.sort(ORDER);
+        final List<Source> sources = new ArrayList<>(runs.size() + 1);
+        try {
+            for (final Run run : runs) {
+                sources.add(new RunSource(run));
+            }
+            sources.add(new MemorySource(entries));
+
+            // Always take the smallest entry at the head of any source
+            final PriorityQueue<Source> heads = new PriorityQueue<>(Math.max(1, sources.size()),
+                    Comparator.comparing(Source::head, ORDER));
+            for (final Source source : sources) {
+                if (source.advance()) {
+                    heads.add(source);
+                }
+            }
+            while (!heads.isEmpty()) {
+                final Source source = heads.poll();
+                consumer.accept(source.head().key(), source.head().value());
+                if (source.advance()) {
+                    heads.add(source);
+                }
+            }
+        } finally {
+            for (final Source source : sources) {
+                source.close();
+            }
+        }
+    }
+
+    /**
+     * Deletes the temporary files.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            for (final Run run : runs) {
+                try {
+                    Files.deleteIfExists(run.file());
+                } catch (final IOException e) {
+                    System.err.println("Could not delete temporary file " + run.file() + ": " + e.getMessage());
+                }
+            }
+            runs.clear();
+            entries.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @FunctionalInterface
+    public interface EntryConsumer {
+        void accept(long key, String value) throws IOException;
+    }
+
+    private record Entry(long key, String value) {}
+
+    private record Run(Path file, int size) {}
+
+    /**
+     * A sorted sequence of entries that is read one at a time.
+     */
+    private interface Source extends AutoCloseable {
+        /**
+         * Moves to the next entry.
+         *
+         * @return false if there are no more entries
+         */
+        boolean advance() throws IOException;
+
+        Entry head();
+
+        @Override
+        void close() throws IOException;
+    }
+
+    private static final class MemorySource implements Source {
+        private final List<Entry> entries;
+        private int next = 0;
+        private Entry head;
+
+        MemorySource(final List<Entry> entries) {
+            this.entries = entries;
+        }
+
+        @Override
+        public boolean advance() {
+            if (next >= entries.size()) {
+                return false;
+            }
+            head = entries.get(next++);
+            return true;
+        }
+
+        @Override
+        public Entry head() {
+            return head;
+        }
+
+        @Override
+        public void close() {}
+    }
+
+    private static final class RunSource implements Source {
+        private final DataInputStream input;
+        private int remaining;
+        private Entry head;
+
+        RunSource(final Run run) throws IOException {
+            this.input = new DataInputStream(new BufferedInputStream(Files.newInputStream(run.file())));
+            this.remaining = run.size();
+        }
+
+        @Override
+        public boolean advance() throws IOException {
+            if (remaining == 0) {
+                return false;
+            }
+            remaining--;
+            final long key = input.readLong();
+            final byte[] value = new byte[input.readInt()];
+            input.readFully(value);
+            head = new Entry(key, new String(value, StandardCharsets.UTF_8));
+            return true;
+        }
+
+        @Override
+        public Entry head() {
+            return head;
+        }
+
+        @Override
+        public void close() throws IOException {
+            input.close();
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.bitrot.io;
+
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.bitrot.data.Constants.ROTATIONAL_READERS_PER_DEVICE;
+import static com.bitrot.data.Constants.SOLID_STATE_READERS_PER_DEVICE;
+import static com.bitrot.data.Constants.THROTTLE_SAMPLE_INTERVAL_MILLIS;
+
+/**
+ * Groups file reads by the physical device backing them and hands out one {@link DeviceLane} per device.
+ * This lets us read from several disks at the same time without ever having two readers fight over one HDD.
+ * <p>
+ * On Linux the device is resolved through {@code /sys/class/block} so that partitions of the same disk share a lane,
+ * and {@code queue/rotational} tells us whether it is an HDD. Anywhere else we fall back to one lane per
+ * {@link FileStore} and assume it is rotational, which matches the old behavior of reading one file at a time.
+ */
+public final class IoScheduler {
+    private static final IoScheduler INSTANCE = new IoScheduler();
+    private static final Path SYS_CLASS_BLOCK = Paths.get("/sys/class/block");
+
+    // Lanes keyed by the device name so that partitions of the same disk share a lane
+    private final Map<String, DeviceLane> lanesByDevice = new ConcurrentHashMap<>();
+    // Resolving a FileStore is expensive (it scans the mount table), so remember the lane for each configured root
+    private final Map<Path, DeviceLane> lanesByRoot = new ConcurrentHashMap<>();
+    // Applied to lanes as they are created
+    private volatile double maxBytesPerSecond = Double.POSITIVE_INFINITY;
+    private volatile boolean adaptiveThrottling = false;
+    private volatile boolean pageCacheAdvice = false;
+
+    private IoScheduler() {}
+
+    public static IoScheduler getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Limits how fast every device is read from. Only lanes created after this call are throttled, so call it
+     * before registering any root.
+     *
+     * @param maxBytesPerSecond the highest rate per device, or {@link Double#POSITIVE_INFINITY} for no limit
+     * @param adaptive          whether to lower the rate while other programs are using a device, see
+     *                          {@link DiskLoadMonitor}. Ignored where the device counters cannot be read.
+     */
+    public synchronized void configureThrottling(final double maxBytesPerSecond, final boolean adaptive) {
+        this.maxBytesPerSecond = maxBytesPerSecond;
+        if (adaptive && !adaptiveThrottling) {
+            // Without the device counters there is nothing to adapt to, so the lanes are not made adaptive either
+            this.adaptiveThrottling = new DiskLoadMonitor(this::getLanes).start(THROTTLE_SAMPLE_INTERVAL_MILLIS);
+        }
+    }
+
+    /**
+     * Makes reads keep the page cache lean, see {@link PageCacheAdvice}. Like throttling, only lanes created after this
+     * call are affected. Only has an effect on Linux.
+     *
+     * @param pageCacheAdvice whether to read ahead and drop the pages of files once they are read
+     */
+    public void configurePageCacheAdvice(final boolean pageCacheAdvice) {
+        this.pageCacheAdvice = pageCacheAdvice;
+    }
+
+    /**
+     * Resolves and remembers the lane for a configured root path.
+     * Files under this root will use the same lane without resolving their file store again.
+     *
+     * @param root the configured root path
+     * @return the lane for the device backing the root
+     * @throws IOException if the file store of the root could not be determined
+     */
+    public DeviceLane registerRoot(final Path root) throws IOException {
+        final DeviceLane lane = resolveLane(root);
+        lanesByRoot.put(root, lane);
+        return lane;
+    }
+
+    /**
+     * Returns every lane created so far.
+     *
+     * @return the lanes
+     */
+    public Collection<DeviceLane> getLanes() {
+        return List.copyOf(lanesByDevice.values());
+    }
+
+    /**
+     * Returns the lane of the device backing the given path.
+     *
+     * @param path the path of a file
+     * @return the lane to read the file through
+     * @throws IOException if the file store of the path could not be determined
+     */
+    public DeviceLane laneFor(final Path path) throws IOException {
+        DeviceLane bestLane = null;
+        int bestDepth = -1;
+        for (final Map.Entry<Path, DeviceLane> entry : lanesByRoot.entrySet()) {
+            final Path root = entry.getKey();
+            if (root.getFileSystem() == path.getFileSystem() && path.startsWith(root) && root.getNameCount() > bestDepth) {
+                bestLane = entry.getValue();
+                bestDepth = root.getNameCount();
+            }
+        }
+
+        return bestLane != null ? bestLane : resolveLane(path);
+    }
+
+    private DeviceLane resolveLane(final Path path) throws IOException {
+        final FileStore fileStore = Files.getFileStore(path);
+        final String blockDevice = findBlockDevice(fileStore);
+        final String deviceName = blockDevice != null ? blockDevice : fileStore.toString();
+
+        return lanesByDevice.computeIfAbsent(deviceName, name -> {
+            final boolean rotational = blockDevice == null || isRotational(blockDevice);
+            final ReadThrottle throttle = Double.isInfinite(maxBytesPerSecond) && !adaptiveThrottling
+                    ? ReadThrottle.UNLIMITED
+                    : new ReadThrottle(maxBytesPerSecond);
+            final DeviceLane lane = new DeviceLane(name, rotational,
+                    rotational ? ROTATIONAL_READERS_PER_DEVICE : SOLID_STATE_READERS_PER_DEVICE, throttle, pageCacheAdvice);
+            System.out.println("Created I/O lane for device " + lane);
+            return lane;
+        });
+    }
+
+    /**
+     * Returns the name of the whole-disk block device (for example {@code sda} for {@code /dev/sda1}) backing the
+     * given file store, or null if it cannot be determined.
+     */
+    private static String findBlockDevice(final FileStore fileStore) {
+        final String storeName = fileStore.name();
+        if (!storeName.startsWith("/dev/") || !Files.isDirectory(SYS_CLASS_BLOCK)) {
+            return null;
+        }
+
+        try {
+            // Resolves links such as /dev/mapper/root -> /dev/dm-0
+            final Path devicePath = Paths.get(storeName).toRealPath();
+            final Path sysDevice = SYS_CLASS_BLOCK.resolve(devicePath.getFileName().toString()).toRealPath();
+            // Partitions live in a subdirectory of their disk
+            final Path disk = Files.exists(sysDevice.resolve("partition")) ? sysDevice.getParent() : sysDevice;
+            return disk.getFileName().toString();
+        } catch (final IOException e) {
+            return null;
+        }
+    }
+
+    private static boolean isRotational(final String blockDevice) {
+        try {
+            final String rotational = Files.readString(SYS_CLASS_BLOCK.resolve(blockDevice).resolve("queue/rotational"));
+            return !rotational.trim().equals("0");
+        } catch (final IOException e) {
+            // Assume the worst so we do not thrash an HDD
+            return true;
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package com.bitrot.io;
+
+import org.jspecify.annotations.Nullable;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.Optional;
+
+/**
+ * Page cache hints for files through {@code posix_fadvise}, and where files are stored through the
+ * {@code FS_IOC_FIEMAP} ioctl, called with the Foreign Function and Memory API.
+ * <p>
+ * The API is still a preview on Java 21, which this project targets, so it is bound by reflection once at startup.
+ * That needs no {@code --enable-preview} flag and keeps working when the API becomes final. The calls themselves go
+ * through plain method handles. Anywhere but Linux, or if binding fails, {@link #isAvailable()} is false, every
+ * hint does nothing and no physical offset is known.
+ * <p>
+ * Java does not expose the file descriptor of a channel, so every hint opens the file on its own descriptor. That is
+ * enough because the page cache belongs to the file and not to a descriptor, and it is only done once per window.
+ */
+final class NativeIo {
+    private static final int O_RDONLY = 0;
+    private static final int POSIX_FADV_WILLNEED = 3;
+    private static final int POSIX_FADV_DONTNEED = 4;
+    // _IOWR('f', 11, struct fiemap)
+    private static final long FS_IOC_FIEMAP = 0xC020660BL;
+    // struct fiemap followed by a single struct fiemap_extent
+    private static final int FIEMAP_SIZE = 32;
+    private static final int FIEMAP_EXTENT_SIZE = 56;
+
+    private static final @Nullable Functions FUNCTIONS = bind();
+
+    private NativeIo() {}
+
+    static boolean isAvailable() {
+        return FUNCTIONS != null;
+    }
+
+    /**
+     * Asks the kernel to start reading part of a file into the page cache in the background.
+     *
+     * @param path   the file
+     * @param offset the start of the range
+     * @param length the length of the range, or 0 for the rest of the file
+     */
+    static void willNeed(final Path path, final long offset, final long length) {
+        advise(path, offset, length, POSIX_FADV_WILLNEED);
+    }
+
+    /**
+     * Tells the kernel that part of a file will not be read again, so its clean pages can be dropped from the page
+     * cache straight away instead of pushing out pages that other programs still use.
+     *
+     * @param path   the file
+     * @param offset the start of the range
+     * @param length the length of the range, or 0 for the rest of the file
+     */
+    static void dontNeed(final Path path, final long offset, final long length) {
+        advise(path, offset, length, POSIX_FADV_DONTNEED);
+    }
+
+    /**
+     * Returns where the first byte of a file is stored on its device, using the {@code FS_IOC_FIEMAP} ioctl.
+     *
+     * @param path the file
+     * @return the physical offset in bytes, or -1 if it is not known, for example because the file is empty or the
+     * file system does not support FIEMAP
+     */
+    static long firstExtentOffset(final Path path) {
+        final Functions functions = FUNCTIONS;
+        if (functions == null) {
+            return -1;
+        }
+
+        try {
+            final int fd = open(functions, path);
+            if (fd < 0) {
+                return -1;
+            }
+            final Object arena = functions.ofConfinedArena().invoke();
+            try {
+                // Allocated memory is zeroed, so only the length and the extent count need setting
+                final Object fiemap = functions.allocate().invoke(arena, (long) FIEMAP_SIZE + FIEMAP_EXTENT_SIZE);
+                final ByteBuffer buffer = ((ByteBuffer) functions.asByteBuffer().invoke(fiemap)).order(ByteOrder.nativeOrder());
+                buffer.putLong(8, -1L);   // fm_length, up to the end of the file
+                buffer.putInt(24, 1);     // fm_extent_count
+                final int result = (int) functions.ioctl().invoke(fd, FS_IOC_FIEMAP, fiemap);
+                if (result != 0 || buffer.getInt(20) < 1) {   // fm_mapped_extents
+                    return -1;
+                }
+                return buffer.getLong(FIEMAP_SIZE + 8);       // fe_physical of the first extent
+            } finally {
+                functions.closeArena().invoke(arena);
+                final int ignored = (int) functions.close().invokeExact(fd);
+            }
+        } catch (final Throwable e) {
+            System.err.println("FIEMAP failed for " + path + ": " + e);
+            return -1;
+        }
+    }
+
+    private static void advise(final Path path, final long offset, final long length, final int advice) {
+        final Functions functions = FUNCTIONS;
+        if (functions == null) {
+            return;
+        }
+
+        try {
+            final int fd = open(functions, path);
+            if (fd < 0) {
+                // Gone or unreadable, in which case the read itself reports the problem
+                return;
+            }
+            try {
+                // Hints are best effort, so the result is ignored
+                final int ignored = (int) functions.fadvise().invokeExact(fd, offset, length, advice);
+            } finally {
+                final int ignored = (int) functions.close().invokeExact(fd);
+            }
+        } catch (final Throwable e) {
+            System.err.println("posix_fadvise failed for " + path + ": " + e);
+        }
+    }
+
+    private static int open(final Functions functions, final Path path) throws Throwable {
+        final byte[] name = path.toAbsolutePath().toString().getBytes(StandardCharsets.UTF_8);
+        final Object arena = functions.ofConfinedArena().invoke();
+        try {
+            // A NUL terminated copy of the path in native memory
+            final Object segment = functions.allocate().invoke(arena, (long) name.length + 1);
+            ((ByteBuffer) functions.asByteBuffer().invoke(segment)).put(name).put((byte) 0);
+            return (int) functions.open().invoke(segment, O_RDONLY);
+        } finally {
+            functions.closeArena().invoke(arena);
+        }
+    }
+
+    @Nullable
+    private static Functions bind() {
+        if (!System.getProperty("os.name", "").toLowerCase(Locale.ROOT).contains("linux")) {
+            return null;
+        }
+
+        try {
+            final Class<?> linkerClass = Class.forName("java.lang.foreign.Linker");
+            final Class<?> symbolLookupClass = Class.forName("java.lang.foreign.SymbolLookup");
+            final Class<?> segmentClass = Class.forName("java.lang.foreign.MemorySegment");
+            final Class<?> layoutClass = Class.forName("java.lang.foreign.MemoryLayout");
+            final Class<?> valueLayoutClass = Class.forName("java.lang.foreign.ValueLayout");
+            final Class<?> descriptorClass = Class.forName("java.lang.foreign.FunctionDescriptor");
+            final Class<?> optionClass = Class.forName("java.lang.foreign.Linker$Option");
+            final Class<?> arenaClass = Class.forName("java.lang.foreign.Arena");
+            final Class<?> allocatorClass = Class.forName("java.lang.foreign.SegmentAllocator");
+
+            final Object linker = linkerClass.getMethod("nativeLinker").invoke(null);
+            final Object lookup = linkerClass.getMethod("defaultLookup").invoke(linker);
+            final Method find = symbolLookupClass.getMethod("find", String.class);
+            final Method descriptorOf = descriptorClass.getMethod("of", layoutClass, layoutClass.arrayType());
+            final Method downcallHandle = linkerClass.getMethod("downcallHandle", segmentClass, descriptorClass, optionClass.arrayType());
+            final Object jint = valueLayoutClass.getField("JAVA_INT").get(null);
+            final Object jlong = valueLayoutClass.getField("JAVA_LONG").get(null);
+            final Object address = valueLayoutClass.getField("ADDRESS").get(null);
+
+            final Method firstVariadicArg = optionClass.getMethod("firstVariadicArg", int.class);
+            final Downcall downcall = (name, variadicFrom, result, arguments) -> {
+                final Object symbol = ((Optional<?>) find.invoke(lookup, name)).orElseThrow();
+                final Object layouts = Array.newInstance(layoutClass, arguments.length);
+                for (int i = 0; i < arguments.length; i++) {
+                    Array.set(layouts, i, arguments[i]);
+                }
+                final Object descriptor = descriptorOf.invoke(null, result, layouts);
+                // Variadic C functions need to be called as such, even with only their fixed arguments
+                final Object options = Array.newInstance(optionClass, variadicFrom < arguments.length ? 1 : 0);
+                if (variadicFrom < arguments.length) {
+                    Array.set(options, 0, firstVariadicArg.invoke(null, variadicFrom));
+                }
+                return (MethodHandle) downcallHandle.invoke(linker, symbol, descriptor, options);
+            };
+
+            final MethodHandles.Lookup publicLookup = MethodHandles.publicLookup();
+            return new Functions(
+                    downcall.bind("open", 2, jint, address, jint),
+                    // off_t is 64 bits on every 64-bit Linux
+                    downcall.bind("posix_fadvise", 4, jint, jint, jlong, jlong, jint),
+                    downcall.bind("close", 1, jint, jint),
+                    downcall.bind("ioctl", 2, jint, jint, jlong, address),
+                    publicLookup.unreflect(arenaClass.getMethod("ofConfined")),
+                    publicLookup.unreflect(allocatorClass.getMethod("allocate", long.class)),
+                    publicLookup.unreflect(segmentClass.getMethod("asByteBuffer")),
+                    publicLookup.unreflect(arenaClass.getMethod("close")));
+        } catch (final ReflectiveOperationException | RuntimeException | LinkageError e) {
+            System.err.println("Native file calls are not available: " + e);
+            return null;
+        }
+    }
+
+    @FunctionalInterface
+    private interface Downcall {
+        /**
+         * @param name         the name of the C function
+         * @param variadicFrom the index of the first variadic argument, or the number of arguments if there are none
+         * @param result       the layout of the result
+         * @param arguments    the layouts of the arguments
+         * @return a method handle calling the function
+         */
+        MethodHandle bind(String name, int variadicFrom, Object result, Object... arguments) throws ReflectiveOperationException;
+    }
+
+    private record Functions(MethodHandle open, MethodHandle fadvise, MethodHandle close, MethodHandle ioctl, MethodHandle ofConfinedArena,
+                             MethodHandle allocate, MethodHandle asByteBuffer, MethodHandle closeArena) {}
+}
@@ -0,0 +1,44 @@
+package com.bitrot.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+import static com.bitrot.data.Constants.PAGE_CACHE_ADVICE_WINDOW_SIZE;
+
+/**
+ * Passes the chunks of a read on while keeping the page cache lean: the kernel is asked to read the next windows of
+ * the file ahead of the cursor, and to drop every window once it has been hashed. A scrub of the whole disk then only
+ * ever holds a few windows of its files in the page cache, instead of pushing out what other programs use.
+ * <p>
+ * Pages that are still memory-mapped cannot be dropped, so with the {@link ReadEngine#MMAP} engine only the readahead
+ * has an effect until the mapping is released.
+ */
+final class PageCacheAdvice implements ReadEngine.ChunkConsumer {
+    private final Path path;
+    private final ReadEngine.ChunkConsumer consumer;
+    private long position;
+    private long windowStart;
+
+    PageCacheAdvice(final Path path, final long offset, final ReadEngine.ChunkConsumer consumer) {
+        this.path = path;
+        this.consumer = consumer;
+        this.position = offset;
+        this.windowStart = offset;
+        NativeIo.willNeed(path, offset, 2 * PAGE_CACHE_ADVICE_WINDOW_SIZE);
+    }
+
+    @Override
+    public void accept(final ByteBuffer chunk) throws IOException {
+        final int length = chunk.remaining();
+        consumer.accept(chunk);
+        position += length;
+
+        if (position - windowStart >= PAGE_CACHE_ADVICE_WINDOW_SIZE) {
+            NativeIo.dontNeed(path, windowStart, position - windowStart);
+            windowStart = position;
+            // Pages that are already cached or on their way are not read again, so keep two windows requested
+            NativeIo.willNeed(path, position, 2 * PAGE_CACHE_ADVICE_WINDOW_SIZE);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.bitrot.io;
+
+import org.jspecify.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Gives every file of a tree a key that sorts files in the order they are laid out on the device, so that a
+ * rotational disk can read them with short seeks instead of jumping around the platter.
+ * <p>
+ * The best key is where the first extent of the file is stored, from FIEMAP. File systems that do not support FIEMAP
+ * allocate inodes close to their data, so the inode number comes next. If neither is known, files keep the order
+ * they were found in. The first non-empty file decides which key is used for the whole tree, as keys of different
+ * kinds cannot be compared.
+ */
+public final class PhysicalLocator {
+    private enum Kind { FIEMAP, INODE, DISCOVERY }
+
+    private volatile @Nullable Kind kind = null;
+    private final AtomicLong discovered = new AtomicLong();
+
+    /**
+     * Returns the key of a file.
+     *
+     * @param file       the file
+     * @param attributes the attributes of the file
+     * @return the key, lower keys should be read first
+     */
+    public long locate(final Path file, final BasicFileAttributes attributes) {
+        // Empty files are not read, so it does not matter where they go
+        if (attributes.size() == 0) {
+            return Long.MAX_VALUE;
+        }
+
+        Kind current = kind;
+        if (current == null) {
+            synchronized (this) {
+                if (kind == null) {
+                    kind = NativeIo.firstExtentOffset(file) >= 0 ? Kind.FIEMAP : inode(file) >= 0 ? Kind.INODE : Kind.DISCOVERY;
+                    System.out.println("Ordering files under " + file.getParent() + " by " + kind.name().toLowerCase());
+                }
+                current = kind;
+            }
+        }
+
+        final long key = switch (current) {
+            case FIEMAP -> NativeIo.firstExtentOffset(file);
+            case INODE -> inode(file);
+            case DISCOVERY -> discovered.getAndIncrement();
+        };
+        // Files whose location could not be found are read last
+        return key >= 0 ? key : Long.MAX_VALUE;
+    }
+
+    private static long inode(final Path file) {
+        try {
+            return ((Number) Files.getAttribute(file, "unix:ino")).longValue();
+        } catch (final IOException | UnsupportedOperationException | IllegalArgumentException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package com.bitrot.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static com.bitrot.data.Constants.CRC_BUFFER_SIZE;
+import static com.bitrot.data.Constants.MMAP_WINDOW_SIZE;
+
+/**
+ * The different ways of reading a file's contents for hashing.
+ * Every engine hands the file to a {@link ChunkConsumer} one buffer at a time, from the first byte to the last.
+ */
+public enum ReadEngine {
+    /**
+     * Reads through {@link Files#newInputStream} into a fresh heap array for every file.
+     * This is the original implementation.
+     */
+    STREAM {
+        @Override
+        public void read(final Path path, final ChunkConsumer consumer) throws IOException {
+            try (final InputStream inputStream = Files.newInputStream(path)) {
+                final byte[] buffer = new byte[CRC_BUFFER_SIZE];
+                int bytesRead;
+                while ((bytesRead = inputStream.read(buffer)) != -1) {
+                    consumer.accept(ByteBuffer.wrap(buffer, 0, bytesRead));
+                }
+            }
+        }
+
+        @Override
+        public long readRange(final Path path, final long position, final long length, final ChunkConsumer consumer) throws IOException {
+            // Streams cannot read at a position, so use a channel with the same kind of heap buffer
+            try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                return readChannelRange(channel, position, length, ByteBuffer.allocate(CRC_BUFFER_SIZE), consumer);
+            }
+        }
+    },
+
+    /**
+     * Reads through a {@link FileChannel} into pooled direct buffers.
+     * This avoids both the per-file allocation and the copy from native memory into the heap.
+     */
+    CHANNEL {
+        @Override
+        public void read(final Path path, final ChunkConsumer consumer) throws IOException {
+            try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                readChannel(channel, consumer);
+            }
+        }
+
+        @Override
+        public long readRange(final Path path, final long position, final long length, final ChunkConsumer consumer) throws IOException {
+            try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                final ByteBuffer buffer = BUFFER_POOL.acquire();
+                try {
+                    return readChannelRange(channel, position, length, buffer, consumer);
+                } finally {
+                    BUFFER_POOL.release(buffer);
+                }
+            }
+        }
+    },
+
+    /**
+     * Maps the file into memory in windows of {@link com.bitrot.data.Constants#MMAP_WINDOW_SIZE}.
+     * Files smaller than a window are read like {@link #CHANNEL} because mapping them costs more than reading them.
+     */
+    MMAP {
+        @Override
+        public void read(final Path path, final ChunkConsumer consumer) throws IOException {
+            try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                final long size = channel.size();
+                if (size < MMAP_WINDOW_SIZE) {
+                    readChannel(channel, consumer);
+                    return;
+                }
+
+                readMapped(channel, 0, size, MMAP_WINDOW_SIZE, consumer);
+            }
+        }
+
+        @Override
+        public long readRange(final Path path, final long position, final long length, final ChunkConsumer consumer) throws IOException {
+            try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                final long end = Math.min(position + length, channel.size());
+                readMapped(channel, position, end, MMAP_WINDOW_SIZE, consumer);
+                return Math.max(0, end - position);
+            }
+        }
+    };
+
+    private static final DirectBufferPool BUFFER_POOL = new DirectBufferPool(CRC_BUFFER_SIZE);
+
+    /**
+     * Reads the whole file, passing every chunk to the consumer in order.
+     * The consumer must not hold on to a chunk after it returns because the buffer will be reused.
+     *
+     * @param path     the file to read
+     * @param consumer the consumer of the file's contents
+     * @throws IOException if there was an error reading the file
+     */
+    public abstract void read(final Path path, final ChunkConsumer consumer) throws IOException;
+
+    /**
+     * Reads part of the file, passing every chunk to the consumer in order. Several ranges of the same file can be
+     * read at the same time. Like {@link #read}, the consumer must not hold on to a chunk.
+     *
+     * @param path     the file to read
+     * @param position the offset of the first byte to read
+     * @param length   the number of bytes to read
+     * @param consumer the consumer of the range's contents
+     * @return the number of bytes read, which is less than {@code length} if the file ended early
+     * @throws IOException if there was an error reading the file
+     */
+    public abstract long readRange(final Path path, final long position, final long length, final ChunkConsumer consumer) throws IOException;
+
+    private static void readChannel(final FileChannel channel, final ChunkConsumer consumer) throws IOException {
+        final ByteBuffer buffer = BUFFER_POOL.acquire();
+        try {
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                consumer.accept(buffer);
+                buffer.clear();
+            }
+        } finally {
+            BUFFER_POOL.release(buffer);
+        }
+    }
+
+    /**
+     * Maps the bytes from {@code start} to {@code end} one window at a time, the last window being shorter.
+     * Only tests pass a window size other than {@link com.bitrot.data.Constants#MMAP_WINDOW_SIZE}.
+     */
+    static void readMapped(final FileChannel channel, final long start, final long end, final long windowSize,
+                           final ChunkConsumer consumer) throws IOException {
+        for (long windowStart = start; windowStart < end; windowStart += windowSize) {
+            final MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(windowSize, end - windowStart));
+            consumer.accept(window);
+        }
+    }
+
+    private static long readChannelRange(final FileChannel channel, final long position, final long length,
+                                         final ByteBuffer buffer, final ChunkConsumer consumer) throws IOException {
+        long read = 0;
+        while (read < length) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), length - read));
+            final int bytesRead = channel.read(buffer, position + read);
+            if (bytesRead == -1) {
+                break;
+            }
+            read += bytesRead;
+            buffer.flip();
+            consumer.accept(buffer);
+        }
+        return read;
+    }
+
+    @FunctionalInterface
+    public interface ChunkConsumer {
+        void accept(final ByteBuffer chunk) throws IOException;
+    }
+}
@@ -0,0 +1,144 @@
+package com.bitrot.io;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.bitrot.data.Constants.THROTTLE_INCREASE_BYTES_PER_SECOND;
+import static com.bitrot.data.Constants.THROTTLE_MIN_BYTES_PER_SECOND;
+
+/**
+ * A token bucket that limits how many bytes per second are read from a single device for hashing.
+ * <p>
+ * Every chunk takes its size from the bucket before it is hashed, and the bucket refills at the current rate. A chunk
+ * may take more than is left, in which case the reader sleeps until the bucket is back at zero, so chunks larger than
+ * the bucket work and several readers share the rate between them.
+ * <p>
+ * The rate starts at the configured ceiling and can be adapted with additive increase and multiplicative decrease:
+ * it is halved whenever other programs are waiting on the device, and grows by a fixed step otherwise, like TCP
+ * congestion control. See {@link DiskLoadMonitor}.
+ */
+public final class ReadThrottle {
+    /**
+     * A throttle that never waits.
+     */
+    public static final ReadThrottle UNLIMITED = new ReadThrottle(Double.POSITIVE_INFINITY);
+
+    private final double ceilingBytesPerSecond;
+    // Guarded by this
+    private double bytesPerSecond;
+    private double tokens;
+    private long lastRefillNanos = System.nanoTime();
+    // Bytes taken since the load monitor last asked, so it can tell our reads from everybody else's
+    private final LongAdder bytesTaken = new LongAdder();
+
+    /**
+     * @param ceilingBytesPerSecond the highest rate, or {@link Double#POSITIVE_INFINITY} for no limit
+     */
+    public ReadThrottle(final double ceilingBytesPerSecond) {
+        this.ceilingBytesPerSecond = ceilingBytesPerSecond;
+        this.bytesPerSecond = ceilingBytesPerSecond;
+        this.tokens = 0;
+    }
+
+    /**
+     * Returns a consumer that takes the size of every chunk from this throttle before passing it on.
+     *
+     * @param consumer the consumer to throttle
+     * @return the throttled consumer, or the same consumer if this throttle never waits
+     */
+    public ReadEngine.ChunkConsumer wrap(final ReadEngine.ChunkConsumer consumer) {
+        if (this == UNLIMITED) {
+            return consumer;
+        }
+        return chunk -> {
+            acquire(chunk.remaining());
+            consumer.accept(chunk);
+        };
+    }
+
+    /**
+     * Takes the given number of bytes from the bucket, sleeping until the rate allows it.
+     *
+     * @param bytes the number of bytes about to be hashed
+     * @throws IOException if interrupted while sleeping
+     */
+    public void acquire(final long bytes) throws IOException {
+        bytesTaken.add(bytes);
+        final long waitNanos = reserve(bytes);
+        if (waitNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while throttling a read");
+            }
+        }
+    }
+
+    private synchronized long reserve(final long bytes) {
+        if (Double.isInfinite(bytesPerSecond)) {
+            return 0;
+        }
+        refill();
+        tokens -= bytes;
+        return tokens >= 0 ? 0 : (long) (-tokens / bytesPerSecond * TimeUnit.SECONDS.toNanos(1));
+    }
+
+    private void refill() {
+        final long now = System.nanoTime();
+        // The bucket holds at most a second's worth of reads, so an idle device does not allow a long burst after
+        tokens = Math.min(bytesPerSecond, tokens + (now - lastRefillNanos) * bytesPerSecond / TimeUnit.SECONDS.toNanos(1));
+        lastRefillNanos = now;
+    }
+
+    /**
+     * Adapts the rate to the load on the device.
+     *
+     * @param foregroundBusy         whether other programs were waiting on the device
+     * @param measuredBytesPerSecond how fast we actually read since the last call
+     */
+    public synchronized void adapt(final boolean foregroundBusy, final double measuredBytesPerSecond) {
+        if (!Double.isInfinite(bytesPerSecond)) {
+            refill();
+        } else {
+            lastRefillNanos = System.nanoTime();
+            tokens = 0;
+        }
+
+        if (foregroundBusy) {
+            // Halve what we actually read, as the rate may be far above it when we are not the bottleneck
+            final double current = measuredBytesPerSecond > 0 ? Math.min(bytesPerSecond, measuredBytesPerSecond) : bytesPerSecond;
+            bytesPerSecond = Math.max(THROTTLE_MIN_BYTES_PER_SECOND, Double.isInfinite(current) ? THROTTLE_MIN_BYTES_PER_SECOND : current / 2);
+        } else if (bytesPerSecond < ceilingBytesPerSecond) {
+            bytesPerSecond += THROTTLE_INCREASE_BYTES_PER_SECOND;
+            // Once the rate is well above what we read anyway, it is not what holds us back, so go back to the ceiling.
+            // A sample without reads says nothing about that, and the next file would start at the ceiling.
+            if (bytesPerSecond >= ceilingBytesPerSecond
+                    || (measuredBytesPerSecond > 0 && bytesPerSecond > 2 * measuredBytesPerSecond)) {
+                bytesPerSecond = ceilingBytesPerSecond;
+            }
+        }
+        tokens = Math.min(tokens, Double.isInfinite(bytesPerSecond) ? 0 : bytesPerSecond);
+    }
+
+    /**
+     * Returns the number of bytes taken since the last call.
+     *
+     * @return the bytes taken
+     */
+    public long takeBytesRead() {
+        return bytesTaken.sumThenReset();
+    }
+
+    public synchronized double getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    @Override
+    public String toString() {
+        final double rate = getBytesPerSecond();
+        return Double.isInfinite(rate) ? "unlimited" : String.format("%.1f MiB/s", rate / (1024 * 1024));
+    }
+}
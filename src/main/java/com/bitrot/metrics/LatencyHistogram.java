@@ -0,0 +1,213 @@
+package com.bitrot.metrics;
+
+import java.math.BigDecimal;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of how long one stage of the pipeline took, with fixed buckets from 1 µs to 100 s in steps of 1, 2 and
+ * 5 so that the buckets are the same for every stage and every run.
+ * <p>
+ * Recording never blocks or allocates: it finds the bucket and adds to a {@link LongAdder}, which spreads updates from
+ * many threads over several cells. Reading while others record gives counts that may be a few observations apart,
+ * which is fine for monitoring.
+ * <p>
+ * Stages that queue their tasks also mark when each task starts and finishes, which adds how long the tasks waited
+ * and how many ran at the same time.
+ */
+public final class LatencyHistogram {
+    // The upper bound of every bucket but the last, which has no bound
+    static final long[] BUCKET_BOUNDS_NANOS = bucketBounds();
+
+    private final String name;
+    private final String description;
+    private final LongAdder[] buckets = new LongAdder[BUCKET_BOUNDS_NANOS.length + 1];
+    private final LongAdder sumNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+    private final LongAdder waitNanos = new LongAdder();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger peakActive = new AtomicInteger();
+
+    /**
+     * @param name        the name of the stage, used as a label
+     * @param description what the stage covers
+     */
+    public LatencyHistogram(final String name, final String description) {
+        this.name = name;
+        this.description = description;
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    private static long[] bucketBounds() {
+        final long[] steps = {1, 2, 5};
+        final long[] bounds = new long[8 * steps.length + 1];
+        long decade = 1_000;
+        for (int i = 0; i < bounds.length - 1; i++) {
+            bounds[i] = steps[i % steps.length] * decade;
+            if (i % steps.length == steps.length - 1) {
+                decade *= 10;
+            }
+        }
+        bounds[bounds.length - 1] = decade;
+        return bounds;
+    }
+
+    /**
+     * Marks the start of a task that was queued at the given time.
+     *
+     * @param queuedAtNanos when the task was queued, from {@link System#nanoTime()}
+     * @return the start time to pass to {@link #finish(long)}
+     */
+    public long start(final long queuedAtNanos) {
+        final long startedAt = System.nanoTime();
+        waitNanos.add(startedAt - queuedAtNanos);
+        peakActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+        return startedAt;
+    }
+
+    /**
+     * Marks the end of a task started with {@link #start(long)} and records how long it took.
+     *
+     * @param startedAtNanos the value returned by {@link #start(long)}
+     */
+    public void finish(final long startedAtNanos) {
+        recordSince(startedAtNanos);
+        active.decrementAndGet();
+    }
+
+    /**
+     * Records a task that started at the given time and ended now.
+     *
+     * @param startNanos when the task started, from {@link System#nanoTime()}
+     */
+    public void recordSince(final long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Records how long a task took.
+     *
+     * @param nanos the duration of the task
+     */
+    public void record(final long nanos) {
+        int bucket = 0;
+        while (bucket < BUCKET_BOUNDS_NANOS.length && nanos > BUCKET_BOUNDS_NANOS[bucket]) {
+            bucket++;
+        }
+        buckets[bucket].increment();
+        sumNanos.add(nanos);
+        maxNanos.accumulate(nanos);
+    }
+
+    /**
+     * Returns the number of observations in each bucket, the last one being those above every bound.
+     *
+     * @return the counts, not cumulative
+     */
+    public long[] getBucketCounts() {
+        final long[] counts = new long[buckets.length];
+        for (int i = 0; i < buckets.length; i++) {
+            counts[i] = buckets[i].sum();
+        }
+        return counts;
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (final LongAdder bucket : buckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    public long getSumNanos() {
+        return sumNanos.sum();
+    }
+
+    public long getMaxNanos() {
+        return maxNanos.get();
+    }
+
+    /**
+     * @return how long the tasks marked with {@link #start(long)} waited in their queue, in total
+     */
+    public long getWaitNanos() {
+        return waitNanos.sum();
+    }
+
+    /**
+     * @return the number of tasks started but not finished yet
+     */
+    public int getActive() {
+        return active.get();
+    }
+
+    /**
+     * @return the most tasks that ran at the same time, or 0 if no task was marked with {@link #start(long)}
+     */
+    public int getPeakActive() {
+        return peakActive.get();
+    }
+
+    /**
+     * Returns an estimate of a quantile: the upper bound of the bucket it falls in, or the largest observation if it
+     * falls above every bound.
+     *
+     * @param quantile the quantile, between 0 and 1
+     * @return the estimate in nanoseconds, or 0 without observations
+     */
+    public long getQuantileNanos(final double quantile) {
+        final long[] counts = getBucketCounts();
+        long total = 0;
+        for (final long count : counts) {
+            total += count;
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        final long rank = (long) Math.ceil(quantile * total);
+        long cumulative = 0;
+        for (int i = 0; i < BUCKET_BOUNDS_NANOS.length; i++) {
+            cumulative += counts[i];
+            if (cumulative >= rank) {
+                return BUCKET_BOUNDS_NANOS[i];
+            }
+        }
+        return getMaxNanos();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    /**
+     * Formats nanoseconds as seconds without an exponent or trailing zeros, as Prometheus expects them.
+     */
+    static String seconds(final long nanos) {
+        return BigDecimal.valueOf(nanos, 9).stripTrailingZeros().toPlainString();
+    }
+
+    @Override
+    public String toString() {
+        final long count = getCount();
+        final String latency = String.format("%s: %d task(s), %.2f ms average, %.2f ms p50, %.2f ms p99, %.2f ms max",
+                name, count, average(getSumNanos(), count), getQuantileNanos(0.5) / 1_000_000.0,
+                getQuantileNanos(0.99) / 1_000_000.0, getMaxNanos() / 1_000_000.0);
+        if (getPeakActive() == 0) {
+            return latency;
+        }
+        return latency + String.format(", %.2f ms average wait, %d peak concurrent", average(getWaitNanos(), count), getPeakActive());
+    }
+
+    private static double average(final long nanos, final long count) {
+        return count == 0 ? 0 : nanos / 1_000_000.0 / count;
+    }
+}
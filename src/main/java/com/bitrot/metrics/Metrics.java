@@ -0,0 +1,407 @@
+package com.bitrot.metrics;
+
+import com.bitrot.io.DeviceLane;
+import com.bitrot.io.IoScheduler;
+import org.jspecify.annotations.Nullable;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+/**
+ * Latencies of every stage of the pipeline, bytes read per device and queue depths, so that a slow run can be pinned
+ * on the disks, MongoDB or SQLite.
+ * <p>
+ * Stages record into {@link LatencyHistogram}s that never block. Queues register how to read their depth, and
+ * devices are read from the {@link IoScheduler}. Once {@link #start} was called, everything is exposed as MXBeans
+ * under {@code com.bitrot} and, if a file is given, written as a Prometheus text file for the node exporter's
+ * textfile collector, every interval and once more by {@link #stop()} at the end of the run.
+ */
+public final class Metrics {
+    public static final LatencyHistogram WALK = new LatencyHistogram("walk",
+            "Listing a directory and reading the attributes of its entries");
+    public static final LatencyHistogram STAT = new LatencyHistogram("stat",
+            "Reading the attributes of a single file or directory");
+    public static final LatencyHistogram SKIP_LOOKUP = new LatencyHistogram("skip_lookup",
+            "Looking up when a file was last verified");
+    public static final LatencyHistogram PREPARE_BATCH = new LatencyHistogram("prepare_batch",
+            "Stat, skip checks and the prefetch query for a batch of files");
+    public static final LatencyHistogram MONGO_FIND = new LatencyHistogram("mongo_find",
+            "A query to MongoDB, for one file or a whole batch");
+    public static final LatencyHistogram MONGO_WRITE = new LatencyHistogram("mongo_write",
+            "A bulk write to MongoDB");
+    public static final LatencyHistogram SQLITE_WRITE = new LatencyHistogram("sqlite_write",
+            "A commit to one of the SQLite databases");
+    public static final LatencyHistogram VERIFY = new LatencyHistogram("verify",
+            "Verifying a single file, including waiting for the database and for its device lane to hash it");
+    public static final LatencyHistogram HASH = new LatencyHistogram("hash",
+            "Reading and hashing a file, or a range of a large file, on a reader thread");
+
+    private static final List<LatencyHistogram> STAGES = List.of(WALK, STAT, SKIP_LOOKUP, PREPARE_BATCH, MONGO_FIND, MONGO_WRITE, SQLITE_WRITE, VERIFY, HASH);
+    private static final String PREFIX = "bitrot_";
+    private static final String DOMAIN = "com.bitrot";
+
+    private static final Map<String, IntSupplier> QUEUES = new ConcurrentHashMap<>();
+    // Guarded by Metrics.class
+    private static final Map<String, DeviceRate> DEVICE_RATES = new HashMap<>();
+    private static final Set<ObjectName> REGISTERED = new HashSet<>();
+    private static @Nullable ScheduledExecutorService scheduler;
+    private static @Nullable Path textFile;
+
+    private Metrics() {}
+
+    /**
+     * Returns every stage, in the order of the pipeline.
+     *
+     * @return the stages
+     */
+    public static List<LatencyHistogram> stages() {
+        return STAGES;
+    }
+
+    /**
+     * Registers a queue whose depth is reported. A queue registered again under the same name replaces the first.
+     *
+     * @param name  the name of the queue, used as a label
+     * @param depth reads how many items are waiting in the queue, from any thread
+     */
+    public static void registerQueue(final String name, final IntSupplier depth) {
+        QUEUES.put(name, depth);
+    }
+
+    /**
+     * Starts exposing the metrics, over JMX and in the given file, and updates them on a daemon thread at the given
+     * interval for as long as the program runs.
+     *
+     * @param file            the Prometheus text file to write, or null for JMX only
+     * @param intervalSeconds the time between updates
+     */
+    public static synchronized void start(@Nullable final Path file, final long intervalSeconds) {
+        if (scheduler != null) {
+            return;
+        }
+        textFile = file;
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(Metrics::update, 0, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops the periodic updates and updates everything one last time, so the text file has the totals of the run.
+     */
+    public static synchronized void stop() {
+        if (scheduler == null) {
+            return;
+        }
+        scheduler.shutdown();
+        scheduler = null;
+        update();
+    }
+
+    private static synchronized void update() {
+        try {
+            final Collection<DeviceLane> lanes = IoScheduler.getInstance().getLanes();
+            sampleDevices(lanes);
+            registerMBeans(lanes);
+            if (textFile != null) {
+                writeTextFile(textFile, lanes);
+            }
+        } catch (final IOException | RuntimeException e) {
+            // The next update tries again
+            System.err.println("Could not update metrics: " + e.getMessage());
+        }
+    }
+
+    private static void sampleDevices(final Collection<DeviceLane> lanes) {
+        final long now = System.nanoTime();
+        for (final DeviceLane lane : lanes) {
+            final long bytes = lane.getBytesRead();
+            final DeviceRate previous = DEVICE_RATES.get(lane.getName());
+            final double bytesPerSecond = previous == null || now == previous.sampledAtNanos()
+                    ? 0
+                    : (bytes - previous.bytesRead()) / ((now - previous.sampledAtNanos()) / (double) TimeUnit.SECONDS.toNanos(1));
+            DEVICE_RATES.put(lane.getName(), new DeviceRate(bytes, now, bytesPerSecond));
+        }
+    }
+
+    private static double bytesPerSecond(final String device) {
+        synchronized (Metrics.class) {
+            final DeviceRate rate = DEVICE_RATES.get(device);
+            return rate == null ? 0 : rate.bytesPerSecond();
+        }
+    }
+
+    private static void registerMBeans(final Collection<DeviceLane> lanes) {
+        for (final LatencyHistogram stage : STAGES) {
+            register("Stage", stage.getName(), StageMXBean.class, new Stage(stage));
+        }
+        for (final DeviceLane lane : lanes) {
+            register("Device", lane.getName(), DeviceMXBean.class, new Device(lane));
+        }
+        for (final String queue : QUEUES.keySet()) {
+            register("Queue", queue, QueueMXBean.class, new Queue(queue));
+        }
+    }
+
+    private static <T> void register(final String type, final String name, final Class<T> mxBeanInterface, final T bean) {
+        try {
+            final ObjectName objectName = new ObjectName(DOMAIN + ":type=" + type + ",name=" + ObjectName.quote(name));
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (REGISTERED.add(objectName) && !server.isRegistered(objectName)) {
+                server.registerMBean(new StandardMBean(bean, mxBeanInterface, true), objectName);
+            }
+        } catch (final JMException e) {
+            System.err.println("Could not register " + type + " " + name + " with JMX: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes every metric to the given file in the Prometheus text format. The file is replaced in one move, so the
+     * node exporter never reads half of it.
+     *
+     * @param file  the file
+     * @param lanes the device lanes
+     * @throws IOException if the file could not be written
+     */
+    static void writeTextFile(final Path file, final Collection<DeviceLane> lanes) throws IOException {
+        final Path directory = file.toAbsolutePath().getParent();
+        // Not ending in .prom, so the collector ignores it until it is moved
+        final Path temporary = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+        try {
+            Files.writeString(temporary, format(lanes));
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    /**
+     * Formats every metric in the Prometheus text format.
+     *
+     * @param lanes the device lanes
+     * @return the metrics
+     */
+    static String format(final Collection<DeviceLane> lanes) {
+        final StringBuilder text = new StringBuilder();
+
+        header(text, "stage_duration_seconds", "histogram", "Time spent in each stage of the pipeline.");
+        for (final LatencyHistogram stage : STAGES) {
+            final String label = "stage=\"" + stage.getName() + "\"";
+            final long[] counts = stage.getBucketCounts();
+            long cumulative = 0;
+            for (int i = 0; i < counts.length; i++) {
+                cumulative += counts[i];
+                final String bound = i < LatencyHistogram.BUCKET_BOUNDS_NANOS.length
+                        ? LatencyHistogram.seconds(LatencyHistogram.BUCKET_BOUNDS_NANOS[i])
+                        : "+Inf";
+                sample(text, "stage_duration_seconds_bucket", label + ",le=\"" + bound + "\"", Long.toString(cumulative));
+            }
+            sample(text, "stage_duration_seconds_sum", label, LatencyHistogram.seconds(stage.getSumNanos()));
+            sample(text, "stage_duration_seconds_count", label, Long.toString(cumulative));
+        }
+        header(text, "stage_wait_seconds_total", "counter", "Time the tasks of each stage waited in its queue before they started.");
+        for (final LatencyHistogram stage : STAGES) {
+            sample(text, "stage_wait_seconds_total", "stage=\"" + stage.getName() + "\"", LatencyHistogram.seconds(stage.getWaitNanos()));
+        }
+        header(text, "stage_active_tasks", "gauge", "Tasks of each stage that are running.");
+        for (final LatencyHistogram stage : STAGES) {
+            sample(text, "stage_active_tasks", "stage=\"" + stage.getName() + "\"", Integer.toString(stage.getActive()));
+        }
+
+        header(text, "device_read_bytes_total", "counter", "Bytes read for hashing from each device.");
+        for (final DeviceLane lane : lanes) {
+            sample(text, "device_read_bytes_total", device(lane), Long.toString(lane.getBytesRead()));
+        }
+        header(text, "device_read_bytes_per_second", "gauge", "Bytes read for hashing from each device per second since the last update.");
+        for (final DeviceLane lane : lanes) {
+            sample(text, "device_read_bytes_per_second", device(lane), Long.toString(Math.round(bytesPerSecond(lane.getName()))));
+        }
+        header(text, "device_queued_reads", "gauge", "Reads waiting for a reader thread of each device.");
+        for (final DeviceLane lane : lanes) {
+            sample(text, "device_queued_reads", device(lane), Integer.toString(lane.getQueuedReads()));
+        }
+        header(text, "device_active_reads", "gauge", "Reads in progress on each device.");
+        for (final DeviceLane lane : lanes) {
+            sample(text, "device_active_reads", device(lane), Integer.toString(lane.getActiveReads()));
+        }
+
+        header(text, "queue_depth", "gauge", "Items waiting in each queue of the pipeline.");
+        for (final Map.Entry<String, IntSupplier> queue : QUEUES.entrySet()) {
+            sample(text, "queue_depth", "queue=\"" + escape(queue.getKey()) + "\"", Integer.toString(queue.getValue().getAsInt()));
+        }
+
+        header(text, "last_update_timestamp_seconds", "gauge", "When these metrics were written.");
+        sample(text, "last_update_timestamp_seconds", null, Long.toString(TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis())));
+        return text.toString();
+    }
+
+    private static void header(final StringBuilder text, final String name, final String type, final String help) {
+        text.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(final StringBuilder text, final String name, @Nullable final String labels, final String value) {
+        text.append(PREFIX).append(name);
+        if (labels != null) {
+            text.append('{').append(labels).append('}');
+        }
+        text.append(' ').append(value).append('\n');
+    }
+
+    private static String device(final DeviceLane lane) {
+        return "device=\"" + escape(lane.getName()) + "\"";
+    }
+
+    private static String escape(final String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * A stage of the pipeline over JMX.
+     */
+    public interface StageMXBean {
+        long getCount();
+
+        double getTotalSeconds();
+
+        double getMeanMillis();
+
+        double getP50Millis();
+
+        double getP99Millis();
+
+        double getMaxMillis();
+
+        double getMeanWaitMillis();
+
+        int getActive();
+
+        int getPeakActive();
+    }
+
+    /**
+     * A device over JMX.
+     */
+    public interface DeviceMXBean {
+        long getBytesRead();
+
+        double getBytesPerSecond();
+
+        int getQueuedReads();
+
+        int getActiveReads();
+    }
+
+    /**
+     * A queue of the pipeline over JMX.
+     */
+    public interface QueueMXBean {
+        int getDepth();
+    }
+
+    private record Stage(LatencyHistogram histogram) implements StageMXBean {
+        @Override
+        public long getCount() {
+            return histogram.getCount();
+        }
+
+        @Override
+        public double getTotalSeconds() {
+            return histogram.getSumNanos() / (double) TimeUnit.SECONDS.toNanos(1);
+        }
+
+        @Override
+        public double getMeanMillis() {
+            final long count = histogram.getCount();
+            return count == 0 ? 0 : histogram.getSumNanos() / 1_000_000.0 / count;
+        }
+
+        @Override
+        public double getP50Millis() {
+            return histogram.getQuantileNanos(0.5) / 1_000_000.0;
+        }
+
+        @Override
+        public double getP99Millis() {
+            return histogram.getQuantileNanos(0.99) / 1_000_000.0;
+        }
+
+        @Override
+        public double getMaxMillis() {
+            return histogram.getMaxNanos() / 1_000_000.0;
+        }
+
+        @Override
+        public double getMeanWaitMillis() {
+            final long count = histogram.getCount();
+            return count == 0 ? 0 : histogram.getWaitNanos() / 1_000_000.0 / count;
+        }
+
+        @Override
+        public int getActive() {
+            return histogram.getActive();
+        }
+
+        @Override
+        public int getPeakActive() {
+            return histogram.getPeakActive();
+        }
+    }
+
+    private record Device(DeviceLane lane) implements DeviceMXBean {
+        @Override
+        public long getBytesRead() {
+            return lane.getBytesRead();
+        }
+
+        @Override
+        public double getBytesPerSecond() {
+            return bytesPerSecond(lane.getName());
+        }
+
+        @Override
+        public int getQueuedReads() {
+            return lane.getQueuedReads();
+        }
+
+        @Override
+        public int getActiveReads() {
+            return lane.getActiveReads();
+        }
+    }
+
+    private record Queue(String name) implements QueueMXBean {
+        @Override
+        public int getDepth() {
+            final IntSupplier depth = QUEUES.get(name);
+            return depth == null ? 0 : depth.getAsInt();
+        }
+    }
+
+    /**
+     * @param bytesRead      the bytes read from the device when it was sampled
+     * @param sampledAtNanos when it was sampled
+     * @param bytesPerSecond the bytes read per second between the last two samples
+     */
+    private record DeviceRate(long bytesRead, long sampledAtNanos, double bytesPerSecond) {}
+}
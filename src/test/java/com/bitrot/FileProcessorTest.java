@@ -1,12 +1,21 @@
 package com.bitrot;
 
+import com.bitrot.checksum.BlockManifest;
+import com.bitrot.checksum.BuiltInChecksumAlgorithm;
+import com.bitrot.data.Config;
 import com.bitrot.data.DatabaseDocument;
+import com.bitrot.data.DocumentLookup;
+import com.bitrot.data.FileRecord;
+import com.bitrot.data.FileResult;
 import com.bitrot.data.Result;
+import com.bitrot.io.IoScheduler;
 import com.bitrot.logger.StdoutLoggerUtil;
 import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoClients;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
 import de.flapdoodle.embed.mongo.distribution.Version;
 import de.flapdoodle.embed.mongo.transitions.Mongod;
 import de.flapdoodle.embed.mongo.transitions.RunningMongodProcess;
@@ -28,16 +37,22 @@ import java.nio.file.attribute.FileTime;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.time.Duration;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.*;
+import java.util.concurrent.CompletionStage;
 
+import static com.bitrot.FileUtils.calculateFileId;
 import static com.bitrot.MongoManager.*;
+import static com.bitrot.data.Constants.MAX_FILES_IN_FLIGHT;
 import static com.bitrot.data.Constants.MONGO_COLLECTION_NAME;
 import static com.bitrot.data.Constants.MONGO_DB_NAME;
+import static com.bitrot.data.Constants.PREFETCH_BATCH_SIZE;
 import static java.lang.Thread.sleep;
 import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 
 public class FileProcessorTest {
     private static final Mongod mongod = new Mongod() {
@@ -50,6 +65,7 @@ public class FileProcessorTest {
     };
 
     private TransitionWalker.ReachedState<RunningMongodProcess> runningMongo;
+    private String mongoConnectionString;
     private MongoClient mongoClient;
     private FileProcessor fileProcessor;
 
@@ -59,7 +75,8 @@ public class FileProcessorTest {
         final SkipUtil skipUtil = new SkipUtil(connection);
 
         runningMongo = mongod.start(Version.V8_0_3);
-        mongoClient = MongoClients.create("mongodb://" + runningMongo.current().getServerAddress());
+        mongoConnectionString = "mongodb://" + runningMongo.current().getServerAddress();
+        mongoClient = MongoClients.create(mongoConnectionString);
         final MongoManager mongoManager = new MongoManager(mongoClient);
 
         fileProcessor = new FileProcessor(skipUtil, mongoManager, new StdoutLoggerUtil());
@@ -319,6 +336,433 @@ public class FileProcessorTest {
         System.out.println("Existing document last accessed time: " + secondDocumentLastAccessed);
     }
 
+    @Test
+    public void testLastAccessedNotUpdatedWhenRecent(@TempDir final Path tempDir) throws IOException {
+        final boolean isImmutable = false;
+
+        final Path tempFile = tempDir.resolve("specific-test-file.txt");
+        Files.writeString(tempFile, "xyz", StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        final Instant modifiedTime = Files.getLastModifiedTime(tempFile).toInstant();
+
+        // The document was accessed recently, so touching it again would be a wasted write
+        final MongoCollection<Document> collection = mongoClient.getDatabase(MONGO_DB_NAME).getCollection(MONGO_COLLECTION_NAME);
+        final Instant lastAccessed = Instant.now().minus(1, ChronoUnit.DAYS).truncatedTo(ChronoUnit.MILLIS);
+        collection.insertOne(new Document()
+                .append(FILE_ID_KEY, "c7f43a78dbc983d05e2ac88098c83f0901847bb75e4719e9ebda55fa8e206205") // SHA-256 of '\specific-test-file.txt'
+                .append(MODIFIED_TIME_SECONDS_KEY, modifiedTime.getEpochSecond())
+                .append(MODIFIED_TIME_NANOS_KEY, modifiedTime.getNano())
+                .append(SIZE_KEY, 3L)
+                .append(CHECKSUM_KEY, 3951999591L) // CRC32 of 'xyz'
+                .append(LAST_ACCESSED_KEY, lastAccessed));
+
+        final Map<Result, Integer> results = fileProcessor.processFiles(tempDir, isImmutable);
+        assertEquals(Map.of(Result.PASS, 1), results);
+
+        final Document document = collection.find().first();
+        assertNotNull(document);
+        assertEquals(Date.from(lastAccessed), document.get(LAST_ACCESSED_KEY));
+    }
+
+    @Test
+    public void testInMemoryRecencyIndex(@TempDir final Path tempDir) throws IOException, SQLException {
+        final boolean isImmutable = false;
+        final Connection connection = DriverManager.getConnection("jdbc:sqlite::memory:");
+        final MongoManager mongoManager = new MongoManager(mongoClient);
+
+        final Path tempFile = tempDir.resolve("specific-test-file.txt");
+        Files.writeString(tempFile, "xyz", StandardOpenOption.CREATE);
+
+        // The first run verifies the file and records it in the recency database
+        final FileProcessor firstFileProcessor = new FileProcessor(new SkipUtil(connection, false), mongoManager, new StdoutLoggerUtil());
+        assertEquals(Map.of(Result.PASS, 1), firstFileProcessor.processFiles(tempDir, isImmutable));
+
+        // A run with the database loaded into memory should skip the file without querying for it
+        final FileProcessor indexedFileProcessor = new FileProcessor(new SkipUtil(connection, true), mongoManager, new StdoutLoggerUtil());
+        assertEquals(Map.of(Result.SKIP, 1), indexedFileProcessor.processFiles(tempDir, isImmutable));
+
+        // Once the file is modified, the index should no longer skip it
+        Files.writeString(tempFile, "abc", StandardOpenOption.TRUNCATE_EXISTING);
+        Files.setLastModifiedTime(tempFile, FileTime.from(Instant.now().plus(1, ChronoUnit.HOURS)));
+        assertEquals(Map.of(Result.PASS, 1), indexedFileProcessor.processFiles(tempDir, isImmutable));
+
+        // Verifications made through the index should be visible on the next run
+        assertEquals(Map.of(Result.SKIP, 1), indexedFileProcessor.processFiles(tempDir, isImmutable));
+    }
+
+    @Test
+    public void testReactiveDriver(@TempDir final Path tempDir) throws IOException, SQLException {
+        final boolean isImmutable = false;
+        final MongoCollection<Document> collection = mongoClient.getDatabase(MONGO_DB_NAME).getCollection(MONGO_COLLECTION_NAME);
+
+        final Path tempFile = tempDir.resolve("specific-test-file.txt");
+        Files.writeString(tempFile, "xyz", StandardOpenOption.CREATE);
+        final Instant modifiedTime = Files.getLastModifiedTime(tempFile).toInstant();
+
+        try (final com.mongodb.reactivestreams.client.MongoClient reactiveClient =
+                     com.mongodb.reactivestreams.client.MongoClients.create(mongoConnectionString)) {
+            final AsyncMongoManager asyncMongoManager = new AsyncMongoManager(reactiveClient, Config.defaults());
+
+            // A new file should be saved exactly like the synchronous driver would
+            final FileProcessor firstFileProcessor = new FileProcessor(
+                    new SkipUtil(DriverManager.getConnection("jdbc:sqlite::memory:")), asyncMongoManager, new StdoutLoggerUtil());
+            assertEquals(Map.of(Result.PASS, 1), firstFileProcessor.processFiles(tempDir, isImmutable));
+            final Document document = collection.find().first();
+            assertNotNull(document);
+            assertEquals(new Document()
+                    .append(MONGO_ID_KEY, document.get(MONGO_ID_KEY))
+                    .append(FILE_ID_KEY, "c7f43a78dbc983d05e2ac88098c83f0901847bb75e4719e9ebda55fa8e206205") // SHA-256 of '\specific-test-file.txt'
+                    .append(MODIFIED_TIME_SECONDS_KEY, modifiedTime.getEpochSecond())
+                    .append(MODIFIED_TIME_NANOS_KEY, modifiedTime.getNano())
+                    .append(SIZE_KEY, 3L)
+                    .append(CHECKSUM_KEY, 3951999591L) // CRC32 of 'xyz'
+                    .append(LAST_ACCESSED_KEY, document.get(LAST_ACCESSED_KEY)), document);
+
+            // Bit rot with the same size and modified time should be caught, both with and without prefetching
+            Files.writeString(tempFile, "abc", StandardOpenOption.TRUNCATE_EXISTING);
+            Files.setLastModifiedTime(tempFile, FileTime.from(modifiedTime));
+            final FileProcessor secondFileProcessor = new FileProcessor(
+                    new SkipUtil(DriverManager.getConnection("jdbc:sqlite::memory:")), asyncMongoManager, new StdoutLoggerUtil());
+            assertEquals(Map.of(Result.FAIL, 1), secondFileProcessor.processFiles(tempDir, isImmutable));
+
+            final String filePath = FileUtils.getFilePathFromAbsolutePath(tempFile, tempDir);
+            final FileResult result = asyncMongoManager.processFileRecord(new FileRecord(tempFile, filePath, true), isImmutable, null)
+                    .toCompletableFuture().join();
+            assertEquals(Result.FAIL, result.result());
+
+            asyncMongoManager.close();
+        }
+        assertEquals(1, collection.countDocuments());
+    }
+
+    @Test
+    public void testLocalReplica(@TempDir final Path tempDir) throws IOException, SQLException {
+        final boolean isImmutable = false;
+        final MongoCollection<Document> collection = mongoClient.getDatabase(MONGO_DB_NAME).getCollection(MONGO_COLLECTION_NAME);
+        final Connection replicaConnection = DriverManager.getConnection("jdbc:sqlite::memory:");
+
+        // A file recorded by another computer before the replica existed
+        final Path existingFile = tempDir.resolve("specific-test-file.txt");
+        Files.writeString(existingFile, "xyz", StandardOpenOption.CREATE);
+        final Instant modifiedTime = Files.getLastModifiedTime(existingFile).toInstant();
+        assertEquals(Map.of(Result.PASS, 1), fileProcessor.processFiles(tempDir, isImmutable));
+        assertEquals(1, collection.countDocuments());
+
+        // The first sync should copy the document, so bit rot is caught by the replica
+        final ReplicaMongoManager replicaMongoManager = new ReplicaMongoManager(mongoClient, replicaConnection, Config.defaults());
+        Files.writeString(existingFile, "abc", StandardOpenOption.TRUNCATE_EXISTING);
+        Files.setLastModifiedTime(existingFile, FileTime.from(modifiedTime));
+        final FileProcessor corruptFileProcessor = new FileProcessor(
+                new SkipUtil(DriverManager.getConnection("jdbc:sqlite::memory:")), replicaMongoManager, new StdoutLoggerUtil());
+        assertEquals(Map.of(Result.FAIL, 1), corruptFileProcessor.processFiles(tempDir, isImmutable));
+
+        // A new file is recorded in the replica and then sent to the database with the same ID
+        Files.writeString(existingFile, "xyz", StandardOpenOption.TRUNCATE_EXISTING);
+        Files.setLastModifiedTime(existingFile, FileTime.from(modifiedTime));
+        final Path newFile = tempDir.resolve("new-file.txt");
+        Files.writeString(newFile, "123", StandardOpenOption.CREATE);
+        final FileProcessor newFileProcessor = new FileProcessor(
+                new SkipUtil(DriverManager.getConnection("jdbc:sqlite::memory:")), replicaMongoManager, new StdoutLoggerUtil());
+        assertEquals(Map.of(Result.PASS, 2), newFileProcessor.processFiles(tempDir, isImmutable));
+        assertEquals(2, collection.countDocuments());
+        final String newFileId = calculateFileId(FileUtils.getFilePathFromAbsolutePath(newFile, tempDir));
+        final Document newDocument = collection.find(new Document(FILE_ID_KEY, newFileId)).first();
+        assertNotNull(newDocument);
+        assertEquals(2286445522L, newDocument.get(CHECKSUM_KEY)); // CRC32 of '123'
+        final DatabaseDocument localDocument = replicaMongoManager.prefetch(List.of(new FileRecord(newFile, FileUtils.getFilePathFromAbsolutePath(newFile, tempDir), true)))
+                .toCompletableFuture().join().findAny(newFileId);
+        assertNotNull(localDocument);
+        assertEquals(newDocument.getObjectId(MONGO_ID_KEY), localDocument.objectId());
+
+        // A document created by another computer after the first sync should be fetched by a delta sync
+        final Path otherDir = Files.createDirectory(tempDir.resolve("other"));
+        final Path otherFile = otherDir.resolve("other-file.txt");
+        Files.writeString(otherFile, "xyz", StandardOpenOption.CREATE);
+        final Instant otherModifiedTime = Files.getLastModifiedTime(otherFile).toInstant();
+        assertEquals(Map.of(Result.PASS, 1), fileProcessor.processFiles(otherDir, isImmutable));
+        assertEquals(3, collection.countDocuments());
+
+        final ReplicaMongoManager syncedReplicaMongoManager = new ReplicaMongoManager(mongoClient, replicaConnection, Config.defaults());
+        Files.writeString(otherFile, "abc", StandardOpenOption.TRUNCATE_EXISTING);
+        Files.setLastModifiedTime(otherFile, FileTime.from(otherModifiedTime));
+        final FileResult result = syncedReplicaMongoManager.processFileRecord(
+                new FileRecord(otherFile, FileUtils.getFilePathFromAbsolutePath(otherFile, otherDir), true), isImmutable, null);
+        assertEquals(Result.FAIL, result.result());
+
+        syncedReplicaMongoManager.close();
+        assertEquals(3, collection.countDocuments());
+    }
+
+    @Test
+    public void testChecksumAlgorithm(@TempDir final Path tempDir) throws IOException, SQLException {
+        final boolean isImmutable = false;
+        final MongoCollection<Document> collection = mongoClient.getDatabase(MONGO_DB_NAME).getCollection(MONGO_COLLECTION_NAME);
+
+        // New records should be written with xxHash64
+        final Config config = Config.defaults();
+        config.setChecksumAlgorithm(BuiltInChecksumAlgorithm.XXHASH64.getName());
+        final FileProcessor xxHashFileProcessor = new FileProcessor(
+                new SkipUtil(DriverManager.getConnection("jdbc:sqlite::memory:")),
+                new MongoManager(mongoClient, config),
+                new StdoutLoggerUtil()
+        );
+
+        // A file that was recorded before algorithms were configurable, so its document has no algorithm
+        final Path existingFile = tempDir.resolve("specific-test-file.txt");
+        Files.writeString(existingFile, "xyz", StandardOpenOption.CREATE);
+        final Instant existingModifiedTime = Files.getLastModifiedTime(existingFile).toInstant();
+        final Document existingDocument = new Document()
+                .append(FILE_ID_KEY, "c7f43a78dbc983d05e2ac88098c83f0901847bb75e4719e9ebda55fa8e206205") // SHA-256 of '\specific-test-file.txt'
+                .append(MODIFIED_TIME_SECONDS_KEY, existingModifiedTime.getEpochSecond())
+                .append(MODIFIED_TIME_NANOS_KEY, existingModifiedTime.getNano())
+                .append(SIZE_KEY, 3L)
+                .append(CHECKSUM_KEY, 3951999591L) // CRC32 of 'xyz'
+                .append(LAST_ACCESSED_KEY, Instant.now());
+        collection.insertOne(existingDocument);
+
+        // A file we have never seen before
+        final Path newFile = tempDir.resolve("new-file.txt");
+        Files.writeString(newFile, "abc", StandardOpenOption.CREATE);
+
+        // The old document should still verify with CRC32 and the new one should be saved
+        final Map<Result, Integer> results = xxHashFileProcessor.processFiles(tempDir, isImmutable);
+        assertEquals(Map.of(Result.PASS, 2), results);
+        assertEquals(2, collection.countDocuments());
+
+        final Document oldDocument = collection.find(new Document(FILE_ID_KEY, existingDocument.get(FILE_ID_KEY))).first();
+        assertNotNull(oldDocument);
+        assertFalse(oldDocument.containsKey(CHECKSUM_ALGORITHM_KEY));
+        assertEquals(3951999591L, oldDocument.get(CHECKSUM_KEY));
+
+        final Document newDocument = collection.find(new Document(FILE_ID_KEY, calculateFileId("\\new-file.txt"))).first();
+        assertNotNull(newDocument);
+        assertEquals(BuiltInChecksumAlgorithm.XXHASH64.getName(), newDocument.get(CHECKSUM_ALGORITHM_KEY));
+        assertEquals(0x44bc2cf5ad770999L, newDocument.get(CHECKSUM_KEY)); // xxHash64 of 'abc'
+    }
+
+    @Test
+    public void testMigrateChecksums(@TempDir final Path tempDir) throws IOException, SQLException {
+        final boolean isImmutable = false;
+        final MongoCollection<Document> collection = mongoClient.getDatabase(MONGO_DB_NAME).getCollection(MONGO_COLLECTION_NAME);
+
+        final Config config = Config.defaults();
+        config.setChecksumAlgorithm(BuiltInChecksumAlgorithm.XXHASH64.getName());
+        config.setMigrateChecksums(true);
+        final FileProcessor migratingFileProcessor = new FileProcessor(
+                new SkipUtil(DriverManager.getConnection("jdbc:sqlite::memory:")),
+                new MongoManager(mongoClient, config),
+                new StdoutLoggerUtil()
+        );
+
+        // A good file and a rotten file, both recorded with CRC32
+        final Path goodFile = tempDir.resolve("good-file.txt");
+        Files.writeString(goodFile, "xyz", StandardOpenOption.CREATE);
+        final Path rottenFile = tempDir.resolve("rotten-file.txt");
+        Files.writeString(rottenFile, "xyz", StandardOpenOption.CREATE);
+        for (final Path file : List.of(goodFile, rottenFile)) {
+            final Instant modifiedTime = Files.getLastModifiedTime(file).toInstant();
+            collection.insertOne(new Document()
+                    .append(FILE_ID_KEY, calculateFileId("\\" + file.getFileName()))
+                    .append(MODIFIED_TIME_SECONDS_KEY, modifiedTime.getEpochSecond())
+                    .append(MODIFIED_TIME_NANOS_KEY, modifiedTime.getNano())
+                    .append(SIZE_KEY, 3L)
+                    // CRC32 of 'xyz' for the good file and of 'abc' for the rotten one
+                    .append(CHECKSUM_KEY, file.equals(goodFile) ? 3951999591L : 891568578L)
+                    .append(LAST_ACCESSED_KEY, Instant.now()));
+        }
+
+        final Map<Result, Integer> results = migratingFileProcessor.processFiles(tempDir, isImmutable);
+        assertEquals(Map.of(Result.PASS, 1, Result.FAIL, 1), results);
+
+        // The good file gets the new checksum alongside the old one
+        final Document goodDocument = collection.find(new Document(FILE_ID_KEY, calculateFileId("\\good-file.txt"))).first();
+        assertNotNull(goodDocument);
+        assertEquals(3951999591L, goodDocument.get(CHECKSUM_KEY));
+        assertEquals(new Document(BuiltInChecksumAlgorithm.XXHASH64.getName(), 0xfeba48465b833ca1L), goodDocument.get(CHECKSUMS_KEY)); // xxHash64 of 'xyz'
+
+        // The rotten file must not get a checksum of its rotten contents
+        final Document rottenDocument = collection.find(new Document(FILE_ID_KEY, calculateFileId("\\rotten-file.txt"))).first();
+        assertNotNull(rottenDocument);
+        assertFalse(rottenDocument.containsKey(CHECKSUMS_KEY));
+
+        // The migrated document now verifies with the new algorithm
+        final DatabaseDocument databaseDocument = new DatabaseDocument(goodDocument);
+        assertEquals(0xfeba48465b833ca1L, databaseDocument.checksum(BuiltInChecksumAlgorithm.XXHASH64));
+        assertEquals(3951999591L, databaseDocument.checksum(BuiltInChecksumAlgorithm.CRC32));
+        assertNull(databaseDocument.checksum(BuiltInChecksumAlgorithm.CRC32C));
+    }
+
+    @Test
+    public void testBlockManifest(@TempDir final Path tempDir) throws IOException, SQLException {
+        final boolean isImmutable = false;
+        final MongoCollection<Document> collection = mongoClient.getDatabase(MONGO_DB_NAME).getCollection(MONGO_COLLECTION_NAME);
+        final Config config = Config.defaults();
+        config.setBlockManifestSizeMiB(1);
+        final MongoManager mongoManager = new MongoManager(mongoClient, config);
+
+        // A file of two and a half blocks gets a manifest with three blocks
+        final Path tempFile = tempDir.resolve("large-file.bin");
+        final byte[] contents = new byte[5 * 512 * 1024];
+        new Random(42).nextBytes(contents);
+        Files.write(tempFile, contents);
+        final Instant modifiedTime = Files.getLastModifiedTime(tempFile).toInstant();
+        final FileProcessor blockFileProcessor = new FileProcessor(
+                new SkipUtil(DriverManager.getConnection("jdbc:sqlite::memory:")), mongoManager, new StdoutLoggerUtil());
+        assertEquals(Map.of(Result.PASS, 1), blockFileProcessor.processFiles(tempDir, isImmutable));
+        final Document document = collection.find().first();
+        assertNotNull(document);
+        assertEquals(1024L * 1024, document.get(BLOCK_SIZE_KEY));
+        final BlockManifest manifest = new DatabaseDocument(document).blockManifest();
+        assertNotNull(manifest);
+        assertEquals(3, manifest.getBlockCount());
+
+        // The corrupted range should be reported
+        contents[1024 * 1024 + 5] ^= 1;
+        Files.write(tempFile, contents);
+        Files.setLastModifiedTime(tempFile, FileTime.from(modifiedTime));
+        final String filePath = FileUtils.getFilePathFromAbsolutePath(tempFile, tempDir);
+        final FileResult result = mongoManager.processFileRecord(new FileRecord(tempFile, filePath, true), isImmutable);
+        assertEquals(Result.FAIL, result.result());
+        assertTrue(result.message().contains("bytes 1048576 to 2097152 (block 1 of 3)"), result.message());
+
+        mongoManager.close();
+    }
+
+    @Test
+    public void testRunJournal(@TempDir final Path tempDir) throws IOException, SQLException {
+        final MongoCollection<Document> collection = mongoClient.getDatabase(MONGO_DB_NAME).getCollection(MONGO_COLLECTION_NAME);
+        final RunJournal journal = new RunJournal(DriverManager.getConnection("jdbc:sqlite::memory:"));
+
+        // A write that was queued by a run that was killed before it was sent should be sent at startup
+        journal.appendWrite(new UpdateOneModel<>(
+                new Document(FILE_ID_KEY, "interrupted").append(MODIFIED_TIME_SECONDS_KEY, 1L).append(MODIFIED_TIME_NANOS_KEY, 2),
+                new Document("$set", new Document(SIZE_KEY, 3L).append(LAST_ACCESSED_KEY, Instant.now())),
+                new UpdateOptions().upsert(true)));
+        final MongoManager mongoManager = new MongoManager(mongoClient, Config.defaults(), journal);
+        assertEquals(1, collection.countDocuments(new Document(FILE_ID_KEY, "interrupted")));
+        assertTrue(journal.pendingWrites(10).isEmpty());
+
+        // Writes of this run stay in the journal until they are sent
+        final Path tempFile = tempDir.resolve("specific-test-file.txt");
+        Files.writeString(tempFile, "xyz", StandardOpenOption.CREATE);
+        final String filePath = FileUtils.getFilePathFromAbsolutePath(tempFile, tempDir);
+        assertEquals(Result.PASS, mongoManager.processFileRecord(new FileRecord(tempFile, filePath, true), false).result());
+        assertEquals(1, journal.pendingWrites(10).size());
+        mongoManager.flush();
+        assertTrue(journal.pendingWrites(10).isEmpty());
+        assertEquals(2, collection.countDocuments());
+
+        mongoManager.close();
+        journal.close();
+    }
+
+    @Test
+    public void testBudget(@TempDir final Path tempDir) throws IOException, SQLException {
+        final Connection connection = DriverManager.getConnection("jdbc:sqlite::memory:");
+        final FileProcessor budgetFileProcessor = new FileProcessor(new SkipUtil(connection), new MongoManager(mongoClient), new StdoutLoggerUtil());
+
+        final Path firstDir = Files.createDirectories(tempDir.resolve("first"));
+        final Path secondDir = Files.createDirectories(tempDir.resolve("second"));
+        final Path recentFile = firstDir.resolve("recent.txt");
+        final Path staleFile = secondDir.resolve("stale.txt");
+        final Path newFile = secondDir.resolve("new.txt");
+        Files.writeString(recentFile, "abc", StandardOpenOption.CREATE);
+        Files.writeString(staleFile, "xyz", StandardOpenOption.CREATE);
+
+        // Verify both files, then pretend they were verified a while ago with the file in the first path more recently
+        assertEquals(Map.of(Result.PASS, 2), budgetFileProcessor.processPathsWithBudget(List.of(firstDir, secondDir), List.of(),
+                new ScanBudget(Long.MAX_VALUE, null)));
+        try (final Statement stmt = connection.createStatement()) {
+            stmt.executeUpdate("UPDATE file_verification SET last_verified = " + Instant.now().minus(100, ChronoUnit.DAYS).toEpochMilli()
+                    + " WHERE absolute_file_path = '" + recentFile + "'");
+            stmt.executeUpdate("UPDATE file_verification SET last_verified = " + Instant.now().minus(200, ChronoUnit.DAYS).toEpochMilli()
+                    + " WHERE absolute_file_path = '" + staleFile + "'");
+        }
+        Files.writeString(newFile, "123", StandardOpenOption.CREATE);
+
+        // A budget of a single byte starts a single file, and a file that was never verified goes first
+        final ScanBudget oneByte = new ScanBudget(1, null);
+        assertEquals(Map.of(Result.PASS, 1), budgetFileProcessor.processPathsWithBudget(List.of(firstDir, secondDir), List.of(), oneByte));
+        assertEquals(3, oneByte.getBytesCharged());
+
+        // Then the stalest file, even though it is in the last path
+        assertEquals(Map.of(Result.PASS, 1, Result.SKIP, 1),
+                budgetFileProcessor.processPathsWithBudget(List.of(firstDir, secondDir), List.of(), new ScanBudget(1, null)));
+        assertEquals(Map.of(Result.PASS, 1, Result.SKIP, 2),
+                budgetFileProcessor.processPathsWithBudget(List.of(firstDir, secondDir), List.of(), new ScanBudget(1, null)));
+
+        // A budget without time left verifies nothing
+        Files.writeString(newFile, "456", StandardOpenOption.TRUNCATE_EXISTING);
+        Files.setLastModifiedTime(newFile, FileTime.from(Instant.now().plus(1, ChronoUnit.HOURS)));
+        assertEquals(Map.of(Result.SKIP, 2),
+                budgetFileProcessor.processPathsWithBudget(List.of(firstDir, secondDir), List.of(), new ScanBudget(Long.MAX_VALUE, Duration.ZERO)));
+    }
+
+    @Test
+    public void testMoreFilesThanFitInFlight(@TempDir final Path tempDir) throws IOException {
+        final boolean isImmutable = true;
+        // Enough files in enough directories that several walkers wait for room in the pipeline at the same time
+        final int fileCount = MAX_FILES_IN_FLIGHT + PREFETCH_BATCH_SIZE + 1;
+        for (int i = 0; i < fileCount; i++) {
+            final Path dir = Files.createDirectories(tempDir.resolve("dir" + (i % 20)));
+            Files.writeString(dir.resolve("file" + i + ".txt"), "contents " + i, StandardOpenOption.CREATE);
+        }
+
+        final Map<Result, Integer> results = assertTimeoutPreemptively(Duration.ofMinutes(5), () -> fileProcessor.processFiles(tempDir, isImmutable));
+        assertEquals(Map.of(Result.PASS, fileCount), results);
+    }
+
+    @Test
+    public void testFailedBatchReleasesItsFiles(@TempDir final Path tempDir) throws IOException, SQLException {
+        // A store that fails every batch outside of the handling of any single file
+        final VerificationStore failingStore = new VerificationStore() {
+            @Override
+            public CompletionStage<DocumentLookup> prefetch(final Collection<FileRecord> fileRecords) {
+                throw new AssertionError("prefetch failed");
+            }
+
+            @Override
+            public CompletionStage<FileResult> verify(final FileRecord fileRecord, final boolean isImmutable, final DocumentLookup lookup) {
+                throw new AssertionError("not reached");
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        final FileProcessor failingFileProcessor = new FileProcessor(
+                new SkipUtil(DriverManager.getConnection("jdbc:sqlite::memory:")), failingStore, new StdoutLoggerUtil());
+        for (int i = 0; i < PREFETCH_BATCH_SIZE + 1; i++) {
+            Files.writeString(tempDir.resolve("file" + i + ".txt"), "contents " + i, StandardOpenOption.CREATE);
+        }
+
+        // The files have no result, but the run still ends
+        assertEquals(Map.of(), assertTimeoutPreemptively(Duration.ofMinutes(1), () -> failingFileProcessor.processFiles(tempDir, false)));
+    }
+
+    @Test
+    public void testPhysicalOrder(@TempDir final Path tempDir) throws IOException, SQLException {
+        final boolean isImmutable = false;
+        final FileProcessor physicalFileProcessor = new FileProcessor(
+                new SkipUtil(DriverManager.getConnection("jdbc:sqlite::memory:")), new MongoManager(mongoClient), new StdoutLoggerUtil(), true);
+        // Files in physical order are only read from rotational disks, so make sure the temporary directory is one
+        assumeTrue(IoScheduler.getInstance().registerRoot(tempDir).isRotational());
+
+        for (int i = 0; i < 20; i++) {
+            final Path dir = Files.createDirectories(tempDir.resolve("dir" + (i % 3)));
+            Files.writeString(dir.resolve("file" + i + ".txt"), "contents " + i, StandardOpenOption.CREATE);
+        }
+        Files.writeString(tempDir.resolve("skipped.tmp"), "xyz", StandardOpenOption.CREATE);
+
+        // Every file is verified no matter the order, and skipped files are counted while walking
+        assertEquals(Map.of(Result.PASS, 20, Result.SKIP, 1), physicalFileProcessor.processFiles(tempDir, isImmutable));
+        assertEquals(20, mongoClient.getDatabase(MONGO_DB_NAME).getCollection(MONGO_COLLECTION_NAME).countDocuments());
+        assertEquals(Map.of(Result.SKIP, 21), physicalFileProcessor.processFiles(tempDir, isImmutable));
+    }
+
     @Test
     public void testMissingFields() {
         final MongoCollection<Document> collection = mongoClient.getDatabase(MONGO_DB_NAME).getCollection(MONGO_COLLECTION_NAME);
@@ -1,20 +1,48 @@
 package com.bitrot;
 
+import com.bitrot.checksum.BuiltInChecksumAlgorithm;
+import com.bitrot.checksum.ChecksumAlgorithm;
 import com.bitrot.data.FileRecord;
+import com.bitrot.io.DeviceLane;
+import com.bitrot.io.IoScheduler;
+import com.bitrot.io.ReadEngine;
 import com.google.common.jimfs.Configuration;
 import com.google.common.jimfs.Jimfs;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileSystem;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
 
+import static com.bitrot.FileUtils.calculateFileId;
 import static com.bitrot.FileUtils.computeCRC;
+import static com.bitrot.FileUtils.computeChecksums;
 import static com.bitrot.FileUtils.getFilePathFromAbsolutePath;
+import static com.bitrot.data.Constants.CRC_BUFFER_SIZE;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class FileUtilsTest {
     @Test
@@ -28,6 +56,75 @@ public class FileUtilsTest {
         }
     }
 
+    @Test
+    void testComputeCRCReadEngines(@TempDir final Path tempDir) throws IOException {
+        // Span several read buffers and end on a partial one
+        final byte[] contents = new byte[CRC_BUFFER_SIZE * 2 + 7];
+        new Random(42).nextBytes(contents);
+        final Path path = tempDir.resolve("test2.bin");
+        Files.write(path, contents);
+
+        final CRC32 expected = new CRC32();
+        expected.update(contents);
+
+        for (final ReadEngine readEngine : ReadEngine.values()) {
+            assertEquals(expected.getValue(), computeCRC(path, readEngine), "Read engine " + readEngine);
+        }
+    }
+
+    @Test
+    void testComputeChecksumsInRanges(@TempDir final Path tempDir) throws IOException {
+        final byte[] contents = new byte[CRC_BUFFER_SIZE * 2 + 7];
+        new Random(42).nextBytes(contents);
+        final Path path = tempDir.resolve("test3.bin");
+        Files.write(path, contents);
+
+        final List<ChecksumAlgorithm> algorithms = List.of(BuiltInChecksumAlgorithm.CRC32, BuiltInChecksumAlgorithm.CRC32C);
+        final Map<ChecksumAlgorithm, Long> expected = computeChecksums(path, algorithms);
+        final DeviceLane lane = IoScheduler.getInstance().laneFor(path);
+
+        // Ranges that do not line up with the read buffers, the last one being shorter
+        for (final ReadEngine readEngine : ReadEngine.values()) {
+            assertEquals(expected, FileUtils.computeChecksumsInRanges(lane, path, algorithms, readEngine, contents.length, 1_000_003),
+                    "Read engine " + readEngine);
+        }
+    }
+
+    @Test
+    void testComputeChecksumsWithCheckpoints(@TempDir final Path tempDir) throws IOException, SQLException {
+        final byte[] contents = new byte[3_000_000];
+        new Random(42).nextBytes(contents);
+        final Path path = tempDir.resolve("test4.bin");
+        Files.write(path, contents);
+        final BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        final Instant modifiedTime = attributes.lastModifiedTime().toInstant();
+        final DeviceLane lane = IoScheduler.getInstance().laneFor(path);
+
+        final List<ChecksumAlgorithm> algorithms = List.of(BuiltInChecksumAlgorithm.CRC32, BuiltInChecksumAlgorithm.CRC32C);
+        final Map<ChecksumAlgorithm, Long> expected = computeChecksums(path, algorithms);
+
+        try (final RunJournal journal = new RunJournal(DriverManager.getConnection("jdbc:sqlite::memory:"))) {
+            // Without a checkpoint the whole file is read, and the checkpoints are removed once it is done
+            assertEquals(expected, FileUtils.computeChecksumsWithCheckpoints(journal, path, algorithms, ReadEngine.CHANNEL, lane, attributes, 1_000_000));
+            assertNull(journal.findCheckpoint(path, modifiedTime, contents.length, algorithms));
+
+            // A run that was stopped after a million bytes resumes from there
+            final CRC32 crc32 = new CRC32();
+            crc32.update(contents, 0, 1_000_000);
+            final CRC32C crc32c = new CRC32C();
+            crc32c.update(contents, 0, 1_000_000);
+            journal.saveCheckpoint(path, modifiedTime, contents.length, algorithms,
+                    new RunJournal.Checkpoint(1_000_000, new long[]{crc32.getValue(), crc32c.getValue()}));
+            assertEquals(expected, FileUtils.computeChecksumsWithCheckpoints(journal, path, algorithms, ReadEngine.STREAM, lane, attributes, 1_000_000));
+
+            // The start of the file is not read again, so a checkpoint for a different version of the file must not be used
+            journal.saveCheckpoint(path, modifiedTime.minusSeconds(1), contents.length, algorithms, new RunJournal.Checkpoint(1_000_000, new long[]{0, 0}));
+            assertEquals(expected, FileUtils.computeChecksumsWithCheckpoints(journal, path, algorithms, ReadEngine.MMAP, lane, attributes, 1_000_000));
+            journal.saveCheckpoint(path, modifiedTime, contents.length, algorithms, new RunJournal.Checkpoint(1_000_000, new long[]{0, 0}));
+            assertNotEquals(expected, FileUtils.computeChecksumsWithCheckpoints(journal, path, algorithms, ReadEngine.MMAP, lane, attributes, 1_000_000));
+        }
+    }
+
     @Test
     void testCalculateFileId() {
         final String filePath = "Some Folder\\Some File.txt";
@@ -40,6 +137,97 @@ public class FileUtilsTest {
         assertEquals("2f8f4b58d30d87cf5b95e7d1d17c971b5924fb1a041c6620e8c262c47beb4b26", fileRecord.getFileId());
     }
 
+    @Test
+    void testCalculateFileIdEncoding() throws NoSuchAlgorithmException {
+        // Non-ASCII, characters outside the BMP, an unpaired surrogate, and a path longer than the initial buffer
+        final List<String> filePaths = List.of("\\Fotos\\Größe 2€.jpg", "\\\uD83D\uDCF7\\片.png", "\\bad\uD800name", "\\" + "deep\\".repeat(100) + "é");
+        for (final String filePath : filePaths) {
+            final byte[] expected = MessageDigest.getInstance("SHA-256").digest(filePath.getBytes(StandardCharsets.UTF_8));
+            assertEquals(HexFormat.of().formatHex(expected), calculateFileId(filePath), filePath);
+        }
+    }
+
+    @Test
+    void testHotPathAllocations() throws SQLException, IOException {
+        final com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long threadId = Thread.currentThread().threadId();
+        final SkipUtil skipUtil = new SkipUtil(DriverManager.getConnection("jdbc:sqlite::memory:"));
+        final Path absoluteFilePath = Paths.get("photos", "2021", "Summer holiday", "IMG_0042.jpg").toAbsolutePath();
+        final String filePath = "\\2021\\Summer holiday\\IMG_0042.jpg";
+        final BasicFileAttributes attributes = new BasicFileAttributes() {
+            public FileTime lastModifiedTime() { return FileTime.fromMillis(1_626_280_502_123L); }
+            public FileTime lastAccessTime() { return lastModifiedTime(); }
+            public FileTime creationTime() { return lastModifiedTime(); }
+            public boolean isRegularFile() { return true; }
+            public boolean isDirectory() { return false; }
+            public boolean isSymbolicLink() { return false; }
+            public boolean isOther() { return false; }
+            public long size() { return 42; }
+            public Object fileKey() { return null; }
+        };
+        final FileRecord fileRecord = new FileRecord(absoluteFilePath, filePath, attributes);
+
+        assertFalse(skipUtil.isFiltered(absoluteFilePath));
+        assertTrue(skipUtil.isFiltered(Paths.get("photos", ".stversions", "IMG_0042.jpg").toAbsolutePath()));
+        assertTrue(skipUtil.isFiltered(Paths.get("photos", "IMG_0042.jpg.tmp").toAbsolutePath()));
+        assertEquals(1_626_280_502L, fileRecord.getMTimeSeconds());
+        assertEquals(123_000_000, fileRecord.getMTimeNanos());
+
+        // Warm up so that the JIT has compiled the hot path
+        final int iterations = 200_000;
+        long sink = 0;
+        for (int i = 0; i < iterations; i++) {
+            sink += hotPath(skipUtil, fileRecord, absoluteFilePath, filePath);
+        }
+
+        final long allocatedBefore = threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < iterations; i++) {
+            sink += hotPath(skipUtil, fileRecord, absoluteFilePath, filePath);
+        }
+        final long bytesPerFile = (threadBean.getThreadAllocatedBytes(threadId) - allocatedBefore) / iterations;
+
+        // Only the file ID itself, a String of 64 characters, may be allocated
+        assertTrue(bytesPerFile <= 128, bytesPerFile + " bytes allocated per file");
+        assertNotEquals(0, sink);
+        skipUtil.close();
+    }
+
+    private static long hotPath(final SkipUtil skipUtil, final FileRecord fileRecord, final Path absoluteFilePath, final String filePath)
+            throws IOException {
+        final String fileId = calculateFileId(filePath);
+        return fileId.charAt(0) + (skipUtil.isFiltered(absoluteFilePath) ? 1 : 0) + fileRecord.getMTimeSeconds()
+                + fileRecord.getMTimeNanos() + fileRecord.getSize();
+    }
+
+    @Test
+    void testFileIdAllocationsOnVirtualThreads() throws InterruptedException {
+        final com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final String filePath = "\\2021\\Summer holiday\\IMG_0042.jpg";
+
+        // File IDs are computed on short-lived virtual threads, so compare a thread that computes one with one that
+        // does nothing. Virtual threads allocate on their carrier, so this measures every thread.
+        final int threads = 20_000;
+        long perThreadWithId = 0;
+        long perEmptyThread = 0;
+        for (int round = 0; round < 3; round++) {
+            perThreadWithId = allocatedPerVirtualThread(threadBean, threads, () -> calculateFileId(filePath));
+            perEmptyThread = allocatedPerVirtualThread(threadBean, threads, () -> {});
+        }
+
+        // Only the file ID itself, not a new digest and buffers for every thread
+        final long bytesPerFile = perThreadWithId - perEmptyThread;
+        assertTrue(bytesPerFile <= 256, bytesPerFile + " bytes allocated per file");
+    }
+
+    private static long allocatedPerVirtualThread(final com.sun.management.ThreadMXBean threadBean, final int threads,
+                                                  final Runnable task) throws InterruptedException {
+        final long allocatedBefore = threadBean.getTotalThreadAllocatedBytes();
+        for (int i = 0; i < threads; i++) {
+            Thread.ofVirtual().start(task).join();
+        }
+        return (threadBean.getTotalThreadAllocatedBytes() - allocatedBefore) / threads;
+    }
+
     @Test
     void testGetFilePathFromAbsolutePath() {
         String filePath = getFilePathFromAbsolutePath(Paths.get("C:\\dir1\\file1.txt"), Paths.get("C:\\"));
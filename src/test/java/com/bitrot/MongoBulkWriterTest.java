@@ -0,0 +1,84 @@
+package com.bitrot;
+
+import com.mongodb.MongoException;
+import com.mongodb.MongoSocketException;
+import com.mongodb.ServerAddress;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import org.bson.Document;
+import org.junit.jupiter.api.Test;
+
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class MongoBulkWriterTest {
+    @Test
+    void testTransientFailuresAreRetried() {
+        final AtomicInteger attempts = new AtomicInteger();
+        try (final MongoBulkWriter writer = new MongoBulkWriter(writes -> {
+            if (attempts.incrementAndGet() == 1) {
+                throw new MongoSocketException("connection reset", new ServerAddress());
+            }
+            return BulkWriteResult.acknowledged(0, writes.size(), 0, writes.size(), List.of(), List.of());
+        }, 10, 60)) {
+            writer.add(update());
+            writer.flush();
+        }
+        assertEquals(2, attempts.get());
+    }
+
+    @Test
+    void testOtherFailuresAreNotRetried() {
+        final AtomicInteger attempts = new AtomicInteger();
+        final MongoBulkWriter writer = new MongoBulkWriter(writes -> {
+            attempts.incrementAndGet();
+            throw new MongoException("bad write");
+        }, 10, 60);
+        writer.add(update());
+        assertThrows(MongoException.class, writer::flush);
+        assertEquals(1, attempts.get());
+    }
+
+    @Test
+    void testFailedBatchIsReportedToItsOwnWrites() {
+        final MongoBulkWriter writer = new MongoBulkWriter(writes -> {
+            throw new MongoException("bad write");
+        }, 2, 60);
+        final CompletableFuture<Void> first = writer.add(update()).toCompletableFuture();
+        // Fills the queue, but the failure goes to the writes in the batch and not to this caller
+        final CompletableFuture<Void> second = writer.add(update()).toCompletableFuture();
+        assertTrue(first.isCompletedExceptionally());
+        assertTrue(second.isCompletedExceptionally());
+        // Still reported by the next flush
+        assertThrows(MongoException.class, writer::flush);
+    }
+
+    @Test
+    void testJournaledWritesAreRemovedOnceSent() throws SQLException {
+        final RunJournal journal = new RunJournal(DriverManager.getConnection("jdbc:sqlite::memory:"));
+        try (final MongoBulkWriter writer = new MongoBulkWriter(
+                writes -> BulkWriteResult.acknowledged(0, writes.size(), 0, writes.size(), List.of(), List.of()), 2, 60, journal)) {
+            writer.add(update());
+            writer.add(update());
+            writer.add(update());
+            // The first two were sent as soon as the queue was full
+            assertEquals(1, journal.pendingWrites(10).size());
+            writer.flush();
+            assertTrue(journal.pendingWrites(10).isEmpty());
+        } finally {
+            journal.close();
+        }
+    }
+
+    private static UpdateOneModel<Document> update() {
+        return new UpdateOneModel<>(new Document("_id", "id"), new Document("$set", new Document("checksum", 1L)), new UpdateOptions().upsert(true));
+    }
+}
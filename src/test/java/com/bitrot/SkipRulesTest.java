@@ -0,0 +1,141 @@
+package com.bitrot;
+
+import com.bitrot.data.Config;
+import com.bitrot.data.SkipRule;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.jimfs.Configuration;
+import com.google.common.jimfs.Jimfs;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SkipRulesTest {
+    @Test
+    void testNameRules() throws IOException {
+        final SkipRules rules = SkipRules.compile(List.of(
+                rule("prefix", "."), rule("suffix", ".tmp"), rule("glob", "*.{bak,old}"), rule("glob", "**/build/cache")));
+
+        try (final FileSystem fileSystem = Jimfs.newFileSystem(Configuration.unix())) {
+            final Path root = Files.createDirectories(fileSystem.getPath("/data"));
+            final Path file = Files.createFile(root.resolve("photo.jpg"));
+            final BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+
+            assertFalse(rules.excludesFile(root, file, attributes));
+            assertTrue(rules.excludesFile(root, root.resolve(".hidden"), attributes));
+            assertTrue(rules.excludesFile(root, root.resolve("a/download.tmp"), attributes));
+            assertTrue(rules.excludesFile(root, root.resolve("a/photo.jpg.old"), attributes));
+            assertFalse(rules.excludesFile(root, root.resolve("a/photo.jpg.older"), attributes));
+
+            // Globs with a / are matched against the path below the root
+            assertTrue(rules.excludesDirectory(root, root.resolve("build/cache")));
+            assertTrue(rules.excludesDirectory(root, root.resolve("a/b/build/cache")));
+            assertFalse(rules.excludesDirectory(root, root.resolve("build")));
+            assertFalse(rules.excludesDirectory(root, root.resolve("a/build/cache2")));
+            assertTrue(rules.excludesDirectory(root, root.resolve(".git")));
+
+            assertTrue(rules.excludesAnyPart(root.resolve(".git/objects/pack")));
+            assertFalse(rules.excludesAnyPart(root.resolve("a/b/photo.jpg")));
+        }
+    }
+
+    @Test
+    void testWindowsSeparators() throws IOException {
+        final SkipRules rules = SkipRules.compile(List.of(rule("glob", "node_modules"), rule("glob", "**/target/classes")));
+
+        try (final FileSystem fileSystem = Jimfs.newFileSystem(Configuration.windows())) {
+            final Path root = Files.createDirectories(fileSystem.getPath("C:\\data"));
+            assertTrue(rules.excludesDirectory(root, root.resolve("app\\node_modules")));
+            assertTrue(rules.excludesDirectory(root, root.resolve("app\\target\\classes")));
+            assertTrue(rules.excludesAnyPart(root.resolve("app\\node_modules\\lib\\index.js")));
+            assertFalse(rules.excludesAnyPart(root.resolve("app\\src\\index.js")));
+        }
+    }
+
+    @Test
+    void testFileRules() throws IOException {
+        final SkipRule large = rule("suffix", ".iso");
+        large.setLargerThanMiB(1);
+        final SkipRule old = new SkipRule();
+        old.setOlderThanDays(365);
+        final SkipRules rules = SkipRules.compile(List.of(large, old));
+
+        try (final FileSystem fileSystem = Jimfs.newFileSystem(Configuration.unix())) {
+            final Path root = Files.createDirectories(fileSystem.getPath("/data"));
+            final Path smallImage = Files.write(root.resolve("small.iso"), new byte[1024]);
+            final Path largeImage = Files.write(root.resolve("large.iso"), new byte[2 * 1024 * 1024]);
+            final Path oldFile = Files.write(root.resolve("old.txt"), new byte[1]);
+            Files.setLastModifiedTime(oldFile, FileTime.from(Instant.now().minus(400, ChronoUnit.DAYS)));
+
+            assertFalse(rules.excludesFile(root, smallImage, Files.readAttributes(smallImage, BasicFileAttributes.class)));
+            assertTrue(rules.excludesFile(root, largeImage, Files.readAttributes(largeImage, BasicFileAttributes.class)));
+            assertTrue(rules.excludesFile(root, oldFile, Files.readAttributes(oldFile, BasicFileAttributes.class)));
+
+            // Rules with a size or age never exclude directories
+            assertFalse(rules.excludesDirectory(root, root.resolve("images.iso")));
+            assertFalse(rules.excludesAnyPart(largeImage));
+        }
+    }
+
+    @Test
+    void testInvalidRules() {
+        final SkipRule both = rule("prefix", ".");
+        both.setSuffix(".tmp");
+        assertThrows(IllegalArgumentException.class, () -> SkipRules.compile(List.of(both)));
+        assertThrows(IllegalArgumentException.class, () -> SkipRules.compile(List.of(new SkipRule())));
+        assertThrows(IllegalArgumentException.class, () -> SkipRules.compile(List.of(rule("prefix", ""))));
+        assertThrows(IllegalArgumentException.class, () -> SkipRules.compile(List.of(rule("glob", "{a,b"))));
+    }
+
+    @Test
+    void testNullSkipRulesInConfig() {
+        final ObjectMapper mapper = new ObjectMapper();
+        final JsonMappingException e = assertThrows(JsonMappingException.class, () -> mapper.readValue("{\"skipRules\": null}", Config.class));
+        assertTrue(e.getMessage().contains("skipRules cannot be null"), e.getMessage());
+        assertThrows(JsonMappingException.class, () -> mapper.readValue("{\"skipRules\": [null]}", Config.class));
+    }
+
+    @Test
+    void testGlobToRegex() {
+        assertEquals("[^/]*\\.txt", SkipRules.globToRegex("*.txt"));
+        assertEquals("(?:.*/)?cache/.*", SkipRules.globToRegex("**/cache/**"));
+        assertEquals("file[^/]\\.(?:jpg|png)", SkipRules.globToRegex("file?.{jpg,png}"));
+        assertEquals("[^/abc]x", SkipRules.globToRegex("[!abc]x"));
+
+        // Only ! negates, and nothing else in a class has its regex meaning
+        assertEquals("[\\^a]", SkipRules.globToRegex("[^a]"));
+        assertTrue("^".matches(SkipRules.globToRegex("[^a]")));
+        assertFalse("b".matches(SkipRules.globToRegex("[^a]")));
+        assertEquals("[a\\&\\&b]", SkipRules.globToRegex("[a&&b]"));
+        assertTrue("&".matches(SkipRules.globToRegex("[a&&b]")));
+        assertEquals("[a-c]", SkipRules.globToRegex("[a-c]"));
+        assertEquals("[\\-a]", SkipRules.globToRegex("[-a]"));
+        assertEquals("[^/\\-a]", SkipRules.globToRegex("[!-a]"));
+        assertEquals("[a\\-]", SkipRules.globToRegex("[a-]"));
+        assertTrue("-".matches(SkipRules.globToRegex("[a-]")));
+        assertEquals("[\\[a]", SkipRules.globToRegex("[[a]"));
+        assertThrows(IllegalArgumentException.class, () -> SkipRules.globToRegex("[c-a]"));
+        assertThrows(IllegalArgumentException.class, () -> SkipRules.globToRegex("[a/]"));
+        assertThrows(IllegalArgumentException.class, () -> SkipRules.globToRegex("[]"));
+    }
+
+    private static SkipRule rule(final String kind, final String pattern) {
+        final SkipRule rule = new SkipRule();
+        switch (kind) {
+            case "prefix" -> rule.setPrefix(pattern);
+            case "suffix" -> rule.setSuffix(pattern);
+            default -> rule.setGlob(pattern);
+        }
+        return rule;
+    }
+}
@@ -0,0 +1,149 @@
+package com.bitrot.checksum;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.zip.Checksum;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ChecksumAlgorithmTest {
+    private static byte[] sequence(final int length) {
+        final byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (i * 31 + 7);
+        }
+        return bytes;
+    }
+
+    @Test
+    void testXxHash64KnownValues() {
+        // Reference values from the xxHash reference implementation
+        assertEquals(0xef46db3751d8e999L, hash(new byte[0]));
+        assertEquals(0x44bc2cf5ad770999L, hash("abc".getBytes(StandardCharsets.UTF_8)));
+        assertEquals(0xfbcea83c8a378bf1L, hash("Nobody inspects the spammish repetition".getBytes(StandardCharsets.UTF_8)));
+        assertEquals(0xa72c3f6870dc2e9eL, hash(sequence(768)));
+        assertEquals(0xc333c0bff6f9efdbL, hash(sequence(100003)));
+    }
+
+    @Test
+    void testXxHash64Streaming() {
+        final byte[] bytes = sequence(100003);
+        final long expected = hash(bytes);
+
+        // Uneven chunks so that stripes are split across updates
+        final Checksum arrayChecksum = new XxHash64();
+        final Checksum directChecksum = new XxHash64();
+        final ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length).put(bytes).flip();
+        int offset = 0;
+        int chunk = 1;
+        while (offset < bytes.length) {
+            final int length = Math.min(chunk, bytes.length - offset);
+            arrayChecksum.update(bytes, offset, length);
+            directChecksum.update(direct.slice(offset, length));
+            offset += length;
+            chunk = chunk * 3 + 1;
+        }
+        assertEquals(expected, arrayChecksum.getValue());
+        assertEquals(expected, directChecksum.getValue());
+
+        // Single bytes
+        final Checksum byteChecksum = new XxHash64();
+        for (final byte b : bytes) {
+            byteChecksum.update(b);
+        }
+        assertEquals(expected, byteChecksum.getValue());
+
+        // Reset should start from scratch
+        byteChecksum.reset();
+        assertEquals(0xef46db3751d8e999L, byteChecksum.getValue());
+    }
+
+    @Test
+    void testCRC32C() {
+        final Checksum checksum = BuiltInChecksumAlgorithm.CRC32C.newChecksum();
+        checksum.update("123456789".getBytes(StandardCharsets.UTF_8));
+        assertEquals(0xe3069283L, checksum.getValue());
+    }
+
+    @Test
+    void testBlockManifest() throws IOException {
+        final byte[] bytes = sequence(1000);
+        final BlockChecksummer recording = BlockChecksummer.recording(64);
+        recording.update(ByteBuffer.wrap(bytes, 0, 100));
+        recording.update(ByteBuffer.wrap(bytes, 100, 900));
+        recording.finish();
+        final BlockManifest manifest = BlockManifest.fromBytes(64, recording.toManifest().toBytes());
+        assertEquals(16, manifest.getBlockCount());
+        assertTrue(manifest.covers(1000));
+        assertFalse(manifest.covers(1025));
+
+        // Each block is the CRC32C of its own bytes, the last one being shorter
+        final Checksum lastBlock = BuiltInChecksumAlgorithm.CRC32C.newChecksum();
+        lastBlock.update(bytes, 960, 40);
+        assertEquals((int) lastBlock.getValue(), manifest.checksum(15));
+
+        // The same contents in other chunks should pass
+        final BlockChecksummer verifying = BlockChecksummer.verifying(manifest);
+        for (int offset = 0; offset < bytes.length; offset += 7) {
+            verifying.update(ByteBuffer.wrap(bytes, offset, Math.min(7, bytes.length - offset)));
+        }
+        verifying.finish();
+
+        // A corrupted byte should be reported as soon as its block is complete
+        bytes[200] ^= 1;
+        final BlockChecksummer corrupted = BlockChecksummer.verifying(manifest);
+        final BlockMismatchException e = assertThrows(BlockMismatchException.class, () -> corrupted.update(ByteBuffer.wrap(bytes)));
+        assertEquals(3, e.getBlock());
+        assertEquals(192, e.getStartOffset());
+        assertEquals(256, e.getEndOffset());
+
+        // A file that ends on a block boundary before the manifest does is a mismatch too
+        final BlockChecksummer truncated = BlockChecksummer.verifying(manifest);
+        truncated.update(ByteBuffer.wrap(sequence(1000), 0, 640));
+        final BlockMismatchException missing = assertThrows(BlockMismatchException.class, truncated::finish);
+        assertEquals(10, missing.getBlock());
+        assertEquals(640, missing.getStartOffset());
+        assertEquals(1024, missing.getEndOffset());
+    }
+
+    @Test
+    void testCombine() {
+        final byte[] bytes = sequence(100003);
+        for (final BuiltInChecksumAlgorithm algorithm : List.of(BuiltInChecksumAlgorithm.CRC32, BuiltInChecksumAlgorithm.CRC32C)) {
+            assertTrue(algorithm.isCombinable());
+            final long expected = checksum(algorithm, bytes, 0, bytes.length);
+            for (final int split : new int[]{0, 1, 4096, 50000, bytes.length}) {
+                final long first = checksum(algorithm, bytes, 0, split);
+                final long second = checksum(algorithm, bytes, split, bytes.length - split);
+                assertEquals(expected, algorithm.combine(first, second, bytes.length - split), algorithm + " split at " + split);
+            }
+        }
+
+        assertFalse(BuiltInChecksumAlgorithm.XXHASH64.isCombinable());
+        assertThrows(UnsupportedOperationException.class, () -> BuiltInChecksumAlgorithm.XXHASH64.combine(1, 2, 3));
+    }
+
+    @Test
+    void testForName() {
+        assertSame(BuiltInChecksumAlgorithm.CRC32, ChecksumAlgorithms.forName("CRC32"));
+        assertSame(BuiltInChecksumAlgorithm.CRC32C, ChecksumAlgorithms.forName("CRC32C"));
+        assertSame(BuiltInChecksumAlgorithm.XXHASH64, ChecksumAlgorithms.forName("XXHASH64"));
+        assertThrows(IllegalArgumentException.class, () -> ChecksumAlgorithms.forName("MD5"));
+    }
+
+    private static long checksum(final ChecksumAlgorithm algorithm, final byte[] bytes, final int offset, final int length) {
+        final Checksum checksum = algorithm.newChecksum();
+        checksum.update(bytes, offset, length);
+        return checksum.getValue();
+    }
+
+    private static long hash(final byte[] bytes) {
+        final Checksum checksum = BuiltInChecksumAlgorithm.XXHASH64.newChecksum();
+        checksum.update(bytes, 0, bytes.length);
+        return checksum.getValue();
+    }
+}
@@ -0,0 +1,63 @@
+package com.bitrot.io;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ExternalSorterTest {
+    @Test
+    void testSortSpillsToDisk() throws IOException {
+        final Random random = new Random(42);
+        final List<Long> expected = new ArrayList<>();
+        final List<Long> sorted = new ArrayList<>();
+
+        // A small limit so that most entries go through sorted runs on disk
+        try (final ExternalSorter sorter = new ExternalSorter(1000)) {
+            for (int i = 0; i < 10_500; i++) {
+                final long key = random.nextInt(5000);
+                expected.add(key);
+                sorter.add(key, "file-" + key + "-é-" + i);
+            }
+            sorter.forEachSorted((key, value) -> {
+                assertTrue(value.startsWith("file-" + key + "-é-"));
+                sorted.add(key);
+            });
+        }
+
+        expected.sort(null);
+        assertEquals(expected, sorted);
+    }
+
+    @Test
+    void testConcurrentAddsAreAllSorted() throws Exception {
+        final List<Long> sorted = new ArrayList<>();
+
+        // Many threads spill at the same time, and every spilled run must be read back
+        try (final ExternalSorter sorter = new ExternalSorter(100)) {
+            try (final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+                for (int thread = 0; thread < 16; thread++) {
+                    final int offset = thread;
+                    executor.submit(() -> {
+                        for (int i = 0; i < 1000; i++) {
+                            sorter.add(i * 16L + offset, "file-" + i);
+                        }
+                        return null;
+                    });
+                }
+            }
+            sorter.forEachSorted((key, value) -> sorted.add(key));
+        }
+
+        assertEquals(16_000, sorted.size());
+        for (int i = 0; i < sorted.size(); i++) {
+            assertEquals(i, sorted.get(i));
+        }
+    }
+}
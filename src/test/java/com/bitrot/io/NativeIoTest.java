@@ -0,0 +1,68 @@
+package com.bitrot.io;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Locale;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+public class NativeIoTest {
+    @Test
+    void testPageCacheAdvice(@TempDir final Path tempDir) throws IOException {
+        assumeTrue(System.getProperty("os.name").toLowerCase(Locale.ROOT).contains("linux"));
+        assertTrue(NativeIo.isAvailable());
+
+        final byte[] contents = new byte[40_000_000];
+        new Random(42).nextBytes(contents);
+        final Path path = tempDir.resolve("advised.bin");
+        Files.write(path, contents);
+        final CRC32 expected = new CRC32();
+        expected.update(contents);
+
+        // The hints must not change what is read, for whole files and for ranges
+        final DeviceLane lane = new DeviceLane("advised", false, 2, ReadThrottle.UNLIMITED, true);
+        for (final ReadEngine engine : ReadEngine.values()) {
+            final long whole = lane.read(path, () -> {
+                final CRC32 crc32 = new CRC32();
+                engine.read(path, lane.wrap(path, 0, crc32::update));
+                return crc32.getValue();
+            });
+            assertEquals(expected.getValue(), whole, engine.name());
+
+            final long range = lane.read(path, () -> {
+                final CRC32 crc32 = new CRC32();
+                engine.readRange(path, 1_000_000, 30_000_000, lane.wrap(path, 1_000_000, crc32::update));
+                return crc32.getValue();
+            });
+            final CRC32 expectedRange = new CRC32();
+            expectedRange.update(contents, 1_000_000, 30_000_000);
+            assertEquals(expectedRange.getValue(), range, engine.name());
+        }
+
+        // Hints for a file that is gone are ignored, the read reports the problem
+        NativeIo.willNeed(tempDir.resolve("missing.bin"), 0, 0);
+    }
+
+    @Test
+    void testPhysicalLocator(@TempDir final Path tempDir) throws IOException {
+        assumeTrue(System.getProperty("os.name").toLowerCase(Locale.ROOT).contains("linux"));
+
+        final Path file = Files.write(tempDir.resolve("located.bin"), new byte[100_000]);
+        final Path empty = Files.write(tempDir.resolve("empty.bin"), new byte[0]);
+        // An empty file has no extents
+        assertEquals(-1, NativeIo.firstExtentOffset(empty));
+
+        final PhysicalLocator locator = new PhysicalLocator();
+        final long location = locator.locate(file, Files.readAttributes(file, BasicFileAttributes.class));
+        assertTrue(location >= 0 && location < Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, locator.locate(empty, Files.readAttributes(empty, BasicFileAttributes.class)));
+    }
+}
@@ -0,0 +1,50 @@
+package com.bitrot.io;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class ReadEngineTest {
+    @Test
+    void testReadMappedAcrossWindows(@TempDir final Path tempDir) throws IOException {
+        // A window size that lines up with neither the file nor the pages, so the file spans several windows
+        final long windowSize = 1_000_003;
+        final byte[] contents = new byte[(int) windowSize * 3 + 7];
+        new Random(42).nextBytes(contents);
+        final Path path = tempDir.resolve("test.bin");
+        Files.write(path, contents);
+
+        final CRC32 expected = new CRC32();
+        expected.update(contents);
+
+        try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final CRC32 actual = new CRC32();
+            final AtomicInteger windows = new AtomicInteger();
+            ReadEngine.readMapped(channel, 0, contents.length, windowSize, chunk -> {
+                windows.incrementAndGet();
+                actual.update(chunk);
+            });
+            assertEquals(expected.getValue(), actual.getValue());
+            assertEquals(4, windows.get());
+
+            // A range that starts and ends in the middle of a window
+            final int start = 999_000;
+            final int end = 2_500_000;
+            final CRC32 expectedRange = new CRC32();
+            expectedRange.update(contents, start, end - start);
+            final CRC32 actualRange = new CRC32();
+            ReadEngine.readMapped(channel, start, end, windowSize, actualRange::update);
+            assertEquals(expectedRange.getValue(), actualRange.getValue());
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.bitrot.io;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import static com.bitrot.data.Constants.THROTTLE_INCREASE_BYTES_PER_SECOND;
+import static com.bitrot.data.Constants.THROTTLE_MIN_BYTES_PER_SECOND;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ReadThrottleTest {
+    private static final double MIB = 1024 * 1024;
+
+    @Test
+    void testTokenBucket() throws IOException {
+        final ReadThrottle throttle = new ReadThrottle(100 * MIB);
+
+        // The bucket starts empty, so 10 MiB at 100 MiB/s takes about a tenth of a second
+        final long start = System.nanoTime();
+        throttle.acquire((long) (10 * MIB));
+        final long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+        assertTrue(elapsedMillis >= 90, "took " + elapsedMillis + " ms");
+        assertEquals((long) (10 * MIB), throttle.takeBytesRead());
+        assertEquals(0, throttle.takeBytesRead());
+    }
+
+    @Test
+    void testAdapt() {
+        final ReadThrottle throttle = new ReadThrottle(100 * MIB);
+
+        // Halve what we actually read while busy
+        throttle.adapt(true, 40 * MIB);
+        assertEquals(20 * MIB, throttle.getBytesPerSecond());
+        throttle.adapt(true, 20 * MIB);
+        assertEquals(10 * MIB, throttle.getBytesPerSecond());
+
+        // Then grow step by step while we use the whole rate
+        throttle.adapt(false, 10 * MIB);
+        assertEquals(10 * MIB + THROTTLE_INCREASE_BYTES_PER_SECOND, throttle.getBytesPerSecond());
+
+        // Never below the minimum
+        for (int i = 0; i < 20; i++) {
+            throttle.adapt(true, 0);
+        }
+        assertEquals(THROTTLE_MIN_BYTES_PER_SECOND, throttle.getBytesPerSecond());
+
+        // A sample without reads only grows the rate by a step
+        throttle.adapt(false, 0);
+        assertEquals(THROTTLE_MIN_BYTES_PER_SECOND + THROTTLE_INCREASE_BYTES_PER_SECOND, throttle.getBytesPerSecond());
+
+        // Back to the ceiling once we read well below the rate anyway
+        throttle.adapt(false, MIB);
+        assertEquals(100 * MIB, throttle.getBytesPerSecond());
+
+        // Without a ceiling the rate starts from what we read
+        final ReadThrottle unlimited = new ReadThrottle(Double.POSITIVE_INFINITY);
+        unlimited.adapt(true, 300 * MIB);
+        assertEquals(150 * MIB, unlimited.getBytesPerSecond());
+        unlimited.adapt(false, 10 * MIB);
+        assertTrue(Double.isInfinite(unlimited.getBytesPerSecond()));
+    }
+
+    @Test
+    void testForegroundBusy() {
+        final Map<String, DiskLoadMonitor.Sample> before = DiskLoadMonitor.readDiskstats(List.of(
+                "   8       0 sda 1000 0 80000 5000 500 0 40000 2500 0 6000 7500 0 0 0 0",
+                "   8       1 sda1 900 0 70000 4000 400 0 30000 2000 0 5000 6000 0 0 0 0"));
+        assertEquals(new DiskLoadMonitor.Sample(1500, 120000, 7500), before.get("sda"));
+        assertEquals(2, before.size());
+
+        // 100 requests that took 50 ms each and moved 10 MiB
+        final DiskLoadMonitor.Sample after = new DiskLoadMonitor.Sample(1600, 120000 + 20480, 12500);
+        assertTrue(DiskLoadMonitor.isForegroundBusy(before.get("sda"), after, 0, 1, 20));
+        // Not if we read all of it ourselves
+        assertFalse(DiskLoadMonitor.isForegroundBusy(before.get("sda"), after, 20480 * 512, 1, 20));
+        // Not if requests complete quickly
+        assertFalse(DiskLoadMonitor.isForegroundBusy(before.get("sda"), after, 0, 1, 100));
+    }
+
+    @Test
+    void testMonitorNeedsDiskstats(@TempDir final Path tempDir) {
+        // Like on Windows, where there is no /proc/diskstats
+        assertFalse(new DiskLoadMonitor(tempDir.resolve("diskstats"), List::of).start(1000));
+    }
+}
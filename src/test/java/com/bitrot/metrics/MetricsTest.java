@@ -0,0 +1,97 @@
+package com.bitrot.metrics;
+
+import com.bitrot.data.Config;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MetricsTest {
+    @Test
+    void testHistogram() {
+        final LatencyHistogram histogram = new LatencyHistogram("test", "A test");
+        assertEquals(0, histogram.getQuantileNanos(0.5));
+
+        // 98 fast tasks, one slow one and one beyond every bucket
+        for (int i = 0; i < 98; i++) {
+            histogram.record(1_500);
+        }
+        histogram.record(30_000_000);
+        histogram.record(500_000_000_000L);
+
+        assertEquals(100, histogram.getCount());
+        assertEquals(2_000, histogram.getQuantileNanos(0.5));
+        assertEquals(50_000_000, histogram.getQuantileNanos(0.99));
+        assertEquals(500_000_000_000L, histogram.getQuantileNanos(1));
+        assertEquals(500_000_000_000L, histogram.getMaxNanos());
+        assertEquals(98 * 1_500 + 30_000_000 + 500_000_000_000L, histogram.getSumNanos());
+
+        final long[] counts = histogram.getBucketCounts();
+        assertEquals(98, counts[1]);
+        assertEquals(1, counts[counts.length - 1]);
+        assertEquals("0.000001", LatencyHistogram.seconds(LatencyHistogram.BUCKET_BOUNDS_NANOS[0]));
+        assertEquals("100", LatencyHistogram.seconds(LatencyHistogram.BUCKET_BOUNDS_NANOS[LatencyHistogram.BUCKET_BOUNDS_NANOS.length - 1]));
+    }
+
+    @Test
+    void testQueuedTasks() {
+        final LatencyHistogram histogram = new LatencyHistogram("test", "A test");
+        final long queuedAt = System.nanoTime() - 5_000_000;
+        final long first = histogram.start(queuedAt);
+        final long second = histogram.start(queuedAt);
+        assertEquals(2, histogram.getActive());
+        histogram.finish(first);
+        histogram.finish(second);
+
+        assertEquals(0, histogram.getActive());
+        assertEquals(2, histogram.getPeakActive());
+        assertEquals(2, histogram.getCount());
+        assertTrue(histogram.getWaitNanos() >= 10_000_000, Long.toString(histogram.getWaitNanos()));
+        assertTrue(histogram.toString().endsWith(" peak concurrent"), histogram.toString());
+    }
+
+    @Test
+    void testTextFileAndJmx(@TempDir final Path tempDir) throws Exception {
+        Metrics.registerQueue("test_queue", () -> 7);
+        final long hashes = Metrics.HASH.getCount();
+        Metrics.HASH.record(3_000_000);
+
+        final Path file = tempDir.resolve("bitrot.prom");
+        Metrics.writeTextFile(file, List.of());
+        final List<String> lines = Files.readAllLines(file);
+        assertTrue(lines.contains("# TYPE bitrot_stage_duration_seconds histogram"));
+        assertTrue(lines.contains("bitrot_stage_duration_seconds_bucket{stage=\"hash\",le=\"+Inf\"} " + (hashes + 1)));
+        assertTrue(lines.contains("bitrot_stage_duration_seconds_count{stage=\"hash\"} " + (hashes + 1)));
+        assertTrue(lines.contains("bitrot_queue_depth{queue=\"test_queue\"} 7"));
+        assertTrue(lines.contains("# TYPE bitrot_stage_wait_seconds_total counter"));
+        assertTrue(lines.contains("bitrot_stage_active_tasks{stage=\"verify\"} 0"));
+        try (final var files = Files.list(tempDir)) {
+            assertEquals(List.of(file), files.toList());
+        }
+
+        Metrics.start(null, 3600);
+        Metrics.stop();
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        assertEquals(7, server.getAttribute(new ObjectName("com.bitrot:type=Queue,name=\"test_queue\""), "Depth"));
+        assertEquals(hashes + 1, server.getAttribute(new ObjectName("com.bitrot:type=Stage,name=\"hash\""), "Count"));
+    }
+
+    @Test
+    void testIntervalMustBePositive() {
+        final ObjectMapper mapper = new ObjectMapper();
+        for (final String interval : List.of("0", "-5")) {
+            final JsonMappingException e = assertThrows(JsonMappingException.class,
+                    () -> mapper.readValue("{\"metricsIntervalSeconds\": " + interval + "}", Config.class));
+            assertTrue(e.getMessage().contains("metricsIntervalSeconds must be at least 1"), e.getMessage());
+        }
+    }
+}